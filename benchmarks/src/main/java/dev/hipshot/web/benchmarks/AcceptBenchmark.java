@@ -0,0 +1,115 @@
+package dev.hipshot.web.benchmarks;
+
+import dev.hipshot.web.server.AcceptMode;
+import dev.hipshot.web.server.EncodedHeader;
+import dev.hipshot.web.server.Metrics;
+import dev.hipshot.web.server.Router;
+import dev.hipshot.web.server.WebServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A burst of short-lived connections, each opened for a single request and closed, as health checks and
+ * non-keep-alive clients do. The score is accepts per second. On tear down, the connections each ring
+ * accepted are printed along with their coefficient of variation, which is 0 for a perfectly even spread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(8)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AcceptBenchmark {
+    private static final int PORT = 18082;
+    private static final byte[] REQUEST = "GET /health HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    @Param({"SHARED", "REUSE_PORT"})
+    public AcceptMode acceptMode;
+
+    @Param({"4"})
+    public int threads;
+
+    private WebServer server;
+
+    @Setup
+    public void start() throws InterruptedException {
+        var router = new Router()
+            .get("/health", (req, res) -> res
+                .header(EncodedHeader.CONTENT_TYPE_TEXT_PLAIN)
+                .body("OK")
+                .send());
+        var options = WebServer.Options.builder()
+            .host("127.0.0.1")
+            .port(PORT)
+            .threads(threads)
+            .acceptMode(acceptMode)
+            .build();
+        server = WebServer.create(options, router).start();
+        Thread.sleep(100); // let the rings queue their first accept
+    }
+
+    @TearDown
+    public void stop() {
+        var accepted = server.metrics().rings().stream().mapToLong(Metrics.Ring::accepted).toArray();
+        double mean = Arrays.stream(accepted).average().orElse(0);
+        double variance = Arrays.stream(accepted).mapToDouble(count -> (count - mean) * (count - mean)).average().orElse(0);
+        System.out.printf("%nAccepted per ring: %s, coefficient of variation %.3f%n",
+            Arrays.toString(accepted), mean > 0 ? Math.sqrt(variance) / mean : 0);
+        server.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private final ByteBuffer request = ByteBuffer.wrap(REQUEST);
+        private final ByteBuffer response = ByteBuffer.allocate(4096);
+    }
+
+    @Benchmark
+    public int connect(Client client) throws IOException {
+        try (var channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT))) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            // close with a reset rather than leaving thousands of sockets in TIME_WAIT
+            channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            client.request.rewind();
+            while (client.request.hasRemaining()) {
+                channel.write(client.request);
+            }
+            client.response.clear();
+            while (!endsWithBody(client.response)) {
+                if (channel.read(client.response) < 0) {
+                    throw new IOException("Connection closed by server");
+                }
+            }
+            return client.response.position();
+        }
+    }
+
+    private static boolean endsWithBody(ByteBuffer response) {
+        int end = response.position();
+        return end >= 6
+            && response.get(end - 6) == '\r' && response.get(end - 5) == '\n'
+            && response.get(end - 4) == '\r' && response.get(end - 3) == '\n'
+            && response.get(end - 2) == 'O' && response.get(end - 1) == 'K';
+    }
+}
@@ -0,0 +1,90 @@
+package dev.hipshot.web.benchmarks;
+
+import dev.hipshot.web.server.codec.BodyCompressor;
+import dev.hipshot.web.server.codec.ContentCoding;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses a JSON body of {@code size} bytes at each deflate {@code level}, to weigh the CPU it costs against
+ * the bytes it saves: the {@code bytesIn} and {@code bytesOut} counters give the ratio, and {@code copy} is the
+ * cost of sending the body as it is.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"2048", "65536"})
+    public int size;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    @Param({"GZIP", "DEFLATE"})
+    public ContentCoding coding;
+
+    private BodyCompressor compressor;
+    private ByteBuffer body;
+    private ByteBuffer output;
+
+    /**
+     * Bytes in and out per operation, reported alongside the throughput.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+        public long bytesIn;
+        public long bytesOut;
+    }
+
+    @Setup
+    public void setup() {
+        compressor = new BodyCompressor();
+        var json = new StringBuilder("[");
+        for (int i = 0; json.length() < size; i++) {
+            json.append(i > 0 ? "," : "")
+                .append("{\"id\":").append(i)
+                .append(",\"name\":\"user-").append(i * 7919 % 10007)
+                .append("\",\"email\":\"user").append(i).append("@example.com\"")
+                .append(",\"active\":").append(i % 3 != 0)
+                .append(",\"score\":").append(i * 31 % 1000)
+                .append('}');
+        }
+        body = ByteBuffer.wrap(json.toString().getBytes(StandardCharsets.UTF_8), 0, size);
+        output = ByteBuffer.allocateDirect(size);
+    }
+
+    @Benchmark
+    public int compress(Bytes bytes) {
+        int compressed = compressor.compress(body, coding, level).remaining();
+        bytes.bytesIn += body.remaining();
+        bytes.bytesOut += compressed;
+        return compressed;
+    }
+
+    @Benchmark
+    public int copy(Bytes bytes) {
+        output.clear().put(body.duplicate());
+        bytes.bytesIn += body.remaining();
+        bytes.bytesOut += body.remaining();
+        return output.position();
+    }
+}
@@ -0,0 +1,94 @@
+package dev.hipshot.web.benchmarks;
+
+import dev.hipshot.web.server.EncodedHeader;
+import dev.hipshot.web.server.Router;
+import dev.hipshot.web.server.WebServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link WebServer} on loopback and drives it over real sockets with the TechEmpower-style plaintext
+ * and JSON endpoints. Each benchmark thread holds one keep-alive connection and sends {@code pipeline}
+ * requests per operation before reading all their responses. Use {@code -t} to add connections; the
+ * allocation figures from {@code -prof gc} include the client side.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EndToEndBenchmark {
+    private static final int PORT = 18080;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"1"})
+        public int threads;
+
+        private WebServer server;
+
+        @Setup
+        public void start() throws InterruptedException {
+            var router = new Router()
+                .get("/plaintext", (req, res) -> res
+                    .header(EncodedHeader.CONTENT_TYPE_TEXT_PLAIN)
+                    .body("Hello, World!")
+                    .send())
+                .get("/json", (req, res) -> res
+                    .header(EncodedHeader.CONTENT_TYPE_JSON)
+                    .body("{\"message\":\"Hello, World!\"}")
+                    .send());
+            var options = WebServer.Options.builder()
+                .host("127.0.0.1")
+                .port(PORT)
+                .threads(threads)
+                .build();
+            server = WebServer.create(options, router).start();
+            Thread.sleep(100); // let the rings queue their first accept
+        }
+
+        @TearDown
+        public void stop() {
+            server.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        @Param({"plaintext", "json"})
+        public String endpoint;
+
+        @Param({"1", "16"})
+        public int pipeline;
+
+        private LoopbackConnection connection;
+
+        @Setup
+        public void connect(Server server) throws IOException {
+            connection = new LoopbackConnection(PORT, "/" + endpoint, pipeline);
+        }
+
+        @TearDown
+        public void close() throws IOException {
+            connection.close();
+        }
+    }
+
+    @Benchmark
+    public int exchange(Client client) throws IOException {
+        return client.connection.exchange();
+    }
+}
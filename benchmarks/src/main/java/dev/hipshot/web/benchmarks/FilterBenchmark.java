@@ -0,0 +1,147 @@
+package dev.hipshot.web.benchmarks;
+
+import dev.hipshot.web.server.Filter;
+import dev.hipshot.web.server.HttpMethod;
+import dev.hipshot.web.server.Router;
+import dev.hipshot.web.server.WebServerRequest;
+import dev.hipshot.web.server.WebServerResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs a request through {@code filters} filters in front of a handler, comparing the chain a {@link Router}
+ * links when it compiles with the same filters nested by hand: once as wrapping lambdas built up front, and once
+ * as middleware that is handed a {@link Runnable} continuation allocated per request. The filters are of four
+ * different classes, as cross-cutting ones would be, so no call site sees just one. {@code direct} calls the
+ * handler with no filters at all.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark {
+
+    @Param({"1", "4", "8"})
+    public int filters;
+
+    private BiConsumer<WebServerRequest, WebServerResponse> handler;
+    private Router router;
+    private Router routed;
+    private BiConsumer<WebServerRequest, WebServerResponse> wrapped;
+    private Middleware[] middleware;
+    private WebServerRequest request;
+    private WebServerResponse response;
+    private long counted;
+
+    /**
+     * The hand-rolled alternative to {@link Filter}: the rest of the chain as a callback.
+     */
+    interface Middleware {
+        void handle(WebServerRequest request, WebServerResponse response, Runnable next);
+    }
+
+    @Setup
+    public void setup() {
+        handler = (req, res) -> counted++;
+        var chain = new ArrayList<Filter>();
+        for (int i = 0; i < filters; i++) {
+            chain.add(filter(i));
+        }
+        router = new Router();
+        chain.forEach(router::filter);
+        router.get("/api/users/{id}", handler).compile();
+
+        // the route's handler behind the same filters, each wrapping the next in a lambda once
+        routed = new Router().get("/api/users/{id}", handler).compile();
+        wrapped = routed;
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            wrapped = wrap(chain.get(i), wrapped);
+        }
+        middleware = new Middleware[filters];
+        for (int i = 0; i < filters; i++) {
+            middleware[i] = middleware(i);
+        }
+
+        request = WebServerRequest.builder().method(HttpMethod.GET).path("/api/users/42").build();
+        response = new WebServerResponse();
+    }
+
+    @Benchmark
+    public long direct() {
+        handler.accept(request, response);
+        return counted;
+    }
+
+    @Benchmark
+    public long compiled() {
+        router.accept(request, response);
+        return counted;
+    }
+
+    @Benchmark
+    public long nested() {
+        wrapped.accept(request, response);
+        return counted;
+    }
+
+    @Benchmark
+    public long continuations() {
+        run(0, request, response);
+        return counted;
+    }
+
+    private void run(int index, WebServerRequest request, WebServerResponse response) {
+        if (index == middleware.length) {
+            routed.accept(request, response);
+            return;
+        }
+        middleware[index].handle(request, response, () -> run(index + 1, request, response));
+    }
+
+    private static BiConsumer<WebServerRequest, WebServerResponse> wrap(Filter filter,
+                                                                    BiConsumer<WebServerRequest, WebServerResponse> next) {
+        return (req, res) -> filter.filter(req, res, next);
+    }
+
+    private Filter filter(int index) {
+        return switch (index % 4) {
+            case 0 -> (req, res, next) -> {
+                counted++;
+                next.accept(req, res);
+            };
+            case 1 -> (req, res, next) -> {
+                if (req.httpMethod() != HttpMethod.TRACE) {
+                    next.accept(req, res);
+                }
+            };
+            case 2 -> (req, res, next) -> {
+                counted += req.path().length();
+                next.accept(req, res);
+            };
+            default -> (req, res, next) -> {
+                next.accept(req, res);
+                counted--;
+            };
+        };
+    }
+
+    private Middleware middleware(int index) {
+        var filter = filter(index);
+        return (req, res, next) -> filter.filter(req, res, (r, s) -> next.run());
+    }
+}
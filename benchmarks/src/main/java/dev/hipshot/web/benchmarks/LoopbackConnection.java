@@ -0,0 +1,84 @@
+package dev.hipshot.web.benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A blocking keep-alive client connection that sends the same request {@code pipeline} times and reads the
+ * responses back. The responses must not change length, which holds for a fixed body since the Date header
+ * is fixed-width.
+ */
+final class LoopbackConnection implements AutoCloseable {
+    private final SocketChannel channel;
+    private final ByteBuffer requests;
+    private final ByteBuffer responses;
+
+    LoopbackConnection(int port, String path, int pipeline) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+        channel.socket().setTcpNoDelay(true);
+        var request = "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+        requests = ByteBuffer.allocateDirect(request.length() * pipeline);
+        requests.put(request.repeat(pipeline).getBytes(StandardCharsets.ISO_8859_1)).flip();
+
+        // learn the response length from a first exchange
+        var single = ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1));
+        while (single.hasRemaining()) {
+            channel.write(single);
+        }
+        var first = ByteBuffer.allocate(4096);
+        int headEnd;
+        while ((headEnd = indexOf(first, "\r\n\r\n")) < 0) {
+            read(first);
+        }
+        var head = new String(first.array(), 0, headEnd, StandardCharsets.ISO_8859_1);
+        int lengthStart = head.indexOf("Content-Length: ") + "Content-Length: ".length();
+        int contentLength = Integer.parseInt(head.substring(lengthStart, head.indexOf("\r\n", lengthStart)));
+        int responseLength = headEnd + 4 + contentLength;
+        while (first.position() < responseLength) {
+            read(first);
+        }
+        responses = ByteBuffer.allocateDirect(responseLength * pipeline);
+    }
+
+    /**
+     * Sends the pipelined requests and waits for all their responses. Returns the number of bytes received.
+     */
+    int exchange() throws IOException {
+        requests.rewind();
+        while (requests.hasRemaining()) {
+            channel.write(requests);
+        }
+        responses.clear();
+        while (responses.hasRemaining()) {
+            read(responses);
+        }
+        return responses.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void read(ByteBuffer buffer) throws IOException {
+        if (channel.read(buffer) < 0) {
+            throw new IOException("Connection closed by server");
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, String value) {
+        outer:
+        for (int i = 0; i + value.length() <= buffer.position(); i++) {
+            for (int j = 0; j < value.length(); j++) {
+                if (buffer.get(i + j) != value.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
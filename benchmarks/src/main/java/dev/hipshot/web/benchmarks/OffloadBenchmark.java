@@ -0,0 +1,125 @@
+package dev.hipshot.web.benchmarks;
+
+import dev.hipshot.web.server.EncodedHeader;
+import dev.hipshot.web.server.Offload;
+import dev.hipshot.web.server.Router;
+import dev.hipshot.web.server.WebServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a fast route while a slow, blocking route is hit on the same ring. With {@link Offload#NONE}
+ * every fast request queued behind a slow one waits for it; offloaded, the fast route should keep its
+ * latency. Compare the p99 of {@code mixed:fast} across {@code offload} values.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class OffloadBenchmark {
+    private static final int PORT = 18081;
+
+    @State(Scope.Group)
+    public static class Server {
+        @Param({"NONE", "VIRTUAL_THREADS", "WORKER_POOL"})
+        public Offload offload;
+
+        /**
+         * How long the slow route blocks for, in microseconds.
+         */
+        @Param({"1000"})
+        public int slowMicros;
+
+        private WebServer server;
+
+        @Setup
+        public void start() throws InterruptedException {
+            var router = new Router()
+                .get("/fast", (req, res) -> res
+                    .header(EncodedHeader.CONTENT_TYPE_TEXT_PLAIN)
+                    .body("fast")
+                    .send())
+                .get("/slow", Router.blocking((req, res) -> {
+                    try {
+                        TimeUnit.MICROSECONDS.sleep(slowMicros);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    res.header(EncodedHeader.CONTENT_TYPE_TEXT_PLAIN).body("slow").send();
+                }));
+            var options = WebServer.Options.builder()
+                .host("127.0.0.1")
+                .port(PORT)
+                .threads(1)
+                .offload(offload)
+                .build();
+            server = WebServer.create(options, router).start();
+            Thread.sleep(100); // let the ring queue its first accept
+        }
+
+        @TearDown
+        public void stop() {
+            server.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FastClient {
+        private LoopbackConnection connection;
+
+        @Setup
+        public void connect(Server server) throws IOException {
+            connection = new LoopbackConnection(PORT, "/fast", 1);
+        }
+
+        @TearDown
+        public void close() throws IOException {
+            connection.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SlowClient {
+        private LoopbackConnection connection;
+
+        @Setup
+        public void connect(Server server) throws IOException {
+            connection = new LoopbackConnection(PORT, "/slow", 1);
+        }
+
+        @TearDown
+        public void close() throws IOException {
+            connection.close();
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public int fast(FastClient client) throws IOException {
+        return client.connection.exchange();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public int slow(SlowClient client) throws IOException {
+        return client.connection.exchange();
+    }
+}
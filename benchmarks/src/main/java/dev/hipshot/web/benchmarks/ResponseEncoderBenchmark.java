@@ -0,0 +1,84 @@
+package dev.hipshot.web.benchmarks;
+
+import dev.hipshot.web.server.EncodedHeader;
+import dev.hipshot.web.server.WebServerResponse;
+import dev.hipshot.web.server.codec.WebServerResponseEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes a response carrying {@code headers} headers, set either by name and value or as pre-encoded
+ * {@link EncodedHeader}s. Each operation builds and encodes one response into a reused direct buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseEncoderBenchmark {
+    private static final String BODY = "Hello, World!";
+
+    @Param({"1", "4", "16"})
+    public int headers;
+
+    private WebServerResponseEncoder encoder;
+    private ByteBuffer buffer;
+    private String[] names;
+    private String[] values;
+    private EncodedHeader[] encodedHeaders;
+
+    @Setup
+    public void setup() {
+        encoder = new WebServerResponseEncoder();
+        buffer = ByteBuffer.allocateDirect(16 * 1024);
+        names = new String[headers];
+        values = new String[headers];
+        encodedHeaders = new EncodedHeader[headers];
+        names[0] = "Content-Type";
+        values[0] = "text/plain";
+        for (int i = 1; i < headers; i++) {
+            names[i] = "X-Header-" + i;
+            values[i] = "value-" + i;
+        }
+        for (int i = 0; i < headers; i++) {
+            encodedHeaders[i] = EncodedHeader.of(names[i], values[i]);
+        }
+    }
+
+    @Benchmark
+    public int stringHeaders() {
+        var response = new WebServerResponse();
+        for (int i = 0; i < headers; i++) {
+            response.header(names[i], values[i]);
+        }
+        return encode(response.body(BODY));
+    }
+
+    @Benchmark
+    public int encodedHeaders() {
+        var response = new WebServerResponse();
+        for (var header : encodedHeaders) {
+            response.header(header);
+        }
+        return encode(response.body(BODY));
+    }
+
+    private int encode(WebServerResponse response) {
+        buffer.clear();
+        encoder.encode(response, buffer);
+        return buffer.position();
+    }
+}
@@ -0,0 +1,85 @@
+package dev.hipshot.web.benchmarks;
+
+import dev.hipshot.web.server.HttpMethod;
+import dev.hipshot.web.server.Router;
+import dev.hipshot.web.server.WebServerRequest;
+import dev.hipshot.web.server.WebServerResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Matches requests against {@code routes} routes, a quarter of which take a path parameter, comparing the
+ * compiled {@link Router} with the split-and-HashMap router it replaced. Every request matches a route.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouterBenchmark {
+    private static final int REQUESTS = 64;
+
+    @Param({"10", "100", "1000"})
+    public int routes;
+
+    private Router router;
+    private SplitRouter splitRouter;
+    private WebServerRequest[] requests;
+    private WebServerResponse response;
+    private int matched;
+
+    @Setup
+    public void setup() {
+        BiConsumer<WebServerRequest, WebServerResponse> handler = (req, res) -> matched++;
+        router = new Router();
+        splitRouter = new SplitRouter();
+        var paths = new String[routes];
+        for (int i = 0; i < routes; i++) {
+            var path = i % 4 == 0
+                ? "/api/v1/resource" + i + "/{id}"
+                : "/api/v1/resource" + i + "/items";
+            router.get(path, handler);
+            splitRouter.route("GET", path, handler);
+            paths[i] = path.replace("{id}", Integer.toString(i * 31));
+        }
+        router.compile();
+
+        requests = new WebServerRequest[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            requests[i] = WebServerRequest.builder()
+                .method(HttpMethod.GET)
+                .path(paths[(i * 7919) % routes])
+                .build();
+        }
+        response = new WebServerResponse();
+    }
+
+    @Benchmark
+    public int compiled() {
+        for (var request : requests) {
+            router.accept(request, response);
+        }
+        return matched;
+    }
+
+    @Benchmark
+    public int split() {
+        for (var request : requests) {
+            splitRouter.accept(request, response);
+        }
+        return matched;
+    }
+}
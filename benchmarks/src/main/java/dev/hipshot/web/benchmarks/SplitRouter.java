@@ -0,0 +1,77 @@
+package dev.hipshot.web.benchmarks;
+
+import dev.hipshot.web.server.WebServerRequest;
+import dev.hipshot.web.server.WebServerResponse;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * The router as it was before it was compiled into a radix tree: the path is split on every request and
+ * each segment is looked up in a HashMap. Kept here only as a baseline for {@link RouterBenchmark}.
+ */
+final class SplitRouter implements BiConsumer<WebServerRequest, WebServerResponse> {
+    private final Route root = new Route("");
+
+    @Override
+    public void accept(WebServerRequest request, WebServerResponse response) {
+        root.handle(request, response, request.path().split("/"), 0);
+    }
+
+    SplitRouter route(String method, String path, BiConsumer<WebServerRequest, WebServerResponse> handler) {
+        var tokens = path.split("/");
+        var route = root;
+        for (var token : tokens) {
+            if (token.startsWith("{") && token.endsWith("}")) {
+                route = route.routes.computeIfAbsent("{*}", (k) -> new Route(token));
+            } else {
+                route = route.routes.computeIfAbsent(token, (k) -> new Route(token));
+            }
+        }
+        route = route.routes.computeIfAbsent(method, (k) -> new Route(method));
+        route.handler = handler;
+        return this;
+    }
+
+    private static final class Route {
+        private final String token;
+        private BiConsumer<WebServerRequest, WebServerResponse> handler;
+        private final Map<String, Route> routes = new HashMap<>();
+
+        private Route(String token) {
+            this.token = token;
+        }
+
+        void handle(WebServerRequest request, WebServerResponse response, String[] pathTokens, int position) {
+            if (position == pathTokens.length) {
+                if (!routes.containsKey(request.method())) {
+                    response.status(404).body("Not found").send();
+                    return;
+                }
+                routes.get(request.method()).handler.accept(request, response);
+                return;
+            }
+
+            if (routes.containsKey("{*}")) {
+                var route = routes.get("{*}");
+                var key = route.token.substring(1, route.token.length() - 1);
+                request.pathParams().put(key, pathTokens[position]);
+                route.handle(request, response, pathTokens, position + 1);
+                return;
+            }
+
+            if (routes.containsKey("*")) {
+                routes.get("*").handle(request, response, pathTokens, position + 1);
+            }
+
+            var token = pathTokens[position];
+            if (!routes.containsKey(token)) {
+                response.status(404).body("Not found").send();
+                return;
+            }
+
+            routes.get(token).handle(request, response, pathTokens, position + 1);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package dev.hipshot.web.client;
+
+import dev.hipshot.web.client.codec.WebClientRequestEncoder;
+import dev.hipshot.web.client.codec.WebClientResponseDecoder;
+import dev.hipshot.web.server.codec.OutputChain;
+import lombok.extern.slf4j.Slf4j;
+import sh.blake.niouring.IoUringSocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * One keep-alive connection of a {@link HostPool}. Requests are pipelined: up to
+ * {@link WebClient.Options#pipelining()} are queued on the connection's output, and written together, before
+ * their responses arrive, and the responses are matched to them in order. A request with a streamed body holds
+ * back the ones after it until its body has ended. A read is always queued, unless a streamed response body is
+ * paused, so a server closing an idle connection is noticed at once.
+ */
+@Slf4j
+final class ClientConnection {
+    private final WebClient client;
+    private final HostPool pool;
+    private final IoUringSocket socket;
+    private final OutputChain output;
+    private final WebClientResponseDecoder decoder = new WebClientResponseDecoder();
+    private final ArrayDeque<Exchange> inFlight = new ArrayDeque<>();
+    private ByteBuffer inBuffer;
+    /**
+     * Where the queued read starts filling {@link #inBuffer}, after any partial response, so that a read of
+     * nothing, the server closing, can be told apart.
+     */
+    private int readStart;
+    /**
+     * The request whose body is still being written, if any.
+     */
+    private Exchange uploading;
+    /**
+     * The request whose response body is still being handed over, if any.
+     */
+    private Exchange streaming;
+    private boolean connected;
+    private boolean reading;
+    private boolean writing;
+    private boolean processing;
+    private boolean closed;
+    private Throwable cause;
+
+    ClientConnection(WebClient client, HostPool pool, String ip, int port) {
+        this.client = client;
+        this.pool = pool;
+        this.output = new OutputChain(client.buffers());
+        this.socket = new IoUringSocket(ip, port);
+        socket.onConnect(connected -> onConnect());
+        socket.onRead(this::onRead);
+        socket.onWrite(this::onWrite);
+        socket.onClose(this::onClose);
+        socket.onException(this::onException);
+    }
+
+    void connect() {
+        client.ring().queueConnect(socket);
+    }
+
+    boolean connecting() {
+        return !connected && !closed;
+    }
+
+    /**
+     * Takes waiting requests while under the pipelining depth, and writes them.
+     */
+    void fill() {
+        if (!connected || closed || uploading != null) {
+            return;
+        }
+        int depth = client.options().pipelining();
+        Exchange exchange;
+        while (inFlight.size() < depth && (exchange = pool.poll()) != null) {
+            inFlight.add(exchange);
+            WebClientRequestEncoder.encode(exchange.request(), output);
+            if (exchange.request().streamed()) {
+                uploading = exchange;
+                exchange.bind(this);
+                break;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Writes part of the body of the request being uploaded.
+     */
+    void writeChunk(Exchange exchange, ByteBuffer chunk) {
+        if (closed || exchange != uploading) {
+            exchange.drained(); // dropped, but a writer pacing itself by drains must not wait for good
+            return;
+        }
+        WebClientRequestEncoder.encodeChunk(exchange.request(), chunk, output);
+        flush();
+        if (!writing) {
+            drained();
+        }
+    }
+
+    /**
+     * Ends the body of the request being uploaded, letting the requests after it go.
+     */
+    void endBody(Exchange exchange) {
+        if (closed || exchange != uploading) {
+            return;
+        }
+        WebClientRequestEncoder.encodeLastChunk(exchange.request(), output);
+        uploading = null;
+        flush();
+        pool.dispatch();
+    }
+
+    private void onConnect() {
+        if (closed) {
+            return;
+        }
+        connected = true;
+        inBuffer = client.buffers().take();
+        read();
+        pool.dispatch();
+    }
+
+    private void onWrite(ByteBuffer written) {
+        writing = false;
+        if (closed) {
+            return;
+        }
+        flush();
+        if (!writing) {
+            drained();
+        }
+    }
+
+    private void drained() {
+        if (uploading != null) {
+            uploading.drained();
+        }
+    }
+
+    private void onRead(ByteBuffer received) {
+        reading = false;
+        if (closed) {
+            return;
+        }
+        boolean eof = received.position() == readStart;
+        received.flip();
+        if (eof) {
+            closedByServer();
+            return;
+        }
+        process();
+    }
+
+    /**
+     * Matches the responses in the input buffer to the requests in flight, and hands over streamed bodies,
+     * then reads again unless a streamed body is paused.
+     */
+    private void process() {
+        processing = true;
+        try {
+            while (true) {
+                if (streaming != null) {
+                    if (!decoder.decodeBody(inBuffer)) {
+                        break;
+                    }
+                    var ended = streaming;
+                    streaming = null;
+                    if (!ended.response().keepAlive()) {
+                        close(null);
+                        return;
+                    }
+                    continue;
+                }
+                var exchange = inFlight.peek();
+                if (exchange == null) {
+                    break;
+                }
+                var response = exchange.request().streamResponse()
+                    ? decoder.decodeHead(inBuffer, exchange.head())
+                    : decoder.decode(inBuffer, exchange.head());
+                if (response == null) {
+                    break;
+                }
+                inFlight.poll();
+                if (response.streamed()) {
+                    streaming = exchange;
+                    response.onResume(() -> client.execute(this::resume));
+                }
+                exchange.complete(response);
+                if (!response.streamed() && !response.keepAlive()) {
+                    close(null);
+                    return;
+                }
+            }
+        } catch (RuntimeException ex) {
+            close(ex);
+            return;
+        } finally {
+            processing = false;
+        }
+        if (closed) {
+            return;
+        }
+        if (streaming != null && (streaming.response().bodyPaused() || streaming.response().chunkHandler() == null)) {
+            return; // read again once the body is resumed; its segments stay where they are until then
+        }
+        if (inBuffer.hasRemaining() && streaming == null && inFlight.isEmpty()) {
+            close(new IOException("Unexpected bytes from server with no request outstanding"));
+            return;
+        }
+        inBuffer.compact();
+        if (!inBuffer.hasRemaining()) {
+            int maxHeadSize = client.options().maxResponseHeadSize();
+            if (streaming == null && inBuffer.position() >= maxHeadSize
+                && !decoder.headReceived(inBuffer.duplicate().flip())) {
+                close(new IOException("Response head exceeds maxResponseHeadSize of " + maxHeadSize + " bytes"));
+                return;
+            }
+            // a response head larger than the buffer: move it to one twice the size
+            var larger = ByteBuffer.allocateDirect(inBuffer.capacity() * 2);
+            larger.put(inBuffer.flip());
+            releaseInBuffer();
+            inBuffer = larger;
+        }
+        read();
+        if (pool.peek() != null) {
+            pool.dispatch();
+        }
+    }
+
+    /**
+     * Picks up a paused streamed body, unless it is already being handed over or a read is in flight.
+     */
+    private void resume() {
+        if (processing || reading || closed || streaming == null) {
+            return;
+        }
+        process();
+    }
+
+    private void closedByServer() {
+        try {
+            if (streaming != null) {
+                // a body that runs until the close has now ended; any other has been cut short
+                if (decoder.decodeBodyAtClose()) {
+                    streaming = null;
+                }
+            } else if (!inFlight.isEmpty() && !inFlight.peek().request().streamResponse()) {
+                var response = decoder.decodeAtClose(inBuffer, inFlight.peek().head());
+                if (response != null) {
+                    inFlight.poll().complete(response);
+                }
+            }
+        } catch (RuntimeException ex) {
+            close(ex);
+            return;
+        }
+        close(null);
+    }
+
+    private void read() {
+        reading = true;
+        readStart = inBuffer.position();
+        client.ring().queueRead(socket, inBuffer);
+    }
+
+    private void flush() {
+        if (writing || closed) {
+            return;
+        }
+        var next = output.nextWrite();
+        if (next == null) {
+            return;
+        }
+        writing = true;
+        client.ring().queueWrite(socket, next);
+    }
+
+    private void onException(Exception ex) {
+        log.debug("Client connection failed", ex);
+        close(ex);
+    }
+
+    /**
+     * Closes the connection. Requests it never answered are sent again on another one if they are
+     * idempotent, otherwise they fail with {@code cause}, or an {@link IOException} when the server closed.
+     */
+    void close(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        abandon(cause);
+        client.ring().queueClose(socket);
+    }
+
+    private void abandon(Throwable cause) {
+        closed = true;
+        this.cause = cause;
+        var error = cause != null ? cause : new IOException("Connection closed by server");
+        if (streaming != null) {
+            streaming.fail(error);
+            streaming = null;
+        }
+        uploading = null;
+        var retries = new ArrayList<Exchange>();
+        Exchange exchange;
+        while ((exchange = inFlight.poll()) != null) {
+            if (!client.isClosed() && exchange.retry()) {
+                retries.add(exchange);
+            } else {
+                exchange.fail(error);
+            }
+        }
+        pool.retry(retries);
+    }
+
+    private void onClose() {
+        if (!closed) {
+            abandon(null);
+        }
+        releaseInBuffer();
+        output.release();
+        pool.closed(this, cause);
+    }
+
+    private void releaseInBuffer() {
+        if (inBuffer != null) {
+            if (inBuffer.capacity() == client.options().bufferSize()) {
+                client.buffers().give(inBuffer.clear());
+            }
+            inBuffer = null;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package dev.hipshot.web.client;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * A request on its way through a {@link HostPool}, and where its response goes. The chunks of a streamed body
+ * written before the request has a connection are held here until it gets one.
+ */
+@Slf4j
+final class Exchange {
+    private final WebClientRequest request;
+    private final Consumer<WebClientResponse> onResponse;
+    private final Consumer<Throwable> onError;
+    private final boolean head;
+    private final boolean idempotent;
+    private int attempts;
+    private WebClientResponse response;
+    private ClientConnection connection;
+    private ArrayDeque<ByteBuffer> pendingChunks;
+    private boolean ended;
+    private boolean failed;
+
+    Exchange(WebClientRequest request, Consumer<WebClientResponse> onResponse, Consumer<Throwable> onError) {
+        this.request = request;
+        this.onResponse = onResponse;
+        this.onError = onError;
+        var method = request.method();
+        this.head = "HEAD".equalsIgnoreCase(method);
+        this.idempotent = !request.streamed() && (head
+            || "GET".equalsIgnoreCase(method)
+            || "PUT".equalsIgnoreCase(method)
+            || "DELETE".equalsIgnoreCase(method)
+            || "OPTIONS".equalsIgnoreCase(method));
+    }
+
+    WebClientRequest request() {
+        return request;
+    }
+
+    WebClientResponse response() {
+        return response;
+    }
+
+    boolean head() {
+        return head;
+    }
+
+    /**
+     * Whether it may be sent again after its connection closed without answering it. Only idempotent requests
+     * are, and only once, as the server may have processed it before closing.
+     */
+    boolean retry() {
+        return idempotent && attempts++ == 0;
+    }
+
+    void complete(WebClientResponse response) {
+        this.response = response;
+        try {
+            onResponse.accept(response);
+        } catch (RuntimeException ex) {
+            log.warn("Unhandled exception in response handler", ex);
+        }
+    }
+
+    void fail(Throwable error) {
+        failed = true;
+        pendingChunks = null;
+        drained();
+        try {
+            onError.accept(error);
+        } catch (RuntimeException ex) {
+            log.warn("Unhandled exception in error handler", ex);
+        }
+    }
+
+    /**
+     * Writes a chunk of a streamed body, holding a copy of it until the request has a connection.
+     */
+    void write(ByteBuffer chunk) {
+        if (failed) {
+            drained();
+            return;
+        }
+        if (connection != null) {
+            connection.writeChunk(this, chunk);
+            return;
+        }
+        if (pendingChunks == null) {
+            pendingChunks = new ArrayDeque<>();
+        }
+        pendingChunks.add(ByteBuffer.allocate(chunk.remaining()).put(chunk.duplicate()).flip());
+    }
+
+    void end() {
+        ended = true;
+        if (connection != null && !failed) {
+            connection.endBody(this);
+        }
+    }
+
+    /**
+     * Runs the request's drain handler, if it has one.
+     */
+    void drained() {
+        var handler = request.takeDrainHandler();
+        if (handler != null) {
+            handler.run();
+        }
+    }
+
+    /**
+     * Gives the request the connection its head has been written to, which its body follows.
+     */
+    void bind(ClientConnection connection) {
+        this.connection = connection;
+        if (pendingChunks != null) {
+            ByteBuffer chunk;
+            while ((chunk = pendingChunks.poll()) != null) {
+                connection.writeChunk(this, chunk);
+            }
+        }
+        if (ended) {
+            connection.endBody(this);
+        }
+    }
+}
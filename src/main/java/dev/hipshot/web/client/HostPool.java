@@ -0,0 +1,97 @@
+package dev.hipshot.web.client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The keep-alive connections a client holds to one host and port, and the requests waiting for room on one of
+ * them. Used from the client's ring thread only.
+ */
+final class HostPool {
+    private final WebClient client;
+    private final String ip;
+    private final int port;
+    private final List<ClientConnection> connections = new ArrayList<>();
+    private final ArrayDeque<Exchange> waiting = new ArrayDeque<>();
+
+    HostPool(WebClient client, String ip, int port) {
+        this.client = client;
+        this.ip = ip;
+        this.port = port;
+    }
+
+    void send(Exchange exchange) {
+        waiting.add(exchange);
+        dispatch();
+    }
+
+    /**
+     * Hands waiting requests to connections with room for them, and opens more connections, up to the limit,
+     * for those that are left.
+     */
+    void dispatch() {
+        for (int i = 0; i < connections.size() && !waiting.isEmpty(); i++) {
+            connections.get(i).fill();
+        }
+        int connecting = 0;
+        for (ClientConnection connection : connections) {
+            if (connection.connecting()) {
+                connecting++;
+            }
+        }
+        var options = client.options();
+        while (connections.size() < options.maxConnectionsPerHost()
+            && (long) connecting * options.pipelining() < waiting.size()) {
+            var connection = new ClientConnection(client, this, ip, port);
+            connections.add(connection);
+            connection.connect();
+            connecting++;
+        }
+    }
+
+    Exchange peek() {
+        return waiting.peek();
+    }
+
+    Exchange poll() {
+        return waiting.poll();
+    }
+
+    /**
+     * Puts requests a closed connection never answered back at the front of the queue, in order.
+     */
+    void retry(List<Exchange> exchanges) {
+        for (int i = exchanges.size() - 1; i >= 0; i--) {
+            waiting.addFirst(exchanges.get(i));
+        }
+    }
+
+    void closed(ClientConnection connection, Throwable cause) {
+        connections.remove(connection);
+        if (connections.isEmpty() && !waiting.isEmpty() && cause != null && !client.isClosed()) {
+            // the host cannot be reached: fail what is waiting rather than reconnecting forever
+            Exchange exchange;
+            while ((exchange = waiting.poll()) != null) {
+                exchange.fail(cause);
+            }
+            return;
+        }
+        if (!client.isClosed()) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Closes every connection and fails every waiting request, for when the client closes.
+     */
+    void close(Throwable cause) {
+        Exchange exchange;
+        while ((exchange = waiting.poll()) != null) {
+            exchange.fail(cause);
+        }
+        for (ClientConnection connection : new ArrayList<>(connections)) {
+            connection.close(cause);
+        }
+    }
+}
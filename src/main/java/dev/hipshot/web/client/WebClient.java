@@ -1,31 +1,206 @@
 package dev.hipshot.web.client;
 
-import lombok.RequiredArgsConstructor;
+import dev.hipshot.web.util.BufferPool;
+import dev.hipshot.web.util.Mailbox;
+import lombok.Builder;
+import lombok.Data;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
 import sh.blake.niouring.IoUring;
-import sh.blake.niouring.IoUringSocket;
+import sh.blake.niouring.util.OsVersionCheck;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
-@RequiredArgsConstructor
-public class WebClient {
+/**
+ * A non-blocking HTTP/1.1 client on io_uring. Connections are kept alive and pooled per host and port, up to
+ * {@link Options#maxConnectionsPerHost()} of them, requests can be pipelined on each, and their buffers come
+ * from a pool of direct buffers. Responses are delivered on the ring's thread, so handlers must not block.
+ *
+ * <p>A client made with {@link #WebClient(IoUring)} belongs to that ring and must only be used from its thread,
+ * e.g. from a server handler through {@code request.ring()}, keeping one client per ring. One made with
+ * {@link #create()} runs a ring and thread of its own, and can be used from any thread.
+ */
+@Slf4j
+public class WebClient implements AutoCloseable {
     private final IoUring ring;
+    private final Options options;
+    private final BufferPool buffers;
+    private final Map<String, HostPool> pools = new HashMap<>();
+    /**
+     * How other threads reach a client that owns its ring, null for one on a caller's ring.
+     */
+    private final Mailbox mailbox;
+    private Thread thread;
+    private volatile boolean closed;
 
-    public static void main(String[] args) {
-        var request = WebClientRequest.builder()
-                .url("http://hello:test23/world")
-                .build();
-        new WebClient(null).send(request, (response) -> {
+    public WebClient(IoUring ring) {
+        this(ring, Options.builder().build());
+    }
+
+    public WebClient(IoUring ring, Options options) {
+        this(ring, options, null);
+    }
+
+    private WebClient(IoUring ring, Options options, Mailbox mailbox) {
+        this.ring = ring;
+        this.options = options;
+        this.mailbox = mailbox;
+        this.buffers = new BufferPool(
+            "client",
+            () -> ByteBuffer.allocateDirect(options.bufferSize()),
+            options.bufferPoolSize(),
+            options.bufferPoolSize(),
+            null);
+    }
 
-        });
+    /**
+     * A client with a ring and thread of its own, to be closed once done with.
+     */
+    public static WebClient create(Options options) {
+        OsVersionCheck.verifySystemRequirements();
+        var ring = new IoUring(options.ringSize());
+        ring.onException(ex -> log.warn("Client ring failed", ex));
+        var client = new WebClient(ring, options, new Mailbox(ring));
+        client.thread = new Thread(client::loop, options.threadName());
+        client.thread.setDaemon(true);
+        client.mailbox.open(client.thread::start);
+        return client;
     }
 
+    public static WebClient create() {
+        return create(Options.builder().build());
+    }
+
+    public CompletableFuture<WebClientResponse> send(WebClientRequest request) {
+        var future = new CompletableFuture<WebClientResponse>();
+        send(request, future::complete, future::completeExceptionally);
+        return future;
+    }
+
+    /**
+     * Sends {@code request}, logging it if it fails.
+     */
     public void send(WebClientRequest request, Consumer<WebClientResponse> consumer) {
-        var url = request.url();
-        validateUrl(url);
+        send(request, consumer, ex -> log.warn("Request to {} failed", request.url(), ex));
+    }
+
+    /**
+     * Sends {@code request}, then calls {@code onResponse} with its response, or {@code onError} if it could not
+     * be sent or answered, on the ring's thread. For a {@link WebClientRequest#streamResponse() streamed}
+     * response, {@code onError} is also called if the connection fails before its body has ended.
+     */
+    public void send(WebClientRequest request, Consumer<WebClientResponse> onResponse, Consumer<Throwable> onError) {
+        validateUrl(request.url());
+        var exchange = new Exchange(request, onResponse, onError);
+        if (request.streamed()) {
+            if (mailbox != null) {
+                // copied here, as the caller may reuse the chunk as soon as write returns
+                request.onWrite(chunk -> {
+                    var copy = ByteBuffer.allocate(chunk.remaining()).put(chunk.duplicate()).flip();
+                    mailbox.post(() -> exchange.write(copy));
+                });
+            } else {
+                request.onWrite(exchange::write);
+            }
+            request.onEnd(() -> execute(exchange::end));
+        }
+        execute(() -> dispatch(exchange));
+    }
+
+    /**
+     * Closes every connection, failing whatever has not been answered. A client on a caller's ring must be
+     * closed from its thread.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (mailbox == null) {
+            closePools();
+            return;
+        }
+        // wakes the loop, which closes everything on its way out
+        mailbox.post(() -> { });
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void loop() {
+        while (!closed) {
+            ring.execute();
+        }
+        closePools();
+        mailbox.close();
+        ring.close();
+        buffers.clear();
+    }
+
+    private void closePools() {
+        var cause = new IllegalStateException("Client closed");
+        pools.values().forEach(pool -> pool.close(cause));
+        pools.clear();
+    }
+
+    private void dispatch(Exchange exchange) {
+        if (closed) {
+            exchange.fail(new IllegalStateException("Client closed"));
+            return;
+        }
+        var request = exchange.request();
+        var pool = pools.get(request.authority());
+        if (pool == null) {
+            String ip;
+            try {
+                // resolved once per pool, blocking the ring; give an IP address to avoid that
+                ip = InetAddress.getByName(request.host()).getHostAddress();
+            } catch (UnknownHostException | RuntimeException ex) {
+                exchange.fail(ex);
+                return;
+            }
+            pool = new HostPool(this, ip, request.port());
+            pools.put(request.authority(), pool);
+        }
+        pool.send(exchange);
+    }
 
-        var withoutProtocol = url.substring(7);
-        var firstSegment = withoutProtocol.substring(0, withoutProtocol.indexOf("/"));
-        System.out.println(firstSegment);
+    /**
+     * Runs {@code task} on the ring's thread: posted to it if the client owns the ring, run at once otherwise.
+     */
+    void execute(Runnable task) {
+        if (mailbox != null) {
+            mailbox.post(task);
+        } else {
+            task.run();
+        }
+    }
+
+    IoUring ring() {
+        return ring;
+    }
+
+    Options options() {
+        return options;
+    }
+
+    BufferPool buffers() {
+        return buffers;
+    }
+
+    boolean isClosed() {
+        return closed;
     }
 
     private void validateUrl(String url) {
@@ -36,4 +211,35 @@ public class WebClient {
             throw new IllegalArgumentException("URL must start with http://");
         }
     }
+
+    @Data
+    @Builder
+    @Accessors(fluent = true, chain = true)
+    public static class Options {
+        @Builder.Default private final int maxConnectionsPerHost = 8;
+        /**
+         * How many requests may be written on a connection before the first of their responses is back. Above 1
+         * only for servers known to handle pipelining, such as this one's.
+         */
+        @Builder.Default private final int pipelining = 1;
+        /**
+         * Size of the pooled direct buffers requests are encoded into and responses read into. Larger ones are
+         * allocated for requests and responses that do not fit.
+         */
+        @Builder.Default private final int bufferSize = 8 * 1024;
+        @Builder.Default private final int bufferPoolSize = 64;
+        /**
+         * Largest response status line and headers accepted. A response whose head runs past it fails its
+         * request with an {@link java.io.IOException}, and the connection is closed.
+         */
+        @Builder.Default private final int maxResponseHeadSize = 64 * 1024;
+        /**
+         * Size of the ring made by {@link WebClient#create(Options)}.
+         */
+        @Builder.Default private final int ringSize = 1024;
+        /**
+         * Name of the thread made by {@link WebClient#create(Options)}.
+         */
+        @Builder.Default private final String threadName = "hipshot-client";
+    }
 }
@@ -1,25 +1,133 @@
 package dev.hipshot.web.client;
 
-import lombok.AllArgsConstructor;
 import lombok.Builder;
-import lombok.RequiredArgsConstructor;
 
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 @Builder
 public class WebClientRequest {
-    private final String method;
+    @Builder.Default private final String method = "GET";
     private final String url;
     @Builder.Default private final Map<String, List<String>> queryParams = new HashMap<>();
     @Builder.Default private final Map<String, List<String>> headers = new HashMap<>();
+    /**
+     * Sent from its position to its limit, which are left as they are, so the request can be sent again. A
+     * large direct body is written from where it is, so it must not change until the response has arrived.
+     */
+    private final ByteBuffer body;
+
+    /**
+     * The request line and headers already encoded, each line ending in CRLF but without the blank line after
+     * them, sent instead of ones built from the method, url and headers. The url still picks the host to send
+     * it to. {@code Content-Length} or {@code Transfer-Encoding} are added for the body as usual, so must not be
+     * in it.
+     */
+    private final ByteBuffer head;
+
+    /**
+     * Whether the body is written once the request has been sent, with {@link #write(ByteBuffer)} and
+     * {@link #end()}, rather than given up front.
+     */
+    private final boolean streamed;
+
+    /**
+     * The length of a {@link #streamed} body, or -1 to send it chunked.
+     */
+    @Builder.Default private final long contentLength = -1;
+
+    /**
+     * Whether the response is handed over as soon as its head has arrived, its body then
+     * {@link WebClientResponse#streamed() streaming} to a chunk handler.
+     */
+    private final boolean streamResponse;
+
+    private Consumer<ByteBuffer> writer;
+    private Runnable ender;
+    private volatile Runnable drainHandler;
+
+    public String method() {
+        return method;
+    }
 
     public String url() {
         return url;
     }
 
+    public Map<String, List<String>> queryParams() {
+        return queryParams;
+    }
+
+    public Map<String, List<String>> headers() {
+        return headers;
+    }
+
+    public ByteBuffer body() {
+        return body;
+    }
+
+    public ByteBuffer head() {
+        return head;
+    }
+
+    public boolean streamed() {
+        return streamed;
+    }
+
+    public long contentLength() {
+        return contentLength;
+    }
+
+    public boolean streamResponse() {
+        return streamResponse;
+    }
+
+    /**
+     * Sends part of a {@link #streamed} body, which may be written as soon as the request has been handed to
+     * the client. The chunk is copied, so it may be reused once this returns.
+     */
+    public WebClientRequest write(ByteBuffer chunk) {
+        writer.accept(chunk);
+        return this;
+    }
+
+    /**
+     * Ends a {@link #streamed} body.
+     */
+    public WebClientRequest end() {
+        ender.run();
+        return this;
+    }
+
+    /**
+     * Runs {@code handler} once, on the ring's thread, when everything written so far has reached the socket,
+     * to pace a streamed body by how fast the server reads it. Set it before the write it should follow.
+     */
+    public WebClientRequest onDrain(Runnable handler) {
+        this.drainHandler = handler;
+        return this;
+    }
+
+    Runnable takeDrainHandler() {
+        var handler = drainHandler;
+        drainHandler = null;
+        return handler;
+    }
+
+    void onWrite(Consumer<ByteBuffer> writer) {
+        this.writer = writer;
+    }
+
+    void onEnd(Runnable ender) {
+        this.ender = ender;
+    }
+
     public WebClientRequest queryParam(String key, String value) {
         queryParams.computeIfAbsent(key, (k) -> new ArrayList<>()).add(value);
         return this;
@@ -29,4 +137,81 @@ public class WebClientRequest {
         headers.computeIfAbsent(key, (k) -> new ArrayList<>()).add(value);
         return this;
     }
+
+    /**
+     * The first value of header {@code key}, ignoring case, or null.
+     */
+    public String header(String key) {
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(key) && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The host and optional port of the URL, as sent in the {@code Host} header.
+     */
+    public String authority() {
+        int start = schemeEnd();
+        return url.substring(start, authorityEnd(start));
+    }
+
+    public String host() {
+        var authority = authority();
+        if (authority.startsWith("[")) {
+            return authority.substring(1, authority.indexOf(']'));
+        }
+        int colon = authority.lastIndexOf(':');
+        return colon < 0 ? authority : authority.substring(0, colon);
+    }
+
+    public int port() {
+        var authority = authority();
+        int colon = authority.lastIndexOf(':');
+        if (colon < 0 || colon < authority.lastIndexOf(']')) {
+            return 80;
+        }
+        return Integer.parseInt(authority.substring(colon + 1));
+    }
+
+    /**
+     * The path and query of the URL, with {@link #queryParams()} appended, as sent in the request line.
+     */
+    public String target() {
+        int start = authorityEnd(schemeEnd());
+        int fragment = url.indexOf('#', start);
+        var target = new StringBuilder(url.length() - start + 16);
+        if (start == url.length() || url.charAt(start) != '/') {
+            target.append('/');
+        }
+        target.append(url, start, fragment < 0 ? url.length() : fragment);
+        boolean hasQuery = target.indexOf("?") >= 0;
+        for (Map.Entry<String, List<String>> param : queryParams.entrySet()) {
+            for (String value : param.getValue()) {
+                target.append(hasQuery ? '&' : '?')
+                    .append(URLEncoder.encode(param.getKey(), StandardCharsets.UTF_8))
+                    .append('=')
+                    .append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+                hasQuery = true;
+            }
+        }
+        return target.toString();
+    }
+
+    private int schemeEnd() {
+        int separator = url.indexOf("://");
+        return separator < 0 ? 0 : separator + 3;
+    }
+
+    private int authorityEnd(int start) {
+        for (int i = start; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '/' || c == '?' || c == '#') {
+                return i;
+            }
+        }
+        return url.length();
+    }
 }
@@ -1,4 +1,139 @@
 package dev.hipshot.web.client;
 
+import lombok.Builder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+@Builder
 public class WebClientResponse {
+    private final String protocol;
+    private final int status;
+    private final String reason;
+    private final Map<String, List<String>> headers;
+    /**
+     * A heap copy of the body, de-chunked, so it stays valid once the connection has moved on. Null when the
+     * body is {@link #streamed()}.
+     */
+    private final ByteBuffer body;
+    /**
+     * Whether the server left the connection open for further requests.
+     */
+    private final boolean keepAlive;
+
+    /**
+     * Whether the body arrives in segments through {@link #chunkHandler()} rather than in {@link #body()}.
+     */
+    private final boolean streamed;
+    private Consumer<ByteBuffer> chunkHandler;
+    private Runnable bodyEndHandler;
+    private volatile boolean bodyPaused;
+    private Runnable resumer;
+
+    public String protocol() {
+        return protocol;
+    }
+
+    public int status() {
+        return status;
+    }
+
+    public String reason() {
+        return reason;
+    }
+
+    public Map<String, List<String>> headers() {
+        return headers;
+    }
+
+    /**
+     * The first value of header {@code key}, ignoring case, or null.
+     */
+    public String header(String key) {
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(key) && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    public ByteBuffer body() {
+        return body;
+    }
+
+    public String bodyAsString() {
+        return StandardCharsets.UTF_8.decode(body.duplicate()).toString();
+    }
+
+    public boolean keepAlive() {
+        return keepAlive;
+    }
+
+    public boolean streamed() {
+        return streamed;
+    }
+
+    public Consumer<ByteBuffer> chunkHandler() {
+        return chunkHandler;
+    }
+
+    /**
+     * Receives a {@link #streamed()} body in segments, de-chunked, as they arrive. Segments are called on the
+     * ring's thread and are views into the connection's input buffer, valid until the handler returns, or, if
+     * the handler {@link #pauseBody() pauses} the body, until it is resumed. Until a handler is set, the body
+     * is held back.
+     */
+    public WebClientResponse chunkHandler(Consumer<ByteBuffer> chunkHandler) {
+        this.chunkHandler = chunkHandler;
+        if (resumer != null) {
+            resumer.run();
+        }
+        return this;
+    }
+
+    public Runnable bodyEndHandler() {
+        return bodyEndHandler;
+    }
+
+    /**
+     * Called on the ring's thread once the last segment of a {@link #streamed()} body has been handed over.
+     */
+    public WebClientResponse bodyEndHandler(Runnable bodyEndHandler) {
+        this.bodyEndHandler = bodyEndHandler;
+        return this;
+    }
+
+    /**
+     * Stops handing over body segments, and reading from the socket, until {@link #resumeBody()}.
+     */
+    public WebClientResponse pauseBody() {
+        bodyPaused = true;
+        return this;
+    }
+
+    /**
+     * Resumes a paused body. Safe to call from any thread.
+     */
+    public WebClientResponse resumeBody() {
+        bodyPaused = false;
+        if (resumer != null) {
+            resumer.run();
+        }
+        return this;
+    }
+
+    public boolean bodyPaused() {
+        return bodyPaused;
+    }
+
+    /**
+     * Set by the connection to be told when a streamed body may continue.
+     */
+    void onResume(Runnable resumer) {
+        this.resumer = resumer;
+    }
 }
@@ -1,12 +1,122 @@
 package dev.hipshot.web.client.codec;
 
 import dev.hipshot.web.client.WebClientRequest;
+import dev.hipshot.web.server.codec.OutputChain;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
 
 public class WebClientRequestEncoder {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
 
-    public static void encode(WebClientRequest request, ByteBuffer buffer) {
+    /**
+     * Appends {@code request} to {@code buffer}, in write mode, adding {@code Host} and, for a body,
+     * {@code Content-Length} unless set already. Writes nothing if the whole request does not fit.
+     *
+     * @return whether it fit
+     */
+    public static boolean encode(WebClientRequest request, ByteBuffer buffer) {
+        var head = head(request);
+        var framing = framing(request);
+        var body = request.body();
+        if (head.remaining() + framing.length + CRLF.length + (body == null ? 0 : body.remaining()) > buffer.remaining()) {
+            return false;
+        }
+        buffer.put(head).put(framing).put(CRLF);
+        if (body != null) {
+            buffer.put(body.duplicate());
+        }
+        return true;
+    }
+
+    /**
+     * Appends {@code request} to {@code output}: its head, and its body unless {@link WebClientRequest#streamed()
+     * streamed}, in which case it follows through {@link #encodeChunk}.
+     */
+    public static void encode(WebClientRequest request, OutputChain output) {
+        output.copy(head(request));
+        output.copy(ByteBuffer.wrap(framing(request)));
+        output.copy(ByteBuffer.wrap(CRLF));
+        var body = request.body();
+        if (body != null && !request.streamed()) {
+            output.append(body);
+        }
+    }
+
+    /**
+     * Appends part of a streamed body, copied, and framed as a chunk unless the request has a content length.
+     */
+    public static void encodeChunk(WebClientRequest request, ByteBuffer chunk, OutputChain output) {
+        if (request.contentLength() >= 0) {
+            output.copy(chunk);
+            return;
+        }
+        if (!chunk.hasRemaining()) {
+            return; // an empty chunk would end the body
+        }
+        output.copy(ByteBuffer.wrap((Integer.toHexString(chunk.remaining()) + "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+        output.copy(chunk);
+        output.copy(ByteBuffer.wrap(CRLF));
+    }
+
+    /**
+     * Ends a streamed body.
+     */
+    public static void encodeLastChunk(WebClientRequest request, OutputChain output) {
+        if (request.contentLength() < 0) {
+            output.copy(ByteBuffer.wrap(LAST_CHUNK));
+        }
+    }
+
+    /**
+     * How many bytes {@link #encode(WebClientRequest, ByteBuffer)} writes for {@code request}.
+     */
+    public static int encodedLength(WebClientRequest request) {
+        var body = request.body();
+        return head(request).remaining() + framing(request).length + CRLF.length + (body == null ? 0 : body.remaining());
+    }
+
+    /**
+     * The request line and headers, without the blank line that ends them.
+     */
+    private static ByteBuffer head(WebClientRequest request) {
+        if (request.head() != null) {
+            return request.head().duplicate();
+        }
+        var head = new StringBuilder(256)
+            .append(request.method()).append(' ').append(request.target()).append(" HTTP/1.1\r\n");
+        if (request.header("Host") == null) {
+            head.append("Host: ").append(request.authority()).append("\r\n");
+        }
+        for (Map.Entry<String, List<String>> header : request.headers().entrySet()) {
+            for (String value : header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        return ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
 
+    /**
+     * The headers saying how long the body is, unless the caller has set them.
+     */
+    private static byte[] framing(WebClientRequest request) {
+        if (request.head() == null
+            && (request.header("Content-Length") != null || request.header("Transfer-Encoding") != null)) {
+            return new byte[0];
+        }
+        String framing;
+        if (request.streamed()) {
+            framing = request.contentLength() >= 0
+                ? "Content-Length: " + request.contentLength() + "\r\n"
+                : "Transfer-Encoding: chunked\r\n";
+        } else if (request.body() != null) {
+            framing = "Content-Length: " + request.body().remaining() + "\r\n";
+        } else {
+            return new byte[0];
+        }
+        return framing.getBytes(StandardCharsets.ISO_8859_1);
     }
 }
@@ -3,10 +3,414 @@ package dev.hipshot.web.client.codec;
 import dev.hipshot.web.client.WebClientResponse;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Decodes HTTP/1.x responses from a connection's input buffer, in read mode. A response that has not fully
+ * arrived leaves the buffer untouched and is decoded again from its first byte once more has been read, so
+ * the buffer can be compacted in between. Bodies are copied out to the heap, de-chunked, unless the response
+ * is decoded with {@link #decodeHead}, in which case its body is handed over in segments by
+ * {@link #decodeBody} as it arrives.
+ */
 public class WebClientResponseDecoder {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
 
-    public WebClientResponse decode(ByteBuffer buffer) {
+    private enum State { HEAD, LENGTH, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_CLOSE }
+
+    private State state = State.HEAD;
+    private long remaining;
+    private WebClientResponse response;
+
+    /**
+     * The next complete response, consuming it from {@code buffer}, or null if it has not fully arrived.
+     *
+     * @param head whether it answers a HEAD request, and so has no body whatever its headers say
+     * @throws IllegalStateException if the response is malformed
+     */
+    public WebClientResponse decode(ByteBuffer buffer, boolean head) {
+        return decode(buffer, head, false);
+    }
+
+    /**
+     * As {@link #decode(ByteBuffer, boolean)}, once the server has closed the connection, so that a body
+     * with neither a length nor chunks runs to the end of {@code buffer}.
+     */
+    public WebClientResponse decodeAtClose(ByteBuffer buffer, boolean head) {
+        return decode(buffer, head, true);
+    }
+
+    /**
+     * Whether the head of the next response has fully arrived in {@code buffer}, from its position.
+     */
+    public boolean headReceived(ByteBuffer buffer) {
+        return indexOfBlankLine(buffer, buffer.position(), buffer.limit()) >= 0;
+    }
+
+    /**
+     * The head of the next response, consuming it from {@code buffer}, or null if it has not fully arrived.
+     * A response with a body is {@link WebClientResponse#streamed() streamed}, and {@link #decodeBody} hands
+     * the body to its chunk handler; one without is complete.
+     */
+    public WebClientResponse decodeHead(ByteBuffer buffer, boolean head) {
+        var decoded = head(buffer, head);
+        if (decoded == null) {
+            return null;
+        }
+        if (decoded.kind == Kind.NONE || (decoded.kind == Kind.LENGTH && decoded.length == 0)) {
+            buffer.position(decoded.bodyStart);
+            return decoded.response(EMPTY, false, false);
+        }
+        buffer.position(decoded.bodyStart);
+        remaining = decoded.length;
+        state = switch (decoded.kind) {
+            case LENGTH -> State.LENGTH;
+            case CHUNKED -> State.CHUNK_SIZE;
+            default -> State.UNTIL_CLOSE;
+        };
+        response = decoded.response(null, true, decoded.kind == Kind.UNTIL_CLOSE);
+        return response;
+    }
+
+    /**
+     * Whether the body of the last response returned by {@link #decodeHead} is still being handed over.
+     */
+    public boolean isDecodingBody() {
+        return state != State.HEAD;
+    }
+
+    /**
+     * Hands as much of a streamed body as has been received to the response's chunk handler. Each segment is a
+     * view into {@code buffer}. Stops early while the body is paused, or has no handler yet.
+     *
+     * @return true once the whole body has been handed over, and the next response can be decoded
+     */
+    public boolean decodeBody(ByteBuffer buffer) {
+        while (!response.bodyPaused() && response.chunkHandler() != null) {
+            switch (state) {
+                case LENGTH, CHUNK_DATA, UNTIL_CLOSE -> {
+                    int length = state == State.UNTIL_CLOSE
+                        ? buffer.remaining()
+                        : (int) Math.min(remaining, buffer.remaining());
+                    if (length == 0) {
+                        return false;
+                    }
+                    int position = buffer.position();
+                    buffer.position(position + length);
+                    remaining -= length;
+                    response.chunkHandler().accept(buffer.slice(position, length));
+                    if (state == State.LENGTH && remaining == 0) {
+                        finish();
+                        return true;
+                    }
+                    if (state == State.CHUNK_DATA && remaining == 0) {
+                        state = State.CHUNK_END;
+                    }
+                }
+                case CHUNK_SIZE -> {
+                    int lineEnd = indexOfLineEnd(buffer, buffer.position(), buffer.limit());
+                    if (lineEnd < 0) {
+                        return false;
+                    }
+                    remaining = chunkSize(buffer, buffer.position(), lineEnd);
+                    buffer.position(lineEnd + 2);
+                    state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                }
+                case CHUNK_END -> {
+                    if (buffer.remaining() < 2) {
+                        return false;
+                    }
+                    buffer.position(buffer.position() + 2);
+                    state = State.CHUNK_SIZE;
+                }
+                case TRAILERS -> {
+                    int lineEnd = indexOfLineEnd(buffer, buffer.position(), buffer.limit());
+                    if (lineEnd < 0) {
+                        return false;
+                    }
+                    boolean blank = lineEnd == buffer.position();
+                    buffer.position(lineEnd + 2);
+                    if (blank) {
+                        finish();
+                        return true;
+                    }
+                }
+                default -> throw new IllegalStateException("No body is being decoded");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Ends a streamed body once the server has closed the connection.
+     *
+     * @return whether the body was complete, as one that runs until the close is, rather than cut short
+     */
+    public boolean decodeBodyAtClose() {
+        if (state != State.UNTIL_CLOSE) {
+            return false;
+        }
+        finish();
+        return true;
+    }
+
+    private void finish() {
+        var ended = response;
+        state = State.HEAD;
+        response = null;
+        if (ended.bodyEndHandler() != null) {
+            ended.bodyEndHandler().run();
+        }
+    }
+
+    private WebClientResponse decode(ByteBuffer buffer, boolean head, boolean closed) {
+        var decoded = head(buffer, head);
+        if (decoded == null) {
+            return null;
+        }
+        int bodyStart = decoded.bodyStart;
+        int limit = buffer.limit();
+        int end;
+        ByteBuffer body;
+        switch (decoded.kind) {
+            case NONE -> {
+                end = bodyStart;
+                body = EMPTY;
+            }
+            case CHUNKED -> {
+                end = chunkedEnd(buffer, bodyStart, limit);
+                if (end < 0) {
+                    return null;
+                }
+                body = dechunk(buffer, bodyStart);
+            }
+            case LENGTH -> {
+                if (limit - bodyStart < decoded.length) {
+                    return null;
+                }
+                end = bodyStart + (int) decoded.length;
+                body = copy(buffer, bodyStart, end);
+            }
+            default -> {
+                if (!closed) {
+                    return null;
+                }
+                end = limit;
+                body = copy(buffer, bodyStart, end);
+            }
+        }
+        buffer.position(end);
+        return decoded.response(body, false, decoded.kind == Kind.UNTIL_CLOSE);
+    }
+
+    private enum Kind { NONE, LENGTH, CHUNKED, UNTIL_CLOSE }
+
+    /**
+     * A decoded status line and headers, and how the body after them is delimited.
+     */
+    private record Head(String protocol, int status, String reason, Map<String, List<String>> headers,
+                        int bodyStart, Kind kind, long length) {
+
+        WebClientResponse response(ByteBuffer body, boolean streamed, boolean untilClose) {
+            var connection = first(headers, "Connection");
+            boolean keepAlive = !untilClose && ("HTTP/1.1".equals(protocol)
+                ? connection == null || !hasToken(connection, "close")
+                : connection != null && hasToken(connection, "keep-alive"));
+            return WebClientResponse.builder()
+                .protocol(protocol)
+                .status(status)
+                .reason(reason)
+                .headers(headers)
+                .body(body)
+                .streamed(streamed)
+                .keepAlive(keepAlive)
+                .build();
+        }
+    }
+
+    private static Head head(ByteBuffer buffer, boolean head) {
+        int start = buffer.position();
+        int headEnd = indexOfBlankLine(buffer, start, buffer.limit());
+        if (headEnd < 0) {
+            return null;
+        }
+        int lineEnd = indexOfLineEnd(buffer, start, headEnd + 2);
+        var statusLine = ascii(buffer, start, lineEnd);
+        if (!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12 || statusLine.charAt(8) != ' ') {
+            throw new IllegalStateException("Malformed status line: " + statusLine);
+        }
+        int status;
+        try {
+            status = Integer.parseInt(statusLine.substring(9, 12));
+        } catch (NumberFormatException ex) {
+            throw new IllegalStateException("Malformed status line: " + statusLine, ex);
+        }
+        var reason = statusLine.length() > 13 ? statusLine.substring(13) : "";
+        var headers = headers(buffer, lineEnd + 2, headEnd);
+
+        Kind kind;
+        long length = 0;
+        var transferEncoding = first(headers, "Transfer-Encoding");
+        var contentLength = first(headers, "Content-Length");
+        if (head || status / 100 == 1 || status == 204 || status == 304) {
+            kind = Kind.NONE;
+        } else if (transferEncoding != null && hasToken(transferEncoding, "chunked")) {
+            kind = Kind.CHUNKED;
+        } else if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalStateException("Malformed Content-Length: " + contentLength, ex);
+            }
+            if (length < 0) {
+                throw new IllegalStateException("Malformed Content-Length: " + contentLength);
+            }
+            kind = Kind.LENGTH;
+        } else {
+            kind = Kind.UNTIL_CLOSE;
+        }
+        return new Head(statusLine.substring(0, 8), status, reason, headers, headEnd + 4, kind, length);
+    }
+
+    private static Map<String, List<String>> headers(ByteBuffer buffer, int position, int headEnd) {
+        var headers = new LinkedHashMap<String, List<String>>();
+        while (position < headEnd) {
+            int lineEnd = indexOfLineEnd(buffer, position, headEnd + 2);
+            int colon = position;
+            while (colon < lineEnd && buffer.get(colon) != ':') {
+                colon++;
+            }
+            if (colon == lineEnd) {
+                throw new IllegalStateException("Malformed header: " + ascii(buffer, position, lineEnd));
+            }
+            var key = ascii(buffer, position, colon);
+            var value = ascii(buffer, colon + 1, lineEnd).trim();
+            headers.computeIfAbsent(key, k -> new ArrayList<>(1)).add(value);
+            position = lineEnd + 2;
+        }
+        return headers;
+    }
+
+    /**
+     * Where the chunked body starting at {@code position} ends, after its last chunk and trailers, or -1 if
+     * it has not all arrived.
+     */
+    private static int chunkedEnd(ByteBuffer buffer, int position, int limit) {
+        while (true) {
+            int lineEnd = indexOfLineEnd(buffer, position, limit);
+            if (lineEnd < 0) {
+                return -1;
+            }
+            long size = chunkSize(buffer, position, lineEnd);
+            position = lineEnd + 2;
+            if (size == 0) {
+                // trailers, if any, up to a blank line
+                while (true) {
+                    lineEnd = indexOfLineEnd(buffer, position, limit);
+                    if (lineEnd < 0) {
+                        return -1;
+                    }
+                    if (lineEnd == position) {
+                        return lineEnd + 2;
+                    }
+                    position = lineEnd + 2;
+                }
+            }
+            if (limit - position < size + 2) {
+                return -1;
+            }
+            position += (int) size + 2;
+        }
+    }
+
+    private static ByteBuffer dechunk(ByteBuffer buffer, int position) {
+        var chunks = new ArrayList<ByteBuffer>();
+        int total = 0;
+        while (true) {
+            int lineEnd = indexOfLineEnd(buffer, position, buffer.limit());
+            int size = (int) chunkSize(buffer, position, lineEnd);
+            position = lineEnd + 2;
+            if (size == 0) {
+                break;
+            }
+            chunks.add(buffer.slice(position, size));
+            total += size;
+            position += size + 2;
+        }
+        var body = ByteBuffer.allocate(total);
+        for (ByteBuffer chunk : chunks) {
+            body.put(chunk);
+        }
+        return body.flip();
+    }
+
+    private static long chunkSize(ByteBuffer buffer, int position, int lineEnd) {
+        long size = 0;
+        int digits = 0;
+        for (int i = position; i < lineEnd; i++) {
+            int digit = Character.digit(buffer.get(i), 16);
+            if (digit < 0) {
+                break; // chunk extensions
+            }
+            size = size * 16 + digit;
+            if (++digits > 15) {
+                throw new IllegalStateException("Chunk too large");
+            }
+        }
+        if (digits == 0) {
+            throw new IllegalStateException("Malformed chunk size: " + ascii(buffer, position, lineEnd));
+        }
+        return size;
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer, int start, int end) {
+        var copy = ByteBuffer.allocate(end - start);
+        copy.put(buffer.slice(start, end - start));
+        return copy.flip();
+    }
+
+    private static int indexOfBlankLine(ByteBuffer buffer, int position, int limit) {
+        for (int i = position; i + 3 < limit; i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOfLineEnd(ByteBuffer buffer, int position, int limit) {
+        for (int i = position; i + 1 < limit; i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String ascii(ByteBuffer buffer, int start, int end) {
+        var bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String first(Map<String, List<String>> headers, String key) {
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(key) && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
         return null;
     }
+
+    private static boolean hasToken(String value, String token) {
+        for (String part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -1,11 +1,12 @@
 package dev.hipshot.web.example;
 
+import dev.hipshot.web.server.EncodedHeader;
 import dev.hipshot.web.server.WebServer;
 
 public class ServerTest {
     public static void main(String[] args) {
         WebServer.create((request, response) -> {
-            response.header("Content-Type", "text/plain")
+            response.header(EncodedHeader.CONTENT_TYPE_TEXT_PLAIN)
                     .body("Hello from Hipshot!")
                     .send();
         }).start();
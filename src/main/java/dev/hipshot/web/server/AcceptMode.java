@@ -0,0 +1,17 @@
+package dev.hipshot.web.server;
+
+/**
+ * How the rings accept new connections.
+ */
+public enum AcceptMode {
+    /**
+     * Every ring queues its accepts on one listening socket, and whichever ring is first gets the connection.
+     */
+    SHARED,
+    /**
+     * Every ring listens on a socket of its own, bound to the same address with SO_REUSEPORT, and the kernel
+     * spreads new connections across them by hashing the client's address. Falls back to {@link #SHARED} if a
+     * second socket cannot be bound.
+     */
+    REUSE_PORT,
+}
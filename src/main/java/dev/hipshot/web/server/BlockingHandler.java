@@ -0,0 +1,26 @@
+package dev.hipshot.web.server;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Marks a handler that may block, created by {@link Router#blocking(BiConsumer)}. When the server offloads,
+ * it runs off the ring; otherwise, and outside a server, it runs inline.
+ */
+final class BlockingHandler implements BiConsumer<WebServerRequest, WebServerResponse> {
+    private final BiConsumer<WebServerRequest, WebServerResponse> handler;
+
+    BlockingHandler(BiConsumer<WebServerRequest, WebServerResponse> handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void accept(WebServerRequest request, WebServerResponse response) {
+        if (response.sender() instanceof Connection connection) {
+            connection.offload(request, response, handler);
+        } else if (response.sender() instanceof Http2Connection.Stream stream) {
+            stream.offload(request, response, handler);
+        } else {
+            handler.accept(request, response);
+        }
+    }
+}
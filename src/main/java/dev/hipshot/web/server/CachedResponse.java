@@ -0,0 +1,56 @@
+package dev.hipshot.web.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A response serialised once into a read-only direct buffer shared by every ring, for endpoints that
+ * answer with the same bytes every time. Sending one is a bulk copy into the output buffer, split only
+ * to insert the ring's current Date header.
+ *
+ * <pre>{@code
+ * var health = new WebServerResponse().header("Content-Type", "text/plain").body("OK").cache();
+ * router.get("/health", (request, response) -> response.send(health));
+ * }</pre>
+ */
+public final class CachedResponse {
+    private final ByteBuffer encoded;
+    private final int statusLineLength;
+    private final WebServerResponse source;
+
+    CachedResponse(ByteBuffer encoded, WebServerResponse source) {
+        this.encoded = encoded;
+        this.source = source;
+        int end = 0;
+        while (encoded.get(end) != '\n') {
+            end++;
+        }
+        this.statusLineLength = end + 1;
+    }
+
+    /**
+     * The encoded response. The buffer is shared, so it must only be read with absolute operations or
+     * through a duplicate.
+     */
+    public ByteBuffer encoded() {
+        return encoded;
+    }
+
+    /**
+     * Where the status line ends, which is where the current Date header is inserted when sending.
+     */
+    public int statusLineLength() {
+        return statusLineLength;
+    }
+
+    public int length() {
+        return encoded.remaining();
+    }
+
+    /**
+     * A copy of the response this was encoded from, which {@link CompressionHandler} builds compressed variants
+     * from. Must not be modified.
+     */
+    WebServerResponse source() {
+        return source;
+    }
+}
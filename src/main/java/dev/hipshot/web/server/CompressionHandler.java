@@ -0,0 +1,354 @@
+package dev.hipshot.web.server;
+
+import dev.hipshot.web.server.codec.BodyCompressor;
+import dev.hipshot.web.server.codec.ContentCoding;
+import lombok.Builder;
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Compresses the responses of the handler it wraps with gzip or deflate, whichever the request's
+ * {@code Accept-Encoding} prefers, e.g. {@code WebServer.create(options, new CompressionHandler(router))}.
+ *
+ * <p>A body is compressed on the ring when it is sent, with the ring's pooled deflaters, and only if it is at least
+ * {@link Options#minSize()}, of a compressible {@link Options#contentTypes() type}, not already encoded, and without
+ * a Content-Length of its own. A streamed body is compressed chunk by chunk as it is written. Compressed forms are
+ * cached for {@link CachedResponse}s, and for bodies with a {@link WebServerResponse#bodyKey(Object) body key},
+ * which {@link StaticFileHandler} sets, so they are compressed once rather than on every hit: by the first ring to
+ * send one, while any other sending it meanwhile waits for that, and then read by every ring without locking. Once a
+ * cache is full, adding to it evicts what was sent longest ago. A compressed body has
+ * its ETag weakened, and every response that could have been compressed carries {@code Vary: Accept-Encoding}.
+ */
+public class CompressionHandler implements BiConsumer<WebServerRequest, WebServerResponse> {
+    private static final EncodedHeader VARY_ACCEPT_ENCODING = EncodedHeader.of("Vary", "Accept-Encoding");
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final EncodedHeader[] CONTENT_ENCODINGS = Arrays.stream(ContentCoding.values())
+        .map(coding -> EncodedHeader.of(CONTENT_ENCODING, coding.token()))
+        .toArray(EncodedHeader[]::new);
+    private static final ByteBuffer INCOMPRESSIBLE = ByteBuffer.allocate(0);
+
+    private final Options options;
+    private final BiConsumer<WebServerRequest, WebServerResponse> handler;
+    private final Compression identity = new Compression(null);
+    private final Compression[] compressions = new Compression[ContentCoding.values().length];
+    private final Map<Key, Cached<ByteBuffer>> bodies = new ConcurrentHashMap<>();
+    private final Map<Key, Cached<CachedResponse>> responses = new ConcurrentHashMap<>();
+
+    public CompressionHandler(BiConsumer<WebServerRequest, WebServerResponse> handler) {
+        this(Options.builder().build(), handler);
+    }
+
+    public CompressionHandler(Options options, BiConsumer<WebServerRequest, WebServerResponse> handler) {
+        this.options = options;
+        this.handler = handler;
+        for (var coding : ContentCoding.values()) {
+            compressions[coding.ordinal()] = new Compression(coding);
+        }
+    }
+
+    @Override
+    public void accept(WebServerRequest request, WebServerResponse response) {
+        var coding = negotiate(request.header("Accept-Encoding"), options.codings());
+        response.compression(coding != null ? compressions[coding.ordinal()] : identity);
+        handler.accept(request, response);
+    }
+
+    /**
+     * The coding in {@code codings} that an {@code Accept-Encoding} value gives the highest quality, earlier ones
+     * winning ties, or null if it accepts none of them, or is null itself.
+     */
+    public static ContentCoding negotiate(String acceptEncoding, List<ContentCoding> codings) {
+        if (acceptEncoding == null || codings.isEmpty()) {
+            return null;
+        }
+        float[] qualities = new float[codings.size()];
+        Arrays.fill(qualities, -1);
+        float any = -1;
+        int length = acceptEncoding.length();
+        int start = 0;
+        while (start < length) {
+            int end = acceptEncoding.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            int semicolon = acceptEncoding.indexOf(';', start);
+            int tokenEnd = semicolon >= 0 && semicolon < end ? semicolon : end;
+            int tokenStart = skipSpaces(acceptEncoding, start, tokenEnd);
+            while (tokenEnd > tokenStart && acceptEncoding.charAt(tokenEnd - 1) == ' ') {
+                tokenEnd--;
+            }
+            float quality = semicolon >= 0 && semicolon < end ? quality(acceptEncoding, semicolon + 1, end) : 1;
+            int tokenLength = tokenEnd - tokenStart;
+            if (tokenLength == 1 && acceptEncoding.charAt(tokenStart) == '*') {
+                any = quality;
+            } else {
+                for (int i = 0; i < qualities.length; i++) {
+                    var token = codings.get(i).token();
+                    if (token.length() == tokenLength && acceptEncoding.regionMatches(true, tokenStart, token, 0, tokenLength)) {
+                        qualities[i] = quality;
+                    }
+                }
+            }
+            start = end + 1;
+        }
+        ContentCoding best = null;
+        float bestQuality = 0;
+        for (int i = 0; i < qualities.length; i++) {
+            float quality = qualities[i] >= 0 ? qualities[i] : any;
+            if (quality > bestQuality) {
+                best = codings.get(i);
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The {@code q} parameter among those between {@code start} and {@code end}, 1 if there is none, and 0 if it
+     * cannot be parsed.
+     */
+    private static float quality(String value, int start, int end) {
+        while (start < end) {
+            int next = value.indexOf(';', start);
+            if (next < 0 || next > end) {
+                next = end;
+            }
+            int name = skipSpaces(value, start, next);
+            if (next - name > 2 && (value.charAt(name) == 'q' || value.charAt(name) == 'Q') && value.charAt(name + 1) == '=') {
+                try {
+                    return Float.parseFloat(value.substring(name + 2, next).trim());
+                } catch (NumberFormatException ex) {
+                    return 0;
+                }
+            }
+            start = next + 1;
+        }
+        return 1;
+    }
+
+    private static int skipSpaces(String value, int start, int end) {
+        while (start < end && value.charAt(start) == ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Whether the response's body may be compressed: it has one, it is not already encoded or framed by its own
+     * Content-Length, and its type is one that compresses.
+     */
+    private boolean eligible(WebServerResponse response) {
+        int status = response.status();
+        if (status < 200 || status == 204 || status == 206 || status == 304) {
+            return false;
+        }
+        if (response.hasContentLength() || response.headerValue(CONTENT_ENCODING) != null) {
+            return false;
+        }
+        var contentType = response.headerValue("Content-Type");
+        return contentType != null && options.contentTypes().test(contentType);
+    }
+
+    /**
+     * Compresses a whole body if it is eligible and large enough, replacing its body and adding the headers that
+     * go with it.
+     */
+    private void compress(WebServerResponse response, ContentCoding coding, BodyCompressor compressor) {
+        if (!eligible(response)) {
+            return;
+        }
+        response.header(VARY_ACCEPT_ENCODING);
+        var body = response.body();
+        if (coding == null || body == null || body.remaining() < options.minSize() || body.remaining() > options.maxSize()) {
+            return;
+        }
+        var compressed = compressed(response.bodyKey(), body, coding, compressor);
+        if (compressed == null) {
+            return;
+        }
+        response.body(compressed)
+            .header(CONTENT_ENCODINGS[coding.ordinal()])
+            .weakenETag();
+    }
+
+    /**
+     * The compressed body, from the cache if it has a key, or null if compressing does not make it smaller.
+     */
+    private ByteBuffer compressed(Object bodyKey, ByteBuffer body, ContentCoding coding, BodyCompressor compressor) {
+        if (bodyKey == null) {
+            var compressed = compressor.compress(body, coding, options.level());
+            return compressed.remaining() < body.remaining() ? compressed : null;
+        }
+        var cached = cached(bodies, new Key(bodyKey, coding), key -> {
+            var compressed = compressor.compress(body, coding, options.level());
+            return compressed.remaining() < body.remaining()
+                ? ByteBuffer.allocateDirect(compressed.remaining()).put(compressed).flip().asReadOnlyBuffer()
+                : INCOMPRESSIBLE;
+        });
+        return cached == INCOMPRESSIBLE ? null : cached.duplicate();
+    }
+
+    /**
+     * The variant of a pre-encoded response to send for {@code coding}, encoded once from its source and then
+     * cached, or the response itself if it cannot be compressed.
+     */
+    private CachedResponse variant(CachedResponse cached, ContentCoding coding, BodyCompressor compressor) {
+        return cached(responses, new Key(cached, coding), key -> {
+            var source = cached.source().copy();
+            if (!eligible(source)) {
+                return cached;
+            }
+            compress(source, coding, compressor);
+            return source.cache();
+        });
+    }
+
+    /**
+     * The value cached for {@code key}, made by {@code compute} if there is none, once however many rings ask for
+     * it at the same time.
+     */
+    private <V> V cached(Map<Key, Cached<V>> cache, Key key, Function<Key, V> compute) {
+        var cached = cache.get(key);
+        if (cached == null) {
+            cached = cache.computeIfAbsent(key, k -> new Cached<>(compute.apply(k)));
+            if (cache.size() > options.cacheSize()) {
+                evict(cache);
+            }
+        }
+        cached.sentNanos = System.nanoTime();
+        return cached.value;
+    }
+
+    /**
+     * Drops what was sent longest ago until the cache is back to its size. Only ever after a miss, so the scan
+     * costs nothing on a hit.
+     */
+    private <V> void evict(Map<Key, Cached<V>> cache) {
+        while (cache.size() > options.cacheSize()) {
+            Map.Entry<Key, Cached<V>> eldest = null;
+            for (var entry : cache.entrySet()) {
+                if (eldest == null || entry.getValue().sentNanos - eldest.getValue().sentNanos < 0) {
+                    eldest = entry;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            cache.remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * How a response is compressed, one per coding the client may have asked for, and one for none, set on the
+     * response by {@link #accept} and applied by the connection when the response is sent or written.
+     */
+    final class Compression {
+        private final ContentCoding coding;
+
+        private Compression(ContentCoding coding) {
+            this.coding = coding;
+        }
+
+        /**
+         * Compresses a response about to be sent in full, or ends a streamed one, returning the compressed end
+         * of its body to write before the body ends, or null if there is none.
+         */
+        ByteBuffer onSend(WebServerResponse response, BodyCompressor compressor) {
+            if (response.committed()) {
+                var stream = response.compressionStream();
+                return stream != null ? compressor.finish(stream) : null;
+            }
+            if (response.cached() != null) {
+                response.cached(variant(response.cached(), coding, compressor));
+            } else {
+                compress(response, coding, compressor);
+            }
+            return null;
+        }
+
+        /**
+         * Compresses part of a streamed body. The first chunk decides whether the body is compressed at all, and
+         * adds the headers that go with it before they are sent.
+         */
+        ByteBuffer onWrite(WebServerResponse response, ByteBuffer chunk, BodyCompressor compressor) {
+            if (!response.committed()) {
+                if (!eligible(response)) {
+                    return chunk;
+                }
+                response.header(VARY_ACCEPT_ENCODING);
+                if (coding == null) {
+                    return chunk;
+                }
+                response.compressionStream(compressor.start(coding, options.level()));
+                response.header(CONTENT_ENCODINGS[coding.ordinal()]).weakenETag();
+            }
+            var stream = response.compressionStream();
+            return stream != null ? compressor.write(stream, chunk) : chunk;
+        }
+    }
+
+    private record Key(Object source, ContentCoding coding) {
+    }
+
+    private static final class Cached<V> {
+        private final V value;
+        // written on every hit from any ring, and only read to pick what to evict, so it need not be exact
+        private long sentNanos = System.nanoTime();
+
+        private Cached(V value) {
+            this.value = value;
+        }
+    }
+
+    @Data
+    @Builder
+    @Accessors(fluent = true, chain = true)
+    public static class Options {
+        /**
+         * Bodies smaller than this are sent as they are, since compressing them saves too little to be worth it.
+         */
+        @Builder.Default private final int minSize = 1024;
+        /**
+         * Bodies larger than this are sent as they are, since compressing them would hold up the ring. Streamed
+         * bodies are compressed however long they are.
+         */
+        @Builder.Default private final int maxSize = 8 * 1024 * 1024;
+        /**
+         * The deflate level, from 1, fastest, to 9, smallest.
+         */
+        @Builder.Default private final int level = 6;
+        /**
+         * The codings offered, in order of preference when the client accepts several equally.
+         */
+        @Builder.Default private final List<ContentCoding> codings = List.of(ContentCoding.GZIP, ContentCoding.DEFLATE);
+        /**
+         * Which Content-Type values are worth compressing. Already compressed formats, such as images, are not.
+         */
+        @Builder.Default private final Predicate<String> contentTypes = CompressionHandler::compressible;
+        /**
+         * How many compressed bodies, and compressed variants of {@link CachedResponse}s, to keep.
+         */
+        @Builder.Default private final int cacheSize = 256;
+    }
+
+    /**
+     * Text, and the structured formats that are text underneath.
+     */
+    private static boolean compressible(String contentType) {
+        var type = contentType.toLowerCase();
+        return type.startsWith("text/")
+            || type.contains("json")
+            || type.contains("xml")
+            || type.contains("javascript")
+            || type.startsWith("application/wasm");
+    }
+}
@@ -0,0 +1,574 @@
+package dev.hipshot.web.server;
+
+import dev.hipshot.web.server.codec.Http2Frames;
+import dev.hipshot.web.server.codec.OutputChain;
+import dev.hipshot.web.server.codec.WebServerRequestDecoder;
+import dev.hipshot.web.util.TimerWheel;
+import lombok.extern.slf4j.Slf4j;
+import sh.blake.niouring.IoUring;
+import sh.blake.niouring.IoUringSocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * An accepted socket and its buffers. Every method runs on the thread of the ring that accepted it.
+ *
+ * <p>Every complete request in a read is dispatched before the next read is queued, and their responses
+ * are encoded back-to-back into {@code output}, which then goes out as a single write as long as it fits
+ * in one pooled buffer. Larger responses take more buffers, or are written from the handler's own direct
+ * buffer. Once too much output is queued, no more requests are read until it has been written. Responses
+ * are always written in request order: if a handler does not send its response before returning,
+ * the remaining pipelined requests wait in {@code inBuffer} until it does. That is also how
+ * {@link #offload offloaded} handlers work: their responses are posted back to the ring when sent.
+ *
+ * <p>The write of a batch of responses and the read for the next requests are queued in the same pass, so the
+ * ring submits both with one {@code io_uring_enter}. The write is queued first, and a segment's write is only
+ * queued once the previous one has completed, since unlinked writes to one socket may run out of order.
+ *
+ * <p>A body too large for {@code inBuffer} is streamed to the request's chunk handler while reads carry on,
+ * unless the handler pauses it, in which case no read is queued until it resumes.
+ *
+ * <p>When the ring has {@link RingContext#idleBuffers() idle buffers}, a connection with nothing buffered
+ * hands {@code inBuffer} back and waits for its next request with a small idle buffer instead, taking a full
+ * one again, and copying the bytes over, once something arrives.
+ *
+ * <p>The connection closes after the response to a request whose client asked it to, as an HTTP/1.0 client
+ * does by default, or which used up {@link WebServer.Options#maxRequestsPerConnection()}, and after the request
+ * it is on once {@link #drain() draining}. That response carries a {@code Connection: close} header, no more
+ * requests are read, and the socket is closed as soon as it has been written. A client that shuts down its side
+ * of the connection has whatever is being written finished, and nothing more.
+ *
+ * <p>A client that opens with the HTTP/2 connection preface, or whose first request asks to upgrade to h2c, is
+ * handed over to an {@link Http2Connection} along with the socket, {@code inBuffer} and {@code output}, and
+ * everything from then on is delegated to it. See {@link WebServer.Options#h2c()}.
+ *
+ * <p>A single timer on the ring's {@link TimerWheel} closes the connection when it has been idle for
+ * {@link WebServer.Options#ttl()}, or a request is taking too long to arrive. It is re-armed after every read
+ * and write, and cancelled while a handler has the request.
+ */
+@Slf4j
+final class Connection implements Consumer<WebServerResponse> {
+    private static final int MAX_QUEUED_SEGMENTS = 8;
+    private static final byte[] SWITCHING_PROTOCOLS =
+        "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final RingContext context;
+    private final IoUring ring;
+    private final IoUringSocket socket;
+    private final OutputChain output;
+    private final WebServerRequestDecoder decoder;
+    private final BiConsumer<WebServerRequest, WebServerResponse> handler;
+    private final WebServer.Options options;
+    private final TimerWheel.Timer timeout = new TimerWheel.Timer(this::timeout);
+
+    private ByteBuffer inBuffer;
+    private ByteBuffer idleBuffer;
+    private Http2Connection http2;
+    private long requestStart;
+    private WebServerResponse pending;
+    private WebServerRequest streaming;
+    private boolean dispatching;
+    private boolean reading;
+    private boolean writing;
+    private boolean backlogged;
+    private boolean closed;
+    private boolean closing;
+    private boolean finished;
+    private boolean keepAliveHeader;
+    private int requests;
+    private int writeLength;
+
+    Connection(RingContext context,
+               WebServer.Options options,
+               IoUringSocket socket,
+               OutputChain output,
+               WebServerRequestDecoder decoder,
+               BiConsumer<WebServerRequest, WebServerResponse> handler) {
+        this.context = context;
+        this.options = options;
+        this.ring = context.ring();
+        this.socket = socket;
+        this.output = output;
+        this.decoder = decoder;
+        this.handler = handler;
+    }
+
+    /**
+     * Queues the first read.
+     */
+    void start() {
+        read();
+        updateTimeout();
+    }
+
+    void onRead(ByteBuffer received) {
+        if (http2 != null) {
+            http2.onRead(received);
+            return;
+        }
+        reading = false;
+        if (closed) {
+            return;
+        }
+        received.flip();
+        if (!received.hasRemaining()) {
+            // half-closed by the client, which has nothing more to send
+            if (writing) {
+                closing = true;
+                finished = true;
+            } else {
+                close();
+            }
+            return;
+        }
+        context.metrics().bytesRead += received.remaining();
+        if (received == idleBuffer) {
+            inBuffer = context.inBuffers().take();
+            inBuffer.put(received).flip();
+            context.idleBuffers().give(idleBuffer);
+            idleBuffer = null;
+        }
+        dispatch();
+    }
+
+    void onWrite(ByteBuffer written) {
+        if (http2 != null) {
+            http2.onWrite(written);
+            return;
+        }
+        writing = false;
+        context.metrics().bytesWritten += writeLength - written.remaining();
+        if (closed) {
+            return;
+        }
+        flush();
+        updateTimeout();
+        if (writing) {
+            return;
+        }
+        // everything has been written
+        if (finished) {
+            close();
+            return;
+        }
+        if (pending != null) {
+            var drained = pending.takeDrainHandler();
+            if (drained != null) {
+                drained.run();
+            }
+        }
+        if (backlogged) {
+            backlogged = false;
+            resume();
+        }
+    }
+
+    /**
+     * Hands the buffers back once the socket has closed.
+     */
+    void onClose() {
+        closed = true;
+        if (!context.closed(this)) {
+            return;
+        }
+        context.metrics().closed++;
+        context.timers().cancel(timeout);
+        if (http2 != null) {
+            http2.onClose();
+        }
+        if (pending != null) {
+            // a handler pacing its body by drains would otherwise wait for good; its writes now go nowhere
+            var drained = pending.takeDrainHandler();
+            if (drained != null) {
+                drained.run();
+            }
+        }
+        if (inBuffer != null) {
+            context.inBuffers().give(inBuffer);
+            inBuffer = null;
+        }
+        if (idleBuffer != null) {
+            context.idleBuffers().give(idleBuffer);
+            idleBuffer = null;
+        }
+        output.release();
+    }
+
+    /**
+     * Finishes the request in progress, if any, then closes. Closes right away if there is none.
+     */
+    void drain() {
+        if (http2 != null) {
+            http2.drain();
+            return;
+        }
+        closing = true;
+        boolean idle = pending == null && streaming == null && !writing && (inBuffer == null || inBuffer.position() == 0);
+        if (idle) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the socket there and then, without going through the ring, once it has stopped.
+     */
+    void abort() {
+        closed = true;
+        socket.close();
+        onClose();
+    }
+
+    /**
+     * Encodes a response sent by a handler. Responses sent while a read is being dispatched are
+     * flushed together once the whole batch has been handled.
+     */
+    @Override
+    public void accept(WebServerResponse response) {
+        if (closed) {
+            return; // the buffers may already belong to another connection
+        }
+        if (response == pending && !response.committed()) {
+            addConnectionHeader(response);
+        }
+        if (closing && response == pending) {
+            finished = true;
+        }
+        var compression = response.compression();
+        var tail = compression != null ? compression.onSend(response, context.compressor()) : null;
+        if (response.committed()) {
+            if (tail != null) {
+                context.encoder().encodeChunk(response, tail, output);
+            }
+            context.encoder().encodeLastChunk(response, output);
+        } else {
+            context.encoder().encode(response, output);
+        }
+        if (response.route() != null) {
+            context.metrics().route(response.route(), System.nanoTime() - response.startNanos());
+        }
+        if (response != pending) {
+            return;
+        }
+        pending = null;
+        // an asynchronous response unblocks any pipelined requests behind it
+        resume();
+    }
+
+    /**
+     * Picks up where {@link #dispatch()} left off, unless it is running or a read is in flight.
+     */
+    private void resume() {
+        if (dispatching || reading || closed) {
+            return;
+        }
+        inBuffer.flip();
+        dispatch();
+    }
+
+    /**
+     * Runs a blocking handler off the ring, if the server is configured to, see {@link RingContext#offload}.
+     */
+    void offload(WebServerRequest request,
+                 WebServerResponse response,
+                 BiConsumer<WebServerRequest, WebServerResponse> handler) {
+        context.offload(request, response, handler, this, this::write, this::fail);
+    }
+
+    /**
+     * Answers a request whose handler threw before sending its response: with a 500 if none of the response
+     * has gone out, or else by closing the connection, as ending a chunked body now would pass off what was
+     * written as all of it.
+     */
+    void fail(WebServerResponse response) {
+        if (closed || response != pending) {
+            return;
+        }
+        if (response.committed()) {
+            close();
+            return;
+        }
+        response.reset();
+        response.status(500).body("Internal Server Error").send();
+    }
+
+    /**
+     * Encodes part of a streamed response body.
+     */
+    void write(WebServerResponse response, ByteBuffer chunk) {
+        if (closed) {
+            return;
+        }
+        var compression = response.compression();
+        if (compression != null) {
+            chunk = compression.onWrite(response, chunk, context.compressor());
+        }
+        if (!response.committed()) {
+            if (response == pending) {
+                addConnectionHeader(response);
+            }
+            context.encoder().encodeHead(response, output);
+            response.commit();
+        }
+        context.encoder().encodeChunk(response, chunk, output);
+        if (!dispatching) {
+            flush();
+        }
+    }
+
+    /**
+     * Tells the client whether the connection stays open after this response, when it would not assume so.
+     * A pre-encoded response goes out as it is, and then only the close itself tells the client.
+     */
+    private void addConnectionHeader(WebServerResponse response) {
+        if (response.cached() != null) {
+            return;
+        }
+        if (closing) {
+            response.header(EncodedHeader.CONNECTION_CLOSE);
+        } else if (keepAliveHeader) {
+            response.header(EncodedHeader.CONNECTION_KEEP_ALIVE);
+        }
+    }
+
+    private void dispatch() {
+        dispatching = true;
+        try {
+            while (true) {
+                if (streaming != null) {
+                    if (bodyBlocked() || !decodeBody()) {
+                        break;
+                    }
+                    streaming = null;
+                    continue;
+                }
+                if (pending != null || finished || output.size() > MAX_QUEUED_SEGMENTS) {
+                    break;
+                }
+                if (requests == 0 && options.h2c()) {
+                    int preface = Http2Frames.matchPreface(inBuffer);
+                    if (preface == 0) {
+                        break; // could still be the preface
+                    }
+                    if (preface > 0) {
+                        upgrade(null, null);
+                        return;
+                    }
+                }
+                WebServerRequest request;
+                try {
+                    request = decoder.decode(inBuffer);
+                } catch (RuntimeException ex) {
+                    log.debug("Unable to decode request, closing connection", ex);
+                    context.metrics().decodeErrors++;
+                    close();
+                    break;
+                }
+                if (request == null) {
+                    break;
+                }
+                context.metrics().requests++;
+                requests++;
+                int maxRequests = options.maxRequestsPerConnection();
+                if (!decoder.isKeepAlive() || (maxRequests > 0 && requests >= maxRequests)) {
+                    closing = true;
+                }
+                // an HTTP/1.0 client has to be told the connection stays open
+                keepAliveHeader = !closing && "HTTP/1.0".equals(request.protocol());
+                var settings = upgradeSettings(request);
+                if (settings != null) {
+                    request.detach();
+                    output.reserve(SWITCHING_PROTOCOLS.length).put(SWITCHING_PROTOCOLS);
+                    upgrade(settings, request);
+                    return;
+                }
+                request.ring(ring);
+                requestStart = 0;
+                if (decoder.isDecodingBody()) {
+                    streaming = request;
+                    request.onResume(() -> context.post(this::resume));
+                }
+                var response = new WebServerResponse();
+                response.startNanos(System.nanoTime());
+                response.onSend(this);
+                response.onWrite(this::write);
+                pending = response;
+                try {
+                    handler.accept(request, response);
+                } catch (RuntimeException ex) {
+                    log.warn("Unhandled exception in request handler", ex);
+                    fail(response);
+                }
+            }
+        } finally {
+            dispatching = false;
+        }
+        if (closed) {
+            return;
+        }
+        inBuffer.compact();
+        flush();
+        if (finished) {
+            if (!writing) {
+                close();
+            }
+            return; // closed once the last response has been written
+        }
+        if (streaming != null ? bodyBlocked() : pending != null) {
+            updateTimeout();
+            return; // read again once the pending response has been sent, or the body resumed
+        }
+        if (output.size() > MAX_QUEUED_SEGMENTS) {
+            backlogged = true;
+            updateTimeout();
+            return; // read again once the output has been written
+        }
+        if (!inBuffer.hasRemaining()) {
+            log.warn("Request exceeds requestBufferSize, closing connection");
+            close();
+            return;
+        }
+        read();
+        updateTimeout();
+    }
+
+    /**
+     * The client's HTTP/2 settings if {@code request} asks to upgrade to h2c, and can, or null to serve it as it is.
+     * A request with a body still to come, or after which the connection closes, is not upgraded.
+     */
+    private ByteBuffer upgradeSettings(WebServerRequest request) {
+        if (!options.h2c() || closing || decoder.isDecodingBody() || !"HTTP/1.1".equals(request.protocol())) {
+            return null;
+        }
+        var upgrade = request.header("Upgrade");
+        var settings = request.header("HTTP2-Settings");
+        if (upgrade == null || settings == null || !hasToken(upgrade, "h2c")) {
+            return null;
+        }
+        try {
+            var decoded = ByteBuffer.wrap(Base64.getUrlDecoder().decode(settings.trim()));
+            return decoded.remaining() % 6 == 0 ? decoded : null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private static boolean hasToken(String value, String token) {
+        for (var part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hands the connection over to HTTP/2, with whatever has been read after the preface or the upgrading
+     * request, which becomes stream 1.
+     */
+    private void upgrade(ByteBuffer settings, WebServerRequest request) {
+        context.timers().cancel(timeout);
+        http2 = new Http2Connection(context, options, socket, output, handler, inBuffer, writing, writeLength);
+        inBuffer = null;
+        http2.start(settings, request);
+    }
+
+    private void read() {
+        reading = true;
+        var idleBuffers = context.idleBuffers();
+        boolean empty = inBuffer == null || inBuffer.position() == 0;
+        if (idleBuffers != null && empty && pending == null && streaming == null) {
+            if (inBuffer != null) {
+                context.inBuffers().give(inBuffer);
+                inBuffer = null;
+            }
+            idleBuffer = idleBuffers.take();
+            ring.queueRead(socket, idleBuffer);
+            return;
+        }
+        if (inBuffer == null) {
+            inBuffer = context.inBuffers().take();
+        }
+        ring.queueRead(socket, inBuffer);
+    }
+
+    private boolean decodeBody() {
+        try {
+            return decoder.decodeBody(inBuffer);
+        } catch (RuntimeException ex) {
+            // the rest of the body cannot be told apart from the next request any more
+            log.warn("Unhandled exception in request body handler, closing connection", ex);
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Re-arms the timer for whatever the connection is waiting on: the rest of a request, the next request,
+     * or the client to read what has been written. Nothing is timed while a handler has the request, other
+     * than the gaps between the segments of a body it is streaming.
+     */
+    private void updateTimeout() {
+        if (closed) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long deadline;
+        if (streaming != null && !bodyBlocked()) {
+            deadline = now + options.requestTimeout();
+        } else if (pending != null && !backlogged) {
+            context.timers().cancel(timeout);
+            return;
+        } else if (backlogged || writing) {
+            deadline = now + options.ttl();
+        } else if (inBuffer != null && inBuffer.position() > 0) {
+            if (requestStart == 0) {
+                requestStart = now;
+            }
+            deadline = requestStart + (decoder.isAwaitingBody() ? options.requestTimeout() : options.headerTimeout());
+        } else {
+            deadline = now + options.ttl();
+        }
+        if (timeout.isScheduled() && Math.abs(timeout.deadline() - deadline) < RingContext.TICK_MILLIS) {
+            return; // close enough, spare the wheel the relinking
+        }
+        context.timers().schedule(timeout, deadline);
+    }
+
+    private void timeout() {
+        log.debug("Closing timed out connection");
+        close();
+    }
+
+    private void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        context.timers().cancel(timeout);
+        ring.queueClose(socket);
+    }
+
+    /**
+     * Whether a streamed body has to wait: it is paused, or nobody is listening for it yet.
+     */
+    private boolean bodyBlocked() {
+        return streaming.bodyPaused() || (streaming.chunkHandler() == null && pending != null);
+    }
+
+    private void flush() {
+        if (writing) {
+            return;
+        }
+        var next = output.nextWrite();
+        if (next == null) {
+            return;
+        }
+        writing = true;
+        writeLength = next.remaining();
+        ring.queueWrite(socket, next);
+    }
+}
@@ -0,0 +1,50 @@
+package dev.hipshot.web.server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A header name/value pair encoded once, so that sending it is a single copy into the output buffer.
+ * Use the common constants or declare your own as a {@code static final} field.
+ *
+ * <pre>{@code
+ * response.header(EncodedHeader.CONTENT_TYPE_JSON).body(json).send();
+ * }</pre>
+ */
+public final class EncodedHeader {
+    public static final EncodedHeader CONTENT_TYPE_TEXT_PLAIN = of("Content-Type", "text/plain");
+    public static final EncodedHeader CONTENT_TYPE_TEXT_HTML = of("Content-Type", "text/html; charset=utf-8");
+    public static final EncodedHeader CONTENT_TYPE_JSON = of("Content-Type", "application/json");
+    public static final EncodedHeader CONTENT_TYPE_OCTET_STREAM = of("Content-Type", "application/octet-stream");
+    public static final EncodedHeader CONNECTION_KEEP_ALIVE = of("Connection", "keep-alive");
+    public static final EncodedHeader CONNECTION_CLOSE = of("Connection", "close");
+    public static final EncodedHeader CACHE_CONTROL_NO_CACHE = of("Cache-Control", "no-cache");
+
+    private final String name;
+    private final String value;
+    private final byte[] encoded;
+
+    private EncodedHeader(String name, String value) {
+        this.name = name;
+        this.value = value;
+        this.encoded = (name + ": " + value + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static EncodedHeader of(String name, String value) {
+        return new EncodedHeader(name, value);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    /**
+     * The encoded header line including its trailing CRLF. Must not be modified.
+     */
+    public byte[] encoded() {
+        return encoded;
+    }
+}
@@ -0,0 +1,40 @@
+package dev.hipshot.web.server;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs in front of a handler, for concerns that cut across routes such as authentication, CORS, request ids or
+ * timing. A filter either passes the request on with {@code next.accept(request, response)}, there and then or
+ * later from a callback, or answers it itself and does not.
+ *
+ * <pre>{@code
+ * router.filter((request, response, next) -> {
+ *     response.header("X-Request-Id", UUID.randomUUID().toString());
+ *     next.accept(request, response);
+ * });
+ * }</pre>
+ *
+ * <p>Filters are registered on a {@link Router}, for all its routes, a path prefix or a single route, or
+ * server-wide with {@link WebServer.Options#filters()}. Each route's filters are linked in front of its handler
+ * once, when the router compiles, so a request runs through them without allocating anything.
+ */
+@FunctionalInterface
+public interface Filter {
+    void filter(WebServerRequest request,
+                WebServerResponse response,
+                BiConsumer<WebServerRequest, WebServerResponse> next);
+
+    /**
+     * Links {@code filters} in front of {@code handler}, the first running first. The handler itself when there
+     * are none.
+     */
+    static BiConsumer<WebServerRequest, WebServerResponse> chain(List<Filter> filters,
+                                                             BiConsumer<WebServerRequest, WebServerResponse> handler) {
+        var next = handler;
+        for (int i = filters.size() - 1; i >= 0; i--) {
+            next = new FilterChain(filters.get(i), next);
+        }
+        return next;
+    }
+}
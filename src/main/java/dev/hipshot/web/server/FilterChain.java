@@ -0,0 +1,22 @@
+package dev.hipshot.web.server;
+
+import java.util.function.BiConsumer;
+
+/**
+ * One link of a chain built by {@link Filter#chain}: a filter and what it passes the request on to, either the
+ * next link or the handler. Links are immutable and shared by every request on the route.
+ */
+final class FilterChain implements BiConsumer<WebServerRequest, WebServerResponse> {
+    private final Filter filter;
+    private final BiConsumer<WebServerRequest, WebServerResponse> next;
+
+    FilterChain(Filter filter, BiConsumer<WebServerRequest, WebServerResponse> next) {
+        this.filter = filter;
+        this.next = next;
+    }
+
+    @Override
+    public void accept(WebServerRequest request, WebServerResponse response) {
+        filter.filter(request, response, next);
+    }
+}
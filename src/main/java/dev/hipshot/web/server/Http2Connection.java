@@ -0,0 +1,1216 @@
+package dev.hipshot.web.server;
+
+import dev.hipshot.web.server.codec.HpackDecoder;
+import dev.hipshot.web.server.codec.Http2Frames;
+import dev.hipshot.web.server.codec.OutputChain;
+import dev.hipshot.web.server.codec.WebServerRequestDecoder;
+import dev.hipshot.web.util.TimerWheel;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
+import sh.blake.niouring.IoUring;
+import sh.blake.niouring.IoUringSocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static dev.hipshot.web.server.codec.Http2Frames.*;
+
+/**
+ * A {@link Connection} once it speaks HTTP/2, whether the client opened it with the connection preface or
+ * upgraded to h2c. Every method runs on the thread of the ring that accepted it.
+ *
+ * <p>Frames are read straight out of the input buffer, which is grown to hold the largest frame allowed, and
+ * responses are encoded into the same {@link OutputChain} as before, so a read's worth of frames is answered
+ * with a single write. Header blocks are decoded by {@link HpackDecoder} into {@code name: value} lines, and
+ * from those into an HTTP/1 head that {@link WebServerRequestDecoder#decodeStandalone} turns into the
+ * stream's request, so handlers and the {@link Router} see the same requests whichever protocol they came over.
+ *
+ * <p>Each stream is dispatched as soon as its request is complete, without waiting for the other streams'
+ * responses. A body with a Content-Length that fits in {@link WebServer.Options#requestBufferSize()} is
+ * collected before the handler is called; any other body is streamed to the request's chunk handler, as over
+ * HTTP/1. Body bytes are only credited back to the client once handed over, so a paused body stops its stream
+ * once the stream's window is used up, while the connection's other streams carry on.
+ *
+ * <p>Response bodies go out as DATA frames as far as the client's windows allow, and the rest waits on the
+ * stream until a WINDOW_UPDATE frees more. Once a response is complete while the client is still sending
+ * its body, the stream is reset with {@code NO_ERROR}, and the rest of the body is not read.
+ *
+ * <p>A single timer closes the connection when it has had no streams for {@link WebServer.Options#ttl()},
+ * or a write has been stuck for as long.
+ */
+@Slf4j
+final class Http2Connection {
+    private static final int MAX_QUEUED_SEGMENTS = 8;
+    private static final int CONNECTION_WINDOW = 1024 * 1024;
+    private static final int HEADER_TABLE_SIZE = 4096;
+    private static final int MAX_HEADER_BLOCK = 64 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final byte[] METHOD = ":method".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PATH = ":path".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SCHEME = ":scheme".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AUTHORITY = ":authority".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HOST = "host".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HOST_LINE = "host: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PROTOCOL_LINE = " HTTP/2.0\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[][] METHODS = new byte[HttpMethod.values().length][];
+
+    static {
+        for (var method : HttpMethod.values()) {
+            METHODS[method.ordinal()] = method.name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final RingContext context;
+    private final WebServer.Options options;
+    private final IoUring ring;
+    private final IoUringSocket socket;
+    private final OutputChain output;
+    private final BiConsumer<WebServerRequest, WebServerResponse> handler;
+    private final TimerWheel.Timer timeout = new TimerWheel.Timer(this::timeout);
+    private final HpackDecoder hpack = new HpackDecoder(HEADER_TABLE_SIZE);
+    private final IntObjectHashMap<Stream> streams = new IntObjectHashMap<>();
+    private final ArrayDeque<Stream> blocked = new ArrayDeque<>();
+    private final ArrayList<Stream> drained = new ArrayList<>();
+    private final ByteBuffer lines;
+
+    private ByteBuffer inBuffer;
+    private boolean pooledInBuffer;
+    private ByteBuffer headerBlock;
+    private int headerStream;
+    private int headerFlags;
+    private boolean prefaceReceived;
+    private boolean settingsReceived;
+    private boolean dispatching;
+    private boolean reading;
+    private boolean writing;
+    private boolean backlogged;
+    private boolean closed;
+    private boolean closing;
+    private boolean finished;
+    private int writeLength;
+    private int lastStream;
+    private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private int peerInitialWindow = DEFAULT_WINDOW_SIZE;
+    private int sendWindow = DEFAULT_WINDOW_SIZE;
+    private int receiveWindow = CONNECTION_WINDOW;
+    private int receiveCredit;
+
+    /**
+     * Takes over from {@link Connection}: its input buffer, in read mode with whatever follows the HTTP/1
+     * request that upgraded, or the preface, and a write it may have in flight.
+     */
+    Http2Connection(RingContext context,
+                    WebServer.Options options,
+                    IoUringSocket socket,
+                    OutputChain output,
+                    BiConsumer<WebServerRequest, WebServerResponse> handler,
+                    ByteBuffer inBuffer,
+                    boolean writing,
+                    int writeLength) {
+        this.context = context;
+        this.options = options;
+        this.ring = context.ring();
+        this.socket = socket;
+        this.output = output;
+        this.handler = handler;
+        this.writing = writing;
+        this.writeLength = writeLength;
+        this.lines = ByteBuffer.allocate(options.requestBufferSize());
+        int frameLength = HEADER_LENGTH + DEFAULT_MAX_FRAME_SIZE;
+        if (inBuffer.capacity() < frameLength) {
+            this.inBuffer = ByteBuffer.allocateDirect(frameLength);
+            this.inBuffer.put(inBuffer).flip();
+            context.inBuffers().give(inBuffer);
+        } else {
+            this.inBuffer = inBuffer;
+            this.pooledInBuffer = true;
+        }
+    }
+
+    /**
+     * Sends the server's SETTINGS and carries on with what has been read. After an upgrade, {@code settings}
+     * are the client's, from its {@code HTTP2-Settings} header, and {@code request} is stream 1.
+     */
+    void start(ByteBuffer settings, WebServerRequest request) {
+        Http2Frames.encodeSettings(output,
+            SETTINGS_MAX_CONCURRENT_STREAMS, options.maxConcurrentStreams(),
+            SETTINGS_ENABLE_PUSH, 0,
+            SETTINGS_MAX_HEADER_LIST_SIZE, options.requestBufferSize());
+        Http2Frames.encodeWindowUpdate(output, 0, CONNECTION_WINDOW - DEFAULT_WINDOW_SIZE);
+        dispatching = true;
+        try {
+            if (settings != null) {
+                // acknowledged by the 101 response itself
+                applySettings(settings);
+            }
+            if (request != null) {
+                lastStream = 1;
+                var stream = new Stream(1);
+                stream.remoteClosed = true;
+                streams.put(1, stream);
+                context.metrics().requests++;
+                dispatch(stream, request);
+            }
+        } catch (ProtocolException ex) {
+            goAway(ex);
+        } finally {
+            dispatching = false;
+        }
+        process();
+    }
+
+    void onRead(ByteBuffer received) {
+        reading = false;
+        if (closed) {
+            return;
+        }
+        received.flip();
+        if (!received.hasRemaining()) {
+            // half-closed by the client, which has nothing more to send
+            if (writing) {
+                closing = true;
+                finished = true;
+            } else {
+                close();
+            }
+            return;
+        }
+        context.metrics().bytesRead += received.remaining();
+        process();
+    }
+
+    void onWrite(ByteBuffer written) {
+        writing = false;
+        context.metrics().bytesWritten += writeLength - written.remaining();
+        if (closed) {
+            return;
+        }
+        flush();
+        updateTimeout();
+        if (writing) {
+            return;
+        }
+        // everything has been written
+        if (finished) {
+            close();
+            return;
+        }
+        streams.forEachValue(stream -> {
+            if (stream.response != null && stream.pending.isEmpty()) {
+                drained.add(stream);
+            }
+        });
+        for (var stream : drained) {
+            var drainHandler = stream.response.takeDrainHandler();
+            if (drainHandler != null) {
+                drainHandler.run();
+            }
+        }
+        drained.clear();
+        if (backlogged) {
+            backlogged = false;
+            resume();
+        }
+    }
+
+    /**
+     * Lets go of the streams and the input buffer once {@link Connection} has seen the socket close.
+     */
+    void onClose() {
+        closed = true;
+        context.timers().cancel(timeout);
+        for (var stream : new ArrayList<>(streams.values())) {
+            // a handler pacing its body by drains would otherwise wait for good; its writes now go nowhere
+            cancel(stream);
+        }
+        if (pooledInBuffer) {
+            context.inBuffers().give(inBuffer);
+        }
+        inBuffer = null;
+    }
+
+    /**
+     * Tells the client no more streams will be accepted, and closes once those it has opened are complete.
+     */
+    void drain() {
+        if (closing) {
+            return;
+        }
+        closing = true;
+        Http2Frames.encodeGoAway(output, lastStream, NO_ERROR);
+        if (streams.isEmpty()) {
+            finished = true;
+        }
+        written();
+    }
+
+    /**
+     * Picks up where {@link #process()} left off, unless it is running or a read is in flight.
+     */
+    private void resume() {
+        if (dispatching || reading || closed) {
+            return;
+        }
+        inBuffer.flip();
+        process();
+    }
+
+    private void process() {
+        dispatching = true;
+        try {
+            if (!prefaceReceived) {
+                int match = Http2Frames.matchPreface(inBuffer);
+                if (match < 0) {
+                    throw new ProtocolException(PROTOCOL_ERROR, "Missing connection preface");
+                }
+                if (match > 0) {
+                    inBuffer.position(inBuffer.position() + Http2Frames.prefaceLength());
+                    prefaceReceived = true;
+                }
+            }
+            while (prefaceReceived && !finished && output.size() <= MAX_QUEUED_SEGMENTS && inBuffer.remaining() >= HEADER_LENGTH) {
+                int position = inBuffer.position();
+                int length = Http2Frames.length(inBuffer, position);
+                if (length > DEFAULT_MAX_FRAME_SIZE) {
+                    throw new ProtocolException(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+                }
+                if (inBuffer.remaining() < HEADER_LENGTH + length) {
+                    break;
+                }
+                int type = Http2Frames.type(inBuffer, position);
+                int flags = Http2Frames.flags(inBuffer, position);
+                int id = Http2Frames.stream(inBuffer, position);
+                var payload = inBuffer.slice(position + HEADER_LENGTH, length);
+                inBuffer.position(position + HEADER_LENGTH + length);
+                frame(type, flags, id, payload);
+            }
+        } catch (ProtocolException ex) {
+            goAway(ex);
+        } finally {
+            dispatching = false;
+        }
+        if (closed) {
+            return;
+        }
+        inBuffer.compact();
+        flush();
+        if (finished) {
+            if (!writing) {
+                close();
+            }
+            return; // closed once the last frame has been written
+        }
+        if (output.size() > MAX_QUEUED_SEGMENTS) {
+            backlogged = true;
+            updateTimeout();
+            return; // read again once the output has been written
+        }
+        read();
+        updateTimeout();
+    }
+
+    private void frame(int type, int flags, int id, ByteBuffer payload) {
+        if (headerStream != 0 && (type != CONTINUATION || id != headerStream)) {
+            throw new ProtocolException(PROTOCOL_ERROR, "Header block interrupted");
+        }
+        if (!settingsReceived && type != SETTINGS) {
+            throw new ProtocolException(PROTOCOL_ERROR, "Expected SETTINGS");
+        }
+        switch (type) {
+            case DATA -> onData(flags, id, payload);
+            case HEADERS -> onHeaders(flags, id, payload);
+            case PRIORITY -> {
+                if (id == 0) {
+                    throw new ProtocolException(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                }
+                if (payload.remaining() != 5) {
+                    throw new ProtocolException(FRAME_SIZE_ERROR, "PRIORITY of " + payload.remaining() + " bytes");
+                }
+            }
+            case RST_STREAM -> onRstStream(id, payload);
+            case SETTINGS -> onSettings(flags, id, payload);
+            case PUSH_PROMISE -> throw new ProtocolException(PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+            case PING -> {
+                if (id != 0) {
+                    throw new ProtocolException(PROTOCOL_ERROR, "PING on stream " + id);
+                }
+                if (payload.remaining() != 8) {
+                    throw new ProtocolException(FRAME_SIZE_ERROR, "PING of " + payload.remaining() + " bytes");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    Http2Frames.encodePingAck(output, payload.getLong(0));
+                }
+            }
+            case GOAWAY -> {
+                if (id != 0) {
+                    throw new ProtocolException(PROTOCOL_ERROR, "GOAWAY on stream " + id);
+                }
+                closing = true;
+                if (streams.isEmpty()) {
+                    finished = true;
+                }
+            }
+            case WINDOW_UPDATE -> onWindowUpdate(id, payload);
+            case CONTINUATION -> onContinuation(flags, id, payload);
+            default -> { } // unknown frame types are ignored
+        }
+    }
+
+    private void onSettings(int flags, int id, ByteBuffer payload) {
+        if (id != 0) {
+            throw new ProtocolException(PROTOCOL_ERROR, "SETTINGS on stream " + id);
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (payload.hasRemaining()) {
+                throw new ProtocolException(FRAME_SIZE_ERROR, "SETTINGS acknowledgement with a payload");
+            }
+            return;
+        }
+        if (payload.remaining() % 6 != 0) {
+            throw new ProtocolException(FRAME_SIZE_ERROR, "SETTINGS of " + payload.remaining() + " bytes");
+        }
+        applySettings(payload);
+        Http2Frames.encodeSettingsAck(output);
+        settingsReceived = true;
+    }
+
+    private void applySettings(ByteBuffer payload) {
+        while (payload.remaining() >= 6) {
+            int key = payload.getShort() & 0xffff;
+            int value = payload.getInt();
+            switch (key) {
+                case SETTINGS_ENABLE_PUSH -> {
+                    if (value != 0 && value != 1) {
+                        throw new ProtocolException(PROTOCOL_ERROR, "ENABLE_PUSH of " + value);
+                    }
+                }
+                case SETTINGS_INITIAL_WINDOW_SIZE -> {
+                    if (value < 0) {
+                        throw new ProtocolException(FLOW_CONTROL_ERROR, "INITIAL_WINDOW_SIZE of " + (value & 0xffffffffL));
+                    }
+                    int delta = value - peerInitialWindow;
+                    peerInitialWindow = value;
+                    var open = new ArrayList<>(streams.values());
+                    for (var stream : open) {
+                        if ((long) stream.sendWindow + delta > MAX_WINDOW_SIZE) {
+                            throw new ProtocolException(FLOW_CONTROL_ERROR, "Stream window overflow");
+                        }
+                        stream.sendWindow += delta;
+                    }
+                    if (delta > 0) {
+                        for (var stream : open) {
+                            if (!stream.done && !stream.blocked) {
+                                sendData(stream);
+                            }
+                        }
+                    }
+                }
+                case SETTINGS_MAX_FRAME_SIZE -> {
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new ProtocolException(PROTOCOL_ERROR, "MAX_FRAME_SIZE of " + value);
+                    }
+                    peerMaxFrameSize = value;
+                }
+                default -> { } // the responses' header blocks never use the dynamic table, and nothing is pushed
+            }
+        }
+    }
+
+    private void onWindowUpdate(int id, ByteBuffer payload) {
+        if (payload.remaining() != 4) {
+            throw new ProtocolException(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + payload.remaining() + " bytes");
+        }
+        int increment = payload.getInt(0) & 0x7fffffff;
+        if (id == 0) {
+            if (increment == 0) {
+                throw new ProtocolException(PROTOCOL_ERROR, "Empty WINDOW_UPDATE");
+            }
+            if ((long) sendWindow + increment > MAX_WINDOW_SIZE) {
+                throw new ProtocolException(FLOW_CONTROL_ERROR, "Connection window overflow");
+            }
+            sendWindow += increment;
+            Stream stream;
+            while (sendWindow > 0 && (stream = blocked.poll()) != null) {
+                stream.blocked = false;
+                sendData(stream);
+            }
+            return;
+        }
+        var stream = streams.get(id);
+        if (stream == null) {
+            if (id > lastStream) {
+                throw new ProtocolException(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + id);
+            }
+            return;
+        }
+        if (increment == 0) {
+            reset(stream, PROTOCOL_ERROR);
+        } else if ((long) stream.sendWindow + increment > MAX_WINDOW_SIZE) {
+            reset(stream, FLOW_CONTROL_ERROR);
+        } else {
+            stream.sendWindow += increment;
+            if (!stream.blocked) {
+                sendData(stream);
+            }
+        }
+    }
+
+    private void onRstStream(int id, ByteBuffer payload) {
+        if (id == 0) {
+            throw new ProtocolException(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        }
+        if (payload.remaining() != 4) {
+            throw new ProtocolException(FRAME_SIZE_ERROR, "RST_STREAM of " + payload.remaining() + " bytes");
+        }
+        var stream = streams.get(id);
+        if (stream == null) {
+            if (id > lastStream) {
+                throw new ProtocolException(PROTOCOL_ERROR, "RST_STREAM on idle stream " + id);
+            }
+            return;
+        }
+        cancel(stream);
+    }
+
+    private void onHeaders(int flags, int id, ByteBuffer payload) {
+        if (id == 0) {
+            throw new ProtocolException(PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        unpad(flags, payload);
+        if ((flags & FLAG_PRIORITY) != 0) {
+            if (payload.remaining() < 5) {
+                throw new ProtocolException(FRAME_SIZE_ERROR, "HEADERS too short for its priority");
+            }
+            payload.position(payload.position() + 5);
+        }
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            headers(id, flags, payload);
+            return;
+        }
+        headerStream = id;
+        headerFlags = flags;
+        if (headerBlock == null) {
+            headerBlock = ByteBuffer.allocate(Math.max(payload.remaining(), DEFAULT_MAX_FRAME_SIZE));
+        }
+        headerBlock.clear();
+        appendHeaderBlock(payload);
+    }
+
+    private void onContinuation(int flags, int id, ByteBuffer payload) {
+        if (headerStream == 0) {
+            throw new ProtocolException(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+        }
+        appendHeaderBlock(payload);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            headerStream = 0;
+            headers(id, headerFlags, headerBlock.flip());
+        }
+    }
+
+    private void appendHeaderBlock(ByteBuffer fragment) {
+        if (fragment.remaining() > headerBlock.remaining()) {
+            int length = headerBlock.position() + fragment.remaining();
+            if (length > MAX_HEADER_BLOCK) {
+                throw new ProtocolException(PROTOCOL_ERROR, "Header block exceeds " + MAX_HEADER_BLOCK + " bytes");
+            }
+            var larger = ByteBuffer.allocate(Math.min(Math.max(length, headerBlock.capacity() * 2), MAX_HEADER_BLOCK));
+            headerBlock = larger.put(headerBlock.flip());
+        }
+        headerBlock.put(fragment);
+    }
+
+    /**
+     * Handles a complete header block: a new stream's request, or the trailers that end a stream's body,
+     * which are decoded only to keep the decoder's table in step with the client's.
+     */
+    private void headers(int id, int flags, ByteBuffer block) {
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        var stream = streams.get(id);
+        if (stream != null) {
+            decodeBlock(block);
+            if (!endStream || stream.remoteClosed) {
+                throw new ProtocolException(PROTOCOL_ERROR, "Unexpected HEADERS on stream " + id);
+            }
+            stream.remoteClosed = true;
+            ended(stream);
+            return;
+        }
+        if (id <= lastStream || (id & 1) == 0) {
+            throw new ProtocolException(PROTOCOL_ERROR, "HEADERS opening stream " + id);
+        }
+        boolean fits = decodeBlock(block);
+        lastStream = id;
+        if (closing || streams.size() >= options.maxConcurrentStreams()) {
+            Http2Frames.encodeRstStream(output, id, REFUSED_STREAM);
+            return;
+        }
+        context.metrics().requests++;
+        stream = new Stream(id);
+        stream.remoteClosed = endStream;
+        streams.put(id, stream);
+        if (!fits) {
+            respond(stream, 431, "Request Header Fields Too Large");
+            return;
+        }
+        var head = toHttp1(stream);
+        if (head == null) {
+            reset(stream, PROTOCOL_ERROR);
+            return;
+        }
+        if (endStream) {
+            dispatch(stream, WebServerRequestDecoder.decodeStandalone(head, null, false));
+        } else if (stream.contentLength >= 0 && stream.contentLength <= options.requestBufferSize()) {
+            stream.head = head;
+            stream.collected = ByteBuffer.allocate((int) stream.contentLength);
+        } else {
+            dispatch(stream, WebServerRequestDecoder.decodeStandalone(head, null, true));
+        }
+    }
+
+    private boolean decodeBlock(ByteBuffer block) {
+        lines.clear();
+        boolean fits;
+        try {
+            fits = hpack.decode(block, lines);
+        } catch (IllegalArgumentException ex) {
+            throw new ProtocolException(COMPRESSION_ERROR, ex.getMessage());
+        }
+        lines.flip();
+        return fits;
+    }
+
+    /**
+     * Rewrites the decoded header lines as an HTTP/1 head: the request line from {@code :method} and
+     * {@code :path}, a Host header from {@code :authority} unless there is one, and the rest as they are.
+     * Null if the request is malformed, or uses a method the server does not know.
+     */
+    private ByteBuffer toHttp1(Stream stream) {
+        int methodStart = -1, methodEnd = -1, pathStart = -1, pathEnd = -1, authorityStart = -1, authorityEnd = -1;
+        int regular = -1;
+        boolean host = false;
+        int limit = lines.limit();
+        for (int position = lines.position(); position < limit; ) {
+            int colon = indexOf(lines, position + 1, limit, (byte) ':');
+            int valueStart = colon + 2;
+            int lineEnd = indexOf(lines, valueStart, limit, (byte) '\r');
+            int nameLength = colon - position;
+            if (lines.get(position) == ':') {
+                if (regular >= 0) {
+                    return null; // pseudo-headers come first
+                }
+                if (methodStart < 0 && matches(lines, position, nameLength, METHOD)) {
+                    methodStart = valueStart;
+                    methodEnd = lineEnd;
+                } else if (pathStart < 0 && matches(lines, position, nameLength, PATH)) {
+                    pathStart = valueStart;
+                    pathEnd = lineEnd;
+                } else if (authorityStart < 0 && matches(lines, position, nameLength, AUTHORITY)) {
+                    authorityStart = valueStart;
+                    authorityEnd = lineEnd;
+                } else if (!matches(lines, position, nameLength, SCHEME)) {
+                    return null;
+                }
+            } else {
+                if (regular < 0) {
+                    regular = position;
+                }
+                if (matches(lines, position, nameLength, HOST)) {
+                    host = true;
+                } else if (matches(lines, position, nameLength, CONTENT_LENGTH)) {
+                    stream.contentLength = parseLength(lines, valueStart, lineEnd);
+                    if (stream.contentLength < 0) {
+                        return null;
+                    }
+                }
+            }
+            position = lineEnd + 2;
+        }
+        if (methodStart < 0 || pathStart < 0 || !isMethod(methodStart, methodEnd) || !isTarget(pathStart, pathEnd)) {
+            return null;
+        }
+        int authorityLength = host || authorityStart < 0 ? 0 : authorityEnd - authorityStart;
+        int regularLength = regular < 0 ? 0 : limit - regular;
+        var head = ByteBuffer.allocate(methodEnd - methodStart + 1 + pathEnd - pathStart + PROTOCOL_LINE.length
+            + (authorityLength > 0 ? HOST_LINE.length + authorityLength + 2 : 0) + regularLength + 2);
+        head.put(lines.slice(methodStart, methodEnd - methodStart))
+            .put((byte) ' ')
+            .put(lines.slice(pathStart, pathEnd - pathStart))
+            .put(PROTOCOL_LINE);
+        if (authorityLength > 0) {
+            head.put(HOST_LINE).put(lines.slice(authorityStart, authorityLength)).put(CRLF);
+        }
+        if (regularLength > 0) {
+            head.put(lines.slice(regular, regularLength));
+        }
+        return head.put(CRLF).flip();
+    }
+
+    private boolean isMethod(int start, int end) {
+        for (var method : METHODS) {
+            if (matches(lines, start, end - start, method)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isTarget(int start, int end) {
+        if (start == end || (lines.get(start) != '/' && !(end - start == 1 && lines.get(start) == '*'))) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            byte b = lines.get(i);
+            if (b <= ' ' || b == 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void onData(int flags, int id, ByteBuffer payload) {
+        if (id == 0) {
+            throw new ProtocolException(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int length = payload.remaining();
+        receiveWindow -= length;
+        if (receiveWindow < 0) {
+            throw new ProtocolException(FLOW_CONTROL_ERROR, "Connection window exceeded");
+        }
+        // the connection's window is credited back as soon as it is read: each stream's own bounds what is held
+        receiveCredit += length;
+        if (receiveCredit >= CONNECTION_WINDOW / 2) {
+            Http2Frames.encodeWindowUpdate(output, 0, receiveCredit);
+            receiveWindow += receiveCredit;
+            receiveCredit = 0;
+        }
+        var stream = streams.get(id);
+        if (stream == null) {
+            if (id > lastStream) {
+                throw new ProtocolException(PROTOCOL_ERROR, "DATA on idle stream " + id);
+            }
+            Http2Frames.encodeRstStream(output, id, STREAM_CLOSED);
+            return;
+        }
+        if (stream.remoteClosed) {
+            reset(stream, STREAM_CLOSED);
+            return;
+        }
+        stream.receiveWindow -= length;
+        if (stream.receiveWindow < 0) {
+            reset(stream, FLOW_CONTROL_ERROR);
+            return;
+        }
+        unpad(flags, payload);
+        stream.remoteClosed = (flags & FLAG_END_STREAM) != 0;
+        consumed(stream, length - payload.remaining());
+        int data = payload.remaining();
+        if (stream.collected != null) {
+            if (data > stream.collected.remaining()) {
+                reset(stream, PROTOCOL_ERROR);
+                return;
+            }
+            stream.collected.put(payload);
+            consumed(stream, data);
+        } else if (stream.request == null) {
+            consumed(stream, data);
+        } else if (stream.held.isEmpty() && !bodyBlocked(stream)) {
+            if (!handOver(stream, payload)) {
+                return;
+            }
+            consumed(stream, data);
+        } else {
+            var copy = ByteBuffer.allocate(data);
+            stream.held.add(copy.put(payload).flip());
+        }
+        if (stream.remoteClosed) {
+            ended(stream);
+        }
+    }
+
+    /**
+     * The client has sent the whole body: a collected body is dispatched with its request, and a streamed
+     * one is ended once everything held back has been handed over.
+     */
+    private void ended(Stream stream) {
+        if (stream.done) {
+            return;
+        }
+        if (stream.collected != null) {
+            var body = stream.collected;
+            stream.collected = null;
+            if (body.hasRemaining()) {
+                reset(stream, PROTOCOL_ERROR); // shorter than its Content-Length
+                return;
+            }
+            dispatch(stream, WebServerRequestDecoder.decodeStandalone(stream.head, body.flip(), false));
+            stream.head = null;
+        } else if (stream.request != null) {
+            deliver(stream);
+        }
+    }
+
+    /**
+     * Hands over as much of a streamed body as the request will take, and ends it once it has all gone.
+     */
+    private void deliver(Stream stream) {
+        if (stream.done || stream.request == null) {
+            return;
+        }
+        ByteBuffer chunk;
+        while (!bodyBlocked(stream) && (chunk = stream.held.poll()) != null) {
+            int length = chunk.remaining();
+            if (!handOver(stream, chunk)) {
+                return;
+            }
+            consumed(stream, length);
+        }
+        if (stream.remoteClosed && !stream.bodyEnded && stream.held.isEmpty() && !bodyBlocked(stream)) {
+            stream.bodyEnded = true;
+            var bodyEndHandler = stream.request.bodyEndHandler();
+            if (bodyEndHandler != null) {
+                try {
+                    bodyEndHandler.run();
+                } catch (RuntimeException ex) {
+                    log.warn("Unhandled exception in request body handler, resetting stream", ex);
+                    reset(stream, INTERNAL_ERROR);
+                }
+            }
+        }
+    }
+
+    private boolean handOver(Stream stream, ByteBuffer chunk) {
+        var chunkHandler = stream.request.chunkHandler();
+        if (chunkHandler == null) {
+            return true; // the response went without the body, which is dropped
+        }
+        try {
+            chunkHandler.accept(chunk);
+            return !stream.done;
+        } catch (RuntimeException ex) {
+            log.warn("Unhandled exception in request body handler, resetting stream", ex);
+            reset(stream, INTERNAL_ERROR);
+            return false;
+        }
+    }
+
+    /**
+     * Whether a streamed body has to wait: it is paused, or nobody is listening for it yet.
+     */
+    private static boolean bodyBlocked(Stream stream) {
+        return stream.request.bodyPaused() || (stream.request.chunkHandler() == null && !stream.sent);
+    }
+
+    /**
+     * Credits body bytes the stream has finished with back to the client, half a window at a time.
+     */
+    private void consumed(Stream stream, int length) {
+        if (length == 0 || stream.remoteClosed || stream.done) {
+            return;
+        }
+        stream.receiveCredit += length;
+        if (stream.receiveCredit >= DEFAULT_WINDOW_SIZE / 2) {
+            Http2Frames.encodeWindowUpdate(output, stream.id, stream.receiveCredit);
+            stream.receiveWindow += stream.receiveCredit;
+            stream.receiveCredit = 0;
+        }
+    }
+
+    private void dispatch(Stream stream, WebServerRequest request) {
+        request.ring(ring);
+        stream.request = request;
+        if (request.streamed()) {
+            request.onResume(() -> context.post(() -> resume(stream)));
+        }
+        var response = newResponse(stream);
+        try {
+            handler.accept(request, response);
+        } catch (RuntimeException ex) {
+            log.warn("Unhandled exception in request handler", ex);
+            stream.fail(response);
+        }
+    }
+
+    /**
+     * Answers a request the handler never sees.
+     */
+    private void respond(Stream stream, int status, String body) {
+        newResponse(stream).status(status).body(body).send();
+    }
+
+    private WebServerResponse newResponse(Stream stream) {
+        var response = new WebServerResponse();
+        response.startNanos(System.nanoTime());
+        response.onSend(stream);
+        response.onWrite(stream::write);
+        stream.response = response;
+        return response;
+    }
+
+    /**
+     * Carries on with a streamed body once it has been resumed, or its chunk handler set.
+     */
+    private void resume(Stream stream) {
+        if (closed) {
+            return;
+        }
+        deliver(stream);
+        written();
+    }
+
+    /**
+     * Sends as much of a stream's pending response body as the windows allow, and ends the stream once it
+     * has all gone. A stream that runs out of connection window waits in {@code blocked} for a WINDOW_UPDATE.
+     */
+    private void sendData(Stream stream) {
+        var pending = stream.pending;
+        while (!stream.localClosed) {
+            var chunk = pending.peekFirst();
+            if (chunk == null) {
+                if (stream.ending) {
+                    Http2Frames.encodeData(output, stream.id, EMPTY, true);
+                    stream.localClosed = true;
+                }
+                break;
+            }
+            int length = Math.min(chunk.remaining(), Math.min(peerMaxFrameSize, Math.min(sendWindow, stream.sendWindow)));
+            if (length <= 0 && chunk.hasRemaining()) {
+                if (sendWindow <= 0 && !stream.blocked) {
+                    stream.blocked = true;
+                    blocked.add(stream);
+                }
+                return;
+            }
+            int end = chunk.position() + length;
+            boolean last = end == chunk.limit() && pending.size() == 1 && stream.ending;
+            Http2Frames.encodeData(output, stream.id, chunk.duplicate().limit(end), last);
+            chunk.position(end);
+            sendWindow -= length;
+            stream.sendWindow -= length;
+            if (!chunk.hasRemaining()) {
+                pending.removeFirst();
+            }
+            stream.localClosed = last;
+        }
+        if (stream.localClosed) {
+            finish(stream);
+        }
+    }
+
+    /**
+     * Forgets a stream whose response is complete, telling the client to stop sending a body nobody reads.
+     */
+    private void finish(Stream stream) {
+        if (!stream.remoteClosed) {
+            Http2Frames.encodeRstStream(output, stream.id, NO_ERROR);
+        }
+        remove(stream);
+    }
+
+    private void reset(Stream stream, int error) {
+        Http2Frames.encodeRstStream(output, stream.id, error);
+        cancel(stream);
+    }
+
+    /**
+     * Forgets a stream before its response is complete, whose writes now go nowhere.
+     */
+    private void cancel(Stream stream) {
+        remove(stream);
+        if (stream.response != null) {
+            var drainHandler = stream.response.takeDrainHandler();
+            if (drainHandler != null) {
+                drainHandler.run();
+            }
+        }
+    }
+
+    private void remove(Stream stream) {
+        stream.done = true;
+        streams.remove(stream.id);
+        if (stream.blocked) {
+            blocked.remove(stream);
+            stream.blocked = false;
+        }
+        stream.pending.clear();
+        stream.held.clear();
+        if (closing && streams.isEmpty()) {
+            finished = true;
+        }
+    }
+
+    private void goAway(ProtocolException ex) {
+        log.debug("HTTP/2 connection error, closing connection", ex);
+        context.metrics().decodeErrors++;
+        Http2Frames.encodeGoAway(output, lastStream, ex.error);
+        closing = true;
+        finished = true;
+    }
+
+    /**
+     * Flushes what a stream has just encoded, unless {@link #process()} is running and will flush it all at
+     * once, and closes if that was the last of it.
+     */
+    private void written() {
+        if (dispatching || closed) {
+            return;
+        }
+        flush();
+        if (finished && !writing) {
+            close();
+        }
+    }
+
+    private void read() {
+        reading = true;
+        ring.queueRead(socket, inBuffer);
+    }
+
+    /**
+     * Re-arms the timer while the connection has no streams, or a write is taking its time. Nothing is timed
+     * while handlers have requests.
+     */
+    private void updateTimeout() {
+        if (closed) {
+            return;
+        }
+        if (!streams.isEmpty() && !writing && !backlogged) {
+            context.timers().cancel(timeout);
+            return;
+        }
+        long deadline = System.currentTimeMillis() + options.ttl();
+        if (timeout.isScheduled() && Math.abs(timeout.deadline() - deadline) < RingContext.TICK_MILLIS) {
+            return; // close enough, spare the wheel the relinking
+        }
+        context.timers().schedule(timeout, deadline);
+    }
+
+    private void timeout() {
+        log.debug("Closing timed out connection");
+        close();
+    }
+
+    private void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        context.timers().cancel(timeout);
+        ring.queueClose(socket);
+    }
+
+    private void flush() {
+        if (writing) {
+            return;
+        }
+        var next = output.nextWrite();
+        if (next == null) {
+            return;
+        }
+        writing = true;
+        writeLength = next.remaining();
+        ring.queueWrite(socket, next);
+    }
+
+    /**
+     * Strips a frame's padding, leaving {@code payload} positioned at the data.
+     */
+    private static void unpad(int flags, ByteBuffer payload) {
+        if ((flags & FLAG_PADDED) == 0) {
+            return;
+        }
+        if (!payload.hasRemaining()) {
+            throw new ProtocolException(FRAME_SIZE_ERROR, "Padded frame without a pad length");
+        }
+        int padding = payload.get() & 0xff;
+        if (padding > payload.remaining()) {
+            throw new ProtocolException(PROTOCOL_ERROR, "Padding longer than the frame");
+        }
+        payload.limit(payload.limit() - padding);
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, int limit, byte value) {
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int start, int length, byte[] name) {
+        if (length != name.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(start + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseLength(ByteBuffer buffer, int start, int end) {
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * One request and its response. Handlers reach it as their response's sender, through which the response
+     * comes back to the connection, as with {@link Connection}.
+     */
+    final class Stream implements Consumer<WebServerResponse> {
+        private final int id;
+        private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> held = new ArrayDeque<>();
+        private WebServerRequest request;
+        private WebServerResponse response;
+        private ByteBuffer head;
+        private ByteBuffer collected;
+        private long contentLength = -1;
+        private int sendWindow = peerInitialWindow;
+        private int receiveWindow = DEFAULT_WINDOW_SIZE;
+        private int receiveCredit;
+        private boolean remoteClosed;
+        private boolean bodyEnded;
+        private boolean sent;
+        private boolean ending;
+        private boolean localClosed;
+        private boolean blocked;
+        private boolean done;
+
+        private Stream(int id) {
+            this.id = id;
+        }
+
+        /**
+         * Encodes the response's HEADERS, or ends a body streamed with {@link #write}, and sends what the
+         * windows allow of the rest.
+         */
+        @Override
+        public void accept(WebServerResponse response) {
+            if (closed || done || sent) {
+                return;
+            }
+            sent = true;
+            ending = true;
+            if (response.route() != null) {
+                context.metrics().route(response.route(), System.nanoTime() - response.startNanos());
+            }
+            var compression = response.compression();
+            var tail = compression != null ? compression.onSend(response, context.compressor()) : null;
+            if (response.committed()) {
+                if (tail != null && tail.hasRemaining()) {
+                    queue(tail);
+                } else {
+                    sendData(this);
+                }
+            } else {
+                var body = context.http2Encoder().encodeHeaders(response, false, id, peerMaxFrameSize, output);
+                if (body == null) {
+                    localClosed = true;
+                    finish(this);
+                } else {
+                    queue(body);
+                }
+            }
+            if (!done && request != null && request.streamed()) {
+                deliver(this); // a body nobody listens for is dropped from now on
+            }
+            written();
+        }
+
+        /**
+         * Sends part of a streamed response body, after the HEADERS if it is the first.
+         */
+        void write(WebServerResponse response, ByteBuffer chunk) {
+            if (closed || done || sent) {
+                return;
+            }
+            var compression = response.compression();
+            if (compression != null) {
+                chunk = compression.onWrite(response, chunk, context.compressor());
+            }
+            if (!response.committed()) {
+                context.http2Encoder().encodeHeaders(response, true, id, peerMaxFrameSize, output);
+                response.commit();
+            }
+            if (chunk.hasRemaining()) {
+                queue(chunk);
+            }
+            written();
+        }
+
+        /**
+         * Runs a blocking handler off the ring, if the server is configured to, see {@link RingContext#offload}.
+         */
+        void offload(WebServerRequest request,
+                     WebServerResponse response,
+                     BiConsumer<WebServerRequest, WebServerResponse> handler) {
+            context.offload(request, response, handler, this, this::write, this::fail);
+        }
+
+        /**
+         * Answers a request whose handler threw before sending its response: with a 500 if none of the
+         * response has gone out, or else by resetting the stream, so the body is not taken for complete.
+         */
+        void fail(WebServerResponse response) {
+            if (closed || done || sent) {
+                return;
+            }
+            if (response.committed()) {
+                reset(this, INTERNAL_ERROR);
+                written();
+                return;
+            }
+            response.reset();
+            response.status(500).body("Internal Server Error").send();
+        }
+
+        /**
+         * Queues a body to send. Whatever the windows do not let through at once is copied, unless it is a
+         * large direct buffer, which is sent from where it is and so must not change until drained.
+         */
+        private void queue(ByteBuffer body) {
+            var data = body.duplicate();
+            pending.add(data);
+            sendData(this);
+            if (pending.peekLast() == data && data.hasRemaining()
+                && !(data.isDirect() && data.remaining() >= options.responseBufferSize())) {
+                pending.pollLast();
+                var copy = ByteBuffer.allocate(data.remaining());
+                pending.add(copy.put(data).flip());
+            }
+        }
+    }
+
+    /**
+     * A connection error, answered with GOAWAY before closing.
+     */
+    private static final class ProtocolException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int error;
+
+        ProtocolException(int error, String message) {
+            super(message, null, false, false);
+            this.error = error;
+        }
+    }
+}
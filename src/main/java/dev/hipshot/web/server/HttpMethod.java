@@ -0,0 +1,12 @@
+package dev.hipshot.web.server;
+
+public enum HttpMethod {
+    GET,
+    HEAD,
+    POST,
+    PUT,
+    DELETE,
+    PATCH,
+    OPTIONS,
+    TRACE,
+}
@@ -0,0 +1,48 @@
+package dev.hipshot.web.server;
+
+import dev.hipshot.web.util.BufferPool;
+import dev.hipshot.web.util.LatencyHistogram;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * A snapshot of a server's counters, from {@link WebServer#metrics()}. Each ring counts on its own thread
+ * without synchronisation, so a snapshot may be slightly behind, and its figures not exactly consistent
+ * with each other.
+ *
+ * @param rings  the counters of each ring, in ring order
+ * @param routes how long requests took, from being decoded to their response being sent, by
+ *               {@link Router} route, e.g. {@code "GET /users/{id}"}, across all rings
+ */
+public record Metrics(List<Ring> rings, Map<String, LatencyHistogram> routes) {
+    /**
+     * @param queueDepth tasks posted to the ring, e.g. offloaded responses, that it has yet to run
+     * @param pools      the ring's buffer pools
+     */
+    public record Ring(String name,
+                       long accepted,
+                       long closed,
+                       long requests,
+                       long bytesRead,
+                       long bytesWritten,
+                       long decodeErrors,
+                       int queueDepth,
+                       List<BufferPool.Stats> pools) {
+        public long open() {
+            return accepted - closed;
+        }
+    }
+
+    /**
+     * Adds a counter up across all rings, e.g. {@code total(Metrics.Ring::requests)}.
+     */
+    public long total(ToLongFunction<Ring> counter) {
+        long total = 0;
+        for (var ring : rings) {
+            total += counter.applyAsLong(ring);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,102 @@
+package dev.hipshot.web.server;
+
+import dev.hipshot.web.util.BufferPool;
+import dev.hipshot.web.util.LatencyHistogram;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Serves a server's {@link Metrics} in the Prometheus text exposition format, e.g.
+ * {@code router.get("/metrics", new MetricsHandler(server))}. Ring counters are labelled by ring, pool figures
+ * by pool, and route latencies are exported as summaries with a few quantiles.
+ */
+public class MetricsHandler implements BiConsumer<WebServerRequest, WebServerResponse> {
+    private static final EncodedHeader CONTENT_TYPE = EncodedHeader.of("Content-Type", "text/plain; version=0.0.4");
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Supplier<Metrics> metrics;
+
+    public MetricsHandler(WebServer server) {
+        this(server::metrics);
+    }
+
+    public MetricsHandler(Supplier<Metrics> metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void accept(WebServerRequest request, WebServerResponse response) {
+        response.header(CONTENT_TYPE).body(format(metrics.get())).send();
+    }
+
+    public static String format(Metrics metrics) {
+        var out = new StringBuilder(4096);
+        ringCounter(out, metrics, "hipshot_connections_accepted_total", "Connections accepted.", Metrics.Ring::accepted);
+        ringCounter(out, metrics, "hipshot_connections_closed_total", "Connections closed.", Metrics.Ring::closed);
+        ringGauge(out, metrics, "hipshot_connections_open", "Connections currently open.", Metrics.Ring::open);
+        ringCounter(out, metrics, "hipshot_requests_total", "Requests decoded.", Metrics.Ring::requests);
+        ringCounter(out, metrics, "hipshot_read_bytes_total", "Bytes read from sockets.", Metrics.Ring::bytesRead);
+        ringCounter(out, metrics, "hipshot_written_bytes_total", "Bytes written to sockets.", Metrics.Ring::bytesWritten);
+        ringCounter(out, metrics, "hipshot_decode_errors_total", "Requests that could not be decoded.", Metrics.Ring::decodeErrors);
+        ringGauge(out, metrics, "hipshot_ring_queue_depth", "Tasks posted to the ring not yet run.", Metrics.Ring::queueDepth);
+
+        poolMetric(out, metrics, "hipshot_buffer_pool_idle", "gauge", "Idle buffers kept by the ring.", BufferPool.Stats::size);
+        poolMetric(out, metrics, "hipshot_buffer_pool_hits_total", "counter", "Buffers taken from the pool.", BufferPool.Stats::hits);
+        poolMetric(out, metrics, "hipshot_buffer_pool_misses_total", "counter", "Buffers the pool had to allocate.", BufferPool.Stats::misses);
+
+        var name = "hipshot_request_duration_seconds";
+        header(out, name, "summary", "Time from a request being decoded to its response being sent, by route.");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(metrics.routes()).entrySet()) {
+            var route = escape(entry.getKey());
+            var histogram = entry.getValue();
+            for (double quantile : QUANTILES) {
+                out.append(name).append("{route=\"").append(route).append("\",quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.percentile(quantile * 100))).append('\n');
+            }
+            out.append(name).append("_sum{route=\"").append(route).append("\"} ").append(seconds(histogram.sum())).append('\n');
+            out.append(name).append("_count{route=\"").append(route).append("\"} ").append(histogram.count()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void ringCounter(StringBuilder out, Metrics metrics, String name, String help, Function<Metrics.Ring, Number> value) {
+        ringMetric(out, metrics, name, "counter", help, value);
+    }
+
+    private static void ringGauge(StringBuilder out, Metrics metrics, String name, String help, Function<Metrics.Ring, Number> value) {
+        ringMetric(out, metrics, name, "gauge", help, value);
+    }
+
+    private static void ringMetric(StringBuilder out, Metrics metrics, String name, String type, String help, Function<Metrics.Ring, Number> value) {
+        header(out, name, type, help);
+        for (var ring : metrics.rings()) {
+            out.append(name).append("{ring=\"").append(escape(ring.name())).append("\"} ").append(value.apply(ring)).append('\n');
+        }
+    }
+
+    private static void poolMetric(StringBuilder out, Metrics metrics, String name, String type, String help, Function<BufferPool.Stats, Number> value) {
+        header(out, name, type, help);
+        for (var ring : metrics.rings()) {
+            for (var pool : ring.pools()) {
+                out.append(name).append("{pool=\"").append(escape(pool.name())).append("\"} ").append(value.apply(pool)).append('\n');
+            }
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -1,95 +1,255 @@
 package dev.hipshot.web.server;
 
+import dev.hipshot.web.server.codec.OutputChain;
 import dev.hipshot.web.server.codec.WebServerRequestDecoder;
-import dev.hipshot.web.server.codec.WebServerResponseEncoder;
-import dev.hipshot.web.util.ObjectPool;
+import dev.hipshot.web.util.Affinity;
+import dev.hipshot.web.util.BufferArena;
+import dev.hipshot.web.util.BufferPool;
+import dev.hipshot.web.util.LatencyHistogram;
 import lombok.extern.slf4j.Slf4j;
 import sh.blake.niouring.IoUring;
 import sh.blake.niouring.IoUringServerSocket;
+import sh.blake.niouring.IoUringSocket;
 
 import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 
 @Slf4j
 public class NioUringWebServer extends WebServer {
     private final Options options;
     private final BiConsumer<WebServerRequest, WebServerResponse> handler;
-    private final ExecutorService pool;
-    private final ObjectPool<ByteBuffer> inBufferPool;
-    private final ObjectPool<ByteBuffer> outBufferPool;
+    private final List<ExecutorService> ringThreads = new ArrayList<>();
+    private final ExecutorService offloader;
+    private final ScheduledExecutorService ticker;
+    private final BufferPool.Shared sharedInBuffers;
+    private final BufferPool.Shared sharedOutBuffers;
     private final List<IoUring> rings = new ArrayList<>();
+    private final List<IoUringServerSocket> listeners = new ArrayList<>();
+    private final Map<IoUring, RingContext> contexts = new IdentityHashMap<>();
 
     public NioUringWebServer(Options options, BiConsumer<WebServerRequest, WebServerResponse> handler) {
         this.options = options;
-        this.handler = handler;
-        pool = Executors.newFixedThreadPool(options.threads());
-        inBufferPool = new ObjectPool<>(() -> ByteBuffer.allocateDirect(options.requestBufferSize()));
-        outBufferPool = new ObjectPool<>(() -> ByteBuffer.allocateDirect(options.responseBufferSize()));
+        if (handler instanceof Router router) {
+            router.serverFilters(options.filters());
+            this.handler = router;
+        } else {
+            this.handler = Filter.chain(options.filters(), handler);
+        }
+        offloader = createOffloader(options);
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "hipshot-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sharedInBuffers = new BufferPool.Shared(options.sharedBufferPoolSize(), options.bufferPoolIdleSize());
+        sharedOutBuffers = new BufferPool.Shared(options.sharedBufferPoolSize(), options.bufferPoolIdleSize());
     }
 
     public NioUringWebServer start() {
-        var serverSocket = new IoUringServerSocket(options.host(), options.port());
-        serverSocket.onAccept((ring, socket) -> {
-            ring.queueAccept(serverSocket);
-
-            var inBuffer = inBufferPool.take();
-            var outBuffer = outBufferPool.take();
-            var requestDecoder = new WebServerRequestDecoder();
-
-            socket.onRead(received -> {
-                received.flip();
-                if (!received.hasRemaining()) {
-                    ring.queueClose(socket);
-                    return;
+        if (handler instanceof Router router) {
+            router.compile();
+        }
+        for (int i = 0; i < options.threads(); i++) {
+            var ring = new IoUring(8192);
+            ring.onException(ex -> log.warn("Ring failed", ex));
+            ring.queueAccept(listener(i));
+            rings.add(ring);
+            var thread = Executors.newSingleThreadExecutor(new RingThreadFactory(options.ringThreadName() + i));
+            ringThreads.add(thread);
+            var context = createContext(thread, i, ring);
+            contexts.put(ring, context);
+            context.mailbox().open(() -> thread.execute(context::loop));
+        }
+        ticker.scheduleAtFixedRate(
+            () -> contexts.values().forEach(RingContext::tick),
+            RingContext.TICK_MILLIS,
+            RingContext.TICK_MILLIS,
+            TimeUnit.MILLISECONDS);
+        ticker.scheduleAtFixedRate(() -> {
+            sharedInBuffers.trim();
+            sharedOutBuffers.trim();
+        }, RingContext.TRIM_MILLIS, RingContext.TRIM_MILLIS, TimeUnit.MILLISECONDS);
+
+        return this;
+    }
+
+    @Override
+    public Metrics metrics() {
+        var snapshots = new ArrayList<Metrics.Ring>();
+        var routes = new HashMap<String, LatencyHistogram>();
+        for (int i = 0; i < rings.size(); i++) {
+            var context = contexts.get(rings.get(i));
+            snapshots.add(context.snapshot(options.ringThreadName() + i));
+            context.metrics().routes().forEach((route, histogram) ->
+                routes.computeIfAbsent(route, r -> new LatencyHistogram()).add(histogram));
+        }
+        return new Metrics(snapshots, routes);
+    }
+
+    @Override
+    public WebServer stop(Duration grace) {
+        listeners.forEach(IoUringServerSocket::close);
+        long deadline = System.nanoTime() + grace.toNanos();
+        if (!grace.isZero() && !grace.isNegative()) {
+            contexts.values().forEach(RingContext::drain);
+            for (var context : contexts.values()) {
+                if (!context.awaitDrained(deadline - System.nanoTime())) {
+                    log.warn("Connections still open after {}, closing them", grace);
+                    break;
                 }
-                var request = requestDecoder.decode(received);
-                if (request != null) {
-                    request.ring(ring);
-                    var response = new WebServerResponse();
-                    response.onSend(res -> {
-                        WebServerResponseEncoder.encode(response, outBuffer);
-                        ring.queueWrite(socket, outBuffer);
-                    });
-                    handler.accept(request, response);
+            }
+        }
+        // each ring closes its connections and itself once its loop has seen the stop
+        contexts.values().forEach(RingContext::stop);
+        for (var thread : ringThreads) {
+            thread.shutdown();
+            try {
+                if (!thread.awaitTermination(1, TimeUnit.SECONDS)) {
+                    log.warn("Ring did not stop within a second");
                 }
-                received.compact();
-                ring.queueRead(socket, received);
-            });
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        ticker.shutdown();
+        sharedInBuffers.clear();
+        sharedOutBuffers.clear();
+        if (offloader != null) {
+            offloader.shutdown();
+        }
+        return this;
+    }
 
-            socket.onWrite(ByteBuffer::compact);
+    /**
+     * The socket ring {@code index} accepts on: the first ring's, unless every ring gets its own.
+     */
+    private IoUringServerSocket listener(int index) {
+        if (index > 0 && (options.acceptMode() == AcceptMode.SHARED || listeners.size() < index)) {
+            return listeners.get(0);
+        }
+        IoUringServerSocket serverSocket;
+        try {
+            serverSocket = new IoUringServerSocket(options.host(), options.port());
+        } catch (RuntimeException ex) {
+            if (index == 0) {
+                throw ex;
+            }
+            log.warn("Could not bind a listener per ring with SO_REUSEPORT, the rings will share one", ex);
+            return listeners.get(0);
+        }
+        serverSocket.onAccept((ring, socket) -> accept(serverSocket, ring, socket));
+        serverSocket.onException(ex -> log.warn("Listener failed", ex));
+        listeners.add(serverSocket);
+        return serverSocket;
+    }
 
-            socket.onClose(() -> {
-                inBufferPool.give(inBuffer.clear());
-                outBufferPool.give(outBuffer.clear());
-            });
+    private void accept(IoUringServerSocket serverSocket, IoUring ring, IoUringSocket socket) {
+        var context = contexts.get(ring);
+        if (context.draining()) {
+            ring.queueClose(socket);
+            return;
+        }
+        ring.queueAccept(serverSocket);
 
-            socket.onException(Throwable::printStackTrace);
+        context.metrics().accepted++;
+        var output = new OutputChain(context.outBuffers());
+        var requestDecoder = new WebServerRequestDecoder(options.lazyRequestDecoding());
+        var connection = new Connection(context, options, socket, output, requestDecoder, handler);
+        context.opened(connection);
 
-            ring.queueRead(socket, inBuffer);
-        });
+        socket.onRead(connection::onRead);
+        socket.onWrite(connection::onWrite);
 
-        serverSocket.onException(Throwable::printStackTrace);
+        socket.onClose(connection::onClose);
 
-        for (int i = 0; i < options.threads(); i++) {
-            var ring = new IoUring(8192);
-            ring.onException(Throwable::printStackTrace);
-            ring.queueAccept(serverSocket);
-            rings.add(ring);
-            pool.execute(ring::loop);
+        socket.onException(ex -> log.debug("Connection failed", ex));
+
+        connection.start();
+    }
+
+    /**
+     * Sets the ring up on its own thread, pinned first if asked to, so that its buffers are first touched,
+     * and so placed, on the CPU that will use them.
+     */
+    private RingContext createContext(ExecutorService thread, int index, IoUring ring) {
+        try {
+            return thread.submit(() -> {
+                var cpus = options.ringCpus();
+                if (!cpus.isEmpty()) {
+                    Affinity.pin(cpus.get(index % cpus.size()));
+                }
+                var inBuffers = createPool("ring-" + index + ".in", options.requestBufferSize(), sharedInBuffers);
+                var outBuffers = createPool("ring-" + index + ".out", options.responseBufferSize(), sharedOutBuffers);
+                var idleBuffers = options.idleBufferSize() > 0
+                    ? createPool("ring-" + index + ".idle", Math.min(options.idleBufferSize(), options.requestBufferSize()), null)
+                    : null;
+                return new RingContext(ring, options, offloader, inBuffers, outBuffers, idleBuffers);
+            }).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while starting ring " + index, ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Unable to start ring " + index, ex.getCause());
         }
+    }
 
-        return this;
+    private BufferPool createPool(String name, int bufferSize, BufferPool.Shared shared) {
+        int arenaBuffers = options.arenaBuffers();
+        var pool = new BufferPool(
+            name,
+            () -> ByteBuffer.allocateDirect(bufferSize),
+            options.bufferPoolSize(),
+            options.bufferPoolIdleSize(),
+            shared);
+        if (arenaBuffers > 0) {
+            pool.fill(new BufferArena(bufferSize, arenaBuffers, options.arenaPageAligned()));
+        }
+        return pool;
     }
 
-    @Override
-    public WebServer stop() {
-        pool.shutdown();
-        rings.forEach(IoUring::close);
-        // TODO: wake up?
-        return this;
+    private static ExecutorService createOffloader(Options options) {
+        if (options.offload() == Offload.VIRTUAL_THREADS) {
+            try {
+                // looked up reflectively so that the server still runs on Java 17
+                var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                log.warn("Virtual threads are not available, offloading to a pool of {} worker threads", options.workerThreads());
+            }
+        }
+        if (options.offload() == Offload.NONE) {
+            return null;
+        }
+        var count = new AtomicInteger();
+        ThreadFactory threads = runnable -> {
+            var thread = new Thread(runnable, "hipshot-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newFixedThreadPool(options.workerThreads(), threads);
+    }
+
+    /**
+     * Names the single thread a ring runs on.
+     */
+    private record RingThreadFactory(String name) implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, name);
+        }
     }
 }
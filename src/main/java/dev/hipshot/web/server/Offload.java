@@ -0,0 +1,19 @@
+package dev.hipshot.web.server;
+
+/**
+ * Where handlers marked with {@link Router#blocking(java.util.function.BiConsumer)} run.
+ */
+public enum Offload {
+    /**
+     * On the ring's own thread, like every other handler.
+     */
+    NONE,
+    /**
+     * On a new virtual thread per request. Requires Java 21; on older runtimes the worker pool is used instead.
+     */
+    VIRTUAL_THREADS,
+    /**
+     * On a fixed pool of {@link WebServer.Options#workerThreads()} platform threads shared by all rings.
+     */
+    WORKER_POOL,
+}
@@ -0,0 +1,438 @@
+package dev.hipshot.web.server;
+
+import dev.hipshot.web.client.WebClient;
+import dev.hipshot.web.client.WebClientRequest;
+import dev.hipshot.web.client.WebClientResponse;
+import dev.hipshot.web.server.codec.RequestSlices;
+import lombok.Builder;
+import lombok.Data;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import sh.blake.niouring.IoUring;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Forwards requests to a set of upstream servers, e.g.
+ * {@code router.get("/api/**", proxy).post("/api/**", proxy)}. Each ring forwards over a {@link WebClient} of its
+ * own, on the same ring as the inbound connection, so a request is proxied without changing threads and
+ * upstream connections are kept alive and reused. The request line and headers are copied byte for byte out of
+ * the input buffer when the request was decoded lazily, minus hop-by-hop headers, and bodies stream in both
+ * directions, each side paced by the other draining. Runs on the ring, so must not be wrapped in
+ * {@link Router#blocking}.
+ */
+@Slf4j
+public class ProxyHandler implements BiConsumer<WebServerRequest, WebServerResponse> {
+    private static final int VIRTUAL_NODES = 160;
+    private static final byte[] HTTP_1_1 = " HTTP/1.1\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] HOST = "Host: ".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CRLF = {'\r', '\n'};
+    /**
+     * Headers that only concern one hop, or that the client frames the body with itself, besides any that the
+     * {@code Connection} header names.
+     */
+    private static final String[] HOP_BY_HOP = {
+        "Connection", "Keep-Alive", "Proxy-Connection", "TE", "Trailer", "Transfer-Encoding", "Upgrade",
+        "Content-Length"
+    };
+    private static final String[] NO_TOKENS = {};
+
+    private final Options options;
+    private final List<String> upstreams;
+    private final byte[][] authorities;
+    private final Map<IoUring, RingState> rings = new ConcurrentHashMap<>();
+    private final int[] hashPoints;
+    private final int[] hashOwners;
+
+    public ProxyHandler(Options options) {
+        if (options.upstreams().isEmpty()) {
+            throw new IllegalArgumentException("At least one upstream is required");
+        }
+        this.options = options;
+        this.upstreams = List.copyOf(options.upstreams());
+        this.authorities = new byte[upstreams.size()][];
+        for (int i = 0; i < upstreams.size(); i++) {
+            var authority = WebClientRequest.builder().url(upstreams.get(i)).build().authority();
+            authorities[i] = authority.getBytes(StandardCharsets.ISO_8859_1);
+        }
+        // every upstream owns many points on the hash ring, so that losing one moves only its share of keys
+        int points = upstreams.size() * VIRTUAL_NODES;
+        long[] ring = new long[points];
+        for (int i = 0; i < upstreams.size(); i++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                int point = hash(upstreams.get(i) + "#" + v);
+                ring[i * VIRTUAL_NODES + v] = ((long) point << 32) | i;
+            }
+        }
+        Arrays.sort(ring);
+        hashPoints = new int[points];
+        hashOwners = new int[points];
+        for (int i = 0; i < points; i++) {
+            hashPoints[i] = (int) (ring[i] >> 32);
+            hashOwners[i] = (int) ring[i];
+        }
+    }
+
+    public ProxyHandler(String... upstreams) {
+        this(Options.builder().upstreams(List.of(upstreams)).build());
+    }
+
+    @Override
+    public void accept(WebServerRequest request, WebServerResponse response) {
+        var ring = rings.computeIfAbsent(request.ring(), r -> new RingState(new WebClient(r, options.client()), upstreams.size()));
+        int upstream = pick(ring, request);
+        new Forward(ring, upstream, request, response).start();
+    }
+
+    private int pick(RingState ring, WebServerRequest request) {
+        int count = upstreams.size();
+        return switch (options.balancing()) {
+            case ROUND_ROBIN -> ring.advance(count);
+            case LEAST_OUTSTANDING -> {
+                // ties go round-robin, so an idle set of upstreams still shares the load
+                int start = ring.advance(count);
+                int best = start;
+                for (int i = 1; i < count; i++) {
+                    int candidate = (start + i) % count;
+                    if (ring.outstanding[candidate] < ring.outstanding[best]) {
+                        best = candidate;
+                    }
+                }
+                yield best;
+            }
+            case CONSISTENT_HASH -> {
+                int hash = options.hashKey() != null ? hash(options.hashKey().apply(request)) : hashPath(request);
+                int index = Arrays.binarySearch(hashPoints, hash);
+                if (index < 0) {
+                    index = -index - 1;
+                }
+                yield hashOwners[index == hashPoints.length ? 0 : index];
+            }
+        };
+    }
+
+    /**
+     * The head of the upstream request: the request line and headers, less hop-by-hop ones and those named by
+     * {@code Connection}, with a {@code Host} added if the client sent none.
+     */
+    private ByteBuffer encodeHead(WebServerRequest request, int upstream) {
+        var method = request.method();
+        var slices = request.slices();
+        if (slices == null) {
+            return encodeMaterializedHead(request, upstream);
+        }
+        var connection = connectionTokens(request.header("Connection"));
+        int length = method.length() + 1 + slices.targetLength() + HTTP_1_1.length;
+        boolean host = false;
+        for (int i = 0; i < slices.headerCount(); i++) {
+            if (!hopByHop(slices, i, connection)) {
+                length += slices.headerLineLength(i);
+                host |= slices.headerNameEquals(i, "Host");
+            }
+        }
+        if (!host) {
+            length += HOST.length + authorities[upstream].length + CRLF.length;
+        }
+        var head = ByteBuffer.allocate(length);
+        putAscii(head, method);
+        head.put((byte) ' ');
+        slices.copyTarget(head);
+        head.put(HTTP_1_1);
+        for (int i = 0; i < slices.headerCount(); i++) {
+            if (!hopByHop(slices, i, connection)) {
+                slices.copyHeader(i, head);
+            }
+        }
+        if (!host) {
+            head.put(HOST).put(authorities[upstream]).put(CRLF);
+        }
+        return head.flip();
+    }
+
+    private ByteBuffer encodeMaterializedHead(WebServerRequest request, int upstream) {
+        var head = new StringBuilder(256).append(request.method()).append(' ').append(request.path());
+        char separator = '?';
+        for (Map.Entry<String, List<String>> param : request.queryParams().entrySet()) {
+            for (String value : param.getValue()) {
+                head.append(separator).append(param.getKey()).append('=').append(value);
+                separator = '&';
+            }
+        }
+        head.append(" HTTP/1.1\r\n");
+        var connection = connectionTokens(request.header("Connection"));
+        boolean host = false;
+        for (Map.Entry<String, List<String>> header : request.headers().entrySet()) {
+            if (hopByHop(header.getKey(), connection)) {
+                continue;
+            }
+            host |= header.getKey().equalsIgnoreCase("Host");
+            for (String value : header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        if (!host) {
+            head.append("Host: ").append(new String(authorities[upstream], StandardCharsets.ISO_8859_1)).append("\r\n");
+        }
+        return ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * The header names listed in a {@code Connection} header, which only concern the hop they arrived on.
+     */
+    private static String[] connectionTokens(String connection) {
+        if (connection == null) {
+            return NO_TOKENS;
+        }
+        var tokens = connection.split(",");
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = tokens[i].trim();
+        }
+        return tokens;
+    }
+
+    private static boolean hopByHop(RequestSlices slices, int index, String[] connection) {
+        for (String name : HOP_BY_HOP) {
+            if (slices.headerNameEquals(index, name)) {
+                return true;
+            }
+        }
+        for (String name : connection) {
+            if (slices.headerNameEquals(index, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hopByHop(String name, String[] connection) {
+        for (String hopByHop : HOP_BY_HOP) {
+            if (hopByHop.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        for (String token : connection) {
+            if (token.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void putAscii(ByteBuffer buffer, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+    }
+
+    /**
+     * FNV-1a, finished with MurmurHash3's mixer so that similar keys land far apart on the ring.
+     */
+    private static int hash(String key) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x01000193;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * {@link #hash(String)} of the path, read in place.
+     */
+    private static int hashPath(WebServerRequest request) {
+        int hash = 0x811c9dc5;
+        int length = request.pathLength();
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ (request.pathByte(i) & 0xff)) * 0x01000193;
+        }
+        return mix(hash);
+    }
+
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /**
+     * What one ring knows of the upstreams. Only touched from that ring's thread.
+     */
+    private static final class RingState {
+        private final WebClient client;
+        private final int[] outstanding;
+        private int next;
+
+        private RingState(WebClient client, int upstreams) {
+            this.client = client;
+            this.outstanding = new int[upstreams];
+        }
+
+        /**
+         * The next upstream in turn, wrapping back to the first rather than letting the count overflow.
+         */
+        private int advance(int count) {
+            int current = next;
+            next = current + 1 == count ? 0 : current + 1;
+            return current;
+        }
+    }
+
+    /**
+     * One request on its way upstream and its response on its way back.
+     */
+    private final class Forward {
+        private final RingState ring;
+        private final int upstream;
+        private final WebServerRequest request;
+        private final WebServerResponse response;
+        private WebClientRequest upstreamRequest;
+        private boolean relayed;
+        private boolean done;
+
+        private Forward(RingState ring, int upstream, WebServerRequest request, WebServerResponse response) {
+            this.ring = ring;
+            this.upstream = upstream;
+            this.request = request;
+            this.response = response;
+        }
+
+        private void start() {
+            // the head and body are copied now, as the input buffer moves on once the handler returns
+            var streamed = request.streamed();
+            upstreamRequest = WebClientRequest.builder()
+                .method(request.method())
+                .url(upstreams.get(upstream))
+                .head(encodeHead(request, upstream))
+                .body(streamed ? null : copy(request.body()))
+                .streamed(streamed)
+                .contentLength(streamed ? contentLength() : -1)
+                .streamResponse(true)
+                .build();
+            ring.outstanding[upstream]++;
+            ring.client.send(upstreamRequest, this::relay, this::fail);
+            if (streamed) {
+                request.chunkHandler(chunk -> {
+                    request.pauseBody();
+                    upstreamRequest.onDrain(request::resumeBody);
+                    upstreamRequest.write(chunk);
+                });
+                request.bodyEndHandler(upstreamRequest::end);
+            }
+        }
+
+        private void relay(WebClientResponse upstreamResponse) {
+            relayed = true;
+            response.status(upstreamResponse.status());
+            // a streamed body keeps its length, and is otherwise chunked again, while a response that has no
+            // body by definition keeps the length of the one it would have had
+            boolean keepLength = upstreamResponse.streamed() || bodiless(upstreamResponse.status());
+            var connection = connectionTokens(upstreamResponse.header("Connection"));
+            for (Map.Entry<String, List<String>> header : upstreamResponse.headers().entrySet()) {
+                var name = header.getKey();
+                if (hopByHop(name, connection) && !(keepLength && name.equalsIgnoreCase("Content-Length"))) {
+                    continue;
+                }
+                for (String value : header.getValue()) {
+                    response.header(name, value);
+                }
+            }
+            if (!upstreamResponse.streamed()) {
+                done();
+                response.body(upstreamResponse.body()).send();
+                return;
+            }
+            upstreamResponse.bodyEndHandler(() -> {
+                done();
+                response.send();
+            });
+            upstreamResponse.chunkHandler(chunk -> {
+                // held where it is until written, then the upstream is read again
+                upstreamResponse.pauseBody();
+                response.onDrain(upstreamResponse::resumeBody);
+                response.write(chunk);
+            });
+        }
+
+        /**
+         * Whether the response to this request has no body whatever its headers say: the answer to a HEAD, or
+         * a 1xx, 204 or 304.
+         */
+        private boolean bodiless(int status) {
+            return request.httpMethod() == HttpMethod.HEAD || status < 200 || status == 204 || status == 304;
+        }
+
+        private void fail(Throwable error) {
+            if (done) {
+                return;
+            }
+            done();
+            if (relayed) {
+                log.debug("Upstream {} failed mid-response", upstreams.get(upstream), error);
+                return;
+            }
+            log.debug("Upstream {} failed", upstreams.get(upstream), error);
+            response.status(502).body("Bad Gateway").send();
+        }
+
+        private void done() {
+            if (!done) {
+                done = true;
+                ring.outstanding[upstream]--;
+            }
+        }
+
+        private long contentLength() {
+            var header = request.header("Content-Length");
+            return header != null ? Long.parseLong(header.trim()) : -1;
+        }
+
+        private ByteBuffer copy(ByteBuffer body) {
+            if (body == null || !body.hasRemaining()) {
+                return null;
+            }
+            return ByteBuffer.allocate(body.remaining()).put(body.duplicate()).flip();
+        }
+    }
+
+    public enum Balancing {
+        ROUND_ROBIN,
+        /**
+         * To the upstream with the fewest requests in flight from this ring.
+         */
+        LEAST_OUTSTANDING,
+        /**
+         * By a hash of {@link Options#hashKey()}, so the same key keeps going to the same upstream, and only
+         * the keys of an upstream that is added or removed move.
+         */
+        CONSISTENT_HASH
+    }
+
+    @Data
+    @Builder
+    @Accessors(fluent = true, chain = true)
+    public static class Options {
+        /**
+         * Base URLs of the upstream servers, e.g. {@code http://10.0.0.1:8080}. Only the host and port are used;
+         * requests keep their own path.
+         */
+        @Builder.Default private final List<String> upstreams = List.of();
+        @Builder.Default private final Balancing balancing = Balancing.ROUND_ROBIN;
+        /**
+         * What {@link Balancing#CONSISTENT_HASH} hashes, the path when null.
+         */
+        private final Function<WebServerRequest, String> hashKey;
+        /**
+         * Options for each ring's client, e.g. how many connections it keeps to each upstream.
+         */
+        @Builder.Default private final WebClient.Options client = WebClient.Options.builder().build();
+    }
+}
@@ -0,0 +1,299 @@
+package dev.hipshot.web.server;
+
+import dev.hipshot.web.server.codec.BodyCompressor;
+import dev.hipshot.web.server.codec.Http2ResponseEncoder;
+import dev.hipshot.web.server.codec.WebServerResponseEncoder;
+import dev.hipshot.web.util.BufferPool;
+import dev.hipshot.web.util.Mailbox;
+import dev.hipshot.web.util.TimerWheel;
+import lombok.extern.slf4j.Slf4j;
+import sh.blake.niouring.IoUring;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * State shared by every connection on one ring. Only ever touched from that ring's thread, except for
+ * {@link #post(Runnable)} and {@link #stop()}.
+ */
+@Slf4j
+final class RingContext {
+    static final long TICK_MILLIS = 100;
+    static final long TRIM_MILLIS = 10000;
+    private static final Runnable WAKE = () -> { };
+
+    private final IoUring ring;
+    private final WebServerResponseEncoder encoder;
+    private Http2ResponseEncoder http2Encoder;
+    private BodyCompressor compressor;
+    private final Mailbox mailbox;
+    private final Executor offloader;
+    private final TimerWheel timers;
+    private final BufferPool inBuffers;
+    private final BufferPool outBuffers;
+    private final BufferPool idleBuffers;
+    private final TimerWheel.Timer trim = new TimerWheel.Timer(this::trim);
+    private final RingMetrics metrics = new RingMetrics();
+    private final Set<Connection> connections = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final CountDownLatch drained = new CountDownLatch(1);
+    private boolean draining;
+    private volatile boolean running = true;
+
+    RingContext(IoUring ring,
+                WebServer.Options options,
+                Executor offloader,
+                BufferPool inBuffers,
+                BufferPool outBuffers,
+                BufferPool idleBuffers) {
+        this.ring = ring;
+        this.encoder = new WebServerResponseEncoder(options.responseCacheSize());
+        this.mailbox = new Mailbox(ring);
+        this.offloader = offloader;
+        this.inBuffers = inBuffers;
+        this.outBuffers = outBuffers;
+        this.idleBuffers = idleBuffers;
+        long now = System.currentTimeMillis();
+        this.timers = new TimerWheel(TICK_MILLIS, 1024, now);
+        timers.schedule(trim, now + TRIM_MILLIS);
+    }
+
+    /**
+     * Runs the ring until {@link #stop()}, advancing its timers after every batch of completions. An idle ring
+     * is woken every tick to do so. Connections still open once it stops are closed, and the ring's idle
+     * buffers dropped.
+     */
+    void loop() {
+        while (running) {
+            try {
+                ring.execute();
+            } catch (RuntimeException ex) {
+                log.warn("Ring failed to execute", ex);
+            }
+            timers.advance(System.currentTimeMillis());
+        }
+        for (var connection : new ArrayList<>(connections)) {
+            connection.abort();
+        }
+        inBuffers.clear();
+        outBuffers.clear();
+        if (idleBuffers != null) {
+            idleBuffers.clear();
+        }
+        mailbox.close();
+        ring.close();
+    }
+
+    /**
+     * Asks every connection to close once the response it owes has been written, and refuses new ones.
+     * Safe to call from any thread; {@link #awaitDrained(long)} waits for it to finish.
+     */
+    void drain() {
+        post(() -> {
+            draining = true;
+            for (var connection : new ArrayList<>(connections)) {
+                connection.drain();
+            }
+            if (connections.isEmpty()) {
+                drained.countDown();
+            }
+        });
+    }
+
+    boolean draining() {
+        return draining;
+    }
+
+    /**
+     * Waits up to {@code nanos} for every connection to have closed after {@link #drain()}.
+     */
+    boolean awaitDrained(long nanos) {
+        try {
+            return drained.await(nanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    void opened(Connection connection) {
+        connections.add(connection);
+    }
+
+    /**
+     * Forgets a connection once it has closed. Returns false if it already had.
+     */
+    boolean closed(Connection connection) {
+        if (!connections.remove(connection)) {
+            return false;
+        }
+        if (draining && connections.isEmpty()) {
+            drained.countDown();
+        }
+        return true;
+    }
+
+    void stop() {
+        running = false;
+        mailbox.post(WAKE);
+    }
+
+    /**
+     * Wakes the ring up so its timers advance, called every tick from a shared timer thread.
+     */
+    void tick() {
+        mailbox.post(WAKE);
+    }
+
+    IoUring ring() {
+        return ring;
+    }
+
+    WebServerResponseEncoder encoder() {
+        return encoder;
+    }
+
+    /**
+     * The encoder for responses on HTTP/2 streams, made once the ring has its first HTTP/2 connection.
+     */
+    Http2ResponseEncoder http2Encoder() {
+        if (http2Encoder == null) {
+            http2Encoder = new Http2ResponseEncoder(encoder);
+        }
+        return http2Encoder;
+    }
+
+    /**
+     * Compresses bodies for {@link CompressionHandler}, made once the ring first needs it.
+     */
+    BodyCompressor compressor() {
+        if (compressor == null) {
+            compressor = new BodyCompressor();
+        }
+        return compressor;
+    }
+
+    /**
+     * Where blocking handlers run, or null if they run on the ring.
+     */
+    Executor offloader() {
+        return offloader;
+    }
+
+    Mailbox mailbox() {
+        return mailbox;
+    }
+
+    TimerWheel timers() {
+        return timers;
+    }
+
+    /**
+     * Connection input buffers, for this ring's thread only.
+     */
+    BufferPool inBuffers() {
+        return inBuffers;
+    }
+
+    /**
+     * Connection output segments, for this ring's thread only.
+     */
+    BufferPool outBuffers() {
+        return outBuffers;
+    }
+
+    /**
+     * Small buffers idle connections wait for their next request with, or null if they keep their input
+     * buffer. For this ring's thread only.
+     */
+    BufferPool idleBuffers() {
+        return idleBuffers;
+    }
+
+    RingMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Reads this ring's counters, from any thread.
+     */
+    Metrics.Ring snapshot(String name) {
+        var pools = new ArrayList<BufferPool.Stats>();
+        pools.add(inBuffers.stats());
+        pools.add(outBuffers.stats());
+        if (idleBuffers != null) {
+            pools.add(idleBuffers.stats());
+        }
+        return new Metrics.Ring(
+            name,
+            metrics.accepted,
+            metrics.closed,
+            metrics.requests,
+            metrics.bytesRead,
+            metrics.bytesWritten,
+            metrics.decodeErrors,
+            mailbox.size(),
+            pools);
+    }
+
+    /**
+     * Runs a blocking handler off the ring, if the server is configured to. The request is detached first,
+     * since the input buffer is compacted while the handler runs, and the response is handed back to the
+     * ring once sent, to {@code sender}, once part of its body is written, to {@code writer}, or if the handler
+     * throws before sending it, to {@code failer}.
+     */
+    void offload(WebServerRequest request,
+                 WebServerResponse response,
+                 BiConsumer<WebServerRequest, WebServerResponse> handler,
+                 Consumer<WebServerResponse> sender,
+                 BiConsumer<WebServerResponse, ByteBuffer> writer,
+                 Consumer<WebServerResponse> failer) {
+        if (offloader == null) {
+            handler.accept(request, response);
+            return;
+        }
+        request.detach();
+        response.onWrite((streamed, chunk) -> post(() -> writer.accept(streamed, chunk)));
+        var sent = new AtomicBoolean();
+        response.onSend(sending -> {
+            if (sent.compareAndSet(false, true)) {
+                post(() -> sender.accept(sending));
+            }
+        });
+        offloader.execute(() -> {
+            try {
+                handler.accept(request, response);
+            } catch (RuntimeException ex) {
+                log.warn("Unhandled exception in request handler", ex);
+                if (!sent.get()) {
+                    // on the ring, which alone knows whether any of the response has gone out
+                    post(() -> failer.accept(response));
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs {@code task} on the ring's thread. Safe to call from any thread.
+     */
+    void post(Runnable task) {
+        mailbox.post(task);
+    }
+
+    private void trim() {
+        inBuffers.trim();
+        outBuffers.trim();
+        if (idleBuffers != null) {
+            idleBuffers.trim();
+        }
+        timers.schedule(trim, System.currentTimeMillis() + TRIM_MILLIS);
+    }
+}
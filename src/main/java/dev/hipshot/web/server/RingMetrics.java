@@ -0,0 +1,38 @@
+package dev.hipshot.web.server;
+
+import dev.hipshot.web.util.LatencyHistogram;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One ring's counters. Plain fields written only by the ring's thread, so counting costs no more than an
+ * increment; {@link WebServer#metrics()} reads them from other threads as they are.
+ */
+final class RingMetrics {
+    long accepted;
+    long closed;
+    long requests;
+    long bytesRead;
+    long bytesWritten;
+    long decodeErrors;
+
+    // concurrent only so that snapshots can iterate it while the ring adds routes
+    private final Map<String, LatencyHistogram> routes = new ConcurrentHashMap<>();
+
+    /**
+     * Records how long a request to {@code route} took, in nanoseconds.
+     */
+    void route(String route, long nanos) {
+        var histogram = routes.get(route);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            routes.put(route, histogram);
+        }
+        histogram.record(nanos);
+    }
+
+    Map<String, LatencyHistogram> routes() {
+        return routes;
+    }
+}
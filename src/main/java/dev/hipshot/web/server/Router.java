@@ -1,104 +1,455 @@
 package dev.hipshot.web.server;
 
-import lombok.RequiredArgsConstructor;
-
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.function.BiConsumer;
 
+/**
+ * Routes requests by method and path. Paths may contain {@code {name}} segments, captured as path parameters,
+ * and {@code *} segments, which match any single segment. A trailing {@code **} matches the rest of the path,
+ * one or more segments, captured as the path parameter {@code "**"}. Exact segments win over parameters,
+ * which win over wildcards, which win over {@code **}.
+ *
+ * <p>Routes are compiled into an immutable radix tree the first time a request is routed, or when
+ * {@link #compile()} is called (the server does so on start). Matching walks the request path in place,
+ * without splitting it or allocating, and dispatches on an array indexed by {@link HttpMethod}.
+ *
+ * <p>{@link Filter}s run in front of the handlers: those of the server first, then the router's own, then those
+ * of each matching prefix, shortest first, then the route's. They are linked into one chain per route when the
+ * tree is compiled. Requests that match no route still run through the server's and router's filters.
+ *
+ * <p>Handlers and filters run on the ring's thread and must not block. Wrap a handler that does with
+ * {@link #blocking(BiConsumer)}; its filters still run on the ring, before it is offloaded.
+ */
 public class Router implements BiConsumer<WebServerRequest, WebServerResponse> {
-    private final Route root = new Route("");
+    private static final CachedResponse NOT_FOUND = new WebServerResponse().status(404).body("Not found").cache();
+    private static final BiConsumer<WebServerRequest, WebServerResponse> SEND_NOT_FOUND = (req, res) -> res.send(NOT_FOUND);
+
+    private final List<Definition> definitions = new ArrayList<>();
+    private final List<Filter> filters = new ArrayList<>();
+    private final List<PrefixFilter> prefixFilters = new ArrayList<>();
+    private List<Filter> serverFilters = List.of();
+    private volatile BiConsumer<WebServerRequest, WebServerResponse> notFound = SEND_NOT_FOUND;
+    private volatile Node root;
 
     @Override
     public void accept(WebServerRequest request, WebServerResponse response) {
-        root.handle(request, response, request.path().split("/"), 0);
+        var root = this.root;
+        if (root == null) {
+            root = compile().root;
+        }
+        int length = request.pathLength();
+        if (length > 1 && request.pathByte(length - 1) == '/') {
+            length--; // ignore a trailing slash
+        }
+        var node = match(root, request, 0, length, 0);
+        var handler = node != null ? node.handlers[request.httpMethod().ordinal()] : null;
+        if (handler == null) {
+            notFound.accept(request, response);
+            return;
+        }
+        request.pathParamNames(node.paramNames[request.httpMethod().ordinal()]);
+        response.route(node.routes[request.httpMethod().ordinal()]);
+        handler.accept(request, response);
     }
 
-    public Router post(String path, BiConsumer<WebServerRequest, WebServerResponse> handler) {
-        return route("POST", path, handler);
+    /**
+     * Marks a handler that blocks, e.g. on JDBC or file I/O, so that it runs according to
+     * {@link WebServer.Options#offload()} instead of stalling every connection on its ring.
+     * The handler may send its response from any thread.
+     */
+    public static BiConsumer<WebServerRequest, WebServerResponse> blocking(BiConsumer<WebServerRequest, WebServerResponse> handler) {
+        return new BlockingHandler(handler);
     }
 
-    public Router get(String path, BiConsumer<WebServerRequest, WebServerResponse> handler) {
-        return route("GET", path, handler);
+    public Router post(String path, BiConsumer<WebServerRequest, WebServerResponse> handler, Filter... filters) {
+        return route(HttpMethod.POST, path, handler, filters);
     }
 
-    public Router put(String path, BiConsumer<WebServerRequest, WebServerResponse> handler) {
-        return route("PUT", path, handler);
+    public Router get(String path, BiConsumer<WebServerRequest, WebServerResponse> handler, Filter... filters) {
+        return route(HttpMethod.GET, path, handler, filters);
     }
 
-    public Router delete(String path, BiConsumer<WebServerRequest, WebServerResponse> handler) {
-        return route("DELETE", path, handler);
+    /**
+     * Serves the same pre-encoded response for every GET of {@code path}.
+     */
+    public Router getStatic(String path, WebServerResponse response) {
+        var cached = response.cache();
+        return get(path, (req, res) -> res.send(cached));
     }
 
-    public Router patch(String path, BiConsumer<WebServerRequest, WebServerResponse> handler) {
-        return route("PATCH", path, handler);
+    public Router put(String path, BiConsumer<WebServerRequest, WebServerResponse> handler, Filter... filters) {
+        return route(HttpMethod.PUT, path, handler, filters);
     }
 
-    public Router head(String path, BiConsumer<WebServerRequest, WebServerResponse> handler) {
-        return route("HEAD", path, handler);
+    public Router delete(String path, BiConsumer<WebServerRequest, WebServerResponse> handler, Filter... filters) {
+        return route(HttpMethod.DELETE, path, handler, filters);
     }
 
-    public Router options(String path, BiConsumer<WebServerRequest, WebServerResponse> handler) {
-        return route("OPTIONS", path, handler);
+    public Router patch(String path, BiConsumer<WebServerRequest, WebServerResponse> handler, Filter... filters) {
+        return route(HttpMethod.PATCH, path, handler, filters);
     }
 
-    public Router trace(String path, BiConsumer<WebServerRequest, WebServerResponse> handler) {
-        return route("TRACE", path, handler);
+    public Router head(String path, BiConsumer<WebServerRequest, WebServerResponse> handler, Filter... filters) {
+        return route(HttpMethod.HEAD, path, handler, filters);
     }
 
-    public Router route(String method, String path, BiConsumer<WebServerRequest, WebServerResponse> handler) {
-        var tokens = path.split("/");
-        var route = root;
-        for (var token : tokens) {
-            if (token.startsWith("{") && token.endsWith("}")) {
-                route = route.routes.computeIfAbsent("{*}", (k) -> new Route(token));
-            } else {
-                route = route.routes.computeIfAbsent(token, (k) -> new Route(token));
+    public Router options(String path, BiConsumer<WebServerRequest, WebServerResponse> handler, Filter... filters) {
+        return route(HttpMethod.OPTIONS, path, handler, filters);
+    }
+
+    public Router trace(String path, BiConsumer<WebServerRequest, WebServerResponse> handler, Filter... filters) {
+        return route(HttpMethod.TRACE, path, handler, filters);
+    }
+
+    public Router route(String method, String path, BiConsumer<WebServerRequest, WebServerResponse> handler, Filter... filters) {
+        return route(HttpMethod.valueOf(method), path, handler, filters);
+    }
+
+    /**
+     * Routes {@code method} and {@code path} to {@code handler}, behind {@code filters} of its own, which run after
+     * any the router applies to every route or to a prefix of this one.
+     */
+    public synchronized Router route(HttpMethod method,
+                                     String path,
+                                     BiConsumer<WebServerRequest, WebServerResponse> handler,
+                                     Filter... filters) {
+        definitions.add(new Definition(method, path, handler, List.of(filters)));
+        root = null;
+        return this;
+    }
+
+    /**
+     * Runs {@code filter} in front of every route, and of the 404 sent for requests that match none.
+     */
+    public synchronized Router filter(Filter filter) {
+        filters.add(filter);
+        root = null;
+        return this;
+    }
+
+    /**
+     * Runs {@code filter} in front of the routes at or below {@code prefix}, a path of whole segments such as
+     * {@code /api}, which covers {@code /api} and {@code /api/users/{id}} but not {@code /apis}.
+     */
+    public synchronized Router filter(String prefix, Filter filter) {
+        prefixFilters.add(new PrefixFilter(normalize(prefix), filter));
+        root = null;
+        return this;
+    }
+
+    /**
+     * Filters that run in front of all of the router's own, set by the server it is started with.
+     */
+    synchronized Router serverFilters(List<Filter> serverFilters) {
+        this.serverFilters = List.copyOf(serverFilters);
+        root = null;
+        return this;
+    }
+
+    /**
+     * Builds the radix tree from the routes registered so far. Routes added later trigger a recompile.
+     */
+    public synchronized Router compile() {
+        var outer = new ArrayList<>(serverFilters);
+        outer.addAll(filters);
+        var prefixes = new ArrayList<>(prefixFilters);
+        prefixes.sort(Comparator.comparingInt(prefixFilter -> prefixFilter.prefix().length()));
+        var builder = new NodeBuilder("");
+        for (var definition : definitions) {
+            var chain = new ArrayList<>(outer);
+            var path = normalize(definition.path());
+            for (var prefixFilter : prefixes) {
+                if (prefixFilter.covers(path)) {
+                    chain.add(prefixFilter.filter());
+                }
             }
+            chain.addAll(definition.filters());
+            builder.insert(definition, Filter.chain(chain, definition.handler()));
         }
-        route = route.routes.computeIfAbsent(method, (k) -> new Route(method));
-        route.handler = handler;
+        notFound = Filter.chain(outer, SEND_NOT_FOUND);
+        root = builder.build();
         return this;
     }
 
-    @RequiredArgsConstructor
-    public static class Route {
-        private final String token;
-        private BiConsumer<WebServerRequest, WebServerResponse> handler;
-        private final Map<String, Route> routes = new HashMap<>();
+    /**
+     * A path with a leading slash and no trailing one, unless it is the root.
+     */
+    private static String normalize(String path) {
+        if (!path.startsWith("/")) {
+            path = "/" + path;
+        }
+        if (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
 
-        void handle(WebServerRequest request, WebServerResponse response, String[] pathTokens, int position) {
-            if (position == pathTokens.length) {
-                if (!routes.containsKey(request.method())) {
-                    response.status(404).body("Not found").send();
-                    return;
+    /**
+     * Finds the node matching {@code path[position, end)}, below a node whose prefix has already been matched.
+     * Parameter offsets are captured into the request as they are passed; a failed branch leaves stale offsets
+     * behind, which the successful branch overwrites.
+     */
+    private static Node match(Node node, WebServerRequest request, int position, int end, int params) {
+        if (position == end) {
+            return node.routed ? node : null;
+        }
+        int next = request.pathByte(position);
+        for (int i = 0; i < node.children.length; i++) {
+            var child = node.children[i];
+            if (child.prefix[0] == next && child.matches(request, position, end)) {
+                var found = match(child, request, position + child.prefix.length, end, params);
+                if (found != null) {
+                    return found;
                 }
-                routes.get(request.method()).handler.accept(request, response);
-                return;
+                break;
             }
+        }
+        if (node.param == null && node.wildcard == null && node.rest == null) {
+            return null;
+        }
+        int segmentEnd = position;
+        while (segmentEnd < end && request.pathByte(segmentEnd) != '/') {
+            segmentEnd++;
+        }
+        if (segmentEnd == position) {
+            return null;
+        }
+        if (node.param != null) {
+            request.capturePathParam(params, position, segmentEnd);
+            var found = match(node.param, request, segmentEnd, end, params + 1);
+            if (found != null) {
+                return found;
+            }
+        }
+        if (node.wildcard != null) {
+            var found = match(node.wildcard, request, segmentEnd, end, params);
+            if (found != null) {
+                return found;
+            }
+        }
+        if (node.rest != null && node.rest.routed) {
+            request.capturePathParam(params, position, end);
+            return node.rest;
+        }
+        return null;
+    }
+
+    private record Definition(HttpMethod method,
+                              String path,
+                              BiConsumer<WebServerRequest, WebServerResponse> handler,
+                              List<Filter> filters) {
+    }
+
+    private record PrefixFilter(String prefix, Filter filter) {
+        boolean covers(String path) {
+            return prefix.equals("/")
+                || (path.startsWith(prefix) && (path.length() == prefix.length() || path.charAt(prefix.length()) == '/'));
+        }
+    }
+
+    /**
+     * A compiled tree node. Static children are keyed by the first byte of their prefix; a parameter or
+     * wildcard child matches one whole segment, and a rest child everything that is left, with an empty prefix.
+     */
+    private static final class Node {
+        private final byte[] prefix;
+        private final Node[] children;
+        private final Node param;
+        private final Node wildcard;
+        private final Node rest;
+        private final BiConsumer<WebServerRequest, WebServerResponse>[] handlers;
+        private final String[][] paramNames;
+        private final String[] routes;
+        private final boolean routed;
+
+        private Node(byte[] prefix,
+                     Node[] children,
+                     Node param,
+                     Node wildcard,
+                     Node rest,
+                     BiConsumer<WebServerRequest, WebServerResponse>[] handlers,
+                     String[][] paramNames,
+                     String[] routes) {
+            this.prefix = prefix;
+            this.children = children;
+            this.param = param;
+            this.wildcard = wildcard;
+            this.rest = rest;
+            this.handlers = handlers;
+            this.paramNames = paramNames;
+            this.routes = routes;
+            boolean routed = false;
+            for (var handler : handlers) {
+                routed |= handler != null;
+            }
+            this.routed = routed;
+        }
+
+        private boolean matches(WebServerRequest request, int position, int end) {
+            if (end - position < prefix.length) {
+                return false;
+            }
+            for (int i = 1; i < prefix.length; i++) {
+                if (request.pathByte(position + i) != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Mutable radix tree used while compiling.
+     */
+    private static final class NodeBuilder {
+        private String prefix;
+        private List<NodeBuilder> children = new ArrayList<>();
+        private NodeBuilder param;
+        private NodeBuilder wildcard;
+        private NodeBuilder rest;
+        private BiConsumer<WebServerRequest, WebServerResponse>[] handlers = newHandlers();
+        private String[][] paramNames = new String[HttpMethod.values().length][];
+        private String[] routes = new String[HttpMethod.values().length];
+
+        private NodeBuilder(String prefix) {
+            this.prefix = prefix;
+        }
+
+        void insert(Definition definition, BiConsumer<WebServerRequest, WebServerResponse> handler) {
+            var path = normalize(definition.path());
 
-            // handle path parameters
-            if (routes.containsKey("{*}")) {
-                var route = routes.get("{*}");
-                var key = route.token.substring(1, route.token.length() - 1);
-                request.pathParams().put(key, pathTokens[position]);
-                route.handle(request, response, pathTokens, position + 1);
-                return;
+            var names = new ArrayList<String>();
+            var node = this;
+            int start = 0;
+            while (start < path.length()) {
+                int segmentEnd = path.indexOf('/', start);
+                if (segmentEnd < 0) {
+                    segmentEnd = path.length();
+                }
+                var segment = path.substring(start, segmentEnd);
+                if (segment.equals("**")) {
+                    if (segmentEnd != path.length()) {
+                        throw new IllegalArgumentException("** must be the last segment of " + definition.path());
+                    }
+                    names.add("**");
+                    if (node.rest == null) {
+                        node.rest = new NodeBuilder("");
+                    }
+                    node = node.rest;
+                } else if (segment.equals("*")) {
+                    if (node.wildcard == null) {
+                        node.wildcard = new NodeBuilder("");
+                    }
+                    node = node.wildcard;
+                } else if (segment.startsWith("{") && segment.endsWith("}")) {
+                    names.add(segment.substring(1, segment.length() - 1));
+                    if (node.param == null) {
+                        node.param = new NodeBuilder("");
+                    }
+                    node = node.param;
+                } else {
+                    // static text runs up to the next dynamic segment, including the slashes around it
+                    int staticEnd = segmentEnd;
+                    while (staticEnd < path.length() && !isDynamic(path, staticEnd + 1)) {
+                        staticEnd = path.indexOf('/', staticEnd + 1);
+                        if (staticEnd < 0) {
+                            staticEnd = path.length();
+                        }
+                    }
+                    if (staticEnd < path.length()) {
+                        staticEnd++; // the slash before the dynamic segment
+                    }
+                    node = node.insertStatic(path.substring(start, staticEnd));
+                    start = staticEnd;
+                    continue;
+                }
+                start = segmentEnd;
             }
 
-            // if wildcard is present, route to it
-            if (routes.containsKey("*")) {
-                routes.get("*").handle(request, response, pathTokens, position + 1);
+            int method = definition.method().ordinal();
+            node.handlers[method] = handler;
+            node.paramNames[method] = names.toArray(new String[0]);
+            node.routes[method] = definition.method() + " " + definition.path();
+        }
+
+        private static boolean isDynamic(String path, int segmentStart) {
+            int segmentEnd = path.indexOf('/', segmentStart);
+            var segment = path.substring(segmentStart, segmentEnd < 0 ? path.length() : segmentEnd);
+            return segment.equals("*") || segment.equals("**") || (segment.startsWith("{") && segment.endsWith("}"));
+        }
+
+        private NodeBuilder insertStatic(String text) {
+            if (text.isEmpty()) {
+                return this;
+            }
+            for (var child : children) {
+                int common = commonPrefixLength(child.prefix, text);
+                if (common == 0) {
+                    continue;
+                }
+                if (common < child.prefix.length()) {
+                    child.split(common);
+                }
+                return child.insertStatic(text.substring(common));
             }
+            var child = new NodeBuilder(text);
+            children.add(child);
+            return child;
+        }
+
+        private void split(int at) {
+            var tail = new NodeBuilder(prefix.substring(at));
+            tail.children = children;
+            tail.param = param;
+            tail.wildcard = wildcard;
+            tail.rest = rest;
+            tail.handlers = handlers;
+            tail.paramNames = paramNames;
+            tail.routes = routes;
+            prefix = prefix.substring(0, at);
+            children = new ArrayList<>(List.of(tail));
+            param = null;
+            wildcard = null;
+            rest = null;
+            handlers = newHandlers();
+            paramNames = new String[HttpMethod.values().length][];
+            routes = new String[HttpMethod.values().length];
+        }
 
-            // otherwise route to the exact path
-            var token = pathTokens[position];
-            if (!routes.containsKey(token)) {
-                response.status(404).body("Not found").send();
-                return;
+        /**
+         * An empty handler per method, as arrays of a generic type can only be made raw.
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static BiConsumer<WebServerRequest, WebServerResponse>[] newHandlers() {
+            return new BiConsumer[HttpMethod.values().length];
+        }
+
+        private static int commonPrefixLength(String a, String b) {
+            int length = Math.min(a.length(), b.length());
+            int i = 0;
+            while (i < length && a.charAt(i) == b.charAt(i)) {
+                i++;
             }
+            return i;
+        }
 
-            routes.get(token).handle(request, response, pathTokens, position + 1);
+        Node build() {
+            var built = new Node[children.size()];
+            for (int i = 0; i < built.length; i++) {
+                built[i] = children.get(i).build();
+            }
+            return new Node(
+                prefix.getBytes(StandardCharsets.ISO_8859_1),
+                built,
+                param != null ? param.build() : null,
+                wildcard != null ? wildcard.build() : null,
+                rest != null ? rest.build() : null,
+                handlers,
+                paramNames,
+                routes);
         }
     }
 }
@@ -0,0 +1,316 @@
+package dev.hipshot.web.server;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Serves the files under a directory from memory-mapped buffers, which the ring writes from directly
+ * without copying them into the response buffers. Mount it on a {@code **} route:
+ *
+ * <pre>{@code
+ * var files = new StaticFileHandler(Path.of("public"));
+ * router.get("/assets/**", files).head("/assets/**", files);
+ * }</pre>
+ *
+ * <p>The mapping and pre-encoded Content-Type, ETag and Last-Modified headers of recently served files are
+ * kept in a cache every ring reads without locking, checked against the file's modification time at most once a
+ * second. Once it is full, adding a file evicts the one served longest ago. Conditional requests
+ * ({@code If-None-Match}, {@code If-Modified-Since}) are answered with 304, and single byte ranges with 206.
+ * Files are limited to 2 GiB. Whole files are sent with a {@link WebServerResponse#bodyKey(Object) body key}, so a
+ * {@link CompressionHandler} in front compresses each one once.
+ */
+@Slf4j
+public class StaticFileHandler implements BiConsumer<WebServerRequest, WebServerResponse> {
+    private static final long REVALIDATE_MILLIS = 1000;
+    private static final long FULL_RANGE = -1;
+    private static final long INVALID_RANGE = -2;
+    private static final String INDEX = "index.html";
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+    private static final EncodedHeader ACCEPT_RANGES = EncodedHeader.of("Accept-Ranges", "bytes");
+    private static final CachedResponse NOT_FOUND = new WebServerResponse().status(404).body("Not found").cache();
+    private static final Map<String, EncodedHeader> CONTENT_TYPES = Map.ofEntries(
+        Map.entry("html", EncodedHeader.CONTENT_TYPE_TEXT_HTML),
+        Map.entry("htm", EncodedHeader.CONTENT_TYPE_TEXT_HTML),
+        Map.entry("css", EncodedHeader.of("Content-Type", "text/css; charset=utf-8")),
+        Map.entry("js", EncodedHeader.of("Content-Type", "text/javascript; charset=utf-8")),
+        Map.entry("mjs", EncodedHeader.of("Content-Type", "text/javascript; charset=utf-8")),
+        Map.entry("json", EncodedHeader.CONTENT_TYPE_JSON),
+        Map.entry("map", EncodedHeader.CONTENT_TYPE_JSON),
+        Map.entry("txt", EncodedHeader.of("Content-Type", "text/plain; charset=utf-8")),
+        Map.entry("xml", EncodedHeader.of("Content-Type", "application/xml")),
+        Map.entry("svg", EncodedHeader.of("Content-Type", "image/svg+xml")),
+        Map.entry("png", EncodedHeader.of("Content-Type", "image/png")),
+        Map.entry("jpg", EncodedHeader.of("Content-Type", "image/jpeg")),
+        Map.entry("jpeg", EncodedHeader.of("Content-Type", "image/jpeg")),
+        Map.entry("gif", EncodedHeader.of("Content-Type", "image/gif")),
+        Map.entry("webp", EncodedHeader.of("Content-Type", "image/webp")),
+        Map.entry("avif", EncodedHeader.of("Content-Type", "image/avif")),
+        Map.entry("ico", EncodedHeader.of("Content-Type", "image/x-icon")),
+        Map.entry("woff", EncodedHeader.of("Content-Type", "font/woff")),
+        Map.entry("woff2", EncodedHeader.of("Content-Type", "font/woff2")),
+        Map.entry("wasm", EncodedHeader.of("Content-Type", "application/wasm")),
+        Map.entry("pdf", EncodedHeader.of("Content-Type", "application/pdf")),
+        Map.entry("mp4", EncodedHeader.of("Content-Type", "video/mp4")),
+        Map.entry("webm", EncodedHeader.of("Content-Type", "video/webm")));
+
+    private final Path root;
+    private final int cacheSize;
+    private final Map<String, FileEntry> cache = new ConcurrentHashMap<>();
+
+    public StaticFileHandler(Path root) {
+        this(root, 1024);
+    }
+
+    /**
+     * @param cacheSize how many files to keep mapped, with their headers encoded
+     */
+    public StaticFileHandler(Path root, int cacheSize) {
+        this.root = root.toAbsolutePath().normalize();
+        this.cacheSize = cacheSize;
+    }
+
+    @Override
+    public void accept(WebServerRequest request, WebServerResponse response) {
+        var relative = request.pathParam("**");
+        FileEntry file;
+        try {
+            file = file(relative != null ? relative : request.path());
+        } catch (IOException ex) {
+            log.warn("Unable to serve {}", request.path(), ex);
+            response.status(500).body("Internal Server Error").send();
+            return;
+        }
+        if (file == null) {
+            response.send(NOT_FOUND);
+            return;
+        }
+
+        response.header(file.contentType)
+            .header(file.etag)
+            .header(file.lastModified)
+            .header(ACCEPT_RANGES);
+        if (notModified(request, file)) {
+            response.status(304).send();
+            return;
+        }
+
+        int start = 0;
+        int length = file.size;
+        var range = request.header("Range");
+        if (range != null) {
+            long parsed = parseRange(range, file.size);
+            if (parsed == INVALID_RANGE) {
+                response.status(416)
+                    .header("Content-Range", "bytes */" + file.size)
+                    .send();
+                return;
+            }
+            if (parsed != FULL_RANGE) {
+                start = (int) (parsed >>> 32);
+                length = (int) parsed - start + 1;
+                response.status(206)
+                    .header("Content-Range", "bytes " + start + "-" + (start + length - 1) + "/" + file.size);
+            }
+        }
+
+        if (request.httpMethod() == HttpMethod.HEAD) {
+            response.header("Content-Length", Integer.toString(length)).send();
+            return;
+        }
+        if (length == file.size) {
+            response.bodyKey(file); // replaced by a new entry when the file changes
+        }
+        response.body(file.mapped.slice(start, length)).send();
+    }
+
+    private static boolean notModified(WebServerRequest request, FileEntry file) {
+        var ifNoneMatch = request.header("If-None-Match");
+        if (ifNoneMatch != null) {
+            // If-Modified-Since is ignored when If-None-Match is present
+            for (var tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(file.etag.value())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        var ifModifiedSince = request.header("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+                return file.modifiedMillis / 1000 <= since;
+            } catch (DateTimeParseException ex) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a single {@code bytes=} range into its first and last byte, packed into a long. Anything but a
+     * single byte range is served in full, as RFC 9110 allows.
+     */
+    private static long parseRange(String header, int size) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return FULL_RANGE;
+        }
+        int dash = header.indexOf('-', 6);
+        if (dash < 0) {
+            return FULL_RANGE;
+        }
+        var first = header.substring(6, dash).trim();
+        var last = header.substring(dash + 1).trim();
+        long start, end;
+        try {
+            if (first.isEmpty()) {
+                // the last N bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return INVALID_RANGE;
+                }
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+            }
+        } catch (NumberFormatException ex) {
+            return FULL_RANGE;
+        }
+        if (start >= size || start > end) {
+            return INVALID_RANGE;
+        }
+        return start << 32 | end;
+    }
+
+    private FileEntry file(String relative) throws IOException {
+        long now = System.currentTimeMillis();
+        FileEntry entry = cache.get(relative);
+        if (entry != null) {
+            entry.servedMillis = now;
+            if (now - entry.checkedMillis < REVALIDATE_MILLIS) {
+                return entry;
+            }
+        }
+
+        var path = resolve(relative);
+        if (path == null) {
+            return null;
+        }
+        long modified;
+        long size;
+        try {
+            modified = Files.getLastModifiedTime(path).toMillis();
+            size = Files.size(path);
+        } catch (NoSuchFileException ex) {
+            cache.remove(relative);
+            return null;
+        }
+        if (entry != null && entry.modifiedMillis == modified && entry.size == size) {
+            entry.checkedMillis = now;
+            return entry;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("File too large to map: " + path);
+        }
+        entry = new FileEntry(path, (int) size, modified, now);
+        cache.put(relative, entry);
+        if (cache.size() > cacheSize) {
+            evict();
+        }
+        return entry;
+    }
+
+    /**
+     * Drops the files served longest ago until the cache is back to its size. Only ever after a miss, so the
+     * scan costs nothing on the way to a cached file.
+     */
+    private void evict() {
+        while (cache.size() > cacheSize) {
+            Map.Entry<String, FileEntry> eldest = null;
+            for (var entry : cache.entrySet()) {
+                if (eldest == null || entry.getValue().servedMillis < eldest.getValue().servedMillis) {
+                    eldest = entry;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            cache.remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * The file a request path refers to, or null if it is outside the root or not a regular file.
+     * Directories are served by their index.html.
+     */
+    private Path resolve(String relative) {
+        while (relative.startsWith("/")) {
+            relative = relative.substring(1);
+        }
+        Path path;
+        try {
+            path = root.resolve(relative).normalize();
+        } catch (RuntimeException ex) {
+            return null; // not a valid path on this file system
+        }
+        if (!path.startsWith(root)) {
+            return null;
+        }
+        if (Files.isDirectory(path)) {
+            path = path.resolve(INDEX);
+        }
+        return Files.isRegularFile(path) ? path : null;
+    }
+
+    private static EncodedHeader contentType(Path path) {
+        var name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        var type = dot >= 0 ? CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase()) : null;
+        return type != null ? type : EncodedHeader.CONTENT_TYPE_OCTET_STREAM;
+    }
+
+    private static final class FileEntry {
+        private final int size;
+        private final long modifiedMillis;
+        private final ByteBuffer mapped;
+        private final EncodedHeader contentType;
+        private final EncodedHeader etag;
+        private final EncodedHeader lastModified;
+        private volatile long checkedMillis;
+        // written on every hit from any ring, and only read to pick what to evict, so it need not be exact
+        private long servedMillis;
+
+        private FileEntry(Path path, int size, long modifiedMillis, long checkedMillis) throws IOException {
+            this.size = size;
+            this.modifiedMillis = modifiedMillis;
+            this.checkedMillis = checkedMillis;
+            this.servedMillis = checkedMillis;
+            try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            this.contentType = contentType(path);
+            this.etag = EncodedHeader.of("ETag", "\"" + Integer.toHexString(size) + "-" + Long.toHexString(modifiedMillis) + "\"");
+            this.lastModified = EncodedHeader.of("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(modifiedMillis)));
+        }
+    }
+}
@@ -6,12 +6,34 @@ import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
 import sh.blake.niouring.util.OsVersionCheck;
 
+import java.time.Duration;
+import java.util.List;
 import java.util.function.BiConsumer;
 
 @Slf4j
 public abstract class WebServer {
     public abstract WebServer start();
-    public abstract WebServer stop();
+
+    /**
+     * Stops at once, closing every connection whatever it is doing.
+     */
+    public WebServer stop() {
+        return stop(Duration.ZERO);
+    }
+
+    /**
+     * Stops accepting connections, then gives those open up to {@code grace} to finish the request they are
+     * on. Each one's next response carries {@code Connection: close}, and it closes once that response has
+     * been written; idle ones close right away. Whatever is left after {@code grace} is closed regardless.
+     * Returns once every ring has stopped.
+     */
+    public abstract WebServer stop(Duration grace);
+
+    /**
+     * A snapshot of the server's counters. Cheap enough to call every few seconds; serve it with
+     * {@link MetricsHandler}.
+     */
+    public abstract Metrics metrics();
 
     public static WebServer create(Options options, BiConsumer<WebServerRequest, WebServerResponse> handler) {
         OsVersionCheck.verifySystemRequirements();
@@ -31,6 +53,102 @@ public abstract class WebServer {
         @Builder.Default private final int requestBufferSize = 8 * 1024;
         @Builder.Default private final int responseBufferSize = 8 * 1024;
         @Builder.Default private final int threads = Runtime.getRuntime().availableProcessors();
+        /**
+         * Whether the rings share one listening socket or have one each.
+         */
+        @Builder.Default private final AcceptMode acceptMode = AcceptMode.SHARED;
+        /**
+         * Prefix of the ring threads' names, followed by the ring's index.
+         */
+        @Builder.Default private final String ringThreadName = "hipshot-ring-";
+        /**
+         * CPUs to pin the ring threads to, ring {@code i} to the {@code i % size}th, e.g. the cores of one socket
+         * on a NUMA host. Each ring also allocates its buffers on its own thread, so they land on its node. Empty
+         * leaves the threads to the scheduler.
+         */
+        @Builder.Default private final List<Integer> ringCpus = List.of();
+        /**
+         * How long a keep-alive connection may sit idle between requests, or wait for the client to read its
+         * responses, before it is closed, in milliseconds.
+         */
         @Builder.Default private final int ttl = 60000;
+        /**
+         * How long a client may take to send the head of a request once its first byte has arrived, in
+         * milliseconds. Bounds slowloris-style clients.
+         */
+        @Builder.Default private final int headerTimeout = 10000;
+        /**
+         * How long a client may take to send a whole request once its first byte has arrived, in milliseconds.
+         * For a streamed body, the longest gap allowed between two segments.
+         */
+        @Builder.Default private final int requestTimeout = 60000;
+        /**
+         * How many requests a keep-alive connection may make before it is closed after the last one's response,
+         * which then carries {@code Connection: close}. 0 for no limit.
+         */
+        @Builder.Default private final int maxRequestsPerConnection = 0;
+        /**
+         * Accept HTTP/2 over cleartext, from clients that open the connection with the HTTP/2 preface or ask to
+         * upgrade with {@code Upgrade: h2c}. Opt-in: behind a proxy that forwards {@code Upgrade: h2c}, a server
+         * that switches protocols lets clients past the proxy's rules for the rest of the connection.
+         */
+        @Builder.Default private final boolean h2c = false;
+        /**
+         * How many streams an HTTP/2 client may have open at once. Streams beyond that are refused.
+         */
+        @Builder.Default private final int maxConcurrentStreams = 100;
+        /**
+         * Decode requests as reusable flyweights whose path, headers and query parameters are read straight
+         * from the connection's input buffer on demand. A request is then only valid until its handler returns,
+         * unless the handler calls {@link WebServerRequest#detach()}.
+         */
+        @Builder.Default private final boolean lazyRequestDecoding = false;
+        /**
+         * How many recently encoded responses each ring keeps, so that a response with the same status, headers and
+         * body String as a recent one is copied rather than encoded again. 0 disables the cache.
+         */
+        @Builder.Default private final int responseCacheSize = 0;
+        /**
+         * Where handlers wrapped with {@link Router#blocking} run. Other handlers always run on the ring.
+         */
+        @Builder.Default private final Offload offload = Offload.NONE;
+        /**
+         * Size of the pool blocking handlers run on with {@link Offload#WORKER_POOL}.
+         */
+        @Builder.Default private final int workerThreads = 64;
+        /**
+         * How many idle request buffers, and as many response buffers, each ring keeps to itself.
+         */
+        @Builder.Default private final int bufferPoolSize = 256;
+        /**
+         * How many of a ring's idle buffers of each kind survive once it has stopped needing them.
+         */
+        @Builder.Default private final int bufferPoolIdleSize = 16;
+        /**
+         * How many idle buffers of each kind are kept for all rings to share, beyond their own.
+         */
+        @Builder.Default private final int sharedBufferPoolSize = 1024;
+        /**
+         * How many request buffers, and as many response buffers, each ring reserves at startup as slices of one
+         * direct region, instead of allocating them one by one as connections arrive. Rings keep them for good,
+         * and allocate as before once they run out. 0 disables the arena.
+         */
+        @Builder.Default private final int arenaBuffers = 0;
+        /**
+         * Start every arena slice on a page boundary, as io_uring requires of registered buffers. The native
+         * layer cannot register buffers yet, so this only readies the arena's layout for it.
+         */
+        @Builder.Default private final boolean arenaPageAligned = false;
+        /**
+         * Size of the buffer a connection with nothing buffered waits for its next request with, handing its
+         * request buffer back to the pool meanwhile. Saves most of the memory idle keep-alive connections pin,
+         * at the cost of copying the start of each request. 0 keeps the request buffer attached throughout.
+         */
+        @Builder.Default private final int idleBufferSize = 0;
+        /**
+         * Filters every request runs through, in front of the handler. When the handler is a {@link Router} they
+         * are linked into its routes' chains, ahead of the router's own filters.
+         */
+        @Builder.Default private final List<Filter> filters = List.of();
     }
 }
@@ -1,9 +1,11 @@
 package dev.hipshot.web.server;
 
+import dev.hipshot.web.server.codec.RequestSlices;
 import lombok.Builder;
 import sh.blake.niouring.IoUring;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -11,16 +13,81 @@ import java.util.function.Consumer;
 
 @Builder
 public class WebServerRequest {
-    private final String method;
-    private final String path;
-    private final String protocol;
-    private final ByteBuffer body;
+    private HttpMethod method;
+    private String path;
+    private String protocol;
+    private ByteBuffer body;
     private Consumer<ByteBuffer> chunkHandler;
+    private Runnable bodyEndHandler;
     private IoUring ring;
+    private Map<String, List<String>> headers;
+    private Map<String, List<String>> queryParams;
+    private Map<String, String> pathParams;
 
-    @Builder.Default private final Map<String, List<String>> headers = new HashMap<>();
-    @Builder.Default private final Map<String, List<String>> queryParams = new HashMap<>();
-    @Builder.Default private final Map<String, String> pathParams = new HashMap<>();
+    /**
+     * Path parameters captured by the {@link Router} as start/end offsets into the path, named by
+     * {@code pathParamNames}. They only become the {@link #pathParams()} map when asked for.
+     */
+    private String[] pathParamNames;
+    private int[] pathParamOffsets;
+
+    /**
+     * Lazily decoded views into the connection's input buffer, present when the request was
+     * decoded as a flyweight. Strings and maps are only built from them when asked for.
+     */
+    private RequestSlices slices;
+
+    /**
+     * Whether the body arrives in segments through {@link #chunkHandler()} rather than in {@link #body()}.
+     */
+    private boolean streamed;
+    private volatile boolean bodyPaused;
+    private Runnable resumer;
+
+    /**
+     * Prepares a flyweight request for the next decoded request on the same connection, pointing it back at the
+     * decoder's {@code slices} in case the last one was {@link #detach() detached}.
+     */
+    public WebServerRequest reset(RequestSlices slices, ByteBuffer body) {
+        this.slices = slices;
+        this.method = null;
+        this.protocol = null;
+        this.path = null;
+        this.body = body;
+        this.chunkHandler = null;
+        this.bodyEndHandler = null;
+        this.headers = null;
+        this.queryParams = null;
+        this.pathParamNames = null;
+        if (pathParams != null) {
+            pathParams.clear();
+        }
+        return this;
+    }
+
+    /**
+     * Copies everything still backed by the input buffer onto the heap, so the request stays
+     * valid after the buffer has been compacted or handed back to the pool. A flyweight request is
+     * reused for the connection's next request once its response has been sent, so it must not be
+     * used after that even when detached.
+     */
+    public WebServerRequest detach() {
+        if (slices != null) {
+            method = slices.method();
+            protocol = slices.protocol();
+            path();
+            pathParams();
+            headers();
+            queryParams();
+            slices = null;
+        }
+        if (body != null) {
+            var copy = ByteBuffer.allocate(body.remaining());
+            copy.put(body.duplicate()).flip();
+            body = copy;
+        }
+        return this;
+    }
 
     public void ring(IoUring ring) {
         this.ring = ring;
@@ -31,29 +98,58 @@ public class WebServerRequest {
     }
 
     public String method() {
-        return method;
+        return httpMethod().name();
+    }
+
+    public HttpMethod httpMethod() {
+        return slices != null ? slices.method() : method;
     }
 
     public String path() {
+        if (path == null && slices != null) {
+            path = slices.path();
+        }
         return path;
     }
 
     public Map<String, List<String>> queryParams() {
+        if (queryParams == null) {
+            queryParams = slices != null ? slices.queryParams() : new HashMap<>();
+        }
         return queryParams;
     }
 
     public List<String> queryParam(String key) {
-        return queryParams.get(key);
+        return queryParams().get(key);
     }
 
     public String protocol() {
-        return protocol;
+        return slices != null ? slices.protocol() : protocol;
     }
 
     public Map<String, List<String>> headers() {
+        if (headers == null) {
+            headers = slices != null ? slices.headers() : new HashMap<>();
+        }
         return headers;
     }
 
+    /**
+     * Returns the first value of a header, matching its name case-insensitively, or null if
+     * absent. On a flyweight request only the value itself is turned into a String.
+     */
+    public String header(String key) {
+        if (headers == null && slices != null) {
+            return slices.header(key);
+        }
+        for (Map.Entry<String, List<String>> entry : headers().entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(key) && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
     public ByteBuffer body() {
         return body;
     }
@@ -62,16 +158,126 @@ public class WebServerRequest {
         return chunkHandler;
     }
 
+    /**
+     * Receives the body in segments when it is {@link #streamed()}: the chunks of a chunked body, or the
+     * pieces of a Content-Length body too large for the request buffer, as they arrive. Segments are called
+     * on the ring's thread and are views into the input buffer, only valid until the handler returns.
+     * Until a handler is set, or the response is sent, the body is held back.
+     */
     public WebServerRequest chunkHandler(Consumer<ByteBuffer> chunkHandler) {
         this.chunkHandler = chunkHandler;
+        if (resumer != null) {
+            resumer.run();
+        }
+        return this;
+    }
+
+    public Runnable bodyEndHandler() {
+        return bodyEndHandler;
+    }
+
+    /**
+     * Called on the ring's thread once the last segment of a {@link #streamed()} body has been handed over.
+     */
+    public WebServerRequest bodyEndHandler(Runnable bodyEndHandler) {
+        this.bodyEndHandler = bodyEndHandler;
         return this;
     }
 
+    public boolean streamed() {
+        return streamed;
+    }
+
+    /**
+     * Stops handing over body segments, and reading from the socket, until {@link #resumeBody()}.
+     */
+    public WebServerRequest pauseBody() {
+        bodyPaused = true;
+        return this;
+    }
+
+    /**
+     * Resumes a paused body. Call it from the ring's thread, or from any thread when handlers are offloaded.
+     */
+    public WebServerRequest resumeBody() {
+        bodyPaused = false;
+        if (resumer != null) {
+            resumer.run();
+        }
+        return this;
+    }
+
+    public boolean bodyPaused() {
+        return bodyPaused;
+    }
+
+    /**
+     * Set by the connection to be told when a streamed body may continue.
+     */
+    void onResume(Runnable resumer) {
+        this.resumer = resumer;
+    }
+
     public Map<String, String> pathParams() {
+        if (pathParams == null) {
+            pathParams = new HashMap<>();
+        }
+        if (pathParamNames != null) {
+            for (int i = 0; i < pathParamNames.length; i++) {
+                pathParams.put(pathParamNames[i], pathSubstring(pathParamOffsets[i * 2], pathParamOffsets[i * 2 + 1]));
+            }
+            pathParamNames = null;
+        }
         return pathParams;
     }
 
     public String pathParam(String key) {
-        return pathParams.get(key);
+        if (pathParamNames != null) {
+            for (int i = 0; i < pathParamNames.length; i++) {
+                if (pathParamNames[i].equals(key)) {
+                    return pathSubstring(pathParamOffsets[i * 2], pathParamOffsets[i * 2 + 1]);
+                }
+            }
+        }
+        return pathParams().get(key);
+    }
+
+    /**
+     * The lazily decoded head of the request, or null once it has been materialized.
+     */
+    RequestSlices slices() {
+        return slices;
+    }
+
+    int pathLength() {
+        return path == null && slices != null ? slices.pathLength() : path.length();
+    }
+
+    int pathByte(int index) {
+        return path == null && slices != null ? slices.pathByte(index) : path.charAt(index);
+    }
+
+    private String pathSubstring(int start, int end) {
+        return path == null && slices != null ? slices.pathSubstring(start, end - start) : path.substring(start, end);
+    }
+
+    /**
+     * Records the offsets of the {@code index}th path parameter, called by the router while it matches.
+     */
+    void capturePathParam(int index, int start, int end) {
+        if (pathParamOffsets == null) {
+            pathParamOffsets = new int[8];
+        } else if (pathParamOffsets.length < index * 2 + 2) {
+            pathParamOffsets = Arrays.copyOf(pathParamOffsets, index * 4 + 4);
+        }
+        pathParamOffsets[index * 2] = start;
+        pathParamOffsets[index * 2 + 1] = end;
+    }
+
+    /**
+     * Names the path parameters captured so far, once the router has found the route.
+     */
+    void pathParamNames(String[] names) {
+        this.pathParamNames = names.length > 0 ? names : null;
     }
 }
@@ -1,37 +1,207 @@
 package dev.hipshot.web.server;
 
+import dev.hipshot.web.server.codec.BodyCompressor;
+import dev.hipshot.web.server.codec.WebServerResponseEncoder;
+
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 public class WebServerResponse {
-    private final Map<String, List<String>> headers = new HashMap<>();
+    private static final String CONTENT_LENGTH = "Content-Length";
+    private static final String ETAG = "ETag";
+
+    private Map<String, List<String>> headers;
+    private EncodedHeader[] encodedHeaders;
+    private int encodedHeaderCount;
+    private boolean contentLength;
     private int status = 200;
     private ByteBuffer body;
+    private String bodyText;
+    private Object bodyKey;
+    private CachedResponse cached;
+    private CompressionHandler.Compression compression;
+    private BodyCompressor.Stream compressionStream;
     private Consumer<WebServerResponse> sender;
+    private BiConsumer<WebServerResponse, ByteBuffer> writer;
+    private volatile Runnable drainHandler;
+    private boolean committed;
+    private String route;
+    private long startNanos;
 
     void onSend(Consumer<WebServerResponse> sender) {
         this.sender = sender;
     }
 
+    Consumer<WebServerResponse> sender() {
+        return sender;
+    }
+
+    void onWrite(BiConsumer<WebServerResponse, ByteBuffer> writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Sends the response, or ends its body if it has been streamed with {@link #write(ByteBuffer)}.
+     */
     public WebServerResponse send() {
         sender.accept(this);
         return this;
     }
 
+    /**
+     * Streams part of the body. The first write sends the status and headers, using chunked transfer encoding
+     * unless a Content-Length header has been set, and {@link #send()} ends the body. A large direct chunk is
+     * written from where it is, so it must not change until {@link #onDrain drained}.
+     */
+    public WebServerResponse write(ByteBuffer chunk) {
+        writer.accept(this, chunk);
+        return this;
+    }
+
+    public WebServerResponse write(String chunk) {
+        return write(ByteBuffer.wrap(chunk.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Runs {@code handler} once, on the ring's thread, when everything written so far has reached the socket,
+     * to pace a streamed body by how fast the client reads it. Set it before the write it should follow.
+     */
+    public WebServerResponse onDrain(Runnable handler) {
+        this.drainHandler = handler;
+        return this;
+    }
+
+    Runnable takeDrainHandler() {
+        var handler = drainHandler;
+        drainHandler = null;
+        return handler;
+    }
+
+    /**
+     * Whether the status and headers have already been sent by a {@link #write(ByteBuffer)}.
+     */
+    public boolean committed() {
+        return committed;
+    }
+
+    void commit() {
+        committed = true;
+    }
+
+    /**
+     * The {@link Router} route the request was matched to, which its latency is recorded under.
+     */
+    void route(String route) {
+        this.route = route;
+    }
+
+    String route() {
+        return route;
+    }
+
+    /**
+     * When the request was decoded, by {@link System#nanoTime()}.
+     */
+    void startNanos(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    long startNanos() {
+        return startNanos;
+    }
+
+    /**
+     * How a {@link CompressionHandler} the request went through compresses the body, applied when it is sent.
+     */
+    void compression(CompressionHandler.Compression compression) {
+        this.compression = compression;
+    }
+
+    CompressionHandler.Compression compression() {
+        return compression;
+    }
+
+    /**
+     * The compressor a streamed body is being written through, if it is compressed.
+     */
+    void compressionStream(BodyCompressor.Stream compressionStream) {
+        this.compressionStream = compressionStream;
+    }
+
+    BodyCompressor.Stream compressionStream() {
+        return compressionStream;
+    }
+
+    /**
+     * Sends a pre-encoded response instead of this one's status, headers and body.
+     */
+    public WebServerResponse send(CachedResponse cached) {
+        this.cached = cached;
+        return send();
+    }
+
+    /**
+     * Serialises this response once so it can be sent any number of times with {@link #send(CachedResponse)}.
+     */
+    public CachedResponse cache() {
+        return new CachedResponse(WebServerResponseEncoder.preEncode(this), copy());
+    }
+
+    public CachedResponse cached() {
+        return cached;
+    }
+
+    /**
+     * Swaps the pre-encoded response being sent for another, such as a compressed variant of it.
+     */
+    void cached(CachedResponse cached) {
+        this.cached = cached;
+    }
+
+    /**
+     * A direct body too large for the response buffer is written from where it is rather than copied, so it
+     * must not change until the response has been written.
+     */
     public WebServerResponse body(ByteBuffer body) {
         this.body = body;
+        this.bodyText = null;
         return this;
     }
 
     public WebServerResponse body(String body) {
         this.body = ByteBuffer.wrap(body.getBytes());
+        this.bodyText = body;
         return this;
     }
 
+    /**
+     * The String the body was set from, if any.
+     */
+    public String bodyText() {
+        return bodyText;
+    }
+
+    /**
+     * Identifies the content of the body, so that what {@link CompressionHandler} derives from it can be reused by
+     * the next response with an equal key instead of being derived again. Responses with equal keys must have
+     * the same body, so a key has to change whenever its content does.
+     */
+    public WebServerResponse bodyKey(Object bodyKey) {
+        this.bodyKey = bodyKey;
+        return this;
+    }
+
+    public Object bodyKey() {
+        return bodyKey;
+    }
+
     public ByteBuffer body() {
         return body;
     }
@@ -45,12 +215,129 @@ public class WebServerResponse {
         return this;
     }
 
+    /**
+     * Headers set by name and value. Pre-encoded headers added with {@link #header(EncodedHeader)} are not
+     * part of this map.
+     */
     public Map<String, List<String>> headers() {
+        if (headers == null) {
+            headers = new HashMap<>();
+        }
         return headers;
     }
 
+    public boolean hasHeaders() {
+        return headers != null && !headers.isEmpty();
+    }
+
     public WebServerResponse header(String key, String value) {
-        headers.computeIfAbsent(key, (k) -> new ArrayList<>()).add(value);
+        if (key.equalsIgnoreCase(CONTENT_LENGTH)) {
+            contentLength = true;
+        }
+        headers().computeIfAbsent(key, (k) -> new ArrayList<>()).add(value);
         return this;
     }
+
+    public WebServerResponse header(EncodedHeader header) {
+        if (encodedHeaders == null) {
+            encodedHeaders = new EncodedHeader[4];
+        } else if (encodedHeaderCount == encodedHeaders.length) {
+            encodedHeaders = Arrays.copyOf(encodedHeaders, encodedHeaderCount * 2);
+        }
+        if (header.name().equalsIgnoreCase(CONTENT_LENGTH)) {
+            contentLength = true;
+        }
+        encodedHeaders[encodedHeaderCount++] = header;
+        return this;
+    }
+
+    public int encodedHeaderCount() {
+        return encodedHeaderCount;
+    }
+
+    public EncodedHeader encodedHeader(int index) {
+        return encodedHeaders[index];
+    }
+
+    /**
+     * Whether a Content-Length header has been set explicitly, in which case the encoder will not add one.
+     */
+    public boolean hasContentLength() {
+        return contentLength || (headers != null && headers.containsKey(CONTENT_LENGTH));
+    }
+
+    /**
+     * The first value of a header, set either way, or null.
+     */
+    String headerValue(String name) {
+        for (int i = 0; i < encodedHeaderCount; i++) {
+            if (encodedHeaders[i].name().equalsIgnoreCase(name)) {
+                return encodedHeaders[i].value();
+            }
+        }
+        if (headers != null) {
+            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(name) && !entry.getValue().isEmpty()) {
+                    return entry.getValue().get(0);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Turns a strong ETag into a weak one, for a body that has been transformed, such as compressed, and so is
+     * no longer byte for byte what the validator was made for.
+     */
+    void weakenETag() {
+        for (int i = 0; i < encodedHeaderCount; i++) {
+            var header = encodedHeaders[i];
+            if (header.name().equalsIgnoreCase(ETAG) && !header.value().startsWith("W/")) {
+                encodedHeaders[i] = EncodedHeader.of(header.name(), "W/" + header.value());
+            }
+        }
+        if (headers != null) {
+            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(ETAG)) {
+                    entry.getValue().replaceAll(value -> value.startsWith("W/") ? value : "W/" + value);
+                }
+            }
+        }
+    }
+
+    /**
+     * A copy of the status, headers and body, with the body's bytes copied too, for a {@link CachedResponse} to
+     * derive variants of itself from.
+     */
+    WebServerResponse copy() {
+        var copy = new WebServerResponse().status(status);
+        if (headers != null) {
+            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                copy.headers().put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+        }
+        if (encodedHeaders != null) {
+            copy.encodedHeaders = Arrays.copyOf(encodedHeaders, encodedHeaders.length);
+            copy.encodedHeaderCount = encodedHeaderCount;
+        }
+        copy.contentLength = contentLength;
+        if (body != null) {
+            copy.body = ByteBuffer.allocate(body.remaining()).put(body.duplicate()).flip();
+        }
+        return copy;
+    }
+
+    /**
+     * Clears everything set so far, so a handler's half-built response can be replaced by an error.
+     */
+    void reset() {
+        headers = null;
+        encodedHeaderCount = 0;
+        contentLength = false;
+        status = 200;
+        body = null;
+        bodyText = null;
+        bodyKey = null;
+        cached = null;
+    }
 }
@@ -0,0 +1,139 @@
+package dev.hipshot.web.server.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses response bodies, whole or a chunk at a time, with {@link Deflater}s kept in a pool so that their
+ * native state is allocated once rather than per response. Output goes into a scratch buffer reused by the next
+ * call, so whatever it returns has to be copied before compressing anything else, as {@link OutputChain} does
+ * with heap buffers. A compressor is confined to the ring that uses it.
+ *
+ * <p>gzip is raw deflate between a fixed 10-byte header and a CRC-32 and length trailer, written here, and
+ * deflate is the zlib format {@link Deflater} writes itself.
+ */
+public final class BodyCompressor {
+    private static final int MAX_IDLE_DEFLATERS = 8;
+    private static final int INITIAL_SCRATCH_SIZE = 16 * 1024;
+    private static final int TRAILER_LENGTH = 8;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final ArrayDeque<Deflater> gzipDeflaters = new ArrayDeque<>();
+    private final ArrayDeque<Deflater> deflateDeflaters = new ArrayDeque<>();
+    private ByteBuffer scratch = ByteBuffer.allocate(INITIAL_SCRATCH_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Compresses a whole body, from its position to its limit, without moving its position.
+     */
+    public ByteBuffer compress(ByteBuffer body, ContentCoding coding, int level) {
+        var stream = start(coding, level);
+        try {
+            return deflate(stream, body, true);
+        } finally {
+            release(stream);
+        }
+    }
+
+    /**
+     * Starts compressing a body that is written a chunk at a time, with {@link #write} and then {@link #finish}.
+     * A stream that is never finished leaves its deflater to be cleaned up by the garbage collector.
+     */
+    public Stream start(ContentCoding coding, int level) {
+        var pool = coding == ContentCoding.GZIP ? gzipDeflaters : deflateDeflaters;
+        var deflater = pool.pollLast();
+        if (deflater == null) {
+            deflater = new Deflater(level, coding == ContentCoding.GZIP);
+        } else {
+            deflater.setLevel(level);
+        }
+        return new Stream(coding, deflater);
+    }
+
+    /**
+     * Compresses the next chunk of a body, flushed so that the client can decompress everything written so far,
+     * which a streamed body such as server-sent events relies on.
+     */
+    public ByteBuffer write(Stream stream, ByteBuffer chunk) {
+        return deflate(stream, chunk, false);
+    }
+
+    /**
+     * Ends a streamed body and returns the stream's deflater to the pool.
+     */
+    public ByteBuffer finish(Stream stream) {
+        try {
+            return deflate(stream, ByteBuffer.allocate(0), true);
+        } finally {
+            release(stream);
+        }
+    }
+
+    private ByteBuffer deflate(Stream stream, ByteBuffer input, boolean finish) {
+        var deflater = stream.deflater;
+        scratch.clear();
+        boolean gzip = stream.coding == ContentCoding.GZIP;
+        if (gzip) {
+            if (!stream.started) {
+                scratch.put(GZIP_HEADER);
+            }
+            stream.crc.update(input.duplicate());
+            stream.size += input.remaining();
+        }
+        stream.started = true;
+        deflater.setInput(input.duplicate());
+        if (finish) {
+            deflater.finish();
+        }
+        while (true) {
+            deflater.deflate(scratch, finish ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            if (finish ? deflater.finished() : scratch.hasRemaining()) {
+                break;
+            }
+            if (!scratch.hasRemaining()) {
+                grow();
+            }
+        }
+        if (gzip && finish) {
+            if (scratch.remaining() < TRAILER_LENGTH) {
+                grow();
+            }
+            scratch.putInt((int) stream.crc.getValue()).putInt((int) stream.size);
+        }
+        return scratch.flip();
+    }
+
+    private void grow() {
+        var grown = ByteBuffer.allocate(scratch.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+        scratch = grown.put(scratch.flip());
+    }
+
+    private void release(Stream stream) {
+        var deflater = stream.deflater;
+        var pool = stream.coding == ContentCoding.GZIP ? gzipDeflaters : deflateDeflaters;
+        if (pool.size() < MAX_IDLE_DEFLATERS) {
+            deflater.reset();
+            pool.addLast(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    /**
+     * A body being compressed a chunk at a time.
+     */
+    public static final class Stream {
+        private final ContentCoding coding;
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private long size;
+        private boolean started;
+
+        private Stream(ContentCoding coding, Deflater deflater) {
+            this.coding = coding;
+            this.deflater = deflater;
+        }
+    }
+}
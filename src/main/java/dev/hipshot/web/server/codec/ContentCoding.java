@@ -0,0 +1,19 @@
+package dev.hipshot.web.server.codec;
+
+/**
+ * The content codings a response body can be compressed with, by their {@code Accept-Encoding} token.
+ */
+public enum ContentCoding {
+    GZIP("gzip"),
+    DEFLATE("deflate");
+
+    private final String token;
+
+    ContentCoding(String token) {
+        this.token = token;
+    }
+
+    public String token() {
+        return token;
+    }
+}
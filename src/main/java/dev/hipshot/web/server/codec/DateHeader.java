@@ -0,0 +1,31 @@
+package dev.hipshot.web.server.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * The {@code Date} header line in RFC 7231 IMF-fixdate format, re-encoded in place at most once a second.
+ * Confined to the ring that owns it.
+ */
+final class DateHeader {
+    private static final DateTimeFormatter IMF_FIXDATE = DateTimeFormatter
+        .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+        .withZone(ZoneOffset.UTC);
+    private static final int VALUE_OFFSET = "Date: ".length();
+
+    private final byte[] encoded = "Date: Thu, 01 Jan 1970 00:00:00 GMT\r\n".getBytes(StandardCharsets.US_ASCII);
+    private long expiresAt = Long.MIN_VALUE;
+
+    byte[] current(long now) {
+        if (now >= expiresAt) {
+            long second = Math.floorDiv(now, 1000);
+            byte[] value = IMF_FIXDATE.format(Instant.ofEpochSecond(second)).getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(value, 0, encoded, VALUE_OFFSET, value.length);
+            expiresAt = (second + 1) * 1000;
+        }
+        return encoded;
+    }
+}
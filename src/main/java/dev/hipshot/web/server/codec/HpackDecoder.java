@@ -0,0 +1,373 @@
+package dev.hipshot.web.server.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes HPACK header blocks (RFC 7541) into HTTP/1-style {@code name: value\r\n} lines, so that an HTTP/2
+ * request can be read by {@link WebServerRequestDecoder} like any other. Names and values are copied, or
+ * Huffman-decoded, straight from the block or the tables into the output, without becoming Strings. The dynamic
+ * table keeps each entry's name and value as bytes in a ring of entries, evicting the oldest as it fills up.
+ * Confined to the connection that owns it, as the table follows every block the connection receives.
+ */
+public final class HpackDecoder {
+    static final int STATIC_TABLE_LENGTH = 61;
+    private static final int ENTRY_OVERHEAD = 32;
+    private static final byte[] SEPARATOR = {':', ' '};
+    private static final byte[] LINE_END = {'\r', '\n'};
+    static final byte[][] STATIC_NAMES = new byte[STATIC_TABLE_LENGTH + 1][];
+    static final byte[][] STATIC_VALUES = new byte[STATIC_TABLE_LENGTH + 1][];
+
+    static {
+        String[] table = {
+            ":authority", "",
+            ":method", "GET",
+            ":method", "POST",
+            ":path", "/",
+            ":path", "/index.html",
+            ":scheme", "http",
+            ":scheme", "https",
+            ":status", "200",
+            ":status", "204",
+            ":status", "206",
+            ":status", "304",
+            ":status", "400",
+            ":status", "404",
+            ":status", "500",
+            "accept-charset", "",
+            "accept-encoding", "gzip, deflate",
+            "accept-language", "",
+            "accept-ranges", "",
+            "accept", "",
+            "access-control-allow-origin", "",
+            "age", "",
+            "allow", "",
+            "authorization", "",
+            "cache-control", "",
+            "content-disposition", "",
+            "content-encoding", "",
+            "content-language", "",
+            "content-length", "",
+            "content-location", "",
+            "content-range", "",
+            "content-type", "",
+            "cookie", "",
+            "date", "",
+            "etag", "",
+            "expect", "",
+            "expires", "",
+            "from", "",
+            "host", "",
+            "if-match", "",
+            "if-modified-since", "",
+            "if-none-match", "",
+            "if-range", "",
+            "if-unmodified-since", "",
+            "last-modified", "",
+            "link", "",
+            "location", "",
+            "max-forwards", "",
+            "proxy-authenticate", "",
+            "proxy-authorization", "",
+            "range", "",
+            "referer", "",
+            "refresh", "",
+            "retry-after", "",
+            "server", "",
+            "set-cookie", "",
+            "strict-transport-security", "",
+            "transfer-encoding", "",
+            "user-agent", "",
+            "vary", "",
+            "via", "",
+            "www-authenticate", "",
+        };
+        for (int i = 0; i < table.length / 2; i++) {
+            STATIC_NAMES[i + 1] = table[i * 2].getBytes(StandardCharsets.US_ASCII);
+            STATIC_VALUES[i + 1] = table[i * 2 + 1].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final int maxTableSize;
+    private int tableSize;
+    private int tableCapacity;
+    /**
+     * Dynamic table entries as a ring, newest at {@code head - 1}.
+     */
+    private byte[][] names = new byte[16][];
+    private byte[][] values = new byte[16][];
+    private int head;
+    private int count;
+    private boolean overflowed;
+
+    /**
+     * @param maxTableSize the largest dynamic table the peer may ask for, as advertised in
+     *                     {@code SETTINGS_HEADER_TABLE_SIZE}
+     */
+    public HpackDecoder(int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+        this.tableCapacity = maxTableSize;
+    }
+
+    /**
+     * Decodes a complete header block, from {@code block}'s position to its limit, appending a line per field
+     * to {@code lines}. The whole block is always decoded, as the dynamic table has to follow it, even once
+     * {@code lines} is full.
+     *
+     * @return false if the fields did not all fit in {@code lines}
+     * @throws IllegalArgumentException if the block is malformed, which is a connection error
+     */
+    public boolean decode(ByteBuffer block, ByteBuffer lines) {
+        overflowed = false;
+        boolean first = true;
+        while (block.hasRemaining()) {
+            int b = block.get(block.position()) & 0xff;
+            if ((b & 0x80) != 0) {
+                // indexed field
+                int index = decodeInt(block, 7);
+                put(lines, name(index));
+                put(lines, SEPARATOR);
+                put(lines, value(index));
+                put(lines, LINE_END);
+            } else if ((b & 0xc0) == 0x40) {
+                // literal with incremental indexing
+                decodeLiteral(block, 6, lines, true);
+            } else if ((b & 0xe0) == 0x20) {
+                // dynamic table size update, only allowed before the first field
+                if (!first) {
+                    throw new IllegalArgumentException("Table size update after a field");
+                }
+                int size = decodeInt(block, 5);
+                if (size > maxTableSize) {
+                    throw new IllegalArgumentException("Table size update above the advertised maximum");
+                }
+                tableCapacity = size;
+                evict(0);
+                continue;
+            } else {
+                // literal without indexing, or never indexed
+                decodeLiteral(block, 4, lines, false);
+            }
+            first = false;
+        }
+        return !overflowed;
+    }
+
+    private void decodeLiteral(ByteBuffer block, int prefix, ByteBuffer lines, boolean indexed) {
+        int start = block.position();
+        boolean overflowedBefore = overflowed;
+        overflowed = false;
+        int index = decodeInt(block, prefix);
+        int nameStart = lines.position();
+        byte[] name = null;
+        if (index > 0) {
+            name = name(index);
+            put(lines, name);
+        } else {
+            decodeString(block, lines);
+            if (!overflowed) {
+                validateName(lines, nameStart);
+            }
+        }
+        int nameEnd = lines.position();
+        put(lines, SEPARATOR);
+        int valueStart = lines.position();
+        decodeString(block, lines);
+        int valueEnd = lines.position();
+        if (!overflowed) {
+            validateValue(lines, valueStart, valueEnd);
+        }
+        put(lines, LINE_END);
+        boolean fits = !overflowed;
+        overflowed |= overflowedBefore;
+        if (!indexed) {
+            return;
+        }
+        if (!fits) {
+            // the field was not kept in full, so it is decoded again on its own for the table
+            int end = block.position();
+            block.position(start);
+            int nameLength = name != null ? name.length : 0;
+            var scratch = ByteBuffer.allocate(nameLength + (end - start) * 8 / 5 + SEPARATOR.length + LINE_END.length + 8);
+            decodeLiteral(block, prefix, scratch, true);
+            return;
+        }
+        if (name == null) {
+            name = bytes(lines, nameStart, nameEnd);
+        }
+        add(name, bytes(lines, valueStart, valueEnd));
+    }
+
+    /**
+     * Decodes a string literal into {@code lines}, Huffman-decoding it if it says so.
+     */
+    private void decodeString(ByteBuffer block, ByteBuffer lines) {
+        if (!block.hasRemaining()) {
+            throw new IllegalArgumentException("Truncated string");
+        }
+        boolean huffman = (block.get(block.position()) & 0x80) != 0;
+        int length = decodeInt(block, 7);
+        if (length > block.remaining()) {
+            throw new IllegalArgumentException("Truncated string");
+        }
+        if (huffman) {
+            if (!Huffman.decode(block, length, lines)) {
+                overflowed = true;
+            }
+            return;
+        }
+        if (length > lines.remaining()) {
+            overflowed = true;
+            block.position(block.position() + length);
+            return;
+        }
+        lines.put(lines.position(), block, block.position(), length);
+        lines.position(lines.position() + length);
+        block.position(block.position() + length);
+    }
+
+    /**
+     * Decodes an integer with an N-bit prefix (RFC 7541, 5.1).
+     */
+    static int decodeInt(ByteBuffer block, int prefix) {
+        int mask = (1 << prefix) - 1;
+        int value = block.get() & mask;
+        if (value < mask) {
+            return value;
+        }
+        for (int shift = 0; ; shift += 7) {
+            if (!block.hasRemaining() || shift > 21) {
+                throw new IllegalArgumentException("Truncated or oversized integer");
+            }
+            int b = block.get() & 0xff;
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private byte[] name(int index) {
+        if (index == 0) {
+            throw new IllegalArgumentException("Index 0");
+        }
+        if (index <= STATIC_TABLE_LENGTH) {
+            return STATIC_NAMES[index];
+        }
+        return names[entry(index)];
+    }
+
+    private byte[] value(int index) {
+        if (index == 0) {
+            throw new IllegalArgumentException("Index 0");
+        }
+        if (index <= STATIC_TABLE_LENGTH) {
+            return STATIC_VALUES[index];
+        }
+        return values[entry(index)];
+    }
+
+    /**
+     * Where in the ring dynamic table index {@code index} is; the newest entry is index 62.
+     */
+    private int entry(int index) {
+        int age = index - STATIC_TABLE_LENGTH - 1;
+        if (age >= count) {
+            throw new IllegalArgumentException("Index " + index + " beyond the dynamic table");
+        }
+        return (head - 1 - age + names.length) % names.length;
+    }
+
+    private void add(byte[] name, byte[] value) {
+        int size = name.length + value.length + ENTRY_OVERHEAD;
+        if (size > tableCapacity) {
+            // an entry larger than the table empties it (RFC 7541, 4.4)
+            evict(tableCapacity);
+            return;
+        }
+        evict(size);
+        if (count == names.length) {
+            grow();
+        }
+        names[head] = name;
+        values[head] = value;
+        head = (head + 1) % names.length;
+        count++;
+        tableSize += size;
+    }
+
+    /**
+     * Evicts the oldest entries until {@code room} more bytes fit.
+     */
+    private void evict(int room) {
+        while (count > 0 && tableSize + room > tableCapacity) {
+            int oldest = (head - count + names.length) % names.length;
+            tableSize -= names[oldest].length + values[oldest].length + ENTRY_OVERHEAD;
+            names[oldest] = null;
+            values[oldest] = null;
+            count--;
+        }
+    }
+
+    private void grow() {
+        var grownNames = new byte[names.length * 2][];
+        var grownValues = new byte[names.length * 2][];
+        for (int i = 0; i < count; i++) {
+            int from = (head - count + i + names.length) % names.length;
+            grownNames[i] = names[from];
+            grownValues[i] = values[from];
+        }
+        names = grownNames;
+        values = grownValues;
+        head = count;
+    }
+
+    private void put(ByteBuffer lines, byte[] bytes) {
+        if (bytes.length > lines.remaining()) {
+            overflowed = true;
+            return;
+        }
+        lines.put(bytes);
+    }
+
+    /**
+     * Names are lowercase in HTTP/2, and may only start with a colon if they are pseudo-headers.
+     */
+    private static void validateName(ByteBuffer lines, int start) {
+        int end = lines.position();
+        if (end == start) {
+            throw new IllegalArgumentException("Empty header name");
+        }
+        for (int i = start; i < end; i++) {
+            byte b = lines.get(i);
+            if ((b >= 'A' && b <= 'Z') || b <= ' ' || b == 0x7f || (b == ':' && i > start)) {
+                throw new IllegalArgumentException("Invalid header name");
+            }
+        }
+    }
+
+    /**
+     * Rejects the bytes that would let a value break out of its line once in HTTP/1 form.
+     */
+    private static void validateValue(ByteBuffer lines, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = lines.get(i);
+            if (b == '\r' || b == '\n' || b == 0) {
+                throw new IllegalArgumentException("Invalid header value");
+            }
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int start, int end) {
+        var bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return bytes;
+    }
+
+    /**
+     * The size of the dynamic table, as HPACK counts it.
+     */
+    public int tableSize() {
+        return tableSize;
+    }
+}
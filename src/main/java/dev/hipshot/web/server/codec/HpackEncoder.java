@@ -0,0 +1,210 @@
+package dev.hipshot.web.server.codec;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes response heads as HPACK header blocks (RFC 7541) by transcoding the HTTP/1 status line and header
+ * lines that {@link WebServerResponseEncoder} produces, so that ordinary, cached and pre-encoded responses all
+ * reach HTTP/2 the same way. Fields go out as literals the client never adds to its dynamic table, named by
+ * static table index where there is one, and without Huffman coding: a few more bytes per response, but no
+ * table to keep in step with the client and nothing to hold per connection. A common status is a single byte.
+ */
+public final class HpackEncoder {
+    private static final int[] STATUS_INDEXES = new int[600];
+    /**
+     * Static table indexes by a hash of their name, in open addressing, for literal field names.
+     */
+    private static final int[] NAME_INDEXES = new int[256];
+    /**
+     * Headers that only mean something to an HTTP/1 connection, and are malformed in HTTP/2 (RFC 9113, 8.2.2).
+     */
+    private static final byte[][] CONNECTION_SPECIFIC = {
+        bytes("connection"), bytes("keep-alive"), bytes("proxy-connection"), bytes("transfer-encoding"),
+        bytes("upgrade"),
+    };
+    private static final int STATUS_NAME_INDEX = 8;
+
+    static {
+        for (int index = 8; index <= 14; index++) {
+            var value = HpackDecoder.STATIC_VALUES[index];
+            STATUS_INDEXES[(value[0] - '0') * 100 + (value[1] - '0') * 10 + value[2] - '0'] = index;
+        }
+        for (int index = HpackDecoder.STATIC_TABLE_LENGTH; index >= 15; index--) {
+            var name = HpackDecoder.STATIC_NAMES[index];
+            int slot = hash(name, 0, name.length) & (NAME_INDEXES.length - 1);
+            while (NAME_INDEXES[slot] != 0 && !equalsIgnoreCase(HpackDecoder.STATIC_NAMES[NAME_INDEXES[slot]], name, 0, name.length)) {
+                slot = (slot + 1) & (NAME_INDEXES.length - 1);
+            }
+            NAME_INDEXES[slot] = index; // filled from the end, so a repeated name keeps its first index
+        }
+    }
+
+    private HpackEncoder() {
+    }
+
+    /**
+     * Transcodes the HTTP/1 response head in {@code head}, from its position to the blank line that ends it,
+     * into {@code block}, leaving out connection-specific headers and lowercasing names. Moves {@code head}'s
+     * position past the blank line.
+     *
+     * @throws BufferOverflowException if {@code block} is too small
+     */
+    public static void transcode(ByteBuffer head, ByteBuffer block) {
+        int position = head.position();
+        int limit = head.limit();
+        // "HTTP/1.1 200 ..."
+        int status = (head.get(position + 9) - '0') * 100 + (head.get(position + 10) - '0') * 10
+            + head.get(position + 11) - '0';
+        encodeStatus(status, block);
+        position = lineEnd(head, position, limit) + 1;
+        while (true) {
+            int lineEnd = lineEnd(head, position, limit);
+            int end = head.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+            if (end == position) {
+                head.position(lineEnd + 1);
+                return;
+            }
+            int colon = position;
+            while (colon < end && head.get(colon) != ':') {
+                colon++;
+            }
+            int valueStart = colon + 1;
+            while (valueStart < end && head.get(valueStart) == ' ') {
+                valueStart++;
+            }
+            if (colon < end && !connectionSpecific(head, position, colon - position)) {
+                encodeField(head, position, colon - position, valueStart, end - valueStart, block);
+            }
+            position = lineEnd + 1;
+        }
+    }
+
+    /**
+     * Encodes {@code :status}, indexed if the static table has it.
+     */
+    public static void encodeStatus(int status, ByteBuffer block) {
+        int index = status >= 0 && status < STATUS_INDEXES.length ? STATUS_INDEXES[status] : 0;
+        if (index > 0) {
+            block.put((byte) (0x80 | index));
+            return;
+        }
+        // literal without indexing, with an indexed name
+        block.put((byte) STATUS_NAME_INDEX);
+        block.put((byte) 3);
+        block.put((byte) ('0' + status / 100 % 10));
+        block.put((byte) ('0' + status / 10 % 10));
+        block.put((byte) ('0' + status % 10));
+    }
+
+    /**
+     * Encodes a field as a literal without indexing, its name lowercased and indexed where possible.
+     */
+    static void encodeField(ByteBuffer source, int nameStart, int nameLength, int valueStart, int valueLength, ByteBuffer block) {
+        int index = nameIndex(source, nameStart, nameLength);
+        if (index > 0) {
+            encodeInt(block, 0x00, 4, index);
+        } else {
+            block.put((byte) 0x00);
+            encodeInt(block, 0x00, 7, nameLength);
+            if (nameLength > block.remaining()) {
+                throw new BufferOverflowException();
+            }
+            for (int i = 0; i < nameLength; i++) {
+                block.put(lowercase(source.get(nameStart + i)));
+            }
+        }
+        encodeInt(block, 0x00, 7, valueLength);
+        if (valueLength > block.remaining()) {
+            throw new BufferOverflowException();
+        }
+        block.put(block.position(), source, valueStart, valueLength);
+        block.position(block.position() + valueLength);
+    }
+
+    /**
+     * Encodes an integer with an N-bit prefix (RFC 7541, 5.1), the bits above the prefix set from
+     * {@code flags}.
+     */
+    static void encodeInt(ByteBuffer block, int flags, int prefix, int value) {
+        int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            block.put((byte) (flags | value));
+            return;
+        }
+        block.put((byte) (flags | mask));
+        value -= mask;
+        while (value >= 0x80) {
+            block.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        block.put((byte) value);
+    }
+
+    private static int nameIndex(ByteBuffer source, int start, int length) {
+        int slot = hash(source, start, length) & (NAME_INDEXES.length - 1);
+        while (NAME_INDEXES[slot] != 0) {
+            int index = NAME_INDEXES[slot];
+            if (equalsIgnoreCase(HpackDecoder.STATIC_NAMES[index], source, start, length)) {
+                return index;
+            }
+            slot = (slot + 1) & (NAME_INDEXES.length - 1);
+        }
+        return 0;
+    }
+
+    private static boolean connectionSpecific(ByteBuffer source, int start, int length) {
+        for (byte[] name : CONNECTION_SPECIFIC) {
+            if (equalsIgnoreCase(name, source, start, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int lineEnd(ByteBuffer head, int position, int limit) {
+        for (int i = position; i < limit; i++) {
+            if (head.get(i) == '\n') {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Incomplete response head");
+    }
+
+    private static int hash(ByteBuffer source, int start, int length) {
+        int hash = length;
+        for (int i = start; i < start + length; i++) {
+            hash = hash * 31 + lowercase(source.get(i));
+        }
+        return hash ^ (hash >>> 8);
+    }
+
+    private static int hash(byte[] name, int start, int length) {
+        return hash(ByteBuffer.wrap(name), start, length);
+    }
+
+    private static boolean equalsIgnoreCase(byte[] lowercase, ByteBuffer source, int start, int length) {
+        if (lowercase.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (lowercase[i] != lowercase(source.get(start + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] lowercase, byte[] name, int start, int length) {
+        return equalsIgnoreCase(lowercase, ByteBuffer.wrap(name), start, length);
+    }
+
+    private static byte lowercase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
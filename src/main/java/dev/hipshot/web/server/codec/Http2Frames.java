@@ -0,0 +1,171 @@
+package dev.hipshot.web.server.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP/2 frame layout (RFC 9113, 4 and 6), and the encoding of frames onto a connection's output. A frame's
+ * 9-byte header is written into the output's current segment, and its payload appended after it: copied, or
+ * referenced in place if it is a large direct buffer, as {@link OutputChain#append} does.
+ */
+public final class Http2Frames {
+    public static final int HEADER_LENGTH = 9;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    public static final int DEFAULT_WINDOW_SIZE = 65535;
+    public static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    public static final int DATA = 0x0;
+    public static final int HEADERS = 0x1;
+    public static final int PRIORITY = 0x2;
+    public static final int RST_STREAM = 0x3;
+    public static final int SETTINGS = 0x4;
+    public static final int PUSH_PROMISE = 0x5;
+    public static final int PING = 0x6;
+    public static final int GOAWAY = 0x7;
+    public static final int WINDOW_UPDATE = 0x8;
+    public static final int CONTINUATION = 0x9;
+
+    public static final int FLAG_END_STREAM = 0x1;
+    public static final int FLAG_ACK = 0x1;
+    public static final int FLAG_END_HEADERS = 0x4;
+    public static final int FLAG_PADDED = 0x8;
+    public static final int FLAG_PRIORITY = 0x20;
+
+    public static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    public static final int SETTINGS_ENABLE_PUSH = 0x2;
+    public static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    public static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    public static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    public static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    public static final int NO_ERROR = 0x0;
+    public static final int PROTOCOL_ERROR = 0x1;
+    public static final int INTERNAL_ERROR = 0x2;
+    public static final int FLOW_CONTROL_ERROR = 0x3;
+    public static final int STREAM_CLOSED = 0x5;
+    public static final int FRAME_SIZE_ERROR = 0x6;
+    public static final int REFUSED_STREAM = 0x7;
+    public static final int CANCEL = 0x8;
+    public static final int COMPRESSION_ERROR = 0x9;
+
+    /**
+     * What a client speaking HTTP/2 sends first, whether it knew to or upgraded.
+     */
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private Http2Frames() {
+    }
+
+    /**
+     * Whether {@code buffer}, from its position, starts with the client connection preface: 1 if it does,
+     * 0 if what there is so far could still be it, -1 if it cannot.
+     */
+    public static int matchPreface(ByteBuffer buffer) {
+        int length = Math.min(buffer.remaining(), PREFACE.length);
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(buffer.position() + i) != PREFACE[i]) {
+                return -1;
+            }
+        }
+        return length == PREFACE.length ? 1 : 0;
+    }
+
+    public static int prefaceLength() {
+        return PREFACE.length;
+    }
+
+    /**
+     * The payload length of the frame whose header starts at {@code position}.
+     */
+    public static int length(ByteBuffer buffer, int position) {
+        return (buffer.get(position) & 0xff) << 16 | (buffer.get(position + 1) & 0xff) << 8 | buffer.get(position + 2) & 0xff;
+    }
+
+    public static int type(ByteBuffer buffer, int position) {
+        return buffer.get(position + 3) & 0xff;
+    }
+
+    public static int flags(ByteBuffer buffer, int position) {
+        return buffer.get(position + 4) & 0xff;
+    }
+
+    public static int stream(ByteBuffer buffer, int position) {
+        return buffer.getInt(position + 5) & 0x7fffffff;
+    }
+
+    public static void encodeSettings(OutputChain output, int... settings) {
+        var buffer = output.reserve(HEADER_LENGTH + settings.length * 3);
+        header(buffer, settings.length * 3, SETTINGS, 0, 0);
+        for (int i = 0; i < settings.length; i += 2) {
+            buffer.putShort((short) settings[i]).putInt(settings[i + 1]);
+        }
+    }
+
+    public static void encodeSettingsAck(OutputChain output) {
+        header(output.reserve(HEADER_LENGTH), 0, SETTINGS, FLAG_ACK, 0);
+    }
+
+    public static void encodePingAck(OutputChain output, long payload) {
+        var buffer = output.reserve(HEADER_LENGTH + 8);
+        header(buffer, 8, PING, FLAG_ACK, 0);
+        buffer.putLong(payload);
+    }
+
+    public static void encodeWindowUpdate(OutputChain output, int stream, int increment) {
+        var buffer = output.reserve(HEADER_LENGTH + 4);
+        header(buffer, 4, WINDOW_UPDATE, 0, stream);
+        buffer.putInt(increment);
+    }
+
+    public static void encodeRstStream(OutputChain output, int stream, int error) {
+        var buffer = output.reserve(HEADER_LENGTH + 4);
+        header(buffer, 4, RST_STREAM, 0, stream);
+        buffer.putInt(error);
+    }
+
+    public static void encodeGoAway(OutputChain output, int lastStream, int error) {
+        var buffer = output.reserve(HEADER_LENGTH + 8);
+        header(buffer, 8, GOAWAY, 0, 0);
+        buffer.putInt(lastStream).putInt(error);
+    }
+
+    /**
+     * Appends one DATA frame carrying {@code payload}, from its position to its limit, which must not be
+     * longer than the peer's maximum frame size. Does not move its position.
+     */
+    public static void encodeData(OutputChain output, int stream, ByteBuffer payload, boolean endStream) {
+        header(output.reserve(HEADER_LENGTH), payload.remaining(), DATA, endStream ? FLAG_END_STREAM : 0, stream);
+        if (payload.hasRemaining()) {
+            output.append(payload);
+        }
+    }
+
+    /**
+     * Appends a header block, from its position to its limit, as a HEADERS frame followed by as many
+     * CONTINUATION frames as {@code maxFrameSize} calls for. Does not move its position.
+     */
+    public static void encodeHeaders(OutputChain output, int stream, ByteBuffer block, boolean endStream, int maxFrameSize) {
+        int position = block.position();
+        int limit = block.limit();
+        int type = HEADERS;
+        int flags = endStream ? FLAG_END_STREAM : 0;
+        do {
+            int length = Math.min(limit - position, maxFrameSize);
+            boolean last = position + length == limit;
+            header(output.reserve(HEADER_LENGTH), length, type, flags | (last ? FLAG_END_HEADERS : 0), stream);
+            output.copy(block.duplicate().position(position).limit(position + length));
+            position += length;
+            type = CONTINUATION;
+            flags = 0;
+        } while (position < limit);
+    }
+
+    private static void header(ByteBuffer buffer, int length, int type, int flags, int stream) {
+        buffer.put((byte) (length >>> 16))
+            .put((byte) (length >>> 8))
+            .put((byte) length)
+            .put((byte) type)
+            .put((byte) flags)
+            .putInt(stream);
+    }
+}
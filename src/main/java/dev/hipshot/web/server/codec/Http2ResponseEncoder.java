@@ -0,0 +1,76 @@
+package dev.hipshot.web.server.codec;
+
+import dev.hipshot.web.server.CachedResponse;
+import dev.hipshot.web.server.WebServerResponse;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes responses to HTTP/2 streams. The status and headers are encoded as for HTTP/1 by the ring's
+ * {@link WebServerResponseEncoder}, into a scratch buffer, and transcoded from there into an HPACK block by
+ * {@link HpackEncoder}, which lands in the connection's output as HEADERS and CONTINUATION frames. Bodies are
+ * left to the connection, which sends them as DATA frames as flow control allows. Confined to the ring that
+ * uses it.
+ */
+public final class Http2ResponseEncoder {
+    private static final int MAX_SCRATCH = 1024 * 1024;
+
+    private final WebServerResponseEncoder http1;
+    private final DateHeader date = new DateHeader();
+    private ByteBuffer head = ByteBuffer.allocate(4096);
+    private ByteBuffer block = ByteBuffer.allocate(4096);
+
+    public Http2ResponseEncoder(WebServerResponseEncoder http1) {
+        this.http1 = http1;
+    }
+
+    /**
+     * Appends the HEADERS of a response on {@code stream}, ending the stream there if it has no body and is
+     * not {@code streamed}.
+     *
+     * @return the body still to be sent as DATA, or null if the stream has ended
+     */
+    public ByteBuffer encodeHeaders(WebServerResponse response, boolean streamed, int stream, int maxFrameSize, OutputChain output) {
+        ByteBuffer body;
+        while (true) {
+            block.clear();
+            try {
+                body = encodeBlock(response, streamed);
+                break;
+            } catch (BufferOverflowException ex) {
+                grow();
+            }
+        }
+        block.flip();
+        boolean endStream = !streamed && (body == null || !body.hasRemaining());
+        Http2Frames.encodeHeaders(output, stream, block, endStream, maxFrameSize);
+        return endStream ? null : body;
+    }
+
+    private ByteBuffer encodeBlock(WebServerResponse response, boolean streamed) {
+        CachedResponse cached = response.cached();
+        if (cached != null) {
+            // pre-encoded without a Date header, and with its body after the head
+            var encoded = cached.encoded().duplicate();
+            HpackEncoder.transcode(encoded, block);
+            var line = ByteBuffer.wrap(date.current(System.currentTimeMillis()));
+            int colon = 4; // "Date"
+            HpackEncoder.encodeField(line, 0, colon, colon + 2, line.limit() - colon - 4, block);
+            return encoded;
+        }
+        head.clear();
+        http1.encodeHead(response, head, streamed);
+        head.flip();
+        HpackEncoder.transcode(head, block);
+        return WebServerResponseEncoder.body(response);
+    }
+
+    private void grow() {
+        if (block.capacity() >= MAX_SCRATCH) {
+            throw new IllegalStateException("Response head larger than " + MAX_SCRATCH + " bytes");
+        }
+        head = ByteBuffer.allocate(head.capacity() * 2);
+        block = ByteBuffer.allocate(block.capacity() * 2);
+    }
+}
@@ -0,0 +1,153 @@
+package dev.hipshot.web.server.codec;
+
+import dev.hipshot.web.util.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * The bytes waiting to be written to one connection, in order. Responses are encoded into segments taken
+ * from the response buffer pool, as many as they need, and large direct buffers handed over by handlers are
+ * written from where they are instead of being copied. Confined to the connection's ring.
+ */
+public final class OutputChain {
+    private final BufferPool pool;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private Segment tail;
+
+    public OutputChain(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * The pooled segment bytes are appended to, in write mode. Bytes in {@code [0, position)} are waiting to
+     * be written; while a write is in flight the kernel reads them through another view.
+     */
+    public ByteBuffer tail() {
+        if (tail == null) {
+            tail = Segment.pooled(pool.take());
+            segments.add(tail);
+        }
+        return tail.buffer;
+    }
+
+    /**
+     * The tail, or a new empty segment if the tail has less than {@code length} bytes left.
+     */
+    public ByteBuffer reserve(int length) {
+        var buffer = tail();
+        return buffer.remaining() >= length ? buffer : nextSegment();
+    }
+
+    /**
+     * Leaves the tail as it is and starts appending to an empty segment, unless the tail is still empty.
+     */
+    public ByteBuffer nextSegment() {
+        if (tail != null && tail.buffer.position() == 0) {
+            return tail.buffer;
+        }
+        tail = null;
+        return tail();
+    }
+
+    /**
+     * Appends {@code bytes} from its position to its limit, without moving its position. Bytes that do not fit
+     * in the tail are referenced rather than copied if they are direct, in which case they must not change
+     * until they have been written.
+     */
+    public void append(ByteBuffer bytes) {
+        if (bytes.remaining() > tail().remaining() && bytes.isDirect()) {
+            segments.add(Segment.referenced(bytes.duplicate()));
+            tail = null;
+            return;
+        }
+        copy(bytes);
+    }
+
+    /**
+     * Appends {@code bytes} from its position to its limit by copying them, however large, for bytes that will
+     * not stay put until written. Does not move its position.
+     */
+    public void copy(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        int offset = bytes.position();
+        var buffer = tail();
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                buffer = nextSegment();
+            }
+            int copied = Math.min(length, buffer.remaining());
+            buffer.put(buffer.position(), bytes, offset, copied);
+            buffer.position(buffer.position() + copied);
+            offset += copied;
+            length -= copied;
+        }
+    }
+
+    /**
+     * The next bytes to write, or null if everything has been written. Segments written in full are handed
+     * back to the pool on the way.
+     */
+    public ByteBuffer nextWrite() {
+        Segment segment;
+        while ((segment = segments.peekFirst()) != null) {
+            var view = segment.view;
+            if (segment.pooled) {
+                view.limit(segment.buffer.position());
+            }
+            if (view.hasRemaining()) {
+                return view;
+            }
+            if (segment == tail) {
+                segment.buffer.clear();
+                view.clear();
+                return null;
+            }
+            segments.removeFirst();
+            if (segment.pooled) {
+                pool.give(segment.buffer);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * How many segments are waiting to be written, including a partly filled tail.
+     */
+    public int size() {
+        return segments.size();
+    }
+
+    /**
+     * Hands every pooled segment back, once the connection has closed.
+     */
+    public void release() {
+        for (var segment : segments) {
+            if (segment.pooled) {
+                pool.give(segment.buffer);
+            }
+        }
+        segments.clear();
+        tail = null;
+    }
+
+    private static final class Segment {
+        private final ByteBuffer buffer;
+        private final ByteBuffer view;
+        private final boolean pooled;
+
+        private Segment(ByteBuffer buffer, ByteBuffer view, boolean pooled) {
+            this.buffer = buffer;
+            this.view = view;
+            this.pooled = pooled;
+        }
+
+        private static Segment pooled(ByteBuffer buffer) {
+            return new Segment(buffer, buffer.duplicate().limit(0), true);
+        }
+
+        private static Segment referenced(ByteBuffer bytes) {
+            return new Segment(bytes, bytes, false);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package dev.hipshot.web.server.codec;
+
+import dev.hipshot.web.server.HttpMethod;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Offset/length slices of a decoded request head, pointing into the decoder's input buffer.
+ * Nothing is copied out of the buffer until a caller asks for a {@link String}, so a slice
+ * set is only valid until the buffer is compacted or overwritten.
+ */
+public final class RequestSlices {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private ByteBuffer source;
+    private HttpMethod method;
+    private String protocol;
+    private int pathStart;
+    private int pathLength;
+    private int targetLength;
+    private final Table headers = new Table();
+    private final Table queryParams = new Table();
+
+    void reset(ByteBuffer source) {
+        this.source = source;
+        this.method = null;
+        this.protocol = null;
+        this.pathStart = 0;
+        this.pathLength = 0;
+        this.targetLength = 0;
+        headers.clear();
+        queryParams.clear();
+    }
+
+    void method(HttpMethod method) {
+        this.method = method;
+    }
+
+    void protocol(String protocol) {
+        this.protocol = protocol;
+    }
+
+    void path(int start, int length) {
+        this.pathStart = start;
+        this.pathLength = length;
+    }
+
+    /**
+     * The length of the path and query together, as they appear in the request line.
+     */
+    void targetLength(int length) {
+        this.targetLength = length;
+    }
+
+    void addHeader(int keyStart, int keyLength, int valueStart, int valueLength) {
+        headers.add(keyStart, keyLength, valueStart, valueLength);
+    }
+
+    void addQueryParam(int keyStart, int keyLength, int valueStart, int valueLength) {
+        queryParams.add(keyStart, keyLength, valueStart, valueLength);
+    }
+
+    int headerIndex(String key) {
+        return headers.indexOf(source, key, true);
+    }
+
+    int headerValueStart(int index) {
+        return headers.valueStart(index);
+    }
+
+    int headerValueLength(int index) {
+        return headers.valueLength(index);
+    }
+
+    public ByteBuffer source() {
+        return source;
+    }
+
+    public HttpMethod method() {
+        return method;
+    }
+
+    public String protocol() {
+        return protocol;
+    }
+
+    public int pathLength() {
+        return pathLength;
+    }
+
+    public byte pathByte(int index) {
+        return source.get(pathStart + index);
+    }
+
+    public String path() {
+        return ascii(source, pathStart, pathLength);
+    }
+
+    public String pathSubstring(int offset, int length) {
+        return ascii(source, pathStart + offset, length);
+    }
+
+    /**
+     * The length of the request target, the path and query exactly as the client sent them.
+     */
+    public int targetLength() {
+        return targetLength;
+    }
+
+    /**
+     * Puts the request target, exactly as the client sent it, into {@code target}.
+     */
+    public void copyTarget(ByteBuffer target) {
+        target.put(target.position(), source, pathStart, targetLength);
+        target.position(target.position() + targetLength);
+    }
+
+    public int headerCount() {
+        return headers.size;
+    }
+
+    /**
+     * Whether the {@code index}th header is named {@code key}, ignoring case. Copies nothing.
+     */
+    public boolean headerNameEquals(int index, String key) {
+        return regionMatches(source, headers.keyStart(index), headers.keyLength(index), key, true);
+    }
+
+    /**
+     * The length of the {@code index}th header as {@link #copyHeader} puts it, {@code Name: value\r\n}.
+     */
+    public int headerLineLength(int index) {
+        return headers.keyLength(index) + 2 + headers.valueLength(index) + 2;
+    }
+
+    /**
+     * Puts the {@code index}th header into {@code target} as {@code Name: value\r\n}, copied byte for byte.
+     */
+    public void copyHeader(int index, ByteBuffer target) {
+        int keyLength = headers.keyLength(index);
+        int valueLength = headers.valueLength(index);
+        target.put(target.position(), source, headers.keyStart(index), keyLength);
+        target.position(target.position() + keyLength);
+        target.put((byte) ':').put((byte) ' ');
+        target.put(target.position(), source, headers.valueStart(index), valueLength);
+        target.position(target.position() + valueLength);
+        target.put((byte) '\r').put((byte) '\n');
+    }
+
+    /**
+     * Returns the first value of the given header, matching the name case-insensitively,
+     * or null if it is absent. Only the value is copied out of the buffer.
+     */
+    public String header(String key) {
+        int index = headers.indexOf(source, key, true);
+        return index < 0 ? null : headers.value(source, index);
+    }
+
+    /**
+     * Returns true if the first value of the given header equals {@code value}, ignoring case,
+     * without copying either out of the buffer.
+     */
+    public boolean headerEquals(String key, String value) {
+        int index = headers.indexOf(source, key, true);
+        return index >= 0 && regionMatches(source, headers.valueStart(index), headers.valueLength(index), value, true);
+    }
+
+    /**
+     * Returns true if the first value of the given header is a comma-separated list containing {@code token},
+     * ignoring case and whitespace, as in {@code Connection: keep-alive, Upgrade}. Copies nothing.
+     */
+    public boolean headerHasToken(String key, String token) {
+        int index = headers.indexOf(source, key, true);
+        if (index < 0) {
+            return false;
+        }
+        int position = headers.valueStart(index);
+        int end = position + headers.valueLength(index);
+        while (position < end) {
+            int tokenEnd = position;
+            while (tokenEnd < end && source.get(tokenEnd) != ',') {
+                tokenEnd++;
+            }
+            int start = position;
+            int stop = tokenEnd;
+            while (start < stop && (source.get(start) == ' ' || source.get(start) == '\t')) {
+                start++;
+            }
+            while (stop > start && (source.get(stop - 1) == ' ' || source.get(stop - 1) == '\t')) {
+                stop--;
+            }
+            if (regionMatches(source, start, stop - start, token, true)) {
+                return true;
+            }
+            position = tokenEnd + 1;
+        }
+        return false;
+    }
+
+    public Map<String, List<String>> headers() {
+        return headers.toMap(source);
+    }
+
+    public String queryParam(String key) {
+        int index = queryParams.indexOf(source, key, false);
+        return index < 0 ? null : queryParams.value(source, index);
+    }
+
+    public Map<String, List<String>> queryParams() {
+        return queryParams.toMap(source);
+    }
+
+    static String ascii(ByteBuffer buffer, int start, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    static boolean regionMatches(ByteBuffer buffer, int start, int length, String value, boolean ignoreCase) {
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            int a = buffer.get(start + i);
+            int b = value.charAt(i);
+            if (a != b && !(ignoreCase && toLowerCase(a) == toLowerCase(b))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private static final class Table {
+        private int[] slices = new int[INITIAL_CAPACITY * 4];
+        private int size;
+
+        void add(int keyStart, int keyLength, int valueStart, int valueLength) {
+            int offset = size * 4;
+            if (offset == slices.length) {
+                slices = Arrays.copyOf(slices, slices.length * 2);
+            }
+            slices[offset] = keyStart;
+            slices[offset + 1] = keyLength;
+            slices[offset + 2] = valueStart;
+            slices[offset + 3] = valueLength;
+            size++;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int keyStart(int index) {
+            return slices[index * 4];
+        }
+
+        int keyLength(int index) {
+            return slices[index * 4 + 1];
+        }
+
+        int valueStart(int index) {
+            return slices[index * 4 + 2];
+        }
+
+        int valueLength(int index) {
+            return slices[index * 4 + 3];
+        }
+
+        int indexOf(ByteBuffer buffer, String key, boolean ignoreCase) {
+            for (int i = 0; i < size; i++) {
+                if (regionMatches(buffer, slices[i * 4], slices[i * 4 + 1], key, ignoreCase)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        String key(ByteBuffer buffer, int index) {
+            return ascii(buffer, slices[index * 4], slices[index * 4 + 1]);
+        }
+
+        String value(ByteBuffer buffer, int index) {
+            return ascii(buffer, valueStart(index), valueLength(index));
+        }
+
+        Map<String, List<String>> toMap(ByteBuffer buffer) {
+            Map<String, List<String>> map = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                map.computeIfAbsent(key(buffer, i), (k) -> new ArrayList<>()).add(value(buffer, i));
+            }
+            return map;
+        }
+    }
+}
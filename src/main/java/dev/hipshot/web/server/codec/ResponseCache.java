@@ -0,0 +1,123 @@
+package dev.hipshot.web.server.codec;
+
+import dev.hipshot.web.server.EncodedHeader;
+import dev.hipshot.web.server.WebServerResponse;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU of encoded responses, keyed by status, headers and the identity of the String the body was
+ * built from. Only responses with no body or a String body are cached, since a ByteBuffer body can change
+ * without its identity changing. Entries are stored without their Date header. Confined to a single ring.
+ *
+ * <p>A response is only copied in the second time it is seen: a doorkeeper table remembers the key hash of
+ * recent misses, so that a dynamic body, which is never seen twice, costs a hash rather than a copy, a header
+ * snapshot and an eviction. Hashes colliding in the table only admit a response one sighting early.
+ */
+class ResponseCache {
+    private static final int MAX_ENCODED_SIZE = 16 * 1024;
+    private static final EncodedHeader[] NO_ENCODED_HEADERS = new EncodedHeader[0];
+
+    private final Map<Key, Entry> entries;
+    private final int[] seen;
+    private final Key probe = new Key();
+
+    ResponseCache(int maxEntries) {
+        this.entries = new LinkedHashMap<>(maxEntries * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.seen = new int[Integer.highestOneBit(maxEntries * 2 - 1) << 1];
+    }
+
+    static boolean accepts(WebServerResponse response) {
+        return response.body() == null || response.bodyText() != null;
+    }
+
+    Entry get(WebServerResponse response) {
+        return entries.get(probe.of(response));
+    }
+
+    /**
+     * Copies the response just encoded at {@code start}, leaving out the Date header at {@code split}, if it has
+     * been seen before.
+     */
+    void put(WebServerResponse response, ByteBuffer buffer, int start, int split, int dateLength) {
+        int length = buffer.position() - start - dateLength;
+        if (length > MAX_ENCODED_SIZE) {
+            return;
+        }
+        int hash = probe.of(response).hashCode();
+        int slot = (hash ^ hash >>> 16) & (seen.length - 1);
+        if (seen[slot] != hash) {
+            seen[slot] = hash;
+            return;
+        }
+        byte[] encoded = new byte[length];
+        buffer.get(start, encoded, 0, split);
+        buffer.get(start + split + dateLength, encoded, split, length - split);
+        entries.put(new Key().snapshot(response), new Entry(encoded, split));
+    }
+
+    record Entry(byte[] encoded, int split) {
+    }
+
+    private static final class Key {
+        private int status;
+        private Map<String, List<String>> headers;
+        private EncodedHeader[] encodedHeaders = NO_ENCODED_HEADERS;
+        private int encodedHeaderCount;
+        private String body;
+
+        Key of(WebServerResponse response) {
+            status = response.status();
+            headers = response.hasHeaders() ? response.headers() : Map.of();
+            encodedHeaderCount = response.encodedHeaderCount();
+            if (encodedHeaders.length < encodedHeaderCount) {
+                encodedHeaders = new EncodedHeader[encodedHeaderCount];
+            }
+            for (int i = 0; i < encodedHeaderCount; i++) {
+                encodedHeaders[i] = response.encodedHeader(i);
+            }
+            body = response.bodyText();
+            return this;
+        }
+
+        Key snapshot(WebServerResponse response) {
+            of(response);
+            headers = new HashMap<>(headers);
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key other)) {
+                return false;
+            }
+            if (status != other.status || body != other.body || encodedHeaderCount != other.encodedHeaderCount) {
+                return false;
+            }
+            for (int i = 0; i < encodedHeaderCount; i++) {
+                if (encodedHeaders[i] != other.encodedHeaders[i]) {
+                    return false;
+                }
+            }
+            return headers.equals(other.headers);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 31 * status + headers.hashCode();
+            for (int i = 0; i < encodedHeaderCount; i++) {
+                hash = 31 * hash + System.identityHashCode(encodedHeaders[i]);
+            }
+            return 31 * hash + System.identityHashCode(body);
+        }
+    }
+}
@@ -1,254 +1,449 @@
 package dev.hipshot.web.server.codec;
 
+import dev.hipshot.web.server.HttpMethod;
 import dev.hipshot.web.server.WebServerRequest;
 import lombok.Getter;
 
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 public class WebServerRequestDecoder {
-    private static final int AVERAGE_PATH_LENGTH_HINT = 256;
     private static final String CONTENT_LENGTH = "Content-Length";
     private static final String TRANSFER_ENCODING = "Transfer-Encoding";
     private static final String CHUNKED = "chunked";
+    private static final String CONNECTION = "Connection";
+    private static final String CLOSE = "close";
+    private static final String KEEP_ALIVE = "keep-alive";
+    private static final String HTTP_1_0 = "HTTP/1.0";
+    private static final String HTTP_1_1 = "HTTP/1.1";
+    private static final String HTTP_2_0 = "HTTP/2.0";
 
-    private WebServerRequest.WebServerRequestBuilder requestBuilder = WebServerRequest.builder();
-    private int contentLength = 0;
+    private final RequestSlices slices = new RequestSlices();
+    private final WebServerRequest flyweight;
+    private long contentLength = 0;
+    private long bodyRemaining = 0;
+    private int chunkRemaining = 0;
+    private boolean chunkEndPending = false;
+    private boolean keepAlive = true;
     private WebServerRequest request;
 
     @Getter
-    private State state = State.REQUEST_LINE;
+    private State state = State.HEAD;
+
+    public WebServerRequestDecoder() {
+        this(false);
+    }
+
+    /**
+     * @param lazy if true, one request instance is reused for every request decoded by this decoder, and
+     *             its path, headers and query parameters are views into the input buffer that only become
+     *             Strings when asked for. Such a request is only valid until the buffer is compacted, unless
+     *             it is {@link WebServerRequest#detach() detached} first.
+     */
+    public WebServerRequestDecoder(boolean lazy) {
+        this.flyweight = lazy ? WebServerRequest.builder().slices(slices).build() : null;
+    }
 
     public WebServerRequest decode(ByteBuffer buffer) {
         if (state == State.DONE) {
-            requestBuilder = WebServerRequest.builder();
-            contentLength = 0;
-            state = State.REQUEST_LINE;
+            state = State.HEAD;
         }
-        try {
-            loop: while (buffer.hasRemaining()) {
-                buffer.mark();
-                switch (state) {
-                    case REQUEST_LINE -> {
-                        decodeMethod(buffer);
-                        decodePathAndParameters(buffer);
-                        decodeProtocol(buffer);
-                        state = State.HEADERS;
-                    }
-                    case HEADERS -> {
-                        Map<String, List<String>> headers = decodeHeaders(buffer);
-                        determineBodyType(headers);
-                        requestBuilder.headers(headers);
-                        if (state == State.CHUNKED_BODY) {
-                            requestBuilder.body(ByteBuffer.allocateDirect(buffer.capacity()));
-                            request = requestBuilder.build();
-                            break loop;
-                        }
-                    }
-                    case BODY -> {
-                        ByteBuffer body = decodeBody(buffer);
-                        if (body == null) {
-                            buffer.reset();
-                            return null;
-                        }
-                        requestBuilder.body(body);
-                        state = State.DONE;
-                        break loop;
-                    }
-                    case CHUNKED_BODY -> {
-                        ByteBuffer chunk = decodeChunkedBody(buffer);
-                        if (chunk == null) {
-                            buffer.reset();
-                            return null;
-                        }
-                        if (request.chunkHandler() != null) {
-                            request.chunkHandler().accept(chunk);
-                        }
-                    }
+        while (buffer.hasRemaining()) {
+            if (isDecodingBody()) {
+                if (!decodeBody(buffer)) {
+                    return null;
                 }
+                continue;
             }
-        } catch (BufferUnderflowException ex) {
-            buffer.reset();
-            return null;
-        }
-        if (state == State.CHUNKED_BODY) {
-            return request;
-        } else if (state == State.DONE) {
-            request = requestBuilder.build();
+
+            // A partially received request is decoded again from its first byte once more data arrives,
+            // so every slice always points into the buffer as it is now, even after it has been compacted.
+            int start = buffer.position();
+            if (!decodeHead(buffer)) {
+                buffer.position(start);
+                return null;
+            }
+            determineBodyType();
+            determineKeepAlive();
+            if (state == State.BODY && buffer.position() - start + contentLength > buffer.capacity()) {
+                // the body can never fit in the buffer, so it is handed over in segments as it arrives
+                state = State.STREAMED_BODY;
+                bodyRemaining = contentLength;
+                contentLength = 0;
+            }
+            if (isDecodingBody()) {
+                // the head must outlive the buffer compactions that happen while the body streams in
+                request = materialize(null);
+                return request;
+            }
+            ByteBuffer body = null;
+            if (state == State.BODY) {
+                if (buffer.remaining() < contentLength) {
+                    buffer.position(start);
+                    return null; // decoded again from the head, but reported as awaiting its body
+                }
+                body = buffer.slice(buffer.position(), (int) contentLength);
+                skip(buffer, (int) contentLength);
+            }
+            state = State.DONE;
             contentLength = 0;
+            request = flyweight != null ? flyweight.reset(slices, body) : materialize(body);
             return request;
-        } else {
-            return null;
         }
+        return null;
+    }
+
+    /**
+     * Decodes a complete request head that nothing else shares, such as an HTTP/2 stream's headers once in
+     * HTTP/1 form, into a request of its own whose path and headers are views into {@code buffer}. Its body is
+     * {@code body}, or arrives through its chunk handler if {@code streamed}.
+     */
+    public static WebServerRequest decodeStandalone(ByteBuffer buffer, ByteBuffer body, boolean streamed) {
+        var decoder = new WebServerRequestDecoder();
+        if (!decoder.decodeHead(buffer)) {
+            throw new IllegalArgumentException("Incomplete request head");
+        }
+        return WebServerRequest.builder().slices(decoder.slices).body(body).streamed(streamed).build();
+    }
+
+    /**
+     * Whether the last request returned has a body that is still being streamed to its chunk handler.
+     */
+    public boolean isDecodingBody() {
+        return state == State.CHUNKED_BODY || state == State.STREAMED_BODY;
+    }
+
+    /**
+     * Whether the client of the last request returned wants the connection kept open after its response:
+     * by default from HTTP/1.1 unless it sent {@code Connection: close}, and from HTTP/1.0 only if it sent
+     * {@code Connection: keep-alive}.
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Whether the head of the request being received is complete and its body is still to arrive in full.
+     */
+    public boolean isAwaitingBody() {
+        return state == State.BODY;
+    }
+
+    /**
+     * Hands as much of a streamed body as has been received to the request's chunk handler. Each segment is
+     * a view into {@code buffer}, only valid until the handler returns. Stops early while the request's body
+     * is {@link WebServerRequest#pauseBody() paused}.
+     *
+     * @return true once the whole body has been consumed, and the next request can be decoded
+     */
+    public boolean decodeBody(ByteBuffer buffer) {
+        while (!request.bodyPaused()) {
+            boolean progressed = state == State.CHUNKED_BODY ? decodeChunk(buffer) : decodeSegment(buffer);
+            if (!isDecodingBody()) {
+                return true;
+            }
+            if (!progressed) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private WebServerRequest materialize(ByteBuffer body) {
+        return WebServerRequest.builder()
+            .method(slices.method())
+            .path(slices.path())
+            .protocol(slices.protocol())
+            .headers(slices.headers())
+            .queryParams(slices.queryParams())
+            .body(body)
+            .streamed(isDecodingBody())
+            .build();
+    }
+
+    private boolean decodeHead(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        int position = skipEmptyLines(buffer, buffer.position(), limit);
+        slices.reset(buffer);
+        position = decodeMethod(buffer, position, limit);
+        if (position < 0) {
+            return false;
+        }
+        position = decodePathAndParameters(buffer, position, limit);
+        if (position < 0) {
+            return false;
+        }
+        position = decodeProtocol(buffer, position, limit);
+        if (position < 0) {
+            return false;
+        }
+        position = decodeHeaders(buffer, position, limit);
+        if (position < 0) {
+            return false;
+        }
+        buffer.position(position);
+        return true;
+    }
+
+    private int skipEmptyLines(ByteBuffer buffer, int position, int limit) {
+        while (position < limit && (buffer.get(position) == '\r' || buffer.get(position) == '\n')) {
+            position++;
+        }
+        return position;
     }
 
-    private void decodeMethod(ByteBuffer buffer) {
-        byte first = buffer.get(buffer.position());
-        String method = switch (first) {
-            case 'G' -> "GET";
-            case 'H' -> "HEAD";
-            case 'P' -> switch (buffer.get(buffer.position() + 1)) {
-                case 'O' -> "POST";
-                case 'U' -> "PUT";
-                case 'A' -> "PATCH";
+    private int decodeMethod(ByteBuffer buffer, int position, int limit) {
+        if (position + 1 >= limit) {
+            return -1;
+        }
+        byte first = buffer.get(position);
+        HttpMethod method = switch (first) {
+            case 'G' -> HttpMethod.GET;
+            case 'H' -> HttpMethod.HEAD;
+            case 'P' -> switch (buffer.get(position + 1)) {
+                case 'O' -> HttpMethod.POST;
+                case 'U' -> HttpMethod.PUT;
+                case 'A' -> HttpMethod.PATCH;
                 default -> throw new RuntimeException("Unable to decode method");
             };
-            case 'D' -> "DELETE";
-            case 'O' -> "OPTIONS";
-            case 'T' -> "TRACE";
+            case 'D' -> HttpMethod.DELETE;
+            case 'O' -> HttpMethod.OPTIONS;
+            case 'T' -> HttpMethod.TRACE;
             default -> throw new RuntimeException("Unable to decode method: " + first);
         };
-        skip(buffer, method.length() + 1);
-        requestBuilder.method(method);
+        slices.method(method);
+        return position + method.name().length() + 1;
     }
 
-    private void decodePathAndParameters(ByteBuffer buffer) {
-        StringBuilder pathBuilder = new StringBuilder(AVERAGE_PATH_LENGTH_HINT);
-        StringBuilder paramKeyBuilder = null, paramValBuilder = null;
-        Map<String, List<String>> parameters = new HashMap<>();
-        PathState pathState = PathState.PATH;
-        loop: while (true) {
-            int val = buffer.get();
-            switch (pathState) {
-                case PATH -> {
-                    if (val == ' ') {
-                        requestBuilder.path(pathBuilder.toString());
-                        break loop;
-                    } else if (val == '?') {
-                        requestBuilder.path(pathBuilder.toString());
-                        paramKeyBuilder = new StringBuilder();
-                        pathState = PathState.PARAM_KEY;
-                    } else {
-                        pathBuilder.append((char) val);
-                    }
+    private int decodePathAndParameters(ByteBuffer buffer, int position, int limit) {
+        int pathStart = position;
+        int keyStart = -1, keyEnd = -1, valueStart = -1;
+        for (; position < limit; position++) {
+            byte val = buffer.get(position);
+            if (keyStart < 0) {
+                if (val == ' ') {
+                    slices.path(pathStart, position - pathStart);
+                    slices.targetLength(position - pathStart);
+                    return position + 1;
+                } else if (val == '?') {
+                    slices.path(pathStart, position - pathStart);
+                    keyStart = position + 1;
                 }
-                case PARAM_KEY -> {
-                    if (val == ' ') {
-                        break loop;
-                    } else if (val == '=') {
-                        paramValBuilder = new StringBuilder();
-                        pathState = PathState.PARAM_VAL;
-                    } else {
-                        paramKeyBuilder.append((char) val);
-                    }
+            } else if (val == '=' && valueStart < 0) {
+                keyEnd = position;
+                valueStart = position + 1;
+            } else if (val == '&' || val == ' ') {
+                if (valueStart >= 0) {
+                    slices.addQueryParam(keyStart, keyEnd - keyStart, valueStart, position - valueStart);
+                } else if (position > keyStart) {
+                    slices.addQueryParam(keyStart, position - keyStart, position, 0);
                 }
-                case PARAM_VAL -> {
-                    if (val == '&' || val == ' ') {
-                        parameters
-                            .computeIfAbsent(paramKeyBuilder.toString(), k -> new ArrayList<>())
-                            .add(paramValBuilder.toString());
-                        if (val == ' ') {
-                            break loop;
-                        }
-                        pathState = PathState.PARAM_KEY;
-                        paramKeyBuilder = new StringBuilder();
-                    } else {
-                        paramValBuilder.append((char) val);
-                    }
+                if (val == ' ') {
+                    slices.targetLength(position - pathStart);
+                    return position + 1;
                 }
+                keyStart = position + 1;
+                valueStart = -1;
             }
         }
-        requestBuilder.queryParams(parameters);
+        return -1;
     }
 
-    private void decodeProtocol(ByteBuffer buffer) {
-        String protocol = switch (buffer.get(buffer.position() + 5)) {
-            case '1' -> "HTTP/1." + (char) (buffer.get(buffer.position() + 7));
-            case '2' -> "HTTP/2.0";
+    private int decodeProtocol(ByteBuffer buffer, int position, int limit) {
+        if (position + 7 >= limit) {
+            return -1;
+        }
+        String protocol = switch (buffer.get(position + 5)) {
+            case '1' -> switch (buffer.get(position + 7)) {
+                case '0' -> HTTP_1_0;
+                case '1' -> HTTP_1_1;
+                default -> "HTTP/1." + (char) (buffer.get(position + 7));
+            };
+            case '2' -> HTTP_2_0;
             default -> throw new RuntimeException("Unable to decode protocol");
         };
-        skip(buffer, protocol.length());
-        requestBuilder.protocol(protocol);
-        int val = buffer.get();
-        while (val != '\n') {
-            val = buffer.get();
+        int lineEnd = indexOf(buffer, position + protocol.length(), limit, '\n');
+        if (lineEnd < 0) {
+            return -1;
         }
+        slices.protocol(protocol);
+        return lineEnd + 1;
     }
 
-    private Map<String, List<String>> decodeHeaders(ByteBuffer buffer) {
-        StringBuilder headerKeyBuilder = new StringBuilder(), headerValBuilder = null;
-        Map<String, List<String>> headers = new HashMap<>();
-        HeaderState headerState = HeaderState.HEADER_KEY;
-        for (int val = buffer.get(); !(val == '\n' && headerState == HeaderState.HEADER_KEY); val = buffer.get()) {
-            switch (headerState) {
-                case HEADER_KEY -> {
-                    if (val == ':') {
-                        headerValBuilder = new StringBuilder();
-                        headerState = HeaderState.HEADER_VAL;
-                    } else {
-                        headerKeyBuilder.append((char) val);
-                    }
+    private int decodeHeaders(ByteBuffer buffer, int position, int limit) {
+        while (true) {
+            int lineEnd = indexOf(buffer, position, limit, '\n');
+            if (lineEnd < 0) {
+                return -1;
+            }
+            int end = lineEnd > position && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+            if (end == position) {
+                return lineEnd + 1;
+            }
+            int colon = indexOf(buffer, position, end, ':');
+            if (colon >= 0) {
+                int valueStart = colon + 1;
+                while (valueStart < end && isWhitespace(buffer.get(valueStart))) {
+                    valueStart++; // skip leading whitespace
                 }
-                case HEADER_VAL -> {
-                    if (val == '\n') {
-                        headers.computeIfAbsent(headerKeyBuilder.toString(), (k) -> new ArrayList<>()).add(headerValBuilder.toString());
-                        headerKeyBuilder = new StringBuilder();
-                        headerState = HeaderState.HEADER_KEY;
-                    } else if (val != '\r') {
-                        if (val == ' ' && headerValBuilder.isEmpty()) {
-                            continue; // skip first whitespace
-                        }
-                        headerValBuilder.append((char) val);
-                    }
+                int valueEnd = end;
+                while (valueEnd > valueStart && isWhitespace(buffer.get(valueEnd - 1))) {
+                    valueEnd--;
                 }
+                slices.addHeader(position, colon - position, valueStart, valueEnd - valueStart);
             }
+            position = lineEnd + 1;
         }
-        return headers;
     }
 
-    private void determineBodyType(Map<String, List<String>> headers) {
-        if (headers.containsKey(CONTENT_LENGTH)) {
-            contentLength = Integer.parseInt(headers.get(CONTENT_LENGTH).get(0));
+    private void determineBodyType() {
+        int index = slices.headerIndex(CONTENT_LENGTH);
+        if (index >= 0) {
+            contentLength = parseDecimal(slices.source(), slices.headerValueStart(index), slices.headerValueLength(index));
             state = State.BODY;
-        } else if (headers.containsKey(TRANSFER_ENCODING) && headers.get(TRANSFER_ENCODING).get(0).equals(CHUNKED)) {
+        } else if (slices.headerEquals(TRANSFER_ENCODING, CHUNKED)) {
             state = State.CHUNKED_BODY;
         } else {
             state = State.DONE;
         }
     }
 
-    private ByteBuffer decodeBody(ByteBuffer buffer) {
-        if (contentLength != 0 && buffer.remaining() < contentLength) {
-            return null;
+    private void determineKeepAlive() {
+        if (slices.protocol() == HTTP_1_0) {
+            keepAlive = slices.headerHasToken(CONNECTION, KEEP_ALIVE);
+        } else {
+            keepAlive = !slices.headerHasToken(CONNECTION, CLOSE);
+        }
+    }
+
+    private boolean decodeSegment(ByteBuffer buffer) {
+        int length = (int) Math.min(buffer.remaining(), bodyRemaining);
+        if (length == 0) {
+            return false;
         }
-        ByteBuffer body = buffer.slice().limit(contentLength);
-        skip(buffer, contentLength);
-        return body;
+        ByteBuffer segment = buffer.slice(buffer.position(), length);
+        skip(buffer, length);
+        bodyRemaining -= length;
+        deliver(segment);
+        if (bodyRemaining == 0) {
+            endBody();
+        }
+        return true;
     }
 
-    private ByteBuffer decodeChunkedBody(ByteBuffer buffer) {
-        int chunkSize = Integer.parseInt(readLine(buffer));
+    private boolean decodeChunk(ByteBuffer buffer) {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        if (chunkEndPending) {
+            // the CRLF after the data of a chunk that was delivered in segments
+            if (limit - start < 2) {
+                return false;
+            }
+            buffer.position(start + 2);
+            chunkEndPending = false;
+            return true;
+        }
+        if (chunkRemaining > 0) {
+            int length = Math.min(limit - start, chunkRemaining);
+            if (length == 0) {
+                return false;
+            }
+            ByteBuffer segment = buffer.slice(start, length);
+            buffer.position(start + length);
+            chunkRemaining -= length;
+            chunkEndPending = chunkRemaining == 0;
+            deliver(segment);
+            return true;
+        }
+        int lineEnd = indexOf(buffer, start, limit, '\n');
+        if (lineEnd < 0) {
+            return false;
+        }
+        int chunkSize = parseHex(buffer, start, lineEnd);
         if (chunkSize == 0) {
-            state = State.DONE;
-            return null;
+            // the last chunk is followed by optional trailers and an empty line
+            int end = decodeHeaders(buffer, lineEnd + 1, limit);
+            if (end < 0) {
+                return false;
+            }
+            buffer.position(end);
+            endBody();
+            return true;
         }
-        if (chunkSize > buffer.capacity()) {
-            throw new IllegalArgumentException("Chunk size cannot be greater than requestBufferSize");
+        int dataStart = lineEnd + 1;
+        if (limit - dataStart >= chunkSize + 2) { // + 2 for \r\n
+            ByteBuffer chunk = buffer.slice(dataStart, chunkSize);
+            buffer.position(dataStart + chunkSize + 2);
+            deliver(chunk);
+            return true;
         }
-        if (!hasRemainingExcludingNewline(buffer, chunkSize)) {
-            return null;
+        if (dataStart - start + chunkSize + 2 <= buffer.capacity()) {
+            return false; // delivered whole once the rest has arrived
         }
-        ByteBuffer chunk = buffer.slice().limit(chunkSize);
-        skip(buffer, chunkSize + 2);
-        return chunk;
+        // larger than the buffer, so delivered in segments as it arrives
+        buffer.position(dataStart);
+        chunkRemaining = chunkSize;
+        return true;
     }
 
-    private String readLine(ByteBuffer buffer) {
-        StringBuilder builder = new StringBuilder();
-        for (int val = buffer.get(); val != '\n'; val = buffer.get()) {
-            if (val != '\r') {
-                builder.append((char) val);
+    private void deliver(ByteBuffer segment) {
+        if (request.chunkHandler() != null) {
+            request.chunkHandler().accept(segment);
+        }
+    }
+
+    private void endBody() {
+        state = State.HEAD;
+        if (request.bodyEndHandler() != null) {
+            request.bodyEndHandler().run();
+        }
+    }
+
+    private long parseDecimal(ByteBuffer buffer, int start, int length) {
+        if (length == 0) {
+            throw new NumberFormatException("Empty number");
+        }
+        long value = 0;
+        for (int i = start; i < start + length; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid number: " + RequestSlices.ascii(buffer, start, length));
             }
+            value = Math.addExact(Math.multiplyExact(value, 10), digit);
         }
-        return builder.toString();
+        return value;
     }
 
-    private boolean hasRemainingExcludingNewline(ByteBuffer buffer, int amount) {
-        return buffer.remaining() >= amount + 2; // + 2 for \r\n
+    private int parseHex(ByteBuffer buffer, int start, int end) {
+        int value = 0, digits = 0;
+        for (int i = start; i < end; i++) {
+            int val = buffer.get(i);
+            int digit = Character.digit(val, 16);
+            if (digit < 0) {
+                if (val == ';' || val == '\r' || val == ' ') {
+                    break; // chunk extensions are ignored
+                }
+                throw new NumberFormatException("Invalid chunk size");
+            }
+            value = Math.addExact(Math.multiplyExact(value, 16), digit);
+            digits++;
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Invalid chunk size");
+        }
+        return value;
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, int to, char value) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte val) {
+        return val == ' ' || val == '\t';
     }
 
     private void skip(ByteBuffer buffer, int amount) {
@@ -256,21 +451,10 @@ public class WebServerRequestDecoder {
     }
 
     private enum State {
-        REQUEST_LINE,
-        HEADERS,
+        HEAD,
         BODY,
+        STREAMED_BODY,
         CHUNKED_BODY,
         DONE,
     }
-
-    private enum PathState {
-        PATH,
-        PARAM_KEY,
-        PARAM_VAL,
-    }
-
-    private enum HeaderState {
-        HEADER_KEY,
-        HEADER_VAL,
-    }
 }
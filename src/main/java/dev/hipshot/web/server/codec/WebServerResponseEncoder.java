@@ -1,58 +1,432 @@
 package dev.hipshot.web.server.codec;
 
+import dev.hipshot.web.server.CachedResponse;
 import dev.hipshot.web.server.WebServerResponse;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Appends encoded responses to a buffer in write mode, so several responses can be written out together.
+ * An encoder is confined to the ring that uses it.
+ */
 public class WebServerResponseEncoder {
+    private static final byte[][] STATUS_LINES = new byte[600][];
     private static final Map<Integer, byte[]> ENCODED_STATUSES = new ConcurrentHashMap<>();
     private static final Map<String, byte[]> ENCODED_HEADER_KEYS = new ConcurrentHashMap<>();
-    private static final byte[] HTTP_VERSION = "HTTP/1.1 ".getBytes(StandardCharsets.UTF_8);
     private static final byte[] CARRIAGE_RETURN = "\r\n".getBytes(StandardCharsets.UTF_8);
     private static final byte[] SERVER_HEADER = "Server: Hipshot\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CONTENT_LENGTH_HEADER = "Content-Length: ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CHUNKED_HEADER = "Transfer-Encoding: chunked\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
 
-    public static void encode(WebServerResponse response, ByteBuffer buffer) {
-        if (!response.headers().containsKey("Content-Length")) {
-            var contentLength = response.body() != null ? response.body().remaining() : 0;
-            response.header("Content-Length", contentLength + "");
+    static {
+        for (int status = 100; status < STATUS_LINES.length; status++) {
+            STATUS_LINES[status] = encodeStatusLine(status);
         }
+    }
+
+    private final DateHeader date = new DateHeader();
+    private final ResponseCache cache;
+
+    public WebServerResponseEncoder() {
+        this(0);
+    }
+
+    /**
+     * @param cacheSize how many recently encoded responses to keep, so a response with the same status, headers
+     *                  and body String as a recent one is copied instead of encoded again; 0 disables the cache
+     */
+    public WebServerResponseEncoder(int cacheSize) {
+        this.cache = cacheSize > 0 ? new ResponseCache(cacheSize) : null;
+    }
 
-        if (!ENCODED_STATUSES.containsKey(response.status())) {
-            byte[] statusBytes = (response.status() + "\r\n").getBytes(StandardCharsets.UTF_8);
-            ENCODED_STATUSES.put(response.status(), statusBytes);
+    /**
+     * Appends a whole response to {@code buffer}.
+     *
+     * @throws BufferOverflowException if it does not fit, in which case nothing is written
+     */
+    public void encode(WebServerResponse response, ByteBuffer buffer) {
+        byte[] date = this.date.current(System.currentTimeMillis());
+        if (encodedLength(response, date.length) > buffer.remaining()) {
+            throw new BufferOverflowException();
         }
+        encode(response, buffer, date);
+    }
+
+    private void encode(WebServerResponse response, ByteBuffer buffer, byte[] date) {
+        CachedResponse cached = response.cached();
+        if (cached != null) {
+            // pre-encoded responses carry no Date header, the current one goes right after the status line
+            ByteBuffer encoded = cached.encoded();
+            int split = cached.statusLineLength();
+            put(buffer, encoded, 0, split);
+            buffer.put(date);
+            put(buffer, encoded, split, encoded.limit() - split);
+            return;
+        }
+        if (cache == null || !ResponseCache.accepts(response)) {
+            encodeResponse(response, buffer, date);
+            return;
+        }
+        ResponseCache.Entry entry = cache.get(response);
+        if (entry != null) {
+            buffer.put(entry.encoded(), 0, entry.split())
+                .put(date)
+                .put(entry.encoded(), entry.split(), entry.encoded().length - entry.split());
+            return;
+        }
+        int start = buffer.position();
+        int split = encodeResponse(response, buffer, date);
+        cache.put(response, buffer, start, split, date.length);
+    }
+
+    /**
+     * Appends a response to a connection's output. A response that does not fit in what is left of the current
+     * segment has its head encoded into a fresh one, and its body appended after it: copied into as many
+     * segments as it needs, or referenced in place if it is direct.
+     */
+    public void encode(WebServerResponse response, OutputChain output) {
+        byte[] date = this.date.current(System.currentTimeMillis());
+        int length = encodedLength(response, date.length);
+        ByteBuffer buffer = output.tail();
+        if (length > buffer.remaining()) {
+            buffer = output.nextSegment();
+        }
+        if (length <= buffer.remaining()) {
+            encode(response, buffer, date);
+            return;
+        }
+        CachedResponse cached = response.cached();
+        if (cached != null) {
+            ByteBuffer encoded = cached.encoded();
+            int split = cached.statusLineLength();
+            buffer = output.reserve(split + date.length);
+            put(buffer, encoded, 0, split);
+            buffer.put(date);
+            output.append(encoded.duplicate().position(split));
+            return;
+        }
+        encodeHead(response, output, date, false);
+        ByteBuffer body = body(response);
+        if (body != null) {
+            output.append(body);
+        }
+    }
+
+    /**
+     * Appends the status line and headers of a response whose body is about to be streamed with
+     * {@link #encodeChunk}: chunked, unless the response has its own Content-Length or a status that has no
+     * body.
+     */
+    public void encodeHead(WebServerResponse response, OutputChain output) {
+        encodeHead(response, output, date.current(System.currentTimeMillis()), chunked(response));
+    }
+
+    /**
+     * Encodes just the status line and headers of a response into {@code buffer}, for a body about to be
+     * streamed if {@code streamed}, which is where {@link Http2ResponseEncoder} transcodes them from.
+     */
+    public void encodeHead(WebServerResponse response, ByteBuffer buffer, boolean streamed) {
+        byte[] date = this.date.current(System.currentTimeMillis());
+        boolean chunked = streamed && chunked(response);
+        if (headLength(response, date.length, chunked) > buffer.remaining()) {
+            throw new BufferOverflowException();
+        }
+        encodeHead(response, buffer, date, chunked);
+    }
 
+    /**
+     * Appends part of a streamed body, framed as a chunk unless the response has its own Content-Length. Dropped
+     * if the response has a status that has no body.
+     */
+    public void encodeChunk(WebServerResponse response, ByteBuffer chunk, OutputChain output) {
+        if (bodiless(response.status())) {
+            return;
+        }
+        if (!chunked(response)) {
+            output.append(chunk);
+            return;
+        }
+        if (!chunk.hasRemaining()) {
+            return; // an empty chunk would end the body
+        }
+        ByteBuffer buffer = output.reserve(8 + 2);
+        putHex(buffer, chunk.remaining());
+        buffer.put(CARRIAGE_RETURN);
+        output.append(chunk);
+        output.reserve(2).put(CARRIAGE_RETURN);
+    }
+
+    /**
+     * Ends a streamed body.
+     */
+    public void encodeLastChunk(WebServerResponse response, OutputChain output) {
+        if (chunked(response)) {
+            output.reserve(LAST_CHUNK.length).put(LAST_CHUNK);
+        }
+    }
+
+    private static void encodeHead(WebServerResponse response, OutputChain output, byte[] date, boolean chunked) {
+        int length = headLength(response, date.length, chunked);
+        ByteBuffer buffer = output.tail();
+        if (length > buffer.remaining()) {
+            buffer = output.nextSegment();
+        }
+        if (length > buffer.remaining()) {
+            // larger than a whole segment, so encoded on its own and copied in
+            buffer = ByteBuffer.allocate(length);
+            encodeHead(response, buffer, date, chunked);
+            output.copy(buffer.flip());
+            return;
+        }
+        encodeHead(response, buffer, date, chunked);
+    }
+
+    /**
+     * Serialises a response once, without a Date header, into a read-only direct buffer that can be shared by
+     * every ring.
+     */
+    public static ByteBuffer preEncode(WebServerResponse response) {
+        var buffer = ByteBuffer.allocateDirect(encodedLength(response, 0));
+        encodeResponse(response, buffer, null);
+        return buffer.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the length of the status line, where the Date header starts
+     */
+    private static int encodeResponse(WebServerResponse response, ByteBuffer buffer, byte[] date) {
+        int split = encodeHead(response, buffer, date, false);
+
+        // And finally encode the body, leaving its position untouched so it can be sent again
+        ByteBuffer body = body(response);
+        if (body != null) {
+            put(buffer, body, body.position(), body.remaining());
+        }
+        return split;
+    }
+
+    private static int encodeHead(WebServerResponse response, ByteBuffer buffer, byte[] date, boolean chunked) {
         // Encode the response status line
-        buffer
-            .put(HTTP_VERSION)
-            .put(ENCODED_STATUSES.get(response.status()));
+        byte[] statusLine = statusLine(response.status());
+        buffer.put(statusLine);
 
         // Encode any response headers
+        if (date != null) {
+            buffer.put(date);
+        }
         buffer.put(SERVER_HEADER);
-        if (!response.headers().isEmpty()) {
+        for (int i = 0; i < response.encodedHeaderCount(); i++) {
+            buffer.put(response.encodedHeader(i).encoded());
+        }
+        if (response.hasHeaders()) {
             for (Map.Entry<String, List<String>> entry : response.headers().entrySet()) {
+                byte[] encodedKey = encodedKey(entry.getKey());
                 for (String headerValue : entry.getValue()) {
-                    if (!ENCODED_HEADER_KEYS.containsKey(entry.getKey())) {
-                        byte[] encodedKey = (entry.getKey() + ": ").getBytes(StandardCharsets.UTF_8);
-                        ENCODED_HEADER_KEYS.put(entry.getKey(), encodedKey);
-                    }
-                    buffer.put(ENCODED_HEADER_KEYS.get(entry.getKey()))
-                            .put(headerValue.getBytes(StandardCharsets.UTF_8))
-                            .put(CARRIAGE_RETURN);
+                    buffer.put(encodedKey);
+                    putString(buffer, headerValue);
+                    buffer.put(CARRIAGE_RETURN);
                 }
             }
         }
+        if (chunked) {
+            buffer.put(CHUNKED_HEADER);
+        } else if (!response.hasContentLength() && !bodiless(response.status())) {
+            buffer.put(CONTENT_LENGTH_HEADER);
+            putDecimal(buffer, response.body() != null ? response.body().remaining() : 0);
+            buffer.put(CARRIAGE_RETURN);
+        }
         buffer.put(CARRIAGE_RETURN);
+        return statusLine.length;
+    }
+
+    /**
+     * The length {@link #encode} gives a response, with a Date header of {@code dateLength} bytes, so it can be
+     * placed before any of it is written.
+     */
+    private static int encodedLength(WebServerResponse response, int dateLength) {
+        CachedResponse cached = response.cached();
+        if (cached != null) {
+            return cached.encoded().limit() + dateLength;
+        }
+        ByteBuffer body = body(response);
+        return headLength(response, dateLength, false) + (body != null ? body.remaining() : 0);
+    }
+
+    /**
+     * The body to send after the head, or null if there is none or the status does not allow one, which
+     * would otherwise be read as the start of the next response.
+     */
+    static ByteBuffer body(WebServerResponse response) {
+        return bodiless(response.status()) ? null : response.body();
+    }
 
-        // And finally encode the body
-        if (response.body() != null) {
-            buffer.put(response.body());
+    /**
+     * The length {@link #encodeHead(WebServerResponse, ByteBuffer, byte[], boolean)} gives the status line and
+     * headers of a response.
+     */
+    private static int headLength(WebServerResponse response, int dateLength, boolean chunked) {
+        int length = statusLine(response.status()).length + dateLength + SERVER_HEADER.length;
+        for (int i = 0; i < response.encodedHeaderCount(); i++) {
+            length += response.encodedHeader(i).encoded().length;
+        }
+        if (response.hasHeaders()) {
+            for (Map.Entry<String, List<String>> entry : response.headers().entrySet()) {
+                int keyLength = encodedKey(entry.getKey()).length;
+                for (String headerValue : entry.getValue()) {
+                    length += keyLength + encodedLength(headerValue) + CARRIAGE_RETURN.length;
+                }
+            }
+        }
+        if (chunked) {
+            length += CHUNKED_HEADER.length;
+        } else if (!response.hasContentLength() && !bodiless(response.status())) {
+            length += CONTENT_LENGTH_HEADER.length
+                + decimalLength(response.body() != null ? response.body().remaining() : 0)
+                + CARRIAGE_RETURN.length;
         }
+        return length + CARRIAGE_RETURN.length;
+    }
+
+    private static byte[] encodedKey(String key) {
+        byte[] encodedKey = ENCODED_HEADER_KEYS.get(key);
+        if (encodedKey == null) {
+            encodedKey = (key + ": ").getBytes(StandardCharsets.UTF_8);
+            ENCODED_HEADER_KEYS.put(key, encodedKey);
+        }
+        return encodedKey;
+    }
+
+    /**
+     * Whether a streamed body goes out chunked: not when the response has its own length, nor when its status
+     * means it has no body at all.
+     */
+    private static boolean chunked(WebServerResponse response) {
+        return !response.hasContentLength() && !bodiless(response.status());
+    }
+
+    /**
+     * Whether a status has no body whatever the headers say, so no framing headers either.
+     */
+    private static boolean bodiless(int status) {
+        return status < 200 || status == 204 || status == 304;
+    }
+
+    private static byte[] statusLine(int status) {
+        if (status >= 100 && status < STATUS_LINES.length) {
+            return STATUS_LINES[status];
+        }
+        return ENCODED_STATUSES.computeIfAbsent(status, WebServerResponseEncoder::encodeStatusLine);
+    }
 
-        buffer.flip();
+    private static byte[] encodeStatusLine(int status) {
+        return ("HTTP/1.1 " + status + " " + reasonPhrase(status) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String reasonPhrase(int status) {
+        return switch (status) {
+            case 100 -> "Continue";
+            case 101 -> "Switching Protocols";
+            case 200 -> "OK";
+            case 201 -> "Created";
+            case 202 -> "Accepted";
+            case 204 -> "No Content";
+            case 206 -> "Partial Content";
+            case 301 -> "Moved Permanently";
+            case 302 -> "Found";
+            case 303 -> "See Other";
+            case 304 -> "Not Modified";
+            case 307 -> "Temporary Redirect";
+            case 308 -> "Permanent Redirect";
+            case 400 -> "Bad Request";
+            case 401 -> "Unauthorized";
+            case 403 -> "Forbidden";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 408 -> "Request Timeout";
+            case 409 -> "Conflict";
+            case 411 -> "Length Required";
+            case 413 -> "Content Too Large";
+            case 414 -> "URI Too Long";
+            case 415 -> "Unsupported Media Type";
+            case 416 -> "Range Not Satisfiable";
+            case 429 -> "Too Many Requests";
+            case 431 -> "Request Header Fields Too Large";
+            case 500 -> "Internal Server Error";
+            case 501 -> "Not Implemented";
+            case 502 -> "Bad Gateway";
+            case 503 -> "Service Unavailable";
+            case 504 -> "Gateway Timeout";
+            case 505 -> "HTTP Version Not Supported";
+            default -> "";
+        };
+    }
+
+    /**
+     * The length {@link #putString} gives a header value.
+     */
+    private static int encodedLength(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0x7F) {
+                return value.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        return value.length();
+    }
+
+    /**
+     * Writes a header value byte by byte when it is plain ASCII, which it almost always is, and only falls
+     * back to charset encoding otherwise. The buffer has room for it, see {@link #headLength}.
+     */
+    private static void putString(ByteBuffer buffer, String value) {
+        int length = value.length();
+        int start = buffer.position();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c > 0x7F) {
+                buffer.position(start).put(value.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer.put(start + i, (byte) c);
+        }
+        buffer.position(start + length);
+    }
+
+    private static void put(ByteBuffer buffer, ByteBuffer src, int offset, int length) {
+        buffer.put(buffer.position(), src, offset, length);
+        buffer.position(buffer.position() + length);
+    }
+
+    static void putDecimal(ByteBuffer buffer, int value) {
+        if (value == 0) {
+            buffer.put((byte) '0');
+            return;
+        }
+        int end = buffer.position() + decimalLength(value);
+        for (int i = end - 1; value > 0; i--, value /= 10) {
+            buffer.put(i, (byte) ('0' + value % 10));
+        }
+        buffer.position(end);
+    }
+
+    private static int decimalLength(int value) {
+        int digits = 1;
+        for (int remaining = value / 10; remaining > 0; remaining /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private static void putHex(ByteBuffer buffer, int value) {
+        int digits = Math.max(1, (Integer.SIZE - Integer.numberOfLeadingZeros(value) + 3) / 4);
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer.put(HEX_DIGITS[(value >>> (i * 4)) & 0xF]);
+        }
     }
 }
@@ -0,0 +1,39 @@
+package dev.hipshot.web.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Pins threads to CPUs on Linux. Neither the JDK nor nio_uring expose sched_setaffinity, so this runs
+ * {@code taskset} on the calling thread's task id, which is read from {@code /proc/thread-self}.
+ */
+@Slf4j
+public final class Affinity {
+    private Affinity() {
+    }
+
+    /**
+     * Restricts the calling thread to {@code cpu}. Returns false, after logging why, if it could not.
+     */
+    public static boolean pin(int cpu) {
+        try {
+            var task = Files.readSymbolicLink(Path.of("/proc/thread-self")).getFileName().toString();
+            var taskset = new ProcessBuilder("taskset", "-p", "-c", Integer.toString(cpu), task)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+            if (taskset.waitFor() == 0) {
+                return true;
+            }
+            log.warn("Unable to pin {} to CPU {}, taskset exited with {}", Thread.currentThread().getName(), cpu, taskset.exitValue());
+        } catch (IOException | UnsupportedOperationException ex) {
+            log.warn("Unable to pin {} to CPU {}", Thread.currentThread().getName(), cpu, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,55 @@
+package dev.hipshot.web.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One direct region reserved up front and cut into equally sized slices, so that a ring's connection buffers
+ * cost a single allocation, sit next to each other in memory, and never go back to the allocator. Slices can
+ * be page aligned, as fixed buffers registered with io_uring have to be.
+ */
+public final class BufferArena {
+    public static final int PAGE_SIZE = 4096;
+
+    private final ByteBuffer region;
+    private final int sliceSize;
+    private final int stride;
+    private final int count;
+
+    public BufferArena(int sliceSize, int count, boolean pageAligned) {
+        this.sliceSize = sliceSize;
+        this.count = count;
+        if (pageAligned) {
+            this.stride = (sliceSize + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+            this.region = ByteBuffer.allocateDirect(Math.addExact(Math.multiplyExact(stride, count), PAGE_SIZE))
+                .alignedSlice(PAGE_SIZE);
+        } else {
+            this.stride = sliceSize;
+            this.region = ByteBuffer.allocateDirect(Math.multiplyExact(stride, count));
+        }
+    }
+
+    /**
+     * The {@code index}th slice, a fresh view every time.
+     */
+    public ByteBuffer slice(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return region.slice(index * stride, sliceSize);
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public int sliceSize() {
+        return sliceSize;
+    }
+
+    /**
+     * How many bytes the slices span, including any padding between them for alignment.
+     */
+    public int reserved() {
+        return region.capacity();
+    }
+}
@@ -0,0 +1,232 @@
+package dev.hipshot.web.util;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of equally sized buffers owned by one ring. {@link #take()} and {@link #give(ByteBuffer)} must
+ * only be called from the owning thread and are a plain array push and pop. When the local stack is empty or
+ * full, buffers are borrowed from, or spilled to, a {@link Shared} tier common to every ring, and past that they
+ * are allocated, or left to the garbage collector.
+ *
+ * <p>{@link #trim()} drops buffers above the idle watermark once the pool has gone a whole period without
+ * needing them, so that a burst of connections does not pin its direct memory for good.
+ *
+ * <p>Slices of a {@link BufferArena} handed to {@link #fill(BufferArena)} stay with this pool for good: they are
+ * kept on a stack of their own, taken before any other buffer, and never spilled or trimmed, since the arena's
+ * memory stays reserved either way.
+ */
+public final class BufferPool {
+    private final String name;
+    private final Supplier<ByteBuffer> allocator;
+    private final Shared shared;
+    private final ByteBuffer[] buffers;
+    private final int watermark;
+    private int size;
+    private int lowest;
+    private Set<ByteBuffer> arena = Set.of();
+    private ByteBuffer[] slices = new ByteBuffer[0];
+    private int sliceCount;
+
+    // written by the owning thread only, so other threads may read stale values
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity  how many buffers the ring keeps to itself
+     * @param watermark how many of them survive a {@link #trim()}
+     * @param shared    the overflow tier, or null for none
+     */
+    public BufferPool(String name, Supplier<ByteBuffer> allocator, int capacity, int watermark, Shared shared) {
+        this.name = name;
+        this.allocator = allocator;
+        this.shared = shared;
+        this.buffers = new ByteBuffer[capacity];
+        this.watermark = Math.min(watermark, capacity);
+    }
+
+    /**
+     * A pool of up to 1024 buffers with no shared tier, for tests and single-threaded use.
+     */
+    public BufferPool(Supplier<ByteBuffer> allocator) {
+        this("buffers", allocator, 1024, 1024, null);
+    }
+
+    public ByteBuffer take() {
+        if (sliceCount > 0) {
+            hits++;
+            var slice = slices[--sliceCount];
+            slices[sliceCount] = null;
+            return slice;
+        }
+        if (size > 0) {
+            hits++;
+            var buffer = buffers[--size];
+            buffers[size] = null;
+            if (size < lowest) {
+                lowest = size;
+            }
+            return buffer;
+        }
+        lowest = 0;
+        var buffer = shared != null ? shared.poll() : null;
+        if (buffer != null) {
+            hits++;
+            return buffer;
+        }
+        misses++;
+        return allocator.get();
+    }
+
+    /**
+     * Stocks the pool with every slice of {@code arena}, which it then owns on top of its capacity. Call it once,
+     * before the pool is used.
+     */
+    public BufferPool fill(BufferArena arena) {
+        Set<ByteBuffer> owned = Collections.newSetFromMap(new IdentityHashMap<>(arena.count() * 2));
+        slices = new ByteBuffer[arena.count()];
+        for (int i = 0; i < arena.count(); i++) {
+            var slice = arena.slice(i);
+            owned.add(slice);
+            slices[sliceCount++] = slice;
+        }
+        this.arena = owned;
+        return this;
+    }
+
+    /**
+     * Hands back a buffer, cleared.
+     */
+    public void give(ByteBuffer buffer) {
+        buffer.clear();
+        if (arena.contains(buffer)) {
+            slices[sliceCount++] = buffer;
+        } else if (size < buffers.length) {
+            buffers[size++] = buffer;
+        } else if (shared != null) {
+            shared.offer(buffer);
+        }
+    }
+
+    /**
+     * Drops the buffers that have sat unused since the last trim, down to the watermark, leaving arena slices
+     * alone. Call it periodically from the owning thread.
+     */
+    public void trim() {
+        int target = Math.max(watermark, size - lowest);
+        while (size > target) {
+            buffers[--size] = null;
+        }
+        lowest = size;
+    }
+
+    /**
+     * Drops every idle buffer, once the owning ring has stopped.
+     */
+    public void clear() {
+        while (size > 0) {
+            buffers[--size] = null;
+        }
+        while (sliceCount > 0) {
+            slices[--sliceCount] = null;
+        }
+        lowest = 0;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public Stats stats() {
+        return new Stats(name, size + sliceCount, hits, misses);
+    }
+
+    /**
+     * How many buffers are idle in this ring's stacks, arena slices included.
+     */
+    public int size() {
+        return size + sliceCount;
+    }
+
+    /**
+     * Takes served from the pool, including those borrowed from the shared tier.
+     */
+    public long hits() {
+        return hits;
+    }
+
+    /**
+     * Takes that had to allocate.
+     */
+    public long misses() {
+        return misses;
+    }
+
+    public record Stats(String name, int size, long hits, long misses) {
+    }
+
+    /**
+     * The overflow tier shared by the pools of every ring, bounded, and safe to use from any thread.
+     */
+    public static final class Shared {
+        private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicLong taken = new AtomicLong();
+        private final int capacity;
+        private final int watermark;
+        private long lastTaken;
+
+        public Shared(int capacity, int watermark) {
+            this.capacity = capacity;
+            this.watermark = Math.min(watermark, capacity);
+        }
+
+        ByteBuffer poll() {
+            var buffer = buffers.poll();
+            if (buffer != null) {
+                size.decrementAndGet();
+                taken.incrementAndGet();
+            }
+            return buffer;
+        }
+
+        void offer(ByteBuffer buffer) {
+            if (size.incrementAndGet() > capacity) {
+                size.decrementAndGet();
+                return;
+            }
+            buffers.offer(buffer);
+        }
+
+        /**
+         * Drops everything above the watermark, once nothing has been taken since the last trim. Call it
+         * periodically from a single thread.
+         */
+        public void trim() {
+            long taken = this.taken.get();
+            if (taken != lastTaken) {
+                lastTaken = taken;
+                return;
+            }
+            while (size.get() > watermark && buffers.poll() != null) {
+                size.decrementAndGet();
+            }
+        }
+
+        public void clear() {
+            while (buffers.poll() != null) {
+                size.decrementAndGet();
+            }
+        }
+
+        public int size() {
+            return size.get();
+        }
+    }
+}
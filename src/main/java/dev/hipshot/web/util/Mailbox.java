@@ -0,0 +1,108 @@
+package dev.hipshot.web.util;
+
+import lombok.extern.slf4j.Slf4j;
+import sh.blake.niouring.IoUring;
+import sh.blake.niouring.IoUringSocket;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lets other threads run tasks on a ring's thread. Tasks go through a lock-free queue; a ring blocked waiting
+ * for completions is woken by a byte written to a loopback socket whose other end always has a read queued
+ * on the ring. Only the first post after the ring has drained the queue writes that byte.
+ */
+@Slf4j
+public final class Mailbox {
+    private final IoUring ring;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean awake = new AtomicBoolean();
+    private final ByteBuffer signal = ByteBuffer.allocateDirect(64);
+    private final ByteBuffer wakeByte = ByteBuffer.allocateDirect(1);
+    private IoUringSocket receiver;
+    private SocketChannel sender;
+
+    public Mailbox(IoUring ring) {
+        this.ring = ring;
+    }
+
+    /**
+     * Connects the ring to a loopback socket. The connect completes once the ring starts looping, so this
+     * blocks until then.
+     */
+    public void open(Runnable startLoop) {
+        try (var listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+            receiver = new IoUringSocket(InetAddress.getLoopbackAddress().getHostAddress(), listener.socket().getLocalPort());
+            receiver.onConnect(socket -> ring.queueRead(socket, signal));
+            receiver.onRead(this::drain);
+            receiver.onException(ex -> log.warn("Ring mailbox failed", ex));
+            ring.queueConnect(receiver);
+            startLoop.run();
+            sender = listener.accept();
+            sender.socket().setTcpNoDelay(true);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Unable to open ring mailbox", ex);
+        }
+    }
+
+    /**
+     * Runs {@code task} on the ring's thread. Safe to call from any thread.
+     */
+    public void post(Runnable task) {
+        tasks.add(task);
+        if (awake.compareAndSet(false, true)) {
+            wake();
+        }
+    }
+
+    private void wake() {
+        try {
+            synchronized (wakeByte) {
+                sender.write(wakeByte.clear());
+            }
+        } catch (IOException ex) {
+            log.warn("Unable to wake ring", ex);
+        }
+    }
+
+    private void drain(ByteBuffer received) {
+        received.clear();
+        // cleared before draining, so a task posted while draining writes a fresh signal
+        awake.set(false);
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                log.warn("Unhandled exception in ring task", ex);
+            }
+        }
+        ring.queueRead(receiver, signal);
+    }
+
+    /**
+     * How many posted tasks are waiting to run.
+     */
+    public int size() {
+        return tasks.size();
+    }
+
+    public void close() {
+        try {
+            if (sender != null) {
+                sender.close();
+            }
+        } catch (IOException ex) {
+            log.warn("Unable to close ring mailbox", ex);
+        }
+    }
+}
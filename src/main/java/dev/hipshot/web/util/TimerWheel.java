@@ -0,0 +1,118 @@
+package dev.hipshot.web.util;
+
+/**
+ * A hashed timer wheel for timeouts that are rescheduled far more often than they fire, such as a
+ * connection's idle timeout. Timers are intrusive list nodes owned by their user, so scheduling,
+ * rescheduling and cancelling are O(1) and allocation-free. Not thread-safe: each ring owns one and
+ * advances it from its own loop.
+ */
+public final class TimerWheel {
+    private final long tickMillis;
+    private final Timer[] slots;
+    private final int mask;
+    private long currentTick;
+
+    /**
+     * @param slots rounded up to a power of two; timers further away than {@code tickMillis * slots} simply
+     *              stay in their slot for more than one revolution
+     */
+    public TimerWheel(long tickMillis, int slots, long now) {
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.slots = new Timer[size];
+        this.mask = size - 1;
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * Schedules {@code timer} to fire at {@code deadline}, replacing any deadline it already had. It fires on
+     * the first {@link #advance} at or after its deadline, to within a tick.
+     */
+    public void schedule(Timer timer, long deadline) {
+        cancel(timer);
+        long tick = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick + 1);
+        timer.deadline = deadline;
+        timer.slot = (int) (tick & mask);
+        timer.next = slots[timer.slot];
+        if (timer.next != null) {
+            timer.next.previous = timer;
+        }
+        slots[timer.slot] = timer;
+    }
+
+    public void cancel(Timer timer) {
+        if (timer.slot < 0) {
+            return;
+        }
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = null;
+        timer.next = null;
+        timer.slot = -1;
+    }
+
+    /**
+     * Fires every timer whose deadline has passed, visiting each slot that has come round since the last call.
+     */
+    public void advance(long now) {
+        long tick = now / tickMillis;
+        long first = Math.max(currentTick + 1, tick - mask);
+        for (long t = first; t <= tick; t++) {
+            expire((int) (t & mask), now);
+        }
+        if (tick > currentTick) {
+            currentTick = tick;
+        }
+    }
+
+    private void expire(int slot, long now) {
+        // unlink everything due first, so tasks are free to schedule or cancel any timer
+        Timer expired = null;
+        var timer = slots[slot];
+        while (timer != null) {
+            var next = timer.next;
+            if (timer.deadline <= now) {
+                cancel(timer);
+                timer.nextExpired = expired;
+                expired = timer;
+            }
+            timer = next;
+        }
+        while (expired != null) {
+            var next = expired.nextExpired;
+            expired.nextExpired = null;
+            expired.task.run();
+            expired = next;
+        }
+    }
+
+    /**
+     * A reusable timer. Schedule it again to move its deadline.
+     */
+    public static final class Timer {
+        private final Runnable task;
+        private long deadline;
+        private int slot = -1;
+        private Timer previous;
+        private Timer next;
+        private Timer nextExpired;
+
+        public Timer(Runnable task) {
+            this.task = task;
+        }
+
+        public boolean isScheduled() {
+            return slot >= 0;
+        }
+
+        public long deadline() {
+            return deadline;
+        }
+    }
+}
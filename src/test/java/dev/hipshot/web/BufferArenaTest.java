@@ -0,0 +1,77 @@
+package dev.hipshot.web;
+
+import dev.hipshot.web.util.BufferArena;
+import dev.hipshot.web.util.BufferPool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+public class BufferArenaTest {
+    @Test
+    public void shouldCutRegionIntoIndependentSlices() {
+        BufferArena arena = new BufferArena(100, 3, false);
+        ByteBuffer first = arena.slice(0);
+        ByteBuffer second = arena.slice(1);
+        first.put(0, (byte) 1);
+
+        Assertions.assertEquals(100, first.capacity());
+        Assertions.assertTrue(first.isDirect());
+        Assertions.assertEquals(0, second.get(0));
+        Assertions.assertEquals(1, arena.slice(0).get(0));
+        Assertions.assertEquals(300, arena.reserved());
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> arena.slice(3));
+    }
+
+    @Test
+    public void shouldAlignSlicesToPages() {
+        BufferArena arena = new BufferArena(100, 3, true);
+        for (int i = 0; i < arena.count(); i++) {
+            ByteBuffer slice = arena.slice(i);
+            Assertions.assertEquals(100, slice.capacity());
+            Assertions.assertEquals(0, slice.alignmentOffset(0, BufferArena.PAGE_SIZE));
+        }
+    }
+
+    @Test
+    public void shouldServePoolFromArenaBeforeAllocating() {
+        BufferPool pool = new BufferPool("test", () -> ByteBuffer.allocateDirect(100), 2, 2, null)
+            .fill(new BufferArena(100, 2, false));
+        pool.take();
+        pool.take();
+        pool.take();
+
+        Assertions.assertEquals(2, pool.hits());
+        Assertions.assertEquals(1, pool.misses());
+    }
+
+    @Test
+    public void shouldKeepArenaSlicesThroughSpikeAndTrim() {
+        BufferArena arena = new BufferArena(100, 2, false);
+        BufferPool.Shared shared = new BufferPool.Shared(8, 8);
+        BufferPool pool = new BufferPool("test", () -> ByteBuffer.allocateDirect(100), 1, 0, shared).fill(arena);
+        ByteBuffer[] buffers = new ByteBuffer[5];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.take();
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.give(buffer);
+        }
+        // one allocated buffer kept locally, the other two spilled
+        Assertions.assertEquals(3, pool.size());
+        Assertions.assertEquals(2, shared.size());
+
+        pool.trim();
+        pool.trim();
+        Assertions.assertEquals(2, pool.size());
+        Assertions.assertEquals(2, shared.size());
+
+        BufferPool other = new BufferPool("other", () -> ByteBuffer.allocateDirect(100), 1, 0, shared);
+        Assertions.assertNotSame(buffers[0], other.take());
+        Assertions.assertNotSame(buffers[1], other.take());
+        Assertions.assertSame(buffers[1], pool.take());
+        Assertions.assertSame(buffers[0], pool.take());
+        Assertions.assertEquals(4, pool.hits());
+        Assertions.assertEquals(3, pool.misses());
+    }
+}
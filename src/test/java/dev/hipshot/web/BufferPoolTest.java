@@ -0,0 +1,87 @@
+package dev.hipshot.web;
+
+import dev.hipshot.web.util.BufferPool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+public class BufferPoolTest {
+    @Test
+    public void shouldReuseGivenBuffers() {
+        BufferPool pool = new BufferPool("test", () -> ByteBuffer.allocate(16), 4, 4, null);
+        ByteBuffer buffer = pool.take();
+        buffer.put((byte) 1);
+        pool.give(buffer);
+
+        ByteBuffer reused = pool.take();
+        Assertions.assertSame(buffer, reused);
+        Assertions.assertEquals(0, reused.position());
+        Assertions.assertEquals(1, pool.hits());
+        Assertions.assertEquals(1, pool.misses());
+    }
+
+    @Test
+    public void shouldSpillToSharedTierOnceFull() {
+        BufferPool.Shared shared = new BufferPool.Shared(1, 0);
+        BufferPool first = new BufferPool("first", () -> ByteBuffer.allocate(16), 1, 1, shared);
+        BufferPool second = new BufferPool("second", () -> ByteBuffer.allocate(16), 1, 1, shared);
+        ByteBuffer a = first.take();
+        ByteBuffer b = first.take();
+        ByteBuffer c = first.take();
+        first.give(a);
+        first.give(b);
+        first.give(c); // beyond both tiers, dropped
+
+        Assertions.assertEquals(1, first.size());
+        Assertions.assertEquals(1, shared.size());
+        Assertions.assertSame(b, second.take());
+        Assertions.assertEquals(1, second.hits());
+    }
+
+    @Test
+    public void shouldTrimUnusedBuffersToWatermark() {
+        BufferPool pool = new BufferPool("test", () -> ByteBuffer.allocate(16), 8, 2, null);
+        ByteBuffer[] buffers = new ByteBuffer[6];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.take();
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.give(buffer);
+        }
+
+        pool.take(); // one buffer is still in use
+        pool.trim();
+        Assertions.assertEquals(5, pool.size());
+        pool.trim();
+        Assertions.assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void shouldTrimSharedTierOnlyWhenIdle() {
+        BufferPool.Shared shared = new BufferPool.Shared(8, 1);
+        BufferPool pool = new BufferPool("test", () -> ByteBuffer.allocate(16), 0, 0, shared);
+        for (int i = 0; i < 4; i++) {
+            pool.give(ByteBuffer.allocate(16));
+        }
+        pool.take();
+
+        shared.trim();
+        Assertions.assertEquals(3, shared.size());
+        shared.trim();
+        Assertions.assertEquals(1, shared.size());
+    }
+
+    @Test
+    public void shouldDropEverythingOnClear() {
+        BufferPool.Shared shared = new BufferPool.Shared(4, 4);
+        BufferPool pool = new BufferPool("test", () -> ByteBuffer.allocate(16), 1, 1, shared);
+        pool.give(ByteBuffer.allocate(16));
+        pool.give(ByteBuffer.allocate(16));
+
+        pool.clear();
+        shared.clear();
+        Assertions.assertEquals(0, pool.size());
+        Assertions.assertEquals(0, shared.size());
+    }
+}
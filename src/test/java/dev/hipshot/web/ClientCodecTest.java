@@ -0,0 +1,131 @@
+package dev.hipshot.web;
+
+import dev.hipshot.web.client.WebClientRequest;
+import dev.hipshot.web.client.WebClientResponse;
+import dev.hipshot.web.client.codec.WebClientRequestEncoder;
+import dev.hipshot.web.client.codec.WebClientResponseDecoder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class ClientCodecTest {
+
+    @Test
+    public void shouldEncodeRequest() {
+        WebClientRequest request = WebClientRequest.builder()
+            .method("POST")
+            .url("http://localhost:8080/items?sort=name")
+            .body(ByteBuffer.wrap("hello".getBytes(StandardCharsets.UTF_8)))
+            .build()
+            .queryParam("q", "a b")
+            .header("Accept", "text/plain");
+
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        Assertions.assertTrue(WebClientRequestEncoder.encode(request, buffer));
+        String encoded = new String(buffer.array(), 0, buffer.position(), StandardCharsets.ISO_8859_1);
+        Assertions.assertEquals(
+            "POST /items?sort=name&q=a+b HTTP/1.1\r\n"
+                + "Host: localhost:8080\r\n"
+                + "Accept: text/plain\r\n"
+                + "Content-Length: 5\r\n"
+                + "\r\n"
+                + "hello",
+            encoded);
+        Assertions.assertEquals(buffer.position(), WebClientRequestEncoder.encodedLength(request));
+        Assertions.assertEquals(5, request.body().remaining());
+    }
+
+    @Test
+    public void shouldNotEncodeWhatDoesNotFit() {
+        WebClientRequest request = WebClientRequest.builder().url("http://localhost/").build();
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        Assertions.assertFalse(WebClientRequestEncoder.encode(request, buffer));
+        Assertions.assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void shouldDecodePipelinedResponses() {
+        ByteBuffer buffer = wrap("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nhi"
+            + "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+        WebClientResponseDecoder decoder = new WebClientResponseDecoder();
+
+        WebClientResponse first = decoder.decode(buffer, false);
+        Assertions.assertEquals(200, first.status());
+        Assertions.assertEquals("OK", first.reason());
+        Assertions.assertEquals("hi", first.bodyAsString());
+        Assertions.assertTrue(first.keepAlive());
+
+        WebClientResponse second = decoder.decode(buffer, false);
+        Assertions.assertEquals(404, second.status());
+        Assertions.assertEquals("0", second.header("content-length"));
+        Assertions.assertFalse(second.keepAlive());
+        Assertions.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void shouldWaitForTheWholeBody() {
+        ByteBuffer buffer = wrap("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nhello");
+        WebClientResponseDecoder decoder = new WebClientResponseDecoder();
+        Assertions.assertNull(decoder.decode(buffer, false));
+        Assertions.assertEquals(0, buffer.position());
+        // a HEAD response has no body whatever its length says
+        Assertions.assertEquals(0, decoder.decode(buffer, true).body().remaining());
+    }
+
+    @Test
+    public void shouldDecodeChunkedBody() {
+        ByteBuffer buffer = wrap("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "5\r\nhello\r\n7;ext=1\r\n, world\r\n0\r\nTrailer: x\r\n\r\n");
+        WebClientResponseDecoder decoder = new WebClientResponseDecoder();
+        WebClientResponse response = decoder.decode(buffer, false);
+        Assertions.assertEquals("hello, world", response.bodyAsString());
+        Assertions.assertFalse(buffer.hasRemaining());
+
+        ByteBuffer partial = wrap("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhel");
+        Assertions.assertNull(decoder.decode(partial, false));
+    }
+
+    @Test
+    public void shouldReadBodyUntilClose() {
+        ByteBuffer buffer = wrap("HTTP/1.0 200 OK\r\n\r\nuntil the end");
+        WebClientResponseDecoder decoder = new WebClientResponseDecoder();
+        Assertions.assertNull(decoder.decode(buffer, false));
+        WebClientResponse response = decoder.decodeAtClose(buffer, false);
+        Assertions.assertEquals("until the end", response.bodyAsString());
+        Assertions.assertFalse(response.keepAlive());
+    }
+
+    @Test
+    public void shouldStreamChunkedBodyAcrossReads() {
+        ByteBuffer buffer = wrap("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhel");
+        WebClientResponseDecoder decoder = new WebClientResponseDecoder();
+        WebClientResponse response = decoder.decodeHead(buffer, false);
+        Assertions.assertTrue(response.streamed());
+        Assertions.assertNull(response.body());
+        Assertions.assertTrue(decoder.isDecodingBody());
+
+        StringBuilder received = new StringBuilder();
+        boolean[] ended = {false};
+        response.chunkHandler(chunk -> received.append(StandardCharsets.ISO_8859_1.decode(chunk)));
+        response.bodyEndHandler(() -> ended[0] = true);
+        Assertions.assertFalse(decoder.decodeBody(buffer));
+        Assertions.assertEquals("hel", received.toString());
+
+        // the next read: the rest of the chunk, then one held back by a pause
+        ByteBuffer next = wrap("lo\r\n6\r\n world\r\n0\r\n\r\n");
+        response.pauseBody();
+        Assertions.assertFalse(decoder.decodeBody(next));
+        Assertions.assertEquals("hel", received.toString());
+        response.resumeBody();
+        Assertions.assertTrue(decoder.decodeBody(next));
+        Assertions.assertEquals("hello world", received.toString());
+        Assertions.assertTrue(ended[0]);
+        Assertions.assertFalse(next.hasRemaining());
+    }
+
+    private static ByteBuffer wrap(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,116 @@
+package dev.hipshot.web;
+
+import dev.hipshot.web.server.CompressionHandler;
+import dev.hipshot.web.server.codec.BodyCompressor;
+import dev.hipshot.web.server.codec.ContentCoding;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public class CompressionTest {
+    private static final List<ContentCoding> CODINGS = List.of(ContentCoding.GZIP, ContentCoding.DEFLATE);
+
+    @Test
+    public void shouldRoundTripGzip() throws IOException {
+        BodyCompressor compressor = new BodyCompressor();
+        byte[] body = json(2000);
+        ByteBuffer input = ByteBuffer.wrap(body);
+        byte[] compressed = bytes(compressor.compress(input, ContentCoding.GZIP, 6));
+        Assertions.assertTrue(compressed.length < body.length / 4);
+        Assertions.assertEquals(0, input.position());
+        Assertions.assertArrayEquals(body, gunzip(compressed));
+
+        // a pooled deflater starts over
+        Assertions.assertArrayEquals(compressed, bytes(compressor.compress(input, ContentCoding.GZIP, 6)));
+    }
+
+    @Test
+    public void shouldRoundTripDeflate() throws IOException {
+        BodyCompressor compressor = new BodyCompressor();
+        byte[] body = json(2000);
+        byte[] compressed = bytes(compressor.compress(ByteBuffer.wrap(body), ContentCoding.DEFLATE, 1));
+        Assertions.assertArrayEquals(body, inflate(compressed));
+
+        // random bytes do not compress, and outgrow the scratch buffer
+        byte[] random = new byte[100_000];
+        new Random(1).nextBytes(random);
+        compressed = bytes(compressor.compress(ByteBuffer.allocateDirect(random.length).put(random).flip(), ContentCoding.DEFLATE, 6));
+        Assertions.assertTrue(compressed.length > random.length);
+        Assertions.assertArrayEquals(random, inflate(compressed));
+    }
+
+    @Test
+    public void shouldStreamChunksThatDecompressAsTheyArrive() throws IOException {
+        BodyCompressor compressor = new BodyCompressor();
+        BodyCompressor.Stream stream = compressor.start(ContentCoding.GZIP, 6);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 50; i++) {
+            byte[] chunk = ("data: {\"event\":" + i + "}\n\n").getBytes(StandardCharsets.UTF_8);
+            expected.write(chunk);
+            out.write(bytes(compressor.write(stream, ByteBuffer.wrap(chunk))));
+        }
+        // every chunk was flushed, so what has arrived so far decompresses in full
+        byte[] partial = out.toByteArray();
+        InputStream unfinished = new InflaterInputStream(
+            new ByteArrayInputStream(partial, 10, partial.length - 10), new Inflater(true));
+        Assertions.assertArrayEquals(expected.toByteArray(), unfinished.readNBytes(expected.size()));
+
+        out.write(bytes(compressor.finish(stream)));
+        Assertions.assertArrayEquals(expected.toByteArray(), gunzip(out.toByteArray()));
+    }
+
+    @Test
+    public void shouldNegotiateByQuality() {
+        Assertions.assertEquals(ContentCoding.GZIP, CompressionHandler.negotiate("gzip, deflate, br", CODINGS));
+        Assertions.assertEquals(ContentCoding.DEFLATE, CompressionHandler.negotiate("deflate", CODINGS));
+        Assertions.assertEquals(ContentCoding.DEFLATE, CompressionHandler.negotiate("gzip;q=0.5, deflate", CODINGS));
+        Assertions.assertEquals(ContentCoding.DEFLATE, CompressionHandler.negotiate("GZIP ; q=0, *", CODINGS));
+        Assertions.assertEquals(ContentCoding.GZIP, CompressionHandler.negotiate("*;q=0.1", CODINGS));
+        Assertions.assertNull(CompressionHandler.negotiate("br, identity", CODINGS));
+        Assertions.assertNull(CompressionHandler.negotiate("gzip;q=0", CODINGS));
+        Assertions.assertNull(CompressionHandler.negotiate("", CODINGS));
+        Assertions.assertNull(CompressionHandler.negotiate(null, CODINGS));
+        // ties go to the server's preference
+        Assertions.assertEquals(ContentCoding.DEFLATE,
+            CompressionHandler.negotiate("gzip, deflate", List.of(ContentCoding.DEFLATE, ContentCoding.GZIP)));
+    }
+
+    private static byte[] json(int items) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < items; i++) {
+            json.append(i > 0 ? "," : "").append("{\"id\":").append(i).append(",\"name\":\"item-").append(i)
+                .append("\",\"active\":true}");
+        }
+        return json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed))) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package dev.hipshot.web;
+
+import dev.hipshot.web.server.EncodedHeader;
+import dev.hipshot.web.server.Offload;
+import dev.hipshot.web.server.Router;
+import dev.hipshot.web.server.WebServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops a local server with a request in flight, so needs a kernel with io_uring.
+ */
+public class GracefulStopTest {
+    private static final int PORT = 18098;
+
+    @Test
+    public void shouldFinishRequestInFlightAndRefuseNewConnections() throws Exception {
+        var entered = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var router = new Router()
+            .get("/slow", Router.blocking((req, res) -> {
+                entered.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                res.header(EncodedHeader.CONTENT_TYPE_TEXT_PLAIN).body("done").send();
+            }));
+        var options = WebServer.Options.builder()
+            .host("127.0.0.1")
+            .port(PORT)
+            .threads(1)
+            .offload(Offload.WORKER_POOL)
+            .workerThreads(1)
+            .build();
+        var server = WebServer.create(options, router).start();
+        Thread.sleep(100); // let the ring queue its first accept
+
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                .getBytes(StandardCharsets.US_ASCII));
+            Assertions.assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+            var stopped = CompletableFuture.runAsync(() -> server.stop(Duration.ofSeconds(5)));
+            awaitRefused();
+            Thread.sleep(100); // let the ring see the drain before the response is written
+            Assertions.assertFalse(stopped.isDone(), "stop returned with a request in flight");
+            release.countDown();
+
+            String response = readResponse(socket.getInputStream());
+            Assertions.assertTrue(response.startsWith("HTTP/1.1 200"), response);
+            Assertions.assertTrue(response.contains("\r\nConnection: close\r\n"), response);
+            Assertions.assertTrue(response.endsWith("\r\n\r\ndone"), response);
+            Assertions.assertEquals(-1, socket.getInputStream().read());
+            stopped.get(5, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    /**
+     * Waits for the listener to have closed, as connecting to it fails once it has.
+     */
+    private static void awaitRefused() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            try (Socket socket = new Socket("127.0.0.1", PORT)) {
+                Thread.sleep(10);
+            } catch (ConnectException ex) {
+                return;
+            } catch (IOException ex) {
+                Assertions.fail("Unexpected failure connecting: " + ex);
+            }
+        }
+        Assertions.fail("New connections still accepted while stopping");
+    }
+
+    /**
+     * Reads one response off the socket, framed by its Content-Length, head and body together.
+     */
+    private static String readResponse(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int next = in.read();
+            if (next < 0) {
+                throw new IOException("Connection closed mid-response: " + head);
+            }
+            head.append((char) next);
+        }
+        int length = 0;
+        for (String line : head.toString().split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                length = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        return head + new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,141 @@
+package dev.hipshot.web;
+
+import dev.hipshot.web.server.codec.HpackDecoder;
+import dev.hipshot.web.server.codec.HpackEncoder;
+import dev.hipshot.web.server.codec.Http2Frames;
+import dev.hipshot.web.server.codec.OutputChain;
+import dev.hipshot.web.util.BufferPool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+
+public class Http2CodecTest {
+
+    @Test
+    public void shouldDecodeRequestsSharingTheDynamicTable() {
+        // RFC 7541, C.3.1 and C.3.2
+        HpackDecoder decoder = new HpackDecoder(4096);
+        Assertions.assertEquals(
+            ":method: GET\r\n:scheme: http\r\n:path: /\r\n:authority: www.example.com\r\n",
+            decode(decoder, "828684410f7777772e6578616d706c652e636f6d"));
+        Assertions.assertEquals(57, decoder.tableSize());
+        Assertions.assertEquals(
+            ":method: GET\r\n:scheme: http\r\n:path: /\r\n:authority: www.example.com\r\ncache-control: no-cache\r\n",
+            decode(decoder, "828684be58086e6f2d6361636865"));
+        Assertions.assertEquals(110, decoder.tableSize());
+    }
+
+    @Test
+    public void shouldDecodeHuffmanCodedStrings() {
+        // RFC 7541, C.4.1 and C.4.2
+        HpackDecoder decoder = new HpackDecoder(4096);
+        Assertions.assertEquals(
+            ":method: GET\r\n:scheme: http\r\n:path: /\r\n:authority: www.example.com\r\n",
+            decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+        Assertions.assertEquals(
+            ":method: GET\r\n:scheme: http\r\n:path: /\r\n:authority: www.example.com\r\ncache-control: no-cache\r\n",
+            decode(decoder, "828684be5886a8eb10649cbf"));
+    }
+
+    @Test
+    public void shouldStayInStepWhenHeadersDoNotFit() {
+        HpackDecoder decoder = new HpackDecoder(4096);
+        ByteBuffer lines = ByteBuffer.allocate(16);
+        Assertions.assertFalse(decoder.decode(hex("828684410f7777772e6578616d706c652e636f6d"), lines));
+        // the authority was still added to the table
+        Assertions.assertEquals(57, decoder.tableSize());
+        Assertions.assertEquals(":authority: www.example.com\r\n", decode(decoder, "be"));
+    }
+
+    @Test
+    public void shouldRejectMalformedBlocks() {
+        HpackDecoder decoder = new HpackDecoder(4096);
+        ByteBuffer lines = ByteBuffer.allocate(256);
+        // index 0, and an index past both tables
+        Assertions.assertThrows(IllegalArgumentException.class, () -> decoder.decode(hex("80"), lines));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> decoder.decode(hex("c0"), lines.clear()));
+        // an upper-case name, and a value smuggling a header
+        Assertions.assertThrows(IllegalArgumentException.class,
+            () -> decoder.decode(block("Host", "x"), lines.clear()));
+        Assertions.assertThrows(IllegalArgumentException.class,
+            () -> decoder.decode(block("x-a", "1\r\nx-b: 2"), lines.clear()));
+    }
+
+    @Test
+    public void shouldTranscodeResponseHead() {
+        ByteBuffer head = ByteBuffer.wrap(("HTTP/1.1 404 Not Found\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "Transfer-Encoding: chunked\r\n"
+            + "X-Trace: abc\r\n"
+            + "\r\n"
+            + "body").getBytes(StandardCharsets.US_ASCII));
+        ByteBuffer block = ByteBuffer.allocate(256);
+        HpackEncoder.transcode(head, block);
+        Assertions.assertEquals("body", StandardCharsets.US_ASCII.decode(head).toString());
+
+        ByteBuffer lines = ByteBuffer.allocate(256);
+        Assertions.assertTrue(new HpackDecoder(4096).decode(block.flip(), lines));
+        Assertions.assertEquals(
+            ":status: 404\r\ncontent-type: text/plain\r\nx-trace: abc\r\n",
+            StandardCharsets.US_ASCII.decode(lines.flip()).toString());
+    }
+
+    @Test
+    public void shouldSplitHeaderBlockIntoContinuations() {
+        OutputChain output = new OutputChain(new BufferPool(() -> ByteBuffer.allocateDirect(256)));
+        ByteBuffer block = ByteBuffer.allocate(40);
+        for (int i = 0; i < 40; i++) {
+            block.put((byte) i);
+        }
+        Http2Frames.encodeHeaders(output, 3, block.flip(), true, 16);
+        ByteBuffer written = output.nextWrite();
+        int[] lengths = {16, 16, 8};
+        int[] types = {Http2Frames.HEADERS, Http2Frames.CONTINUATION, Http2Frames.CONTINUATION};
+        int[] flags = {Http2Frames.FLAG_END_STREAM, 0, Http2Frames.FLAG_END_HEADERS};
+        int position = written.position();
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertEquals(lengths[i], Http2Frames.length(written, position));
+            Assertions.assertEquals(types[i], Http2Frames.type(written, position));
+            Assertions.assertEquals(flags[i], Http2Frames.flags(written, position));
+            Assertions.assertEquals(3, Http2Frames.stream(written, position));
+            Assertions.assertEquals(i * 16, written.get(position + Http2Frames.HEADER_LENGTH));
+            position += Http2Frames.HEADER_LENGTH + lengths[i];
+        }
+        Assertions.assertEquals(written.limit(), position);
+        Assertions.assertEquals(0, block.position());
+    }
+
+    @Test
+    public void shouldMatchPrefaceAsItArrives() {
+        Assertions.assertEquals(0, Http2Frames.matchPreface(ascii("PRI * HTTP/2.0\r\n")));
+        Assertions.assertEquals(1, Http2Frames.matchPreface(ascii("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n\0\0")));
+        Assertions.assertEquals(-1, Http2Frames.matchPreface(ascii("POST / HTTP/1.1\r\n")));
+    }
+
+    private static String decode(HpackDecoder decoder, String block) {
+        ByteBuffer lines = ByteBuffer.allocate(1024);
+        Assertions.assertTrue(decoder.decode(hex(block), lines));
+        return StandardCharsets.US_ASCII.decode(lines.flip()).toString();
+    }
+
+    /**
+     * A literal field without indexing, with a new name and neither string Huffman coded.
+     */
+    private static ByteBuffer block(String name, String value) {
+        ByteBuffer block = ByteBuffer.allocate(2 + name.length() + 1 + value.length());
+        block.put((byte) 0).put((byte) name.length()).put(name.getBytes(StandardCharsets.US_ASCII));
+        block.put((byte) value.length()).put(value.getBytes(StandardCharsets.US_ASCII));
+        return block.flip();
+    }
+
+    private static ByteBuffer hex(String hex) {
+        return ByteBuffer.wrap(HexFormat.of().parseHex(hex));
+    }
+
+    private static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+}
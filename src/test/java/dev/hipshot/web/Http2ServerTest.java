@@ -0,0 +1,110 @@
+package dev.hipshot.web;
+
+import dev.hipshot.web.server.EncodedHeader;
+import dev.hipshot.web.server.Metrics;
+import dev.hipshot.web.server.Router;
+import dev.hipshot.web.server.WebServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the JDK's HTTP/2 client against a local server, upgrading to h2c, so needs a kernel with io_uring.
+ */
+public class Http2ServerTest {
+    private static final int PORT = 18096;
+    private static final String BASE = "http://127.0.0.1:" + PORT;
+    private static final int LARGE = 1024 * 1024;
+
+    private static WebServer server;
+
+    @BeforeAll
+    public static void start() throws InterruptedException {
+        byte[] large = new byte[LARGE];
+        Arrays.fill(large, (byte) 'x');
+        var router = new Router()
+            .get("/hello", (req, res) -> res
+                .header(EncodedHeader.CONTENT_TYPE_TEXT_PLAIN)
+                .body("Hello, " + req.protocol())
+                .send())
+            .get("/large", (req, res) -> res
+                .body(ByteBuffer.wrap(large))
+                .send())
+            .post("/count", (req, res) -> {
+                if (!req.streamed()) {
+                    res.body(String.valueOf(req.body().remaining())).send();
+                    return;
+                }
+                long[] count = new long[1];
+                req.chunkHandler(chunk -> count[0] += chunk.remaining())
+                    .bodyEndHandler(() -> res.body(String.valueOf(count[0])).send());
+            });
+        var options = WebServer.Options.builder()
+            .host("127.0.0.1")
+            .port(PORT)
+            .threads(1)
+            .h2c(true)
+            .build();
+        server = WebServer.create(options, router).start();
+        Thread.sleep(100); // let the ring queue its first accept
+    }
+
+    @AfterAll
+    public static void stop() {
+        server.stop();
+    }
+
+    @Test
+    public void shouldUpgradeAndMultiplex() throws Exception {
+        long accepted = server.metrics().total(Metrics.Ring::accepted);
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+
+        HttpResponse<String> hello = client.send(request("/hello").build(), HttpResponse.BodyHandlers.ofString());
+        Assertions.assertEquals(HttpClient.Version.HTTP_2, hello.version());
+        Assertions.assertEquals(200, hello.statusCode());
+        // the upgrading request is answered over HTTP/2, but arrived as HTTP/1.1
+        Assertions.assertEquals("Hello, HTTP/1.1", hello.body());
+
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            responses.add(client.sendAsync(request("/hello").build(), HttpResponse.BodyHandlers.ofString()));
+        }
+        for (var response : responses) {
+            Assertions.assertEquals("Hello, HTTP/2.0", response.get(5, TimeUnit.SECONDS).body());
+        }
+        Assertions.assertEquals(accepted + 1, server.metrics().total(Metrics.Ring::accepted));
+    }
+
+    @Test
+    public void shouldFlowControlLargeBodies() throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+        client.send(request("/hello").build(), HttpResponse.BodyHandlers.discarding());
+
+        HttpResponse<byte[]> large = client.send(request("/large").build(), HttpResponse.BodyHandlers.ofByteArray());
+        Assertions.assertEquals(LARGE, large.body().length);
+
+        var upload = request("/count").POST(HttpRequest.BodyPublishers.ofByteArray(new byte[LARGE])).build();
+        Assertions.assertEquals(String.valueOf(LARGE),
+            client.send(upload, HttpResponse.BodyHandlers.ofString()).body());
+
+        var small = request("/count").POST(HttpRequest.BodyPublishers.ofString("hello")).build();
+        Assertions.assertEquals("5", client.send(small, HttpResponse.BodyHandlers.ofString()).body());
+    }
+
+    private static HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(URI.create(BASE + path)).timeout(Duration.ofSeconds(5));
+    }
+}
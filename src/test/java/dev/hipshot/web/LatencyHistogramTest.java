@@ -0,0 +1,51 @@
+package dev.hipshot.web;
+
+import dev.hipshot.web.util.LatencyHistogram;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void shouldReportPercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        Assertions.assertEquals(1000, histogram.count());
+        Assertions.assertEquals(500_500_000, histogram.sum());
+        Assertions.assertEquals(1_000_000, histogram.max());
+        assertWithin(500_000, histogram.percentile(50));
+        assertWithin(990_000, histogram.percentile(99));
+        Assertions.assertEquals(1_000_000, histogram.percentile(100));
+    }
+
+    @Test
+    public void shouldRecordSmallValuesExactly() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3);
+        histogram.record(7);
+
+        Assertions.assertEquals(3, histogram.percentile(50));
+        Assertions.assertEquals(7, histogram.percentile(100));
+        Assertions.assertEquals(0, new LatencyHistogram().percentile(50));
+    }
+
+    @Test
+    public void shouldAddHistograms() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        first.record(100);
+        second.record(5_000_000);
+
+        LatencyHistogram merged = first.copy().add(second);
+        Assertions.assertEquals(2, merged.count());
+        Assertions.assertEquals(5_000_100, merged.sum());
+        Assertions.assertEquals(1, first.count());
+        assertWithin(5_000_000, merged.percentile(100));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        Assertions.assertTrue(Math.abs(actual - expected) <= expected / 8, "expected ~" + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,34 @@
+package dev.hipshot.web;
+
+import dev.hipshot.web.server.Metrics;
+import dev.hipshot.web.server.MetricsHandler;
+import dev.hipshot.web.util.BufferPool;
+import dev.hipshot.web.util.LatencyHistogram;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+public class MetricsHandlerTest {
+    @Test
+    public void shouldFormatPrometheusText() {
+        LatencyHistogram latency = new LatencyHistogram();
+        latency.record(2_000_000);
+        Metrics metrics = new Metrics(
+            List.of(
+                new Metrics.Ring("ring-0", 10, 4, 100, 5000, 20000, 1, 2, List.of(new BufferPool.Stats("ring-0.in", 3, 9, 6))),
+                new Metrics.Ring("ring-1", 5, 5, 50, 2500, 10000, 0, 0, List.of())),
+            Map.of("GET /users/{id}", latency));
+
+        String text = MetricsHandler.format(metrics);
+        Assertions.assertTrue(text.contains("# TYPE hipshot_requests_total counter\n"));
+        Assertions.assertTrue(text.contains("hipshot_requests_total{ring=\"ring-0\"} 100\n"));
+        Assertions.assertTrue(text.contains("hipshot_connections_open{ring=\"ring-0\"} 6\n"));
+        Assertions.assertTrue(text.contains("hipshot_connections_open{ring=\"ring-1\"} 0\n"));
+        Assertions.assertTrue(text.contains("hipshot_buffer_pool_misses_total{pool=\"ring-0.in\"} 6\n"));
+        Assertions.assertTrue(text.contains("hipshot_request_duration_seconds_count{route=\"GET /users/{id}\"} 1\n"));
+        Assertions.assertTrue(text.contains("hipshot_request_duration_seconds{route=\"GET /users/{id}\",quantile=\"0.99\"} 0.00"));
+        Assertions.assertEquals(150, metrics.total(Metrics.Ring::requests));
+    }
+}
@@ -0,0 +1,92 @@
+package dev.hipshot.web;
+
+import dev.hipshot.web.server.EncodedHeader;
+import dev.hipshot.web.server.Offload;
+import dev.hipshot.web.server.Router;
+import dev.hipshot.web.server.WebServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runs blocking handlers on the worker pool of a local server decoding requests lazily, so needs a kernel with
+ * io_uring.
+ */
+public class OffloadTest {
+    private static final int PORT = 18097;
+
+    private static WebServer server;
+
+    @BeforeAll
+    public static void start() throws InterruptedException {
+        var router = new Router()
+            .post("/echo/{id}", Router.blocking((req, res) -> res
+                .header(EncodedHeader.CONTENT_TYPE_TEXT_PLAIN)
+                .body(req.method() + " " + req.pathParam("id") + " " + req.header("X-Tag") + " "
+                    + StandardCharsets.UTF_8.decode(req.body()))
+                .send()));
+        var options = WebServer.Options.builder()
+            .host("127.0.0.1")
+            .port(PORT)
+            .threads(1)
+            .lazyRequestDecoding(true)
+            .offload(Offload.WORKER_POOL)
+            .workerThreads(2)
+            .build();
+        server = WebServer.create(options, router).start();
+        Thread.sleep(100); // let the ring queue its first accept
+    }
+
+    @AfterAll
+    public static void stop() {
+        server.stop();
+    }
+
+    @Test
+    public void shouldServeKeepAliveRequestsAfterOffloading() throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            out.write(request("1", "a", "one"));
+            Assertions.assertEquals("POST 1 a one", readBody(in));
+            out.write(request("2", "b", "two"));
+            Assertions.assertEquals("POST 2 b two", readBody(in));
+        }
+    }
+
+    private static byte[] request(String id, String tag, String body) {
+        return ("POST /echo/" + id + " HTTP/1.1\r\nHost: localhost\r\nX-Tag: " + tag
+            + "\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads one response off the socket, framed by its Content-Length, and returns its body.
+     */
+    private static String readBody(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int next = in.read();
+            if (next < 0) {
+                throw new IOException("Connection closed mid-response: " + head);
+            }
+            head.append((char) next);
+        }
+        Assertions.assertTrue(head.toString().startsWith("HTTP/1.1 200"), head.toString());
+        int length = 0;
+        for (String line : head.toString().split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                length = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+}
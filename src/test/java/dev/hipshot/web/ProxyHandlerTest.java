@@ -0,0 +1,184 @@
+package dev.hipshot.web;
+
+import dev.hipshot.web.client.WebClient;
+import dev.hipshot.web.client.WebClientRequest;
+import dev.hipshot.web.client.WebClientResponse;
+import dev.hipshot.web.server.ProxyHandler;
+import dev.hipshot.web.server.Router;
+import dev.hipshot.web.server.WebServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Proxies to two local backends, so needs a kernel with io_uring.
+ */
+public class ProxyHandlerTest {
+    private static final int BACKEND_A = 18091;
+    private static final int BACKEND_B = 18092;
+    private static final int ROUND_ROBIN = 18093;
+    private static final int CONSISTENT_HASH = 18094;
+
+    private static WebServer backendA;
+    private static WebServer backendB;
+    private static WebServer roundRobin;
+    private static WebServer consistentHash;
+
+    @BeforeAll
+    public static void start() throws InterruptedException {
+        backendA = server(BACKEND_A, backend("a"));
+        backendB = server(BACKEND_B, backend("b"));
+        var upstreams = List.of("http://127.0.0.1:" + BACKEND_A, "http://127.0.0.1:" + BACKEND_B);
+        var roundRobinProxy = new ProxyHandler(ProxyHandler.Options.builder().upstreams(upstreams).build());
+        roundRobin = server(ROUND_ROBIN, new Router()
+            .get("/**", roundRobinProxy)
+            .head("/**", roundRobinProxy)
+            .post("/**", roundRobinProxy));
+        var hashProxy = new ProxyHandler(ProxyHandler.Options.builder()
+            .upstreams(upstreams)
+            .balancing(ProxyHandler.Balancing.CONSISTENT_HASH)
+            .build());
+        consistentHash = server(CONSISTENT_HASH, new Router().get("/**", hashProxy));
+        Thread.sleep(100); // let the rings queue their first accepts
+    }
+
+    @AfterAll
+    public static void stop() {
+        roundRobin.stop();
+        consistentHash.stop();
+        backendA.stop();
+        backendB.stop();
+    }
+
+    private static Router backend(String name) {
+        return new Router()
+            .get("/**", (req, res) -> res.header("X-Backend", name).body(name + " " + req.path()).send())
+            .get("/seen/{header}", (req, res) -> res.body(String.valueOf(req.header(req.pathParam("header")))).send())
+            .head("/**", (req, res) -> res.header("X-Backend", name)
+                .header("Content-Length", Integer.toString((name + " " + req.path()).length()))
+                .send())
+            .post("/echo", (req, res) -> {
+                if (!req.streamed()) {
+                    res.body(StandardCharsets.UTF_8.decode(req.body()).toString()).send();
+                    return;
+                }
+                req.chunkHandler(chunk -> res.write(ByteBuffer.allocate(chunk.remaining()).put(chunk).flip()));
+                req.bodyEndHandler(res::send);
+            });
+    }
+
+    private static WebServer server(int port, Router router) {
+        var options = WebServer.Options.builder()
+            .host("127.0.0.1")
+            .port(port)
+            .threads(1)
+            .build();
+        return WebServer.create(options, router).start();
+    }
+
+    @Test
+    public void shouldAlternateRoundRobin() throws Exception {
+        try (WebClient client = WebClient.create()) {
+            Set<String> backends = new HashSet<>();
+            String previous = null;
+            for (int i = 0; i < 4; i++) {
+                var response = get(client, ROUND_ROBIN, "/items/" + i);
+                Assertions.assertEquals(200, response.status());
+                Assertions.assertTrue(response.bodyAsString().endsWith(" /items/" + i));
+                Assertions.assertNotEquals(previous, response.header("X-Backend"));
+                previous = response.header("X-Backend");
+                backends.add(previous);
+            }
+            Assertions.assertEquals(Set.of("a", "b"), backends);
+        }
+    }
+
+    @Test
+    public void shouldKeepKeysOnTheSameBackend() throws Exception {
+        try (WebClient client = WebClient.create()) {
+            Set<String> backends = new HashSet<>();
+            for (int i = 0; i < 20; i++) {
+                var first = get(client, CONSISTENT_HASH, "/users/" + i).header("X-Backend");
+                Assertions.assertEquals(first, get(client, CONSISTENT_HASH, "/users/" + i).header("X-Backend"));
+                backends.add(first);
+            }
+            Assertions.assertEquals(Set.of("a", "b"), backends);
+        }
+    }
+
+    @Test
+    public void shouldKeepTheContentLengthOfHeadResponses() throws Exception {
+        try (WebClient client = WebClient.create()) {
+            var request = WebClientRequest.builder()
+                .method("HEAD")
+                .url("http://127.0.0.1:" + ROUND_ROBIN + "/items/42")
+                .build();
+            var response = client.send(request).get(5, TimeUnit.SECONDS);
+            Assertions.assertEquals(200, response.status());
+            Assertions.assertEquals("a /items/42".length(), Integer.parseInt(response.header("Content-Length")));
+            Assertions.assertEquals("", response.bodyAsString());
+        }
+    }
+
+    @Test
+    public void shouldDropHeadersNamedByConnection() throws Exception {
+        try (WebClient client = WebClient.create()) {
+            for (String header : List.of("X-Hop", "X-Kept")) {
+                var request = WebClientRequest.builder()
+                    .url("http://127.0.0.1:" + ROUND_ROBIN + "/seen/" + header)
+                    .build()
+                    .header("Connection", "X-Hop")
+                    .header("X-Hop", "hop")
+                    .header("X-Kept", "kept");
+                var expected = header.equals("X-Hop") ? "null" : "kept";
+                Assertions.assertEquals(expected, client.send(request).get(5, TimeUnit.SECONDS).bodyAsString());
+            }
+        }
+    }
+
+    @Test
+    public void shouldStreamBodiesBothWays() throws Exception {
+        try (WebClient client = WebClient.create()) {
+            var request = WebClientRequest.builder()
+                .method("POST")
+                .url("http://127.0.0.1:" + ROUND_ROBIN + "/echo")
+                .streamed(true)
+                .build();
+            CompletableFuture<WebClientResponse> response = client.send(request);
+            var expected = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                var chunk = "chunk " + i + ";";
+                expected.append(chunk);
+                request.write(ByteBuffer.wrap(chunk.getBytes(StandardCharsets.UTF_8)));
+            }
+            request.end();
+            Assertions.assertEquals(expected.toString(), response.get(5, TimeUnit.SECONDS).bodyAsString());
+        }
+    }
+
+    @Test
+    public void shouldAnswerBadGatewayWhenNoUpstreamListens() throws Exception {
+        var proxy = new ProxyHandler("http://127.0.0.1:1");
+        var server = server(18095, new Router().get("/**", proxy));
+        try (WebClient client = WebClient.create()) {
+            Thread.sleep(100);
+            Assertions.assertEquals(502, get(client, 18095, "/anything").status());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static WebClientResponse get(WebClient client, int port, String path) throws Exception {
+        return client.send(WebClientRequest.builder().url("http://127.0.0.1:" + port + path).build())
+            .get(5, TimeUnit.SECONDS);
+    }
+}
@@ -6,6 +6,7 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import sh.blake.niouring.util.ByteBufferUtil;
 
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -250,4 +251,246 @@ public class RequestDecoderTest {
 
         Assertions.assertEquals(2, chunkCount.get());
     }
+
+    @Test
+    public void shouldParseLazily() {
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect("GET /test?foo=bar&test=true HTTP/1.1\r\nAccept: text/plain\r\nKeep-Alive: timeout=5, max=1000\r\n\r\n");
+        WebServerRequestDecoder decoder = new WebServerRequestDecoder(true);
+        WebServerRequest request = decoder.decode(buffer);
+        Assertions.assertEquals("GET", request.method());
+        Assertions.assertEquals("HTTP/1.1", request.protocol());
+        Assertions.assertEquals("/test", request.path());
+        Assertions.assertEquals("text/plain", request.header("accept"));
+        Assertions.assertEquals("timeout=5, max=1000", request.headers().get("Keep-Alive").get(0));
+        Assertions.assertEquals("bar", request.queryParams().get("foo").get(0));
+        Assertions.assertEquals("true", request.queryParam("test").get(0));
+    }
+
+    @Test
+    public void shouldReuseLazyRequestForPipelinedRequests() {
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect("GET /first HTTP/1.1\r\nAccept: text/plain\r\n\r\nPOST /second HTTP/1.1\r\nContent-Length: 5\r\n\r\nHello");
+        WebServerRequestDecoder decoder = new WebServerRequestDecoder(true);
+
+        WebServerRequest first = decoder.decode(buffer);
+        Assertions.assertEquals("GET", first.method());
+        Assertions.assertEquals("/first", first.path());
+        Assertions.assertEquals("text/plain", first.header("Accept"));
+
+        WebServerRequest second = decoder.decode(buffer);
+        Assertions.assertSame(first, second);
+        Assertions.assertEquals("POST", second.method());
+        Assertions.assertEquals("/second", second.path());
+        Assertions.assertNull(second.header("Accept"));
+        Assertions.assertEquals("Hello", StandardCharsets.UTF_8.decode(second.body()).toString());
+        Assertions.assertNull(decoder.decode(buffer));
+    }
+
+    @Test
+    public void shouldKeepDetachedLazyRequestAfterCompaction() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        buffer.put("GET /test?foo=bar HTTP/1.1\r\nAccept: text/plain\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+        buffer.flip();
+        WebServerRequestDecoder decoder = new WebServerRequestDecoder(true);
+        WebServerRequest request = decoder.decode(buffer).detach();
+
+        buffer.clear();
+        buffer.put("PUT /overwritten HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+
+        Assertions.assertEquals("GET", request.method());
+        Assertions.assertEquals("/test", request.path());
+        Assertions.assertEquals("text/plain", request.header("Accept"));
+        Assertions.assertEquals("bar", request.queryParam("foo").get(0));
+    }
+
+    @Test
+    public void shouldDecodeNextRequestAfterDetaching() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        buffer.put("GET /first HTTP/1.1\r\nAccept: text/plain\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+        buffer.flip();
+        WebServerRequestDecoder decoder = new WebServerRequestDecoder(true);
+        decoder.decode(buffer).detach();
+
+        buffer.compact();
+        buffer.put("POST /second HTTP/1.1\r\nContent-Length: 2\r\nX-Id: 2\r\n\r\nhi".getBytes(StandardCharsets.UTF_8));
+        buffer.flip();
+        WebServerRequest request = decoder.decode(buffer);
+
+        Assertions.assertEquals("POST", request.method());
+        Assertions.assertEquals("/second", request.path());
+        Assertions.assertEquals("2", request.header("X-Id"));
+        Assertions.assertNull(request.header("Accept"));
+        Assertions.assertEquals("hi", StandardCharsets.UTF_8.decode(request.body()).toString());
+    }
+
+    @Test
+    public void shouldParseFragmentedRequestLazily() {
+        WebServerRequestDecoder decoder = new WebServerRequestDecoder(true);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+
+        buffer.put("POST /test?foo=bar HTTP/1.1\r\nConte".getBytes(StandardCharsets.UTF_8));
+        buffer.flip();
+        Assertions.assertNull(decoder.decode(buffer));
+        buffer.compact();
+        buffer.put("nt-Length: 13\r\n\r\nHello, world!".getBytes(StandardCharsets.UTF_8));
+        buffer.flip();
+        WebServerRequest request = decoder.decode(buffer);
+
+        Assertions.assertEquals("POST", request.method());
+        Assertions.assertEquals("/test", request.path());
+        Assertions.assertEquals("bar", request.queryParams().get("foo").get(0));
+        Assertions.assertEquals("13", request.header("Content-Length"));
+        Assertions.assertEquals("Hello, world!", StandardCharsets.UTF_8.decode(request.body()).toString());
+    }
+
+    @Test
+    public void shouldDecodePipelinedGetsWithoutAllocating() {
+        String get = "GET /plaintext?id=42 HTTP/1.1\r\nHost: localhost:8080\r\nAccept: text/plain\r\nConnection: keep-alive\r\n\r\n";
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect(get.repeat(16));
+        WebServerRequestDecoder decoder = new WebServerRequestDecoder(true);
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        for (int i = 0; i < 20_000; i++) {
+            decodeAll(decoder, buffer);
+        }
+        long before = threads.getCurrentThreadAllocatedBytes();
+        long decoded = 0;
+        for (int i = 0; i < 10_000; i++) {
+            decoded += decodeAll(decoder, buffer);
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        Assertions.assertEquals(160_000, decoded);
+        double perRequest = (double) allocated / decoded;
+        Assertions.assertTrue(perRequest < 1.0, () -> "Allocated " + perRequest + " bytes per request");
+    }
+
+    @Test
+    public void shouldStreamBodyLargerThanBuffer() {
+        WebServerRequestDecoder decoder = new WebServerRequestDecoder();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        String body = "0123456789".repeat(50);
+        ByteBuffer input = ByteBufferUtil.wrapDirect("POST /upload HTTP/1.1\r\nContent-Length: 500\r\n\r\n" + body + "GET /next HTTP/1.1\r\n\r\n");
+
+        StringBuilder received = new StringBuilder();
+        AtomicInteger ended = new AtomicInteger();
+        WebServerRequest upload = null;
+        WebServerRequest next = null;
+        while (input.hasRemaining() && next == null) {
+            int length = Math.min(buffer.remaining(), input.remaining());
+            buffer.put(input.slice(input.position(), length)).flip();
+            input.position(input.position() + length);
+            if (upload == null) {
+                upload = decoder.decode(buffer);
+                if (upload != null) {
+                    Assertions.assertTrue(upload.streamed());
+                    upload.chunkHandler(segment -> received.append(StandardCharsets.UTF_8.decode(segment)));
+                    upload.bodyEndHandler(ended::incrementAndGet);
+                }
+            }
+            if (upload != null) {
+                next = decoder.decode(buffer);
+            }
+            buffer.compact();
+        }
+
+        Assertions.assertEquals(body, received.toString());
+        Assertions.assertEquals(1, ended.get());
+        Assertions.assertNotNull(next);
+        Assertions.assertEquals("/next", next.path());
+    }
+
+    @Test
+    public void shouldStreamChunkLargerThanBuffer() {
+        WebServerRequestDecoder decoder = new WebServerRequestDecoder();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        String chunk = "abcdefghij".repeat(20);
+        ByteBuffer input = ByteBufferUtil.wrapDirect("POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "c8\r\n" + chunk + "\r\n5\r\nHello\r\n0\r\n\r\n");
+
+        StringBuilder received = new StringBuilder();
+        AtomicInteger segments = new AtomicInteger();
+        AtomicInteger ended = new AtomicInteger();
+        WebServerRequest upload = null;
+        while (input.hasRemaining()) {
+            int length = Math.min(buffer.remaining(), input.remaining());
+            buffer.put(input.slice(input.position(), length)).flip();
+            input.position(input.position() + length);
+            if (upload == null) {
+                upload = decoder.decode(buffer);
+                if (upload != null) {
+                    upload.chunkHandler(segment -> {
+                        segments.incrementAndGet();
+                        received.append(StandardCharsets.UTF_8.decode(segment));
+                    });
+                    upload.bodyEndHandler(ended::incrementAndGet);
+                }
+            }
+            if (upload != null) {
+                decoder.decode(buffer);
+            }
+            buffer.compact();
+        }
+
+        Assertions.assertEquals(chunk + "Hello", received.toString());
+        Assertions.assertTrue(segments.get() > 2);
+        Assertions.assertEquals(1, ended.get());
+    }
+
+    @Test
+    public void shouldHoldBackPausedBody() {
+        WebServerRequestDecoder decoder = new WebServerRequestDecoder();
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect("POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n3\r\ndef\r\n0\r\n\r\n");
+        WebServerRequest request = decoder.decode(buffer);
+        StringBuilder received = new StringBuilder();
+        request.chunkHandler(segment -> {
+            received.append(StandardCharsets.UTF_8.decode(segment));
+            request.pauseBody();
+        });
+
+        Assertions.assertFalse(decoder.decodeBody(buffer));
+        Assertions.assertEquals("abc", received.toString());
+        request.resumeBody();
+        Assertions.assertFalse(decoder.decodeBody(buffer));
+        Assertions.assertEquals("abcdef", received.toString());
+        request.resumeBody();
+        Assertions.assertTrue(decoder.decodeBody(buffer));
+        Assertions.assertFalse(decoder.isDecodingBody());
+    }
+
+    @Test
+    public void shouldDetermineKeepAlive() {
+        Assertions.assertTrue(keepAlive("GET / HTTP/1.1\r\n\r\n"));
+        Assertions.assertFalse(keepAlive("GET / HTTP/1.1\r\nConnection: close\r\n\r\n"));
+        Assertions.assertFalse(keepAlive("GET / HTTP/1.1\r\nconnection: Upgrade, Close\r\n\r\n"));
+        Assertions.assertFalse(keepAlive("GET / HTTP/1.0\r\n\r\n"));
+        Assertions.assertTrue(keepAlive("GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n"));
+        Assertions.assertTrue(keepAlive("GET / HTTP/1.1\r\nConnection: closed\r\n\r\n"));
+    }
+
+    @Test
+    public void shouldDetermineKeepAlivePerPipelinedRequest() {
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect("GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\nConnection: close\r\n\r\n");
+        WebServerRequestDecoder decoder = new WebServerRequestDecoder(true);
+        decoder.decode(buffer);
+        Assertions.assertTrue(decoder.isKeepAlive());
+        decoder.decode(buffer);
+        Assertions.assertFalse(decoder.isKeepAlive());
+    }
+
+    private static int decodeAll(WebServerRequestDecoder decoder, ByteBuffer buffer) {
+        buffer.position(0);
+        int count = 0;
+        for (WebServerRequest request = decoder.decode(buffer); request != null; request = decoder.decode(buffer)) {
+            if (request.method() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean keepAlive(String request) {
+        WebServerRequestDecoder decoder = new WebServerRequestDecoder();
+        Assertions.assertNotNull(decoder.decode(ByteBufferUtil.wrapDirect(request)));
+        return decoder.isKeepAlive();
+    }
 }
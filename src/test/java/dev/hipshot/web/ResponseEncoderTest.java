@@ -0,0 +1,232 @@
+package dev.hipshot.web;
+
+import dev.hipshot.web.server.EncodedHeader;
+import dev.hipshot.web.server.WebServerResponse;
+import dev.hipshot.web.server.codec.OutputChain;
+import dev.hipshot.web.server.codec.WebServerResponseEncoder;
+import dev.hipshot.web.util.BufferPool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ResponseEncoderTest {
+
+    @Test
+    public void shouldEncodeResponse() {
+        WebServerResponseEncoder encoder = new WebServerResponseEncoder();
+        WebServerResponse response = new WebServerResponse()
+            .status(201)
+            .header("Content-Type", "text/plain")
+            .body("Hello, world!");
+
+        String encoded = encode(encoder, response);
+        Assertions.assertTrue(encoded.startsWith("HTTP/1.1 201 Created\r\nDate: "));
+        Assertions.assertTrue(encoded.contains("Content-Type: text/plain\r\n"));
+        Assertions.assertTrue(encoded.contains("Content-Length: 13\r\n"));
+        Assertions.assertTrue(encoded.endsWith("\r\n\r\nHello, world!"));
+        Assertions.assertEquals(13, response.body().remaining());
+    }
+
+    @Test
+    public void shouldEncodeBackToBack() {
+        WebServerResponseEncoder encoder = new WebServerResponseEncoder();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        encoder.encode(new WebServerResponse().body("one"), buffer);
+        encoder.encode(new WebServerResponse().body("two"), buffer);
+        buffer.flip();
+
+        String encoded = StandardCharsets.UTF_8.decode(buffer).toString();
+        Assertions.assertTrue(encoded.indexOf("\r\n\r\none") < encoded.indexOf("HTTP/1.1 200 OK", 1));
+        Assertions.assertTrue(encoded.endsWith("\r\n\r\ntwo"));
+    }
+
+    @Test
+    public void shouldPreEncodeCachedResponse() {
+        WebServerResponse response = new WebServerResponse()
+            .header("Content-Type", "text/plain")
+            .body("OK");
+
+        ByteBuffer encoded = response.cache().encoded();
+        Assertions.assertTrue(encoded.isReadOnly());
+        Assertions.assertTrue(encoded.isDirect());
+        String withoutDate = encode(new WebServerResponseEncoder(), response).replaceFirst("Date: [^\r]*\r\n", "");
+        Assertions.assertEquals(withoutDate, StandardCharsets.UTF_8.decode(encoded.duplicate()).toString());
+    }
+
+    @Test
+    public void shouldReuseEncodingOfRepeatedResponse() {
+        WebServerResponseEncoder encoder = new WebServerResponseEncoder(16);
+        String body = "{\"status\":\"up\"}";
+
+        String first = encode(encoder, new WebServerResponse().header("Content-Type", "application/json").body(body));
+        String second = encode(encoder, new WebServerResponse().header("Content-Type", "application/json").body(body));
+        String other = encode(encoder, new WebServerResponse().status(503).header("Content-Type", "application/json").body(body));
+
+        Assertions.assertEquals(first, second);
+        Assertions.assertTrue(other.startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+    }
+
+    @Test
+    public void shouldEncodeDateHeader() {
+        String encoded = encode(new WebServerResponseEncoder(), new WebServerResponse());
+        String date = encoded.substring(encoded.indexOf("Date: ") + 6, encoded.indexOf("\r\n", encoded.indexOf("Date: ")));
+
+        ZonedDateTime parsed = ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME);
+        Assertions.assertTrue(Math.abs(parsed.toEpochSecond() - Instant.now().getEpochSecond()) <= 2);
+        Assertions.assertTrue(date.matches("[A-Z][a-z]{2}, \\d{2} [A-Z][a-z]{2} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT"), date);
+    }
+
+    @Test
+    public void shouldEncodePreEncodedHeaders() {
+        String encoded = encode(new WebServerResponseEncoder(), new WebServerResponse()
+            .header(EncodedHeader.CONTENT_TYPE_JSON)
+            .header(EncodedHeader.CONNECTION_KEEP_ALIVE)
+            .body("{}"));
+        Assertions.assertTrue(encoded.contains("\r\nContent-Type: application/json\r\nConnection: keep-alive\r\n"));
+        Assertions.assertTrue(encoded.contains("Content-Length: 2\r\n"));
+    }
+
+    @Test
+    public void shouldNotFrameResponsesWithoutBody() {
+        for (int status : new int[] {204, 304}) {
+            String encoded = encode(new WebServerResponseEncoder(), new WebServerResponse().status(status));
+            Assertions.assertFalse(encoded.contains("Content-Length"), encoded);
+            Assertions.assertTrue(encoded.endsWith("Server: Hipshot\r\n\r\n"), encoded);
+        }
+        OutputChain output = new OutputChain(new BufferPool(() -> ByteBuffer.allocateDirect(256)));
+        WebServerResponse notModified = new WebServerResponse().status(304).header("ETag", "\"v1\"");
+        new WebServerResponseEncoder().encodeHead(notModified, output);
+        String written = writeAll(output, new ArrayList<>());
+        Assertions.assertFalse(written.contains("Transfer-Encoding"), written);
+        Assertions.assertTrue(written.endsWith("ETag: \"v1\"\r\n\r\n"), written);
+    }
+
+    @Test
+    public void shouldNotWriteBodyOfResponseWithoutOne() {
+        String encoded = encode(new WebServerResponseEncoder(), new WebServerResponse().status(204).body("x"));
+        Assertions.assertTrue(encoded.endsWith("Server: Hipshot\r\n\r\n"), encoded);
+
+        OutputChain output = new OutputChain(new BufferPool(() -> ByteBuffer.allocateDirect(256)));
+        WebServerResponseEncoder encoder = new WebServerResponseEncoder();
+        encoder.encode(new WebServerResponse().status(304).body("x".repeat(1000)), output);
+        WebServerResponse streamed = new WebServerResponse().status(204);
+        encoder.encodeHead(streamed, output);
+        encoder.encodeChunk(streamed, ByteBuffer.wrap("x".getBytes(StandardCharsets.UTF_8)), output);
+        encoder.encodeLastChunk(streamed, output);
+        String written = writeAll(output, new ArrayList<>());
+        Assertions.assertFalse(written.contains("x"), written);
+        Assertions.assertTrue(written.endsWith("Server: Hipshot\r\n\r\n"), written);
+    }
+
+    @Test
+    public void shouldInsertCurrentDateIntoCachedResponses() {
+        WebServerResponseEncoder encoder = new WebServerResponseEncoder(16);
+        String body = "cached";
+        // admitted the second time it is seen, served from the cache the third
+        encode(encoder, new WebServerResponse().header(EncodedHeader.CONTENT_TYPE_TEXT_PLAIN).body(body));
+        encode(encoder, new WebServerResponse().header(EncodedHeader.CONTENT_TYPE_TEXT_PLAIN).body(body));
+        String hit = encode(encoder, new WebServerResponse().header(EncodedHeader.CONTENT_TYPE_TEXT_PLAIN).body(body));
+        Assertions.assertTrue(hit.startsWith("HTTP/1.1 200 OK\r\nDate: "));
+        Assertions.assertTrue(hit.contains(" GMT\r\nServer: Hipshot\r\nContent-Type: text/plain\r\n"));
+        Assertions.assertTrue(hit.endsWith("\r\n\r\ncached"));
+    }
+
+    @Test
+    public void shouldSpillLargeBodyAcrossSegments() {
+        WebServerResponseEncoder encoder = new WebServerResponseEncoder();
+        OutputChain output = new OutputChain(new BufferPool(() -> ByteBuffer.allocateDirect(256)));
+        String body = "0123456789".repeat(100);
+        encoder.encode(new WebServerResponse().body("small"), output);
+        encoder.encode(new WebServerResponse().body(body), output);
+
+        List<ByteBuffer> writes = new ArrayList<>();
+        String written = writeAll(output, writes);
+        Assertions.assertTrue(written.endsWith("\r\n\r\n" + body));
+        Assertions.assertTrue(written.contains("Content-Length: 1000\r\n"));
+        Assertions.assertTrue(writes.size() >= 4);
+        Assertions.assertEquals(1, output.size());
+    }
+
+    @Test
+    public void shouldReferenceLargeDirectBodyWithoutCopying() {
+        WebServerResponseEncoder encoder = new WebServerResponseEncoder();
+        OutputChain output = new OutputChain(new BufferPool(() -> ByteBuffer.allocateDirect(256)));
+        ByteBuffer body = ByteBuffer.allocateDirect(4096);
+        while (body.hasRemaining()) {
+            body.put((byte) 'x');
+        }
+        body.flip();
+        encoder.encode(new WebServerResponse().body(body), output);
+
+        List<ByteBuffer> writes = new ArrayList<>();
+        String written = writeAll(output, writes);
+        Assertions.assertTrue(written.contains("Content-Length: 4096\r\n\r\nxxx"));
+        Assertions.assertEquals(2, writes.size());
+        Assertions.assertEquals(4096, writes.get(1).capacity());
+        Assertions.assertEquals(0, body.position());
+    }
+
+    @Test
+    public void shouldEncodeHeadLargerThanSegment() {
+        WebServerResponseEncoder encoder = new WebServerResponseEncoder();
+        OutputChain output = new OutputChain(new BufferPool(() -> ByteBuffer.allocateDirect(256)));
+        String cookie = "x".repeat(300);
+        encoder.encode(new WebServerResponse().body("small"), output);
+        encoder.encode(new WebServerResponse().header("Set-Cookie", cookie).body("large"), output);
+
+        String written = writeAll(output, new ArrayList<>());
+        Assertions.assertTrue(written.contains("\r\n\r\nsmallHTTP/1.1 200 OK\r\n"), written);
+        Assertions.assertTrue(written.endsWith("Set-Cookie: " + cookie + "\r\nContent-Length: 5\r\n\r\nlarge"), written);
+    }
+
+    @Test
+    public void shouldRefuseResponseLargerThanBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        Assertions.assertThrows(BufferOverflowException.class,
+            () -> new WebServerResponseEncoder().encode(new WebServerResponse().body("x".repeat(64)), buffer));
+        Assertions.assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void shouldEncodeChunkedStream() {
+        WebServerResponseEncoder encoder = new WebServerResponseEncoder();
+        OutputChain output = new OutputChain(new BufferPool(() -> ByteBuffer.allocateDirect(256)));
+        WebServerResponse response = new WebServerResponse().header(EncodedHeader.CONTENT_TYPE_TEXT_PLAIN);
+        encoder.encodeHead(response, output);
+        encoder.encodeChunk(response, ByteBuffer.wrap("Hello, ".getBytes(StandardCharsets.UTF_8)), output);
+        encoder.encodeChunk(response, ByteBuffer.wrap("world!".repeat(50).getBytes(StandardCharsets.UTF_8)), output);
+        encoder.encodeLastChunk(response, output);
+
+        String written = writeAll(output, new ArrayList<>());
+        Assertions.assertTrue(written.contains("Transfer-Encoding: chunked\r\n\r\n7\r\nHello, \r\n12c\r\nworld!"));
+        Assertions.assertFalse(written.contains("Content-Length"));
+        Assertions.assertTrue(written.endsWith("world!\r\n0\r\n\r\n"));
+    }
+
+    /**
+     * Drains the chain the way a connection does, as if every write went out in full.
+     */
+    private static String writeAll(OutputChain output, List<ByteBuffer> writes) {
+        StringBuilder written = new StringBuilder();
+        for (ByteBuffer next = output.nextWrite(); next != null; next = output.nextWrite()) {
+            writes.add(next);
+            written.append(StandardCharsets.UTF_8.decode(next));
+        }
+        return written.toString();
+    }
+
+    private static String encode(WebServerResponseEncoder encoder, WebServerResponse response) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        encoder.encode(response, buffer);
+        buffer.flip();
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+}
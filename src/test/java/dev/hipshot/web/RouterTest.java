@@ -0,0 +1,168 @@
+package dev.hipshot.web;
+
+import dev.hipshot.web.server.Filter;
+import dev.hipshot.web.server.HttpMethod;
+import dev.hipshot.web.server.Router;
+import dev.hipshot.web.server.WebServerRequest;
+import dev.hipshot.web.server.WebServerResponse;
+import dev.hipshot.web.server.codec.WebServerRequestDecoder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.blake.niouring.util.ByteBufferUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+public class RouterTest {
+    private final List<String> routed = new ArrayList<>();
+
+    @Test
+    public void shouldRouteExactPaths() {
+        Router router = new Router()
+            .get("/", (req, res) -> routed.add("root"))
+            .get("/users", (req, res) -> routed.add("users"))
+            .get("/users/active", (req, res) -> routed.add("active"))
+            .post("/users", (req, res) -> routed.add("create"));
+
+        router.accept(request(HttpMethod.GET, "/"), new WebServerResponse());
+        router.accept(request(HttpMethod.GET, "/users"), new WebServerResponse());
+        router.accept(request(HttpMethod.GET, "/users/active/"), new WebServerResponse());
+        router.accept(request(HttpMethod.POST, "/users"), new WebServerResponse());
+
+        Assertions.assertEquals(List.of("root", "users", "active", "create"), routed);
+    }
+
+    @Test
+    public void shouldCapturePathParams() {
+        Router router = new Router()
+            .get("/users/{id}", (req, res) -> routed.add("user " + req.pathParam("id")))
+            .get("/users/{userId}/posts/{postId}", (req, res) -> routed.add(req.pathParams().get("userId") + "/" + req.pathParam("postId")));
+
+        router.accept(request(HttpMethod.GET, "/users/42"), new WebServerResponse());
+        router.accept(request(HttpMethod.GET, "/users/7/posts/9"), new WebServerResponse());
+
+        Assertions.assertEquals(List.of("user 42", "7/9"), routed);
+    }
+
+    @Test
+    public void shouldPreferExactOverParamOverWildcard() {
+        Router router = new Router()
+            .get("/files/latest", (req, res) -> routed.add("exact"))
+            .get("/files/{name}/meta", (req, res) -> routed.add("param " + req.pathParam("name")))
+            .get("/files/*/raw", (req, res) -> routed.add("wildcard"));
+
+        router.accept(request(HttpMethod.GET, "/files/latest"), new WebServerResponse());
+        router.accept(request(HttpMethod.GET, "/files/a.txt/meta"), new WebServerResponse());
+        router.accept(request(HttpMethod.GET, "/files/a.txt/raw"), new WebServerResponse());
+
+        Assertions.assertEquals(List.of("exact", "param a.txt", "wildcard"), routed);
+    }
+
+    @Test
+    public void shouldRouteLazilyDecodedRequests() {
+        Router router = new Router()
+            .get("/users/{id}/posts", (req, res) -> routed.add("posts " + req.pathParam("id")));
+
+        var buffer = ByteBufferUtil.wrapDirect("GET /users/42/posts?page=2 HTTP/1.1\r\n\r\n");
+        router.accept(new WebServerRequestDecoder(true).decode(buffer), new WebServerResponse());
+
+        Assertions.assertEquals(List.of("posts 42"), routed);
+    }
+
+    @Test
+    public void shouldRecompileWhenRoutesAreAdded() {
+        Router router = new Router().get("/a", (req, res) -> routed.add("a"));
+        router.accept(request(HttpMethod.GET, "/a"), new WebServerResponse());
+        router.get("/b", (req, res) -> routed.add("b"));
+        router.accept(request(HttpMethod.GET, "/b"), new WebServerResponse());
+
+        Assertions.assertEquals(List.of("a", "b"), routed);
+    }
+
+    @Test
+    public void shouldMatchRestOfPath() {
+        Router router = new Router()
+            .get("/assets/logo.png", (req, res) -> routed.add("logo"))
+            .get("/assets/**", (req, res) -> routed.add("rest " + req.pathParam("**")));
+
+        router.accept(request(HttpMethod.GET, "/assets/logo.png"), new WebServerResponse());
+        router.accept(request(HttpMethod.GET, "/assets/css/site.css"), new WebServerResponse());
+        router.accept(request(HttpMethod.GET, "/assets/app.js"), new WebServerResponse());
+
+        Assertions.assertEquals(List.of("logo", "rest css/site.css", "rest app.js"), routed);
+    }
+
+    @Test
+    public void shouldRunBlockingHandlersInlineOutsideServer() {
+        Router router = new Router()
+            .get("/report", Router.blocking((req, res) -> routed.add("report on " + Thread.currentThread().getName())));
+
+        router.accept(request(HttpMethod.GET, "/report"), new WebServerResponse());
+
+        Assertions.assertEquals(List.of("report on " + Thread.currentThread().getName()), routed);
+    }
+
+    @Test
+    public void shouldRunFiltersFromWidestScopeToRoute() {
+        Router router = new Router()
+            .filter("/api/admin", filter("admin"))
+            .filter(filter("all"))
+            .filter("/api", filter("api"))
+            .get("/api/admin/users", (req, res) -> routed.add("users"), filter("route"))
+            .get("/apis", (req, res) -> routed.add("apis"))
+            .get("/api", (req, res) -> routed.add("api root"));
+
+        router.accept(request(HttpMethod.GET, "/api/admin/users"), new WebServerResponse());
+        router.accept(request(HttpMethod.GET, "/apis"), new WebServerResponse());
+        router.accept(request(HttpMethod.GET, "/api/"), new WebServerResponse());
+
+        Assertions.assertEquals(List.of(
+            "all", "api", "admin", "route", "users",
+            "all", "apis",
+            "all", "api", "api root"), routed);
+    }
+
+    @Test
+    public void shouldLetFiltersAnswerWithoutTheHandler() {
+        Router router = new Router()
+            .filter((req, res, next) -> {
+                routed.add("checked " + req.path());
+                if (req.header("Authorization") != null) {
+                    next.accept(req, res);
+                }
+            })
+            .get("/secret", (req, res) -> routed.add("secret"));
+
+        router.accept(request(HttpMethod.GET, "/secret"), new WebServerResponse());
+        router.accept(WebServerRequest.builder().method(HttpMethod.GET).path("/secret")
+            .headers(Map.of("Authorization", List.of("Bearer x"))).build(), new WebServerResponse());
+        // requests that match no route run through the router's filters too
+        router.accept(request(HttpMethod.GET, "/missing"), new WebServerResponse());
+
+        Assertions.assertEquals(List.of("checked /secret", "checked /secret", "secret", "checked /missing"), routed);
+    }
+
+    @Test
+    public void shouldChainFiltersInFrontOfAnyHandler() {
+        var chained = Filter.chain(List.of(filter("first"), filter("second")), (req, res) -> routed.add("handler"));
+
+        chained.accept(request(HttpMethod.GET, "/"), new WebServerResponse());
+
+        Assertions.assertEquals(List.of("first", "second", "handler"), routed);
+        BiConsumer<WebServerRequest, WebServerResponse> handler = (req, res) -> { };
+        Assertions.assertSame(handler, Filter.chain(List.of(), handler));
+    }
+
+    private Filter filter(String name) {
+        return (req, res, next) -> {
+            routed.add(name);
+            next.accept(req, res);
+        };
+    }
+
+    private static WebServerRequest request(HttpMethod method, String path) {
+        return WebServerRequest.builder().method(method).path(path).build();
+    }
+}
@@ -0,0 +1,184 @@
+package dev.hipshot.web;
+
+import dev.hipshot.web.server.EncodedHeader;
+import dev.hipshot.web.server.HttpMethod;
+import dev.hipshot.web.server.Router;
+import dev.hipshot.web.server.StaticFileHandler;
+import dev.hipshot.web.server.WebServerRequest;
+import dev.hipshot.web.server.WebServerResponse;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+public class StaticFileHandlerTest {
+    private static Path directory;
+    private static StaticFileHandler files;
+    private static Router router;
+
+    @BeforeAll
+    public static void createFiles() throws IOException {
+        directory = Files.createTempDirectory("hipshot-static");
+        var root = Files.createDirectory(directory.resolve("public"));
+        Files.writeString(root.resolve("hello.txt"), "Hello, world!");
+        Files.createDirectory(root.resolve("docs"));
+        Files.writeString(root.resolve("docs").resolve("index.html"), "<h1>docs</h1>");
+        Files.writeString(directory.resolve("secret.txt"), "secret");
+        files = new StaticFileHandler(root);
+        router = new Router().get("/assets/**", files).head("/assets/**", files);
+    }
+
+    @AfterAll
+    public static void deleteFiles() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void shouldServeFile() {
+        var response = get("/assets/hello.txt");
+        Assertions.assertEquals(200, response.status());
+        Assertions.assertEquals("Hello, world!", body(response));
+        Assertions.assertEquals("text/plain; charset=utf-8", header(response, "Content-Type"));
+        Assertions.assertEquals("bytes", header(response, "Accept-Ranges"));
+        Assertions.assertNotNull(header(response, "ETag"));
+        Assertions.assertNotNull(header(response, "Last-Modified"));
+    }
+
+    @Test
+    public void shouldServeIndexOfDirectory() {
+        var response = get("/assets/docs");
+        Assertions.assertEquals("<h1>docs</h1>", body(response));
+        Assertions.assertEquals(EncodedHeader.CONTENT_TYPE_TEXT_HTML.value(), header(response, "Content-Type"));
+    }
+
+    @Test
+    public void shouldNotServeMissingFilesOrOutsideRoot() {
+        for (String path : List.of("/missing.txt", "/../secret.txt", "/docs/../../secret.txt", "/docs/../..")) {
+            // straight to the handler, which serves the whole path when not mounted on a route
+            var request = WebServerRequest.builder().method(HttpMethod.GET).path(path).build();
+            var response = new SentResponse();
+            files.accept(request, response);
+            Assertions.assertTrue(response.sent, path);
+            Assertions.assertNotNull(response.cached(), path);
+            Assertions.assertTrue(StandardCharsets.UTF_8.decode(response.cached().encoded().duplicate()).toString()
+                .startsWith("HTTP/1.1 404 "), path);
+        }
+    }
+
+    @Test
+    public void shouldAnswerConditionalRequests() {
+        var first = get("/assets/hello.txt");
+        var etag = header(first, "ETag");
+        var lastModified = header(first, "Last-Modified");
+
+        Assertions.assertEquals(304, get("/assets/hello.txt", "If-None-Match", etag).status());
+        Assertions.assertEquals(304, get("/assets/hello.txt", "If-None-Match", "\"other\", W/" + etag).status());
+        Assertions.assertEquals(304, get("/assets/hello.txt", "If-None-Match", "*").status());
+        Assertions.assertEquals(200, get("/assets/hello.txt", "If-None-Match", "\"other\"").status());
+        Assertions.assertEquals(304, get("/assets/hello.txt", "If-Modified-Since", lastModified).status());
+        Assertions.assertEquals(200, get("/assets/hello.txt", "If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT").status());
+        Assertions.assertEquals(200, get("/assets/hello.txt", "If-Modified-Since", "yesterday").status());
+        // If-Modified-Since is ignored when If-None-Match is present
+        Assertions.assertEquals(200, get("/assets/hello.txt",
+            "If-None-Match", "\"other\"", "If-Modified-Since", lastModified).status());
+
+        var notModified = get("/assets/hello.txt", "If-None-Match", etag);
+        Assertions.assertNull(notModified.body());
+        Assertions.assertEquals(etag, header(notModified, "ETag"));
+    }
+
+    @Test
+    public void shouldServeRanges() {
+        assertRange("bytes=0-4", 206, "Hello", "bytes 0-4/13");
+        assertRange("bytes=7-", 206, "world!", "bytes 7-12/13");
+        assertRange("bytes=-6", 206, "world!", "bytes 7-12/13");
+        assertRange("bytes=-100", 206, "Hello, world!", "bytes 0-12/13");
+        assertRange("bytes=7-100", 206, "world!", "bytes 7-12/13");
+        assertRange("bytes=13-", 416, null, "bytes */13");
+        assertRange("bytes=5-2", 416, null, "bytes */13");
+        assertRange("bytes=-0", 416, null, "bytes */13");
+        // malformed or multiple ranges are served in full
+        assertRange("bytes=a-b", 200, "Hello, world!", null);
+        assertRange("bytes=0-1,3-4", 200, "Hello, world!", null);
+        assertRange("lines=0-1", 200, "Hello, world!", null);
+    }
+
+    @Test
+    public void shouldAnswerHeadWithLengthAndNoBody() {
+        var response = request(HttpMethod.HEAD, "/assets/hello.txt", Map.of());
+        Assertions.assertEquals(200, response.status());
+        Assertions.assertEquals("13", header(response, "Content-Length"));
+        Assertions.assertNull(response.body());
+
+        var range = request(HttpMethod.HEAD, "/assets/hello.txt", Map.of("Range", List.of("bytes=0-4")));
+        Assertions.assertEquals(206, range.status());
+        Assertions.assertEquals("5", header(range, "Content-Length"));
+    }
+
+    private static void assertRange(String range, int status, String body, String contentRange) {
+        var response = get("/assets/hello.txt", "Range", range);
+        Assertions.assertEquals(status, response.status(), range);
+        Assertions.assertEquals(body, body(response), range);
+        Assertions.assertEquals(contentRange, header(response, "Content-Range"), range);
+    }
+
+    private static SentResponse get(String path, String... headers) {
+        Map<String, List<String>> map = new HashMap<>();
+        for (int i = 0; i < headers.length; i += 2) {
+            map.put(headers[i], List.of(headers[i + 1]));
+        }
+        return request(HttpMethod.GET, path, map);
+    }
+
+    private static SentResponse request(HttpMethod method, String path, Map<String, List<String>> headers) {
+        var request = WebServerRequest.builder().method(method).path(path).headers(new HashMap<>(headers)).build();
+        var response = new SentResponse();
+        router.accept(request, response);
+        Assertions.assertTrue(response.sent, path);
+        return response;
+    }
+
+    private static String body(WebServerResponse response) {
+        return response.body() != null ? StandardCharsets.UTF_8.decode(response.body().duplicate()).toString() : null;
+    }
+
+    /**
+     * The first value of a header, whether set pre-encoded or by name.
+     */
+    private static String header(WebServerResponse response, String name) {
+        for (int i = 0; i < response.encodedHeaderCount(); i++) {
+            if (response.encodedHeader(i).name().equalsIgnoreCase(name)) {
+                return response.encodedHeader(i).value();
+            }
+        }
+        var values = response.headers().get(name);
+        return values != null ? values.get(0) : null;
+    }
+
+    /**
+     * Remembers being sent rather than handing itself to a connection.
+     */
+    private static final class SentResponse extends WebServerResponse {
+        private boolean sent;
+
+        @Override
+        public WebServerResponse send() {
+            sent = true;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package dev.hipshot.web;
+
+import dev.hipshot.web.util.TimerWheel;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimerWheelTest {
+    private final List<String> fired = new ArrayList<>();
+
+    @Test
+    public void shouldFireTimersOnceDue() {
+        TimerWheel wheel = new TimerWheel(100, 8, 0);
+        TimerWheel.Timer first = new TimerWheel.Timer(() -> fired.add("first"));
+        TimerWheel.Timer second = new TimerWheel.Timer(() -> fired.add("second"));
+        wheel.schedule(first, 250);
+        wheel.schedule(second, 500);
+
+        wheel.advance(200);
+        Assertions.assertEquals(List.of(), fired);
+        wheel.advance(300);
+        Assertions.assertEquals(List.of("first"), fired);
+        Assertions.assertFalse(first.isScheduled());
+        wheel.advance(600);
+        Assertions.assertEquals(List.of("first", "second"), fired);
+    }
+
+    @Test
+    public void shouldMoveRescheduledTimers() {
+        TimerWheel wheel = new TimerWheel(100, 8, 0);
+        TimerWheel.Timer idle = new TimerWheel.Timer(() -> fired.add("idle"));
+        wheel.schedule(idle, 300);
+        wheel.advance(200);
+        wheel.schedule(idle, 500);
+        wheel.advance(400);
+        Assertions.assertEquals(List.of(), fired);
+        wheel.cancel(idle);
+        wheel.advance(1000);
+        Assertions.assertEquals(List.of(), fired);
+    }
+
+    @Test
+    public void shouldKeepTimersBeyondOneRevolution() {
+        TimerWheel wheel = new TimerWheel(100, 4, 0);
+        TimerWheel.Timer later = new TimerWheel.Timer(() -> fired.add("later"));
+        wheel.schedule(later, 1050);
+
+        for (long now = 100; now <= 1000; now += 100) {
+            wheel.advance(now);
+        }
+        Assertions.assertEquals(List.of(), fired);
+        wheel.advance(1100);
+        Assertions.assertEquals(List.of("later"), fired);
+    }
+
+    @Test
+    public void shouldCatchUpAfterLongPause() {
+        TimerWheel wheel = new TimerWheel(100, 4, 0);
+        for (int i = 1; i <= 10; i++) {
+            String name = "t" + i;
+            wheel.schedule(new TimerWheel.Timer(() -> fired.add(name)), i * 100L);
+        }
+        wheel.advance(5000);
+        Assertions.assertEquals(10, fired.size());
+    }
+}
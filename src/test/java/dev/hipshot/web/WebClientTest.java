@@ -0,0 +1,117 @@
+package dev.hipshot.web;
+
+import dev.hipshot.web.client.WebClient;
+import dev.hipshot.web.client.WebClientRequest;
+import dev.hipshot.web.client.WebClientResponse;
+import dev.hipshot.web.server.EncodedHeader;
+import dev.hipshot.web.server.Metrics;
+import dev.hipshot.web.server.Router;
+import dev.hipshot.web.server.WebServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the client against a local server, so needs a kernel with io_uring.
+ */
+public class WebClientTest {
+    private static final int PORT = 18090;
+    private static final String BASE = "http://127.0.0.1:" + PORT;
+
+    private static WebServer server;
+
+    @BeforeAll
+    public static void start() throws InterruptedException {
+        var router = new Router()
+            .get("/hello", (req, res) -> res
+                .header(EncodedHeader.CONTENT_TYPE_TEXT_PLAIN)
+                .body("Hello, world!")
+                .send())
+            .get("/large-head", (req, res) -> res
+                .header("X-Padding", "x".repeat(32 * 1024))
+                .body("large")
+                .send())
+            .post("/echo", (req, res) -> res
+                .header(EncodedHeader.CONTENT_TYPE_TEXT_PLAIN)
+                .body(StandardCharsets.UTF_8.decode(req.body()).toString())
+                .send());
+        var options = WebServer.Options.builder()
+            .host("127.0.0.1")
+            .port(PORT)
+            .threads(1)
+            .build();
+        server = WebServer.create(options, router).start();
+        Thread.sleep(100); // let the ring queue its first accept
+    }
+
+    @AfterAll
+    public static void stop() {
+        server.stop();
+    }
+
+    @Test
+    public void shouldGetAndPost() throws Exception {
+        try (WebClient client = WebClient.create()) {
+            WebClientResponse hello = client.send(WebClientRequest.builder().url(BASE + "/hello").build())
+                .get(5, TimeUnit.SECONDS);
+            Assertions.assertEquals(200, hello.status());
+            Assertions.assertEquals("Hello, world!", hello.bodyAsString());
+
+            WebClientResponse echo = client.send(WebClientRequest.builder()
+                    .method("POST")
+                    .url(BASE + "/echo")
+                    .body(ByteBuffer.wrap("ping".getBytes(StandardCharsets.UTF_8)))
+                    .build())
+                .get(5, TimeUnit.SECONDS);
+            Assertions.assertEquals("ping", echo.bodyAsString());
+        }
+    }
+
+    @Test
+    public void shouldReuseAndPipelineConnections() throws Exception {
+        long accepted = server.metrics().total(Metrics.Ring::accepted);
+        var options = WebClient.Options.builder().maxConnectionsPerHost(2).pipelining(8).build();
+        try (WebClient client = WebClient.create(options)) {
+            List<CompletableFuture<WebClientResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                responses.add(client.send(WebClientRequest.builder().url(BASE + "/hello").build()));
+            }
+            for (CompletableFuture<WebClientResponse> response : responses) {
+                Assertions.assertEquals("Hello, world!", response.get(5, TimeUnit.SECONDS).bodyAsString());
+            }
+        }
+        Assertions.assertTrue(server.metrics().total(Metrics.Ring::accepted) - accepted <= 2);
+    }
+
+    @Test
+    public void shouldFailResponseHeadLargerThanMax() throws Exception {
+        try (WebClient client = WebClient.create()) {
+            var response = client.send(WebClientRequest.builder().url(BASE + "/large-head").build());
+            Assertions.assertEquals("large", response.get(5, TimeUnit.SECONDS).bodyAsString());
+        }
+        var options = WebClient.Options.builder().maxResponseHeadSize(16 * 1024).build();
+        try (WebClient client = WebClient.create(options)) {
+            var response = client.send(WebClientRequest.builder().url(BASE + "/large-head").build());
+            var ex = Assertions.assertThrows(ExecutionException.class, () -> response.get(5, TimeUnit.SECONDS));
+            Assertions.assertTrue(ex.getCause() instanceof IOException, String.valueOf(ex.getCause()));
+        }
+    }
+
+    @Test
+    public void shouldFailWhenNothingListens() {
+        try (WebClient client = WebClient.create()) {
+            var response = client.send(WebClientRequest.builder().url("http://127.0.0.1:1/").build());
+            Assertions.assertThrows(Exception.class, () -> response.get(5, TimeUnit.SECONDS));
+        }
+    }
+}